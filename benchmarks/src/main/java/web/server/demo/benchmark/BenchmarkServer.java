@@ -0,0 +1,105 @@
+package web.server.demo.benchmark;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.FileSystemUtils;
+import web.server.demo.Application;
+import web.server.demo.service.RepoService;
+import web.server.demo.service.UploadResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+
+import static web.server.demo.client.Constants.FILES_PARAMETER;
+
+/**
+ * The whole application, with its embedded Tomcat on a random port, a fresh in-memory H2 database and a temporary
+ * blob store, as the benchmarks run against it.
+ */
+final class BenchmarkServer implements AutoCloseable {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final Path storageRoot;
+
+    private final ConfigurableApplicationContext context;
+
+    BenchmarkServer() throws IOException {
+        storageRoot = Files.createTempDirectory("benchmark-blobs");
+        context = new SpringApplicationBuilder(Application.class).run(
+                "--server.port=0",
+                "--storage.root=" + storageRoot,
+                "--spring.datasource.url=jdbc:h2:mem:benchmark-" + UUID.randomUUID(),
+                // a single client measuring the server, which admission control would throttle
+                "--admission.enabled=false",
+                "--logging.level.root=WARN",
+                "--logging.level.web.server.demo=WARN");
+    }
+
+    <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    String getBaseUrl() {
+        return "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+    }
+
+    /**
+     * Fills the repository through the bulk upload path.
+     *
+     * @param count the number of files
+     * @param size the size of every file
+     * @return the ids of the files, file <tt>i</tt> being named <tt>file-i</tt>
+     */
+    long[] populate(int count, int size) throws ExecutionException, InterruptedException {
+        RepoService repoService = getBean(RepoService.class);
+        long[] ids = new long[count];
+        for (int start = 0; start < count; start += BATCH_SIZE) {
+            MockMultipartFile[] files = new MockMultipartFile[Math.min(BATCH_SIZE, count - start)];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = new MockMultipartFile(FILES_PARAMETER, "file-" + (start + i), null,
+                        content(size, start + i));
+            }
+            List<UploadResult> results = repoService.save(files).get();
+            for (int i = 0; i < files.length; i++) {
+                if (!results.get(i).isSuccess()) {
+                    throw new IllegalStateException("File " + files[i].getOriginalFilename() + " was not saved");
+                }
+                ids[start + i] = results.get(i).getId();
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param size the size of the content
+     * @param seed distinguishes contents, so they are not deduplicated
+     * @return incompressible content, stored as it is
+     */
+    static byte[] content(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Makes content unique by writing a counter over its first bytes.
+     */
+    static void stamp(byte[] content, int offset, long counter) {
+        for (int i = 0; i < Long.BYTES && offset + i < content.length; i++) {
+            content[offset + i] = (byte) (counter >>> (8 * i));
+        }
+    }
+
+    @Override
+    public void close() {
+        context.close();
+        FileSystemUtils.deleteRecursively(storageRoot.toFile());
+    }
+}
@@ -0,0 +1,74 @@
+package web.server.demo.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import web.server.demo.repository.FileData;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The object operations of <tt>FileData</tt>, for files of different sizes. The entity only references its
+ * payload, so every operation should take the same time whatever the size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileDataBenchmark {
+
+    private static final String DIGEST = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @Param({"1024", "1048576", "1073741824"})
+    private long fileSize;
+
+    private FileData saved;
+
+    private FileData copy;
+
+    private FileData unsaved;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        saved = fileData(1);
+        copy = fileData(1);
+        unsaved = fileData(0);
+    }
+
+    @Benchmark
+    public int hashCodeSaved() {
+        return saved.hashCode();
+    }
+
+    @Benchmark
+    public int hashCodeUnsaved() {
+        return unsaved.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsSaved() {
+        return saved.equals(copy);
+    }
+
+    @Benchmark
+    public String toStringSaved() {
+        return saved.toString();
+    }
+
+    @Benchmark
+    public void hashSet(Blackhole blackhole) {
+        Set<FileData> set = new HashSet<>();
+        set.add(saved);
+        set.add(unsaved);
+        blackhole.consume(set.contains(copy));
+    }
+
+    private FileData fileData(long id) {
+        FileData fileData = new FileData("file-" + id, fileSize, DIGEST);
+        fileData.setId(id);
+        return fileData;
+    }
+}
@@ -0,0 +1,137 @@
+package web.server.demo.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import web.server.demo.repository.FileMetadata;
+import web.server.demo.repository.FileDataRepository;
+import web.server.demo.service.RepoService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static web.server.demo.client.Constants.*;
+
+/**
+ * Uploads and downloads of files of different sizes through the embedded Tomcat, from an HTTP client to the blob
+ * store and back. Besides operations per second, the payload bytes moved are reported as the <tt>bytes</tt>
+ * secondary result, in bytes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class HttpThroughputBenchmark {
+
+    private static final String BOUNDARY = "benchmark-boundary";
+
+    @Param({"1024", "1048576", "33554432"})
+    private int fileSize;
+
+    private BenchmarkServer server;
+
+    private HttpClient client;
+
+    private URI uploadUri;
+
+    private URI downloadUri;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    @State(Scope.Thread)
+    public static class Upload {
+
+        private byte[] body;
+
+        private int contentOffset;
+
+        @Setup(Level.Trial)
+        public void setUp(HttpThroughputBenchmark benchmark) throws IOException {
+            byte[] head = ("--" + BOUNDARY + "\r\n"
+                    + "Content-Disposition: form-data; name=\"" + FILE_PARAMETER + "\"; filename=\"uploaded\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            ByteArrayOutputStream body = new ByteArrayOutputStream(head.length + benchmark.fileSize + tail.length);
+            body.write(head);
+            body.write(BenchmarkServer.content(benchmark.fileSize, Thread.currentThread().threadId()));
+            body.write(tail);
+            this.body = body.toByteArray();
+            this.contentOffset = head.length;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transferred {
+
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new BenchmarkServer();
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        long id = server.populate(1, fileSize)[0];
+        uploadUri = URI.create(server.getBaseUrl() + BASE_API_PATH + ADD_FILE_PATH);
+        downloadUri = URI.create(server.getBaseUrl() + BASE_API_PATH + DOWNLOAD_BY_ID_PATH + "?" + ID_PARAMETER
+                + "=" + id);
+    }
+
+    /*
+     * Removes the uploaded files, but not the one being downloaded, so the blob store does not fill the disk
+     */
+    @TearDown(Level.Iteration)
+    public void removeUploaded() throws ExecutionException, InterruptedException {
+        long[] ids = server.getBean(FileDataRepository.class).findMetadataBy().stream()
+                .filter(metadata -> !metadata.getName().startsWith("file-"))
+                .mapToLong(FileMetadata::getId)
+                .toArray();
+        server.getBean(RepoService.class).deleteAllByIds(ids).get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public int upload(Upload upload, Transferred transferred) throws IOException, InterruptedException {
+        BenchmarkServer.stamp(upload.body, upload.contentOffset, counter.incrementAndGet());
+        HttpRequest request = HttpRequest.newBuilder(uploadUri)
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(upload.body))
+                .build();
+        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Upload failed with status " + response.statusCode());
+        }
+        transferred.bytes += fileSize;
+        return response.statusCode();
+    }
+
+    @Benchmark
+    public long download(Transferred transferred) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(downloadUri).GET().build();
+        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Download failed with status " + response.statusCode());
+        }
+        long length = response.headers().firstValueAsLong("Content-Length").orElse(0);
+        transferred.bytes += length;
+        return length;
+    }
+}
@@ -0,0 +1,68 @@
+package web.server.demo.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import web.server.demo.repository.FileData;
+import web.server.demo.service.RepoService;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The read operations of <tt>RepoService</tt> against the embedded H2 database, for repositories of different
+ * sizes. Lookups by id go through the <tt>FileCache</tt>, as they do when serving requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class RepoServiceReadBenchmark {
+
+    private static final int FILE_SIZE = 1024;
+
+    @Param({"1000", "100000"})
+    private int repositorySize;
+
+    private BenchmarkServer server;
+
+    private RepoService repoService;
+
+    private long[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new BenchmarkServer();
+        repoService = server.getBean(RepoService.class);
+        ids = server.populate(repositorySize, FILE_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public FileData getById() throws ExecutionException, InterruptedException {
+        return repoService.getById(ids[ThreadLocalRandom.current().nextInt(ids.length)]).get();
+    }
+
+    /*
+     * Prefixes matching about ten files, like an autocomplete after a few keystrokes
+     */
+    @Benchmark
+    public List<String> getByNameStartingWith() {
+        int bound = Math.max(1, repositorySize / 10);
+        return repoService.getByNameStartingWith("file-" + ThreadLocalRandom.current().nextInt(bound), 100);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Collection<String> getAll() throws ExecutionException, InterruptedException {
+        return repoService.getAll().get();
+    }
+}
@@ -0,0 +1,76 @@
+package web.server.demo.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import web.server.demo.repository.FileData;
+import web.server.demo.service.RepoService;
+
+import java.io.ByteArrayInputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <tt>RepoService.save</tt> of single files of different sizes, from the hashing of the content to the insert in the
+ * embedded H2 database. Every saved file has unique content, so nothing is deduplicated; the files are removed
+ * after each iteration to keep the blob store from filling the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RepoServiceSaveBenchmark {
+
+    @Param({"1024", "1048576", "16777216"})
+    private int fileSize;
+
+    private BenchmarkServer server;
+
+    private RepoService repoService;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    private final Queue<Long> saved = new ConcurrentLinkedQueue<>();
+
+    @State(Scope.Thread)
+    public static class Content {
+
+        private byte[] bytes;
+
+        @Setup(Level.Trial)
+        public void setUp(RepoServiceSaveBenchmark benchmark) {
+            bytes = BenchmarkServer.content(benchmark.fileSize, Thread.currentThread().threadId());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new BenchmarkServer();
+        repoService = server.getBean(RepoService.class);
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeSaved() throws ExecutionException, InterruptedException {
+        long[] ids = saved.stream().mapToLong(Long::longValue).toArray();
+        saved.clear();
+        repoService.deleteAllByIds(ids).get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public FileData save(Content content) throws ExecutionException, InterruptedException {
+        long n = counter.incrementAndGet();
+        BenchmarkServer.stamp(content.bytes, 0, n);
+        FileData fileData = repoService.save("file-" + n, () -> new ByteArrayInputStream(content.bytes)).get();
+        saved.add(fileData.getId());
+        return fileData;
+    }
+}
@@ -1,23 +1,35 @@
 package web.server.demo;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.annotation.AsyncConfigurerSupport;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import web.server.demo.metrics.CountingRejectedExecutionHandler;
 
+import javax.annotation.PreDestroy;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadPoolExecutor;
 
 @SpringBootApplication
 @EnableAsync
+@EnableScheduling
 public class Application extends AsyncConfigurerSupport {
 
     private static final Logger LOG = LoggerFactory.getLogger(Application.class);
 
+    private static final String ASYNC_EXECUTOR = "asyncExecutor";
+
     @Value("${executor.pool.size.core}")
     private int corePoolSize;
 
@@ -27,18 +39,51 @@ public class Application extends AsyncConfigurerSupport {
     @Value("${executor.queue.capacity}")
     private int queueCapacity;
 
+    @Value("${executor.virtual-threads}")
+    private boolean virtualThreads;
+
+    /*
+     * Looked up when the executor is first needed: the async configuration is created early, before the registry
+     * has been customised
+     */
+    @Autowired
+    private ObjectProvider<MeterRegistry> meterRegistry;
+
+    private ThreadPoolTaskExecutor asyncExecutor;
+
     public static void main(String[] args) {
         SpringApplication.run(Application.class, args);
     }
 
     @Override
     public Executor getAsyncExecutor() {
+        if (virtualThreads) {
+            // One new virtual thread per @Async call, blocking on JDBC or disk parks it instead of holding a thread
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor();
+            executor.setThreadFactory(Thread.ofVirtual().name("async-", 0).factory());
+            LOG.info("@Async methods run on virtual threads");
+            return executor;
+        }
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(corePoolSize);
         executor.setMaxPoolSize(maxPoolSize);
         executor.setQueueCapacity(queueCapacity);
-        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.setRejectedExecutionHandler(new CountingRejectedExecutionHandler(
+                new ThreadPoolExecutor.CallerRunsPolicy(), meterRegistry.getObject(), ASYNC_EXECUTOR));
         executor.initialize();
+        new ExecutorServiceMetrics(executor.getThreadPoolExecutor(), ASYNC_EXECUTOR, Tags.empty())
+                .bindTo(meterRegistry.getObject());
+        asyncExecutor = executor;
         return executor;
     }
+
+    /*
+     * The executor is not a bean, so the context would not stop its threads when it is closed
+     */
+    @PreDestroy
+    public void shutdownAsyncExecutor() {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+        }
+    }
 }
\ No newline at end of file
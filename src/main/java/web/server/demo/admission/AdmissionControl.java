@@ -0,0 +1,242 @@
+package web.server.demo.admission;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+import static web.server.demo.client.Constants.*;
+import static web.server.demo.metrics.MetricNames.ADMISSION_REJECTED;
+import static web.server.demo.metrics.MetricNames.LIMIT_TAG;
+
+/**
+ * Admission control in front of the API, turning excess requests away at once instead of letting them queue up in
+ * the executors, where they would delay everyone else's.
+ * <ul>
+ *     <li>Every client gets a bucket of requests and one of payload bytes, refilled at
+ *     <tt>admission.requests.per-second</tt> and <tt>admission.bytes.per-second</tt>. A client whose bucket is
+ *     empty gets a <tt>429</tt>. The bytes of a request are taken when it is admitted, as declared by its
+ *     <tt>Content-Length</tt>, and those of the response once it is complete, so a large transfer can take the
+ *     bucket into debt and holds the client's next requests back until it is paid.</li>
+ *     <li>Uploads share <tt>admission.uploads.max-concurrent</tt> slots over all clients; an upload finding none free
+ *     gets a <tt>503</tt>.</li>
+ * </ul>
+ * Both answers carry a <tt>Retry-After</tt>. Clients are told apart by the API key of <tt>admission.client-header</tt>,
+ * or by their address if they send none; keys are not authenticated here, they only separate well-behaved tenants.
+ * <p>
+ * Buckets are lock-free and kept in a <tt>ConcurrentHashMap</tt>; those of clients idle long enough for their
+ * buckets to be full again are dropped periodically. The limits do not depend on the web stack: the servlet
+ * {@link AdmissionFilter} and the filter of the reactive variant both ask this class.
+ */
+@Component
+@ConditionalOnProperty(name = "admission.enabled", havingValue = "true")
+public class AdmissionControl {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdmissionControl.class);
+
+    private static final Set<String> UPLOAD_PATHS = new HashSet<>(Arrays.asList(
+            BASE_API_PATH + ADD_FILE_PATH,
+            BASE_API_PATH + ADD_FILES_PATH,
+            BASE_API_PATH + ADD_ARCHIVE_PATH,
+            BASE_API_PATH + FILE_REPLACE_PATH,
+            BASE_API_PATH + UPLOAD_PART_PATH,
+            BASE_API_PATH + UPLOAD_COMPLETE_PATH));
+
+    private final ConcurrentMap<String, ClientLimits> clients = new ConcurrentHashMap<>();
+
+    private final String clientHeader;
+
+    private final double requestsPerSecond;
+
+    private final long requestBurst;
+
+    private final double bytesPerSecond;
+
+    private final long byteBurst;
+
+    private final Semaphore uploads;
+
+    private final long uploadRetryAfterSeconds;
+
+    private final Counter rejectedByRequests;
+
+    private final Counter rejectedByBytes;
+
+    private final Counter rejectedByUploads;
+
+    @Autowired
+    public AdmissionControl(@Value("${admission.client-header}") String clientHeader,
+                            @Value("${admission.requests.per-second}") double requestsPerSecond,
+                            @Value("${admission.requests.burst}") long requestBurst,
+                            @Value("${admission.bytes.per-second}") double bytesPerSecond,
+                            @Value("${admission.bytes.burst}") long byteBurst,
+                            @Value("${admission.uploads.max-concurrent}") int maxConcurrentUploads,
+                            @Value("${admission.uploads.retry-after}") Duration uploadRetryAfter,
+                            MeterRegistry meterRegistry) {
+        this.clientHeader = clientHeader;
+        this.requestsPerSecond = requestsPerSecond;
+        this.requestBurst = requestBurst;
+        this.bytesPerSecond = bytesPerSecond;
+        this.byteBurst = byteBurst;
+        this.uploads = new Semaphore(maxConcurrentUploads);
+        this.uploadRetryAfterSeconds = Math.max(1, uploadRetryAfter.getSeconds());
+        this.rejectedByRequests = rejections(meterRegistry, "requests");
+        this.rejectedByBytes = rejections(meterRegistry, "bytes");
+        this.rejectedByUploads = rejections(meterRegistry, "uploads");
+    }
+
+    /**
+     * @return the name of the header carrying the API key of a client
+     */
+    public String getClientHeader() {
+        return clientHeader;
+    }
+
+    /**
+     * Decides whether to let a request in. An admitted request must be {@link Admission#complete(long) completed}
+     * exactly once, however it ends, so that its upload slot is given back.
+     *
+     * @param key the API key sent by the client, or <tt>null</tt>
+     * @param address the address of the client
+     * @param path the path of the request within the application
+     * @param contentLength the declared length of the request body, or a negative value if there is none
+     * @return the decision
+     */
+    public Admission admit(String key, String address, String path, long contentLength) {
+        String client = key == null || key.isEmpty() ? "address:" + address : "key:" + key;
+        ClientLimits limits = clients.computeIfAbsent(client, c -> new ClientLimits());
+        long wait = limits.requests.tryAcquire(1);
+        if (wait > 0) {
+            return reject(TOO_MANY_REQUESTS.value(), seconds(wait), rejectedByRequests);
+        }
+        wait = limits.bytes.tryAcquire(0);
+        if (wait > 0) {
+            return reject(TOO_MANY_REQUESTS.value(), seconds(wait), rejectedByBytes);
+        }
+        boolean upload = UPLOAD_PATHS.contains(path);
+        if (upload && !uploads.tryAcquire()) {
+            return reject(SERVICE_UNAVAILABLE.value(), uploadRetryAfterSeconds, rejectedByUploads);
+        }
+        if (contentLength > 0) {
+            limits.bytes.consume(contentLength);
+        }
+        return new Admission(limits, upload);
+    }
+
+    /**
+     * Drops the buckets of clients which have not been seen for long enough that their buckets are full again. A
+     * request racing with the removal may be charged to the dropped buckets, which only makes the limits briefly
+     * more lenient.
+     */
+    @Scheduled(fixedDelayString = "${admission.idle-cleanup-interval}")
+    public void removeIdleClients() {
+        int before = clients.size();
+        clients.values().removeIf(ClientLimits::isIdle);
+        LOG.debug("Dropped the buckets of {} idle clients", before - clients.size());
+    }
+
+    private Admission reject(int status, long retryAfterSeconds, Counter rejections) {
+        rejections.increment();
+        return new Admission(status, retryAfterSeconds);
+    }
+
+    private static long seconds(long nanos) {
+        return Math.max(1, (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static Counter rejections(MeterRegistry meterRegistry, String limit) {
+        return Counter.builder(ADMISSION_REJECTED)
+                .tag(LIMIT_TAG, limit)
+                .description("Requests rejected by admission control")
+                .register(meterRegistry);
+    }
+
+    private final class ClientLimits {
+
+        private final TokenBucket requests = new TokenBucket(requestsPerSecond, requestBurst);
+
+        private final TokenBucket bytes = new TokenBucket(bytesPerSecond, byteBurst);
+
+        private boolean isIdle() {
+            return requests.isFull() && bytes.isFull();
+        }
+    }
+
+    /**
+     * The decision on a request: either it is admitted, or it is to be answered with {@link #getStatus()} and a
+     * <tt>Retry-After</tt> of {@link #getRetryAfterSeconds()}.
+     */
+    public final class Admission {
+
+        private final ClientLimits limits;
+
+        private final boolean upload;
+
+        private final int status;
+
+        private final long retryAfterSeconds;
+
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private Admission(ClientLimits limits, boolean upload) {
+            this.limits = limits;
+            this.upload = upload;
+            this.status = 0;
+            this.retryAfterSeconds = 0;
+        }
+
+        private Admission(int status, long retryAfterSeconds) {
+            this.limits = null;
+            this.upload = false;
+            this.status = status;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public boolean isAdmitted() {
+            return limits != null;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+
+        /**
+         * Gives back the upload slot of the request and charges the bytes of its response. Only the first call of
+         * an admitted request counts.
+         *
+         * @param responseLength the length of the response body, or a negative value if it is not known
+         */
+        public void complete(long responseLength) {
+            if (limits == null || !completed.compareAndSet(false, true)) {
+                return;
+            }
+            if (upload) {
+                uploads.release();
+            }
+            if (responseLength > 0) {
+                limits.bytes.consume(responseLength);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package web.server.demo.admission;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+import static org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type.SERVLET;
+import static org.springframework.http.HttpHeaders.CONTENT_LENGTH;
+import static org.springframework.http.HttpHeaders.RETRY_AFTER;
+
+/**
+ * Applies {@link AdmissionControl} to the requests of the servlet stack. Rejected requests are answered right away
+ * with an error; the response of an admitted one is charged once it is complete, which for controllers returning
+ * futures is after the filter returned.
+ */
+@Component
+@ConditionalOnWebApplication(type = SERVLET)
+@ConditionalOnProperty(name = "admission.enabled", havingValue = "true")
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdmissionFilter.class);
+
+    private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+    private final AdmissionControl admissionControl;
+
+    public AdmissionFilter(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        AdmissionControl.Admission admission = admissionControl.admit(
+                request.getHeader(admissionControl.getClientHeader()), request.getRemoteAddr(),
+                urlPathHelper.getPathWithinApplication(request), request.getContentLengthLong());
+        if (!admission.isAdmitted()) {
+            response.setHeader(RETRY_AFTER, String.valueOf(admission.getRetryAfterSeconds()));
+            response.sendError(admission.getStatus());
+            return;
+        }
+
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            // Controllers returning futures complete the response on another thread, after the filter returned
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new CompletionListener(admission), request, response);
+            } else {
+                complete(admission, response);
+            }
+        }
+    }
+
+    private static void complete(AdmissionControl.Admission admission, HttpServletResponse response) {
+        long length = -1;
+        String contentLength = response.getHeader(CONTENT_LENGTH);
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                LOG.debug("Response with an invalid content length {}", contentLength);
+            }
+        }
+        admission.complete(length);
+    }
+
+    private static final class CompletionListener implements AsyncListener {
+
+        private final AdmissionControl.Admission admission;
+
+        private CompletionListener(AdmissionControl.Admission admission) {
+            this.admission = admission;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            complete(admission, (HttpServletResponse) event.getSuppliedResponse());
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package web.server.demo.admission;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket refilled at <tt>rate</tt> tokens per second and holding up to <tt>capacity</tt> tokens.
+ * <p>
+ * The bucket is kept as the generic cell rate algorithm does: instead of a token count and a refill time, it only
+ * stores the time at which the bucket will be full again, advanced by every token taken. A single
+ * <tt>AtomicLong</tt> updated with compare-and-set is the whole state, so buckets never lock and can be shared by
+ * any number of request threads.
+ */
+public class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = 1_000_000_000d;
+
+    private final double nanosPerToken;
+
+    private final long capacityNanos;
+
+    private final LongSupplier nanoClock;
+
+    // The time, on nanoClock, at which the bucket is full again; at or before now the bucket is full
+    private final AtomicLong fullAt;
+
+    public TokenBucket(double rate, long capacity) {
+        this(rate, capacity, System::nanoTime);
+    }
+
+    public TokenBucket(double rate, long capacity, LongSupplier nanoClock) {
+        if (rate <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("A token bucket needs a positive rate and capacity");
+        }
+        this.nanosPerToken = NANOS_PER_SECOND / rate;
+        this.capacityNanos = nanos(capacity);
+        this.nanoClock = nanoClock;
+        this.fullAt = new AtomicLong(nanoClock.getAsLong());
+    }
+
+    /**
+     * Takes tokens if the bucket holds enough of them. Taking no tokens checks that the bucket is not in debt
+     * after {@link #consume(long)}.
+     *
+     * @param tokens the number of tokens to take
+     * @return <tt>0</tt> if the tokens were taken, otherwise the nanoseconds until they will be available
+     */
+    public long tryAcquire(long tokens) {
+        long cost = nanos(tokens);
+        while (true) {
+            long now = nanoClock.getAsLong();
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            long wait = next - now - capacityNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Takes tokens whether the bucket holds them or not, for costs only known once they were incurred. A bucket
+     * taken below zero rejects every {@link #tryAcquire(long)} until it has been refilled above zero.
+     *
+     * @param tokens the number of tokens to take
+     */
+    public void consume(long tokens) {
+        long cost = nanos(tokens);
+        while (true) {
+            long now = nanoClock.getAsLong();
+            long current = fullAt.get();
+            if (fullAt.compareAndSet(current, Math.max(current, now) + cost)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if the bucket is full, i.e. nothing was taken from it recently
+     */
+    public boolean isFull() {
+        return fullAt.get() - nanoClock.getAsLong() <= 0;
+    }
+
+    private long nanos(long tokens) {
+        double nanos = Math.ceil(tokens * nanosPerToken);
+        return nanos >= Long.MAX_VALUE / 4 ? Long.MAX_VALUE / 4 : (long) nanos;
+    }
+}
@@ -0,0 +1,80 @@
+package web.server.demo.archive;
+
+import org.springframework.http.MediaType;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * The archive formats files can be uploaded and downloaded in.
+ */
+public enum ArchiveFormat {
+
+    ZIP("zip", MediaType.valueOf("application/zip")) {
+        @Override
+        public ArchiveWriter newWriter(OutputStream out) {
+            return new ZipArchiveWriter(out);
+        }
+
+        @Override
+        public ArchiveReader newReader(InputStream in) {
+            return new ZipArchiveReader(in);
+        }
+    },
+
+    TAR("tar", MediaType.valueOf("application/x-tar")) {
+        @Override
+        public ArchiveWriter newWriter(OutputStream out) {
+            return new TarArchiveWriter(out);
+        }
+
+        @Override
+        public ArchiveReader newReader(InputStream in) {
+            return new TarArchiveReader(in);
+        }
+    };
+
+    private final String extension;
+
+    private final MediaType mediaType;
+
+    ArchiveFormat(String extension, MediaType mediaType) {
+        this.extension = extension;
+        this.mediaType = mediaType;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * @param out the stream the archive is written to
+     * @return a writer of archives in this format
+     */
+    public abstract ArchiveWriter newWriter(OutputStream out);
+
+    /**
+     * @param in the stream the archive is read from
+     * @return a reader of archives in this format
+     */
+    public abstract ArchiveReader newReader(InputStream in);
+
+    /**
+     * @param extension the file extension of a format, in any case
+     * @return the format
+     * @throws IllegalArgumentException if there is no such format
+     */
+    public static ArchiveFormat fromExtension(String extension) {
+        for (ArchiveFormat format : values()) {
+            if (format.extension.equals(extension.toLowerCase(Locale.ROOT))) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported archive format " + extension);
+    }
+}
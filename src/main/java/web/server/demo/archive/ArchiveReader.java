@@ -0,0 +1,43 @@
+package web.server.demo.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the files of an archive from a stream, one entry at a time, while the stream is still arriving. Only regular
+ * files are returned; directories, links and other entries are skipped.
+ */
+public interface ArchiveReader {
+
+    /**
+     * Moves to the next file of the archive, skipping what was left unread of the previous one.
+     *
+     * @return the next file, <tt>null</tt> at the end of the archive
+     * @throws IOException if the archive could not be read or is malformed
+     */
+    Entry next() throws IOException;
+
+    /**
+     * A file of an archive. Its content can only be read until the reader moves on, and closing it leaves the
+     * archive open.
+     */
+    class Entry {
+
+        private final String name;
+
+        private final InputStream content;
+
+        Entry(String name, InputStream content) {
+            this.name = name;
+            this.content = content;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public InputStream getContent() {
+            return content;
+        }
+    }
+}
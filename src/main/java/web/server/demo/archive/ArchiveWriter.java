@@ -0,0 +1,42 @@
+package web.server.demo.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+
+/**
+ * Writes an archive to a stream one entry at a time. The content of an entry is copied from its source to the
+ * archive through a fixed buffer and never held in memory, so writing an archive takes the same memory whatever the
+ * number and the size of its entries. The content of an entry is opened before anything of the entry is written, so
+ * an entry whose content cannot be opened can be left out. Closing the writer finishes the archive and closes the
+ * stream; a writer which failed should not be closed, the archive is incomplete.
+ */
+public interface ArchiveWriter extends Closeable {
+
+    /**
+     * Adds an entry to the archive.
+     *
+     * @param name the name of the entry, unique within the archive
+     * @param size the size of the content
+     * @param modifiedAt the time the content was last modified, <tt>null</tt> if unknown
+     * @param compressible <tt>false</tt> if the content is compressed already and should be stored as it is
+     * @param content the source of the content, which may be opened more than once
+     * @throws IOException if the content could not be read or the entry could not be written
+     */
+    void putEntry(String name, long size, Instant modifiedAt, boolean compressible, Content content)
+            throws IOException;
+
+    /**
+     * The source of the content of an entry.
+     */
+    @FunctionalInterface
+    interface Content {
+
+        /**
+         * @return a new <tt>InputStream</tt> over the content, closed by the writer
+         * @throws IOException if the content could not be opened
+         */
+        InputStream open() throws IOException;
+    }
+}
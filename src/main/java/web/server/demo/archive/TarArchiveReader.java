@@ -0,0 +1,264 @@
+package web.server.demo.archive;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads ustar, pax and GNU tar archives. Long names are taken from pax extended headers or GNU long name entries,
+ * and sizes from pax headers or the base-256 encoding GNU tar uses for entries over 8 GB. Global pax headers are
+ * ignored.
+ */
+class TarArchiveReader implements ArchiveReader {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int MAX_EXTENDED_HEADER_SIZE = 1024 * 1024;
+
+    private static final byte REGULAR_FILE = '0';
+    private static final byte OLD_REGULAR_FILE = 0;
+    private static final byte CONTIGUOUS_FILE = '7';
+    private static final byte PAX_EXTENDED_HEADER = 'x';
+    private static final byte GNU_LONG_NAME = 'L';
+
+    private final InputStream in;
+
+    private final byte[] header = new byte[BLOCK_SIZE];
+
+    private EntryInputStream current;
+
+    private long padding;
+
+    TarArchiveReader(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public Entry next() throws IOException {
+        String longName = null;
+        long paxSize = -1;
+        while (true) {
+            skipCurrent();
+            if (!readHeader()) {
+                return null;
+            }
+            byte type = header[156];
+            long size = paxSize >= 0 ? paxSize : size();
+            current = new EntryInputStream(size);
+            padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+
+            if (type == PAX_EXTENDED_HEADER || type == GNU_LONG_NAME) {
+                String value = new String(readExtendedHeader(size), StandardCharsets.UTF_8);
+                if (type == GNU_LONG_NAME) {
+                    longName = trimNul(value);
+                } else {
+                    String path = paxRecord(value, "path");
+                    longName = path != null ? path : longName;
+                    String paxSizeRecord = paxRecord(value, "size");
+                    paxSize = paxSizeRecord != null ? Long.parseLong(paxSizeRecord) : paxSize;
+                }
+            } else if (type == REGULAR_FILE || type == OLD_REGULAR_FILE || type == CONTIGUOUS_FILE) {
+                return new Entry(longName != null ? longName : name(), current);
+            } else {
+                longName = null;
+                paxSize = -1;
+            }
+        }
+    }
+
+    private void skipCurrent() throws IOException {
+        if (current != null) {
+            skipFully(current.remaining + padding);
+            current = null;
+        }
+    }
+
+    /*
+     * An archive ends with two empty blocks; some writers stop after the first or at the end of the stream
+     */
+    private boolean readHeader() throws IOException {
+        int filled = 0;
+        while (filled < BLOCK_SIZE) {
+            int read = in.read(header, filled, BLOCK_SIZE - filled);
+            if (read < 0) {
+                if (filled == 0) {
+                    return false;
+                }
+                throw new EOFException("Archive ended within a header");
+            }
+            filled += read;
+        }
+        for (byte b : header) {
+            if (b != 0) {
+                verifyChecksum();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void verifyChecksum() throws IOException {
+        long expected = octal(148, 8);
+        long checksum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        }
+        if (checksum != expected) {
+            throw new IOException("Invalid tar header checksum");
+        }
+    }
+
+    private byte[] readExtendedHeader(long size) throws IOException {
+        if (size > MAX_EXTENDED_HEADER_SIZE) {
+            throw new IOException("Extended header of " + size + " bytes");
+        }
+        byte[] value = new byte[(int) size];
+        int filled = 0;
+        while (filled < value.length) {
+            int read = current.read(value, filled, value.length - filled);
+            if (read < 0) {
+                throw new EOFException("Archive ended within an extended header");
+            }
+            filled += read;
+        }
+        return value;
+    }
+
+    /*
+     * The name of ustar headers is split between a prefix and the name field
+     */
+    private String name() {
+        String name = field(0, 100);
+        boolean ustar = "ustar".equals(field(257, 6));
+        String prefix = ustar ? field(345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    private long size() throws IOException {
+        if ((header[124] & 0x80) != 0) {
+            long size = 0;
+            for (int i = 125; i < 136; i++) {
+                size = (size << 8) | (header[i] & 0xFF);
+            }
+            return size;
+        }
+        return octal(124, 12);
+    }
+
+    private long octal(int offset, int length) throws IOException {
+        String digits = field(offset, length).trim();
+        try {
+            return digits.isEmpty() ? 0 : Long.parseLong(digits, 8);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number in tar header: " + digits);
+        }
+    }
+
+    private String field(int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Records are "<length> <key>=<value>\n"
+     */
+    private static String paxRecord(String records, String key) {
+        int position = 0;
+        String value = null;
+        while (position < records.length()) {
+            int space = records.indexOf(' ', position);
+            int end = records.indexOf('\n', space);
+            if (space < 0 || end < 0) {
+                break;
+            }
+            String record = records.substring(space + 1, end);
+            if (record.startsWith(key + "=")) {
+                value = record.substring(key.length() + 1);
+            }
+            position = end + 1;
+        }
+        return value;
+    }
+
+    private static String trimNul(String value) {
+        int nul = value.indexOf(0);
+        return nul < 0 ? value : value.substring(0, nul);
+    }
+
+    private void skipFully(long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Archive ended " + remaining + " bytes before the end of an entry");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /*
+     * The content of an entry. Unlike a RangeInputStream it fails if the archive ends early, so that a truncated
+     * entry is not mistaken for a complete one, and closing it leaves the archive open.
+     */
+    private class EntryInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private EntryInputStream(long size) {
+            super(TarArchiveReader.this.in);
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read();
+            if (read < 0) {
+                throw new EOFException("Archive ended " + remaining + " bytes before the end of an entry");
+            }
+            remaining--;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(bytes, offset, (int) Math.min(length, remaining));
+            if (read < 0) {
+                throw new EOFException("Archive ended " + remaining + " bytes before the end of an entry");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(Math.min(count, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package web.server.demo.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Writes POSIX (pax) tar archives. Entries get a plain ustar header, preceded by a pax extended header when the
+ * name is not ASCII or too long for the header, or the content exceeds the 8 GB an ustar header can describe.
+ * Tar does not compress, so every entry is written as it is, in a single pass.
+ */
+class TarArchiveWriter implements ArchiveWriter {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int NAME_LENGTH = 100;
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+    private static final String PAX_HEADER_NAME = "././@PaxHeader";
+    private static final byte REGULAR_FILE = '0';
+    private static final byte PAX_EXTENDED_HEADER = 'x';
+
+    private final OutputStream out;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    TarArchiveWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void putEntry(String name, long size, Instant modifiedAt, boolean compressible, Content content)
+            throws IOException {
+        try (InputStream in = content.open()) {
+            long modified = modifiedAt == null ? 0 : modifiedAt.getEpochSecond();
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            boolean ascii = nameBytes.length == name.length();
+            if (!ascii || nameBytes.length > NAME_LENGTH || size > MAX_USTAR_SIZE) {
+                StringBuilder records = new StringBuilder();
+                if (!ascii || nameBytes.length > NAME_LENGTH) {
+                    records.append(paxRecord("path", name));
+                }
+                if (size > MAX_USTAR_SIZE) {
+                    records.append(paxRecord("size", String.valueOf(size)));
+                }
+                byte[] extended = records.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(header(PAX_HEADER_NAME, extended.length, modified, PAX_EXTENDED_HEADER));
+                out.write(extended);
+                pad(extended.length);
+            }
+            String ustarName = ascii ? name : name.replaceAll("[^\\x20-\\x7e]", "_");
+            out.write(header(ustarName, Math.min(size, MAX_USTAR_SIZE), modified, REGULAR_FILE));
+
+            long copied = 0;
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                if (copied + read > size) {
+                    throw new IOException("Entry " + name + " has more than " + size + " bytes");
+                }
+                out.write(buffer, 0, read);
+                copied += read;
+            }
+            if (copied != size) {
+                throw new IOException("Entry " + name + " has " + copied + " bytes instead of " + size);
+            }
+        }
+        pad(size);
+    }
+
+    /*
+     * An archive ends with two empty blocks
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            out.write(new byte[2 * BLOCK_SIZE]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void pad(long length) throws IOException {
+        int remainder = (int) (length % BLOCK_SIZE);
+        if (remainder != 0) {
+            out.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+
+    /*
+     * The ustar header. Names which do not fit are truncated or made ASCII, the pax header before holds the real one
+     */
+    private static byte[] header(String name, long size, long modified, byte type) {
+        byte[] header = new byte[BLOCK_SIZE];
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, NAME_LENGTH));
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, modified);
+        header[156] = type;
+        System.arraycopy("ustar\00000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+        // The checksum is computed with its own field filled with spaces
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        octal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /*
+     * Writes a value as zero-padded octal digits terminated by NUL, filling the field
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int padding = length - 1 - digits.length();
+        for (int i = 0; i < length - 1; i++) {
+            header[offset + i] = (byte) (i < padding ? '0' : digits.charAt(i - padding));
+        }
+        header[offset + length - 1] = 0;
+    }
+
+    /*
+     * A pax record is "<length> <key>=<value>\n", where the length in bytes includes its own digits
+     */
+    private static String paxRecord(String key, String value) {
+        int length = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int total = length + String.valueOf(length).length();
+        if (String.valueOf(total).length() > String.valueOf(length).length()) {
+            total++;
+        }
+        return total + " " + key + "=" + value + "\n";
+    }
+}
@@ -0,0 +1,31 @@
+package web.server.demo.archive;
+
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads zip archives from their local headers, without the central directory at their end. Entries which are
+ * <tt>STORED</tt> with their sizes after the content cannot be delimited that way and make the archive unreadable.
+ */
+class ZipArchiveReader implements ArchiveReader {
+
+    private final ZipInputStream zip;
+
+    ZipArchiveReader(InputStream in) {
+        this.zip = new ZipInputStream(in);
+    }
+
+    @Override
+    public Entry next() throws IOException {
+        for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+            if (!entry.isDirectory()) {
+                return new Entry(entry.getName(), StreamUtils.nonClosing(zip));
+            }
+        }
+        return null;
+    }
+}
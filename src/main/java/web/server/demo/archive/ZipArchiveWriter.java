@@ -0,0 +1,75 @@
+package web.server.demo.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes zip archives, with ZIP64 extensions once they are needed. Compressible content is deflated at the fastest
+ * level, since the archive is built while it is sent; content which is compressed already is stored as it is.
+ * <p>
+ * A stored entry needs its CRC in the local header, ahead of the content, and the output cannot be sought back
+ * into, so stored content is read twice: once for the CRC and once to be written. Deflated entries are read once
+ * and have their CRC written after the content.
+ */
+class ZipArchiveWriter implements ArchiveWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ZipOutputStream zip;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    ZipArchiveWriter(OutputStream out) {
+        this.zip = new ZipOutputStream(out);
+        this.zip.setLevel(Deflater.BEST_SPEED);
+    }
+
+    @Override
+    public void putEntry(String name, long size, Instant modifiedAt, boolean compressible, Content content)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (modifiedAt != null) {
+            entry.setLastModifiedTime(FileTime.from(modifiedAt));
+        }
+        if (!compressible) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc(content));
+        }
+        long copied = 0;
+        try (InputStream in = content.open()) {
+            zip.putNextEntry(entry);
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                zip.write(buffer, 0, read);
+                copied += read;
+            }
+        }
+        if (copied != size) {
+            throw new IOException("Entry " + name + " has " + copied + " bytes instead of " + size);
+        }
+        zip.closeEntry();
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+
+    private long crc(Content content) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = content.open()) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,77 @@
+package web.server.demo.cache;
+
+/**
+ * A snapshot of the statistics of a <tt>WeightedLruCache</tt>.
+ */
+public class CacheStats {
+
+    private final String name;
+
+    private final long hits;
+
+    private final long misses;
+
+    private final long evictions;
+
+    private final int entries;
+
+    private final long weight;
+
+    private final long maxWeight;
+
+    public CacheStats(String name, long hits, long misses, long evictions, int entries, long weight, long maxWeight) {
+        this.name = name;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.weight = weight;
+        this.maxWeight = maxWeight;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public long getWeight() {
+        return weight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "name='" + name + '\'' +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", entries=" + entries +
+                ", weight=" + weight +
+                ", maxWeight=" + maxWeight +
+                '}';
+    }
+}
@@ -0,0 +1,251 @@
+package web.server.demo.cache;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import web.server.demo.repository.FileData;
+import web.server.demo.service.BlobService;
+import web.server.demo.storage.ContentEncoding;
+import web.server.demo.storage.RangeInputStream;
+import web.server.demo.storage.StoredBlob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Caches what <tt>/retrieve/id</tt> needs for hot files: the <tt>FileData</tt> by id, bounded by its number of
+ * entries, and the content of small blobs by digest, bounded by its size in bytes. Content is optionally held in
+ * direct buffers, outside of the heap, so a full cache does not add to the work of the garbage collector. Content
+ * is cached as it is stored, so compressed blobs take less room and can be sent without being decompressed.
+ * <p>
+ * Blobs too large for the content cache are mapped into memory instead, once they were read
+ * <tt>cache.mapped.min-reads</tt> times, so a one-off download is streamed rather than mapped. The mappings are
+ * bounded by their total size and by the size of a single one. A mapping costs no heap and leaves the caching of the
+ * pages to the OS. The cache holds a reference to every mapping it keeps and every stream one to the mapping it
+ * reads, so a mapping evicted, invalidated or replaced is unmapped as soon as the last stream reading it is closed,
+ * see <tt>MappedBlob</tt>.
+ * <p>
+ * The content of a digest never changes, so content only has to be evicted once its blob is deleted; the
+ * <tt>FileData</tt> of an id has to be invalidated whenever the file is renamed, replaced or removed.
+ */
+@Component
+public class FileCache {
+
+    private static final int MAPPED_REGION_BYTES = 1 << 30;
+    private static final long MAX_MAPPING_CANDIDATES = 10_000;
+
+    private final BlobService blobService;
+
+    private final WeightedLruCache<Long, FileData> fileData;
+
+    private final WeightedLruCache<String, ByteBuffer> content;
+
+    private final WeightedLruCache<String, MappedBlob> mapped;
+
+    // The number of reads of blobs large enough to be mapped, by digest
+    private final WeightedLruCache<String, AtomicInteger> mappingCandidates;
+
+    private final long maxContentEntryBytes;
+
+    private final boolean offHeap;
+
+    private final long maxMappedEntryBytes;
+
+    private final int mappedMinReads;
+
+    public FileCache(BlobService blobService, long maxFileDataEntries, long maxContentBytes, long maxContentEntryBytes,
+                     boolean offHeap) {
+        this(blobService, maxFileDataEntries, maxContentBytes, maxContentEntryBytes, offHeap, 0, 0, 1);
+    }
+
+    @Autowired
+    public FileCache(BlobService blobService,
+                     @Value("${cache.metadata.max-entries}") long maxFileDataEntries,
+                     @Value("${cache.content.max-bytes}") long maxContentBytes,
+                     @Value("${cache.content.max-entry-bytes}") long maxContentEntryBytes,
+                     @Value("${cache.content.off-heap}") boolean offHeap,
+                     @Value("${cache.mapped.max-bytes}") long maxMappedBytes,
+                     @Value("${cache.mapped.max-entry-bytes}") long maxMappedEntryBytes,
+                     @Value("${cache.mapped.min-reads}") int mappedMinReads) {
+        this.blobService = blobService;
+        this.fileData = new WeightedLruCache<>("metadata", maxFileDataEntries, value -> 1);
+        this.content = new WeightedLruCache<>("content", maxContentBytes, ByteBuffer::capacity);
+        this.mapped = new WeightedLruCache<>("mapped", maxMappedBytes, MappedBlob::getSize, MappedBlob::release);
+        this.mappingCandidates = new WeightedLruCache<>("mapping-candidates", MAX_MAPPING_CANDIDATES, value -> 1);
+        this.maxContentEntryBytes = Math.min(maxContentEntryBytes, Integer.MAX_VALUE);
+        this.offHeap = offHeap;
+        this.maxMappedEntryBytes = Math.min(maxMappedEntryBytes, maxMappedBytes);
+        this.mappedMinReads = mappedMinReads;
+    }
+
+    /**
+     * Returns the cached <tt>FileData</tt> of an id, loading it on a miss.
+     *
+     * @param id the id of the file
+     * @param loader loads the file, returning <tt>null</tt> if there is no file with the id
+     * @return the file, or <tt>null</tt> if there is no file with the id
+     */
+    public FileData getFileData(long id, WeightedLruCache.Loader<Long, FileData, RuntimeException> loader) {
+        return fileData.get(id, loader);
+    }
+
+    /**
+     * Drops the cached <tt>FileData</tt> of an id, to be called after the file was changed or removed.
+     *
+     * @param id the id of the file
+     */
+    public void invalidate(long id) {
+        fileData.invalidate(id);
+    }
+
+    /**
+     * Opens the payload of a file, decoded if it is stored compressed.
+     *
+     * @param payload the payload to read
+     * @return an <tt>InputStream</tt> over the payload
+     * @throws IOException if the payload could not be read
+     * @see #openStoredContent(StoredBlob)
+     */
+    public InputStream openContent(StoredBlob payload) throws IOException {
+        return payload.getEncoding().decode(openStoredContent(payload));
+    }
+
+    /**
+     * Opens the payload of a file as it is stored. Payloads stored in up to <tt>cache.content.max-entry-bytes</tt>
+     * are served from the cache, larger ones of up to <tt>cache.mapped.max-entry-bytes</tt> from memory-mapped blobs
+     * once they are hot, and the rest is streamed from the <tt>StorageEngine</tt>.
+     *
+     * @param payload the payload to read
+     * @return an <tt>InputStream</tt> over the stored payload
+     * @throws IOException if the payload could not be read
+     */
+    public InputStream openStoredContent(StoredBlob payload) throws IOException {
+        if (payload.getStoredSize() <= maxContentEntryBytes) {
+            return new ByteBufferInputStream(
+                    content.get(payload.getDigest(), digest -> load(digest, payload.getEncoding())));
+        }
+        InputStream mappedContent = openMapped(payload);
+        return mappedContent != null
+                ? mappedContent
+                : blobService.openStored(payload.getDigest(), payload.getEncoding());
+    }
+
+    /**
+     * Opens a byte range of the payload of a file, decoded if it is stored compressed. A compressed payload has to
+     * be decoded from its beginning, the bytes before the range are dropped as they are decoded.
+     *
+     * @param payload the payload to read
+     * @param offset the offset of the range in the payload
+     * @param length the length of the range
+     * @return an <tt>InputStream</tt> over the range
+     * @throws IOException if the payload could not be read or ends before the offset
+     */
+    public InputStream openContent(StoredBlob payload, long offset, long length) throws IOException {
+        if (payload.getEncoding() == ContentEncoding.IDENTITY) {
+            return openStoredContent(payload, offset, length);
+        }
+        return RangeInputStream.of(openContent(payload), offset, length);
+    }
+
+    /**
+     * Opens a byte range of the payload of a file as it is stored. Cached and mapped payloads are positioned in
+     * memory, the others are read from the <tt>StorageEngine</tt> starting at the offset, so the cost of a read
+     * tracks the length of the range rather than the size of the payload. A range counts as a read of the payload
+     * towards mapping it.
+     *
+     * @param payload the payload to read
+     * @param offset the offset of the range in the stored payload
+     * @param length the length of the range
+     * @return an <tt>InputStream</tt> over the range
+     * @throws IOException if the payload could not be read or ends before the offset
+     */
+    public InputStream openStoredContent(StoredBlob payload, long offset, long length) throws IOException {
+        if (payload.getStoredSize() <= maxContentEntryBytes) {
+            return RangeInputStream.of(openStoredContent(payload), offset, length);
+        }
+        InputStream mappedContent = openMapped(payload);
+        return mappedContent != null
+                ? RangeInputStream.of(mappedContent, offset, length)
+                : blobService.openStored(payload.getDigest(), payload.getEncoding(), offset, length);
+    }
+
+    /**
+     * Drops the cached content of a blob, to be called once the blob was deleted. A mapping of the blob is unmapped
+     * once the streams still reading it are closed.
+     *
+     * @param digest the digest of the blob
+     */
+    public void evictContent(String digest) {
+        content.invalidate(digest);
+        mapped.invalidate(digest);
+        mappingCandidates.invalidate(digest);
+    }
+
+    /**
+     * @return the statistics of the <tt>FileData</tt>, the content and the mapped blob caches
+     */
+    public List<CacheStats> stats() {
+        return Arrays.asList(fileData.stats(), content.stats(), mapped.stats());
+    }
+
+    /*
+     * Opens the mapping of a blob, or returns null if it is to be streamed. The cache may drop the mapping, and its
+     * reference with it, between the lookup and the open; the mapping is then looked up again.
+     */
+    private InputStream openMapped(StoredBlob payload) throws IOException {
+        while (true) {
+            MappedBlob blob = mapIfHot(payload);
+            if (blob == null) {
+                return null;
+            }
+            InputStream in = blob.open();
+            if (in != null) {
+                return in;
+            }
+        }
+    }
+
+    /*
+     * Returns the mapping of a blob small enough to be mapped, mapping it once it was read often enough, or null if
+     * it is to be streamed. The reads are only counted for the most recently read blobs.
+     */
+    private MappedBlob mapIfHot(StoredBlob payload) throws IOException {
+        if (payload.getStoredSize() > maxMappedEntryBytes) {
+            return null;
+        }
+        MappedBlob blob = mapped.getIfPresent(payload.getDigest());
+        if (blob != null) {
+            return blob;
+        }
+        int reads = mappingCandidates.get(payload.getDigest(), digest -> new AtomicInteger()).incrementAndGet();
+        if (reads < mappedMinReads) {
+            return null;
+        }
+        return mapped.get(payload.getDigest(), digest -> MappedBlob.map(digest,
+                blobService.path(digest, payload.getEncoding()), MAPPED_REGION_BYTES));
+    }
+
+    private ByteBuffer load(String digest, ContentEncoding encoding) throws IOException {
+        try (FileChannel channel = FileChannel.open(blobService.path(digest, encoding), READ)) {
+            long size = channel.size();
+            if (size > maxContentEntryBytes) {
+                throw new IOException("Blob " + digest + " is larger than expected: " + size + " bytes");
+            }
+            ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Blob " + digest + " ended after " + buffer.position() + " bytes");
+                }
+            }
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        }
+    }
+}
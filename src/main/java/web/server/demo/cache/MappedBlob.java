@@ -0,0 +1,212 @@
+package web.server.demo.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A blob mapped into memory as read-only regions of at most <tt>regionSize</tt> bytes, since a single
+ * <tt>MappedByteBuffer</tt> cannot exceed 2 GB. Reads go straight to the page cache of the OS, without a system call
+ * or a copy per read.
+ * <p>
+ * The regions are reference counted: whoever maps the blob holds the first reference, and every stream returned by
+ * {@link #open()} holds one until it is closed. The regions are unmapped as soon as the last reference is released,
+ * rather than whenever the garbage collector gets to the buffers, so a deleted file gives its disk space back once
+ * nothing reads it. Accessing a region after it was unmapped crashes the JVM, so a stream never touches the regions
+ * once it was closed, even when it is closed by another thread while it is read.
+ * <p>
+ * Unmapping goes through <tt>Unsafe.invokeCleaner</tt>, looked up at runtime; where it is not available the regions
+ * are left to the garbage collector.
+ */
+public class MappedBlob {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedBlob.class);
+
+    private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+    private final String digest;
+
+    private final long size;
+
+    private final MappedByteBuffer[] regions;
+
+    // Guarded by this
+    private int references = 1;
+
+    private MappedBlob(String digest, long size, MappedByteBuffer[] regions) {
+        this.digest = digest;
+        this.size = size;
+        this.regions = regions;
+    }
+
+    /**
+     * Maps a blob into memory. The file may be deleted afterwards, its content stays readable until it is unmapped.
+     *
+     * @param digest the digest of the blob
+     * @param path the file of the blob
+     * @param regionSize the maximum size of a region
+     * @return the mapped blob, holding one reference for the caller
+     * @throws IOException if the file could not be mapped
+     */
+    public static MappedBlob map(String digest, Path path, int regionSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            long size = channel.size();
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + regionSize - 1) / regionSize)];
+            for (int i = 0; i < regions.length; i++) {
+                long position = (long) i * regionSize;
+                regions[i] = channel.map(READ_ONLY, position, Math.min(regionSize, size - position));
+            }
+            return new MappedBlob(digest, size, regions);
+        }
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gives up a reference, unmapping the blob once no reference is left.
+     *
+     * @throws IllegalStateException if the blob was unmapped already
+     */
+    public void release() {
+        synchronized (this) {
+            if (references == 0) {
+                throw new IllegalStateException("Blob " + digest + " was released more often than it was retained");
+            }
+            if (--references > 0) {
+                return;
+            }
+        }
+        if (INVOKE_CLEANER != null) {
+            for (MappedByteBuffer region : regions) {
+                try {
+                    INVOKE_CLEANER.invokeExact((ByteBuffer) region);
+                } catch (Throwable e) {
+                    LOG.warn("Blob {} could not be unmapped. Error: {}", digest, e.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> once the last reference was released
+     */
+    public synchronized boolean isReleased() {
+        return references == 0;
+    }
+
+    /**
+     * Opens the content of the blob for reading. The stream holds a reference, released when it is closed.
+     *
+     * @return an <tt>InputStream</tt> over the blob, or <tt>null</tt> if the blob was unmapped already
+     */
+    public InputStream open() {
+        synchronized (this) {
+            if (references == 0) {
+                return null;
+            }
+            references++;
+        }
+        return new RegionInputStream();
+    }
+
+    private static MethodHandle invokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("Mapped blobs can not be unmapped explicitly, they are unmapped by the garbage collector. "
+                    + "Error: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * Synchronized, so that a close from another thread waits for a read in progress and the read after it fails
+     * rather than touching an unmapped region.
+     */
+    private final class RegionInputStream extends InputStream {
+
+        private int region;
+
+        private ByteBuffer current = regions.length == 0 ? ByteBuffer.allocate(0) : regions[0].duplicate();
+
+        private boolean closed;
+
+        @Override
+        public synchronized int read() throws IOException {
+            return nextRegion() ? current.get() & 0xFF : -1;
+        }
+
+        @Override
+        public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextRegion()) {
+                return -1;
+            }
+            int count = Math.min(length, current.remaining());
+            current.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public synchronized long skip(long count) throws IOException {
+            long skipped = 0;
+            while (skipped < count && nextRegion()) {
+                int step = (int) Math.min(count - skipped, current.remaining());
+                current.position(current.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            return closed ? 0 : current.remaining();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                current = null;
+                release();
+            }
+        }
+
+        private boolean nextRegion() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (!current.hasRemaining() && region + 1 < regions.length) {
+                current = regions[++region].duplicate();
+            }
+            return current.hasRemaining();
+        }
+    }
+}
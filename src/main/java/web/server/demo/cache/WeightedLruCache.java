@@ -0,0 +1,245 @@
+package web.server.demo.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * A read-through cache bounded by the total weight of its values, evicting the least recently used entries first.
+ * Values are loaded outside of the cache's lock, so a slow load only delays the callers asking for the same key:
+ * they wait for the load in flight and share its value, rather than loading the key again.
+ * <p>
+ * Values holding resources can be released by a removal listener, which is called outside of the lock with every
+ * loaded value that is evicted, invalidated, replaced or not cached at all.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class WeightedLruCache<K, V> {
+
+    private final String name;
+
+    private final long maxWeight;
+
+    private final ToLongFunction<V> weigher;
+
+    private final Consumer<V> removalListener;
+
+    private final Lock lock = new ReentrantLock();
+
+    // Guarded by lock, iterates from the least to the most recently used entry
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Guarded by lock, the loads in flight that callers missing the same key wait for
+    private final Map<K, CompletableFuture<V>> loads = new HashMap<>();
+
+    // Guarded by lock
+    private long weight;
+
+    // Guarded by lock, a load that raced with an invalidation may have read a stale value
+    private long invalidations;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    public WeightedLruCache(String name, long maxWeight, ToLongFunction<V> weigher) {
+        this(name, maxWeight, weigher, value -> {});
+    }
+
+    public WeightedLruCache(String name, long maxWeight, ToLongFunction<V> weigher, Consumer<V> removalListener) {
+        this.name = name;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.removalListener = removalListener;
+    }
+
+    /**
+     * Returns the cached value of a key, loading and caching it on a miss. Values heavier than the whole cache are
+     * returned but not cached. A caller missing a key which is being loaded already waits for that load, and gets
+     * its value or its exception; the loaders of a cache should therefore all throw the same type of exception.
+     *
+     * @param key the key
+     * @param loader loads the value of the key on a miss
+     * @param <E> the type of exception thrown by the loader
+     * @return the value, or <tt>null</tt> if the loader returned <tt>null</tt>
+     * @throws E if the value could not be loaded
+     */
+    public <E extends Exception> V get(K key, Loader<K, V, E> loader) throws E {
+        CompletableFuture<V> load;
+        boolean loading = true;
+        long invalidationsBefore;
+        lock.lock();
+        try {
+            V value = entries.get(key);
+            if (value != null) {
+                hits.increment();
+                return value;
+            }
+            misses.increment();
+            load = loads.get(key);
+            if (load == null) {
+                load = new CompletableFuture<>();
+                loads.put(key, load);
+            } else {
+                loading = false;
+            }
+            invalidationsBefore = invalidations;
+        } finally {
+            lock.unlock();
+        }
+        if (!loading) {
+            return await(load);
+        }
+
+        V value;
+        try {
+            value = loader.load(key);
+        } catch (Throwable e) {
+            lock.lock();
+            try {
+                loads.remove(key, load);
+            } finally {
+                lock.unlock();
+            }
+            load.completeExceptionally(e);
+            throw e;
+        }
+        put(key, value, invalidationsBefore, load);
+        load.complete(value);
+        return value;
+    }
+
+    /**
+     * Returns the cached value of a key without loading it on a miss, which is not counted as one either.
+     *
+     * @param key the key
+     * @return the value, or <tt>null</tt> if the key is not cached
+     */
+    public V getIfPresent(K key) {
+        lock.lock();
+        try {
+            V value = entries.get(key);
+            if (value != null) {
+                hits.increment();
+            }
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a key from the cache. Loads of any key that are in flight at the same time are not cached, and later
+     * callers of the key do not wait for its load in flight.
+     *
+     * @param key the key
+     */
+    public void invalidate(K key) {
+        V removed;
+        lock.lock();
+        try {
+            invalidations++;
+            loads.remove(key);
+            removed = entries.remove(key);
+            if (removed != null) {
+                weight -= weigher.applyAsLong(removed);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (removed != null) {
+            removalListener.accept(removed);
+        }
+    }
+
+    /**
+     * @return a snapshot of the cache's statistics
+     */
+    public CacheStats stats() {
+        lock.lock();
+        try {
+            return new CacheStats(name, hits.sum(), misses.sum(), evictions.sum(), entries.size(), weight, maxWeight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Caches a loaded value, unless it is null or too heavy, and ends its load in flight in the same step, so that
+     * a caller missing the key afterwards finds the value rather than loading it again.
+     */
+    private void put(K key, V value, long invalidationsBefore, CompletableFuture<V> load) {
+        long valueWeight = value == null ? 0 : weigher.applyAsLong(value);
+        List<V> removed = new ArrayList<>();
+        lock.lock();
+        try {
+            loads.remove(key, load);
+            if (value == null) {
+                return;
+            }
+            if (valueWeight > maxWeight || invalidations != invalidationsBefore) {
+                removed.add(value);
+            } else {
+                V previous = entries.put(key, value);
+                if (previous != null) {
+                    weight -= weigher.applyAsLong(previous);
+                    removed.add(previous);
+                }
+                weight += valueWeight;
+                Iterator<Map.Entry<K, V>> leastRecentlyUsed = entries.entrySet().iterator();
+                while (weight > maxWeight && leastRecentlyUsed.hasNext()) {
+                    V evicted = leastRecentlyUsed.next().getValue();
+                    weight -= weigher.applyAsLong(evicted);
+                    leastRecentlyUsed.remove();
+                    evictions.increment();
+                    removed.add(evicted);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        removed.forEach(removalListener);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V, E extends Exception> V await(CompletableFuture<V> load) throws E {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (E) cause;
+        }
+    }
+
+    /**
+     * Loads the value of a key missing from the cache.
+     *
+     * @param <K> the type of the keys
+     * @param <V> the type of the values
+     * @param <E> the type of exception thrown when the value could not be loaded
+     */
+    @FunctionalInterface
+    public interface Loader<K, V, E extends Exception> {
+
+        V load(K key) throws E;
+    }
+}
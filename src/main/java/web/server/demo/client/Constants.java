@@ -10,6 +10,12 @@ public class Constants {
     public static final String PREFIX_PARAMETER = "prefix";
     public static final String NAME_PARAMETER = "name";
     public static final String IDS_PARAMETER = "ids";
+    public static final String CURSOR_PARAMETER = "cursor";
+    public static final String LIMIT_PARAMETER = "limit";
+    public static final String UPLOAD_ID_PARAMETER = "uploadId";
+    public static final String PART_NUMBER_PARAMETER = "partNumber";
+    public static final String PART_COUNT_PARAMETER = "partCount";
+    public static final String FORMAT_PARAMETER = "format";
 
     /*
      * Path constants
@@ -17,11 +23,21 @@ public class Constants {
     public static final String BASE_API_PATH = "/api/v1";
     public static final String ADD_FILE_PATH = "/add/file";
     public static final String ADD_FILES_PATH = "/add/files";
+    public static final String ADD_ARCHIVE_PATH = "/add/archive";
     public static final String RETRIEVE_BY_ID_PATH = "/retrieve/id";
     public static final String RETRIEVE_BY_PREFIX_PATH = "/retrieve/prefix";
     public static final String RETRIEVE_ALL_PATH = "/retrieve/all";
+    public static final String DOWNLOAD_BY_ID_PATH = "/download/id";
+    public static final String DOWNLOAD_ARCHIVE_PATH = "/download/archive";
+    public static final String LIST_PATH = "/list";
+    public static final String CACHE_STATS_PATH = "/cache/stats";
     public static final String FILE_RENAME_PATH = "/file/rename";
     public static final String FILE_REPLACE_PATH = "/file/replace";
     public static final String REMOVE_FILE_PATH = "/remove/file";
     public static final String REMOVE_FILES_PATH = "/remove/files";
+    public static final String UPLOAD_INITIATE_PATH = "/upload/initiate";
+    public static final String UPLOAD_PART_PATH = "/upload/part";
+    public static final String UPLOAD_PARTS_PATH = "/upload/parts";
+    public static final String UPLOAD_COMPLETE_PATH = "/upload/complete";
+    public static final String UPLOAD_ABORT_PATH = "/upload/abort";
 }
@@ -0,0 +1,99 @@
+package web.server.demo.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import web.server.demo.metrics.CountingRejectedExecutionHandler;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type.SERVLET;
+
+@Configuration
+public class ExecutorConfig {
+
+    public static final String UPLOAD_EXECUTOR = "uploadExecutor";
+    public static final String MVC_ASYNC_EXECUTOR = "mvcAsyncExecutor";
+
+    @Value("${upload.executor.pool.size}")
+    private int poolSize;
+
+    @Value("${upload.executor.queue.capacity}")
+    private int queueCapacity;
+
+    @Value("${upload.executor.shutdown.timeout-seconds}")
+    private int shutdownTimeoutSeconds;
+
+    @Value("${web.async.executor.pool.size}")
+    private int mvcAsyncPoolSize;
+
+    @Value("${web.async.executor.queue.capacity}")
+    private int mvcAsyncQueueCapacity;
+
+    @Value("${executor.virtual-threads}")
+    private boolean virtualThreads;
+
+    /*
+     * Shared by every batch upload, so the number of upload threads is fixed no matter how many files or requests
+     * come in. A full queue rejects instead of growing; the caller then does the work on its own thread. The bean
+     * is shut down with the context, letting in-flight uploads finish first. Boot exports its pool and queue as
+     * executor metrics named after the bean.
+     *
+     * In virtual thread mode the pool keeps its size and queue, so uploads stay bounded, but its workers are
+     * virtual threads.
+     */
+    @Bean(name = UPLOAD_EXECUTOR)
+    public ThreadPoolTaskExecutor uploadExecutor(MeterRegistry meterRegistry) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("upload-");
+        if (virtualThreads) {
+            executor.setThreadFactory(Thread.ofVirtual().name("upload-", 0).factory());
+        }
+        executor.setRejectedExecutionHandler(new CountingRejectedExecutionHandler(
+                new ThreadPoolExecutor.AbortPolicy(), meterRegistry, UPLOAD_EXECUTOR));
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(shutdownTimeoutSeconds);
+        return executor;
+    }
+
+    /*
+     * Writes the streamed response bodies of Spring MVC, the listing and archive endpoints. Any Executor bean, like
+     * the upload executor, keeps Boot from creating its applicationTaskExecutor, and MVC would then start a new
+     * thread for every streamed response. When the pool and its queue are full the request thread writes the body
+     * itself.
+     */
+    @Bean(name = MVC_ASYNC_EXECUTOR)
+    @ConditionalOnWebApplication(type = SERVLET)
+    public ThreadPoolTaskExecutor mvcAsyncExecutor(MeterRegistry meterRegistry) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(mvcAsyncPoolSize);
+        executor.setMaxPoolSize(mvcAsyncPoolSize);
+        executor.setQueueCapacity(mvcAsyncQueueCapacity);
+        executor.setThreadNamePrefix("mvc-async-");
+        if (virtualThreads) {
+            executor.setThreadFactory(Thread.ofVirtual().name("mvc-async-", 0).factory());
+        }
+        executor.setRejectedExecutionHandler(new CountingRejectedExecutionHandler(
+                new ThreadPoolExecutor.CallerRunsPolicy(), meterRegistry, MVC_ASYNC_EXECUTOR));
+        return executor;
+    }
+
+    /*
+     * Hands every connection to a new virtual thread instead of Tomcat's worker pool, server.tomcat.threads.max
+     * no longer limits how many requests are processed at the same time.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "executor.virtual-threads", havingValue = "true")
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadsProtocolHandlerCustomizer() {
+        return protocolHandler -> protocolHandler.setExecutor(new VirtualThreadExecutor("http-vt-"));
+    }
+}
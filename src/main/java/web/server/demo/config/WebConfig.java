@@ -0,0 +1,113 @@
+package web.server.demo.config;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.boot.web.servlet.filter.OrderedFormContentFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.filter.FormContentFilter;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBodyReturnValueHandler;
+import org.springframework.web.util.UrlPathHelper;
+import web.server.demo.admission.AdmissionFilter;
+
+import javax.servlet.http.HttpServletRequest;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+import static org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type.SERVLET;
+import static web.server.demo.client.Constants.BASE_API_PATH;
+import static web.server.demo.config.ExecutorConfig.MVC_ASYNC_EXECUTOR;
+import static web.server.demo.client.Constants.UPLOAD_PART_PATH;
+
+@Configuration
+@ConditionalOnWebApplication(type = SERVLET)
+public class WebConfig implements WebMvcConfigurer {
+
+    private final AsyncTaskExecutor mvcAsyncExecutor;
+
+    private final Duration asyncRequestTimeout;
+
+    private final Duration streamingTimeout;
+
+    public WebConfig(@Qualifier(MVC_ASYNC_EXECUTOR) AsyncTaskExecutor mvcAsyncExecutor,
+                     @Value("${spring.mvc.async.request-timeout}") Duration asyncRequestTimeout,
+                     @Value("${web.async.streaming-timeout}") Duration streamingTimeout) {
+        this.mvcAsyncExecutor = mvcAsyncExecutor;
+        this.asyncRequestTimeout = asyncRequestTimeout;
+        this.streamingTimeout = streamingTimeout;
+    }
+
+    /*
+     * Streamed bodies are written on the bounded executor rather than on a new thread each. The futures returned by
+     * the controllers are cut off after spring.mvc.async.request-timeout, the streamed bodies after their own
+     * web.async.streaming-timeout.
+     */
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(mvcAsyncExecutor);
+        configurer.setDefaultTimeout(asyncRequestTimeout.toMillis());
+        configurer.registerCallableInterceptors(new StreamingTimeoutInterceptor(streamingTimeout));
+    }
+
+    /*
+     * Parts of resumable uploads are raw request bodies, which curl and other clients label as a form when no
+     * content type is given. Boot's filter would parse such a body as form parameters of the PUT request before the
+     * controller gets to stream it, so it leaves the part path alone.
+     */
+    @Bean
+    public FormContentFilter formContentFilter() {
+        String uploadPartPath = BASE_API_PATH + UPLOAD_PART_PATH;
+        UrlPathHelper urlPathHelper = new UrlPathHelper();
+        return new OrderedFormContentFilter() {
+            @Override
+            protected boolean shouldNotFilter(HttpServletRequest request) {
+                return uploadPartPath.equals(urlPathHelper.getPathWithinApplication(request));
+            }
+        };
+    }
+
+    /*
+     * Admission control only guards the API, and runs right after the metrics filter so that rejected requests
+     * still show up in http.server.requests.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "admission.enabled", havingValue = "true")
+    public FilterRegistrationBean<AdmissionFilter> admissionFilterRegistration(AdmissionFilter admissionFilter) {
+        FilterRegistrationBean<AdmissionFilter> registration = new FilterRegistrationBean<>(admissionFilter);
+        registration.addUrlPatterns(BASE_API_PATH + "/*");
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE + 2);
+        return registration;
+    }
+
+    /**
+     * Replaces the default timeout of the asynchronous request writing a <tt>StreamingResponseBody</tt>, which MVC
+     * runs as a <tt>Callable</tt> of its own return value handler. It runs before the request is put in asynchronous
+     * mode, when the timeout is handed to the container. A timeout of zero or less means none.
+     */
+    public static class StreamingTimeoutInterceptor implements CallableProcessingInterceptor {
+
+        private final long timeout;
+
+        public StreamingTimeoutInterceptor(Duration timeout) {
+            this.timeout = timeout.toMillis();
+        }
+
+        @Override
+        public <T> void beforeConcurrentHandling(NativeWebRequest request, Callable<T> task) {
+            if (task.getClass().getEnclosingClass() == StreamingResponseBodyReturnValueHandler.class
+                    && request instanceof AsyncWebRequest) {
+                ((AsyncWebRequest) request).setTimeout(timeout);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package web.server.demo.controller;
+
+import web.server.demo.repository.FileData;
+import web.server.demo.storage.ContentEncoding;
+
+/**
+ * Chooses the coding a payload is sent with. A payload stored compressed is sent as it is when the client accepts
+ * its coding, and decoded otherwise; the server never compresses a payload on the fly.
+ */
+final class AcceptEncoding {
+
+    private static final String ANY = "*";
+    private static final String X_GZIP = "x-gzip";
+    private static final String QUALITY_PARAMETER = "q=";
+
+    private AcceptEncoding() {
+    }
+
+    /**
+     * @param acceptEncoding the <tt>Accept-Encoding</tt> header of the request, <tt>null</tt> if absent
+     * @param fileData the requested file
+     * @return the coding of the representation sent to the client
+     */
+    static ContentEncoding negotiate(String acceptEncoding, FileData fileData) {
+        ContentEncoding stored = fileData.getEncoding();
+        return stored != ContentEncoding.IDENTITY && accepts(acceptEncoding, stored)
+                ? stored
+                : ContentEncoding.IDENTITY;
+    }
+
+    /*
+     * RFC 7231 5.3.4: a coding is acceptable if it is listed with a non-zero quality, or if it is not listed and "*"
+     * is, with a non-zero quality.
+     */
+    private static boolean accepts(String acceptEncoding, ContentEncoding encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Double wildcard = null;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim();
+            double quality = quality(parts);
+            if (coding.equalsIgnoreCase(encoding.getToken())
+                    || (encoding == ContentEncoding.GZIP && coding.equalsIgnoreCase(X_GZIP))) {
+                return quality > 0;
+            }
+            if (ANY.equals(coding)) {
+                wildcard = quality;
+            }
+        }
+        return wildcard != null && wildcard > 0;
+    }
+
+    private static double quality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith(QUALITY_PARAMETER)) {
+                try {
+                    return Double.parseDouble(parameter.substring(QUALITY_PARAMETER.length()));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,238 @@
+package web.server.demo.controller;
+
+import io.micrometer.core.annotation.Timed;
+import io.swagger.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import springfox.documentation.annotations.ApiIgnore;
+import web.server.demo.archive.ArchiveFormat;
+import web.server.demo.archive.ArchiveWriter;
+import web.server.demo.metrics.TransferMetrics;
+import web.server.demo.repository.FileData;
+import web.server.demo.service.ArchiveUpload;
+import web.server.demo.service.RepoService;
+import web.server.demo.storage.ContentEncoding;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type.SERVLET;
+import static org.springframework.http.HttpHeaders.CONTENT_DISPOSITION;
+import static org.springframework.http.HttpStatus.*;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
+import static web.server.demo.client.Constants.*;
+import static web.server.demo.metrics.MetricNames.OPERATIONS;
+import static web.server.demo.metrics.MetricNames.OPERATION_TAG;
+
+/**
+ * Moves many files in one request, as zip or tar archives.
+ * <p>
+ * Downloads are built while they are sent. Files are loaded a batch at a time and every entry is copied from the
+ * storage to the response through a fixed buffer, so the memory a download takes does not depend on the number of
+ * files or on their sizes. In zip archives, payloads the <tt>CompressionPolicy</tt> kept as they were, being
+ * compressed already or too small to gain anything, are <tt>STORED</tt>; the others are deflated.
+ * <p>
+ * Uploads are the raw archive as the request body, unpacked while it arrives rather than parsed into multipart
+ * files first. The response is an NDJSON manifest with the outcome of every file of the archive.
+ */
+@RestController
+@ConditionalOnWebApplication(type = SERVLET)
+@Api(value = "Web server API")
+@RequestMapping(BASE_API_PATH)
+public class ArchiveController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveController.class);
+
+    private static final MediaType APPLICATION_NDJSON = MediaType.valueOf("application/x-ndjson");
+
+    private static final String DEFAULT_FORMAT = "zip";
+    private static final String ARCHIVE_NAME = "files";
+    private static final int BATCH_SIZE = 250;
+
+    @Autowired
+    private RepoService repoService;
+
+    @Autowired
+    private TransferMetrics transferMetrics;
+
+    @GetMapping(DOWNLOAD_ARCHIVE_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "download_archive"}, histogram = true)
+    @ApiOperation("Download several files, by id or by the prefix of their names, as a zip or tar archive")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 400, message = "Neither or both of ids and prefix, or an unsupported format"),
+            @ApiResponse(code = 404, message = "File not found")
+    })
+    public ResponseEntity<StreamingResponseBody> downloadArchive(
+            @ApiParam(value = "The ids of the files to be downloaded")
+            @RequestParam(value = IDS_PARAMETER, required = false) long[] ids,
+            @ApiParam(value = "The prefix of the names of the files to be downloaded, empty for every file")
+            @RequestParam(value = PREFIX_PARAMETER, required = false) String prefix,
+            @ApiParam(value = "The format of the archive, zip or tar")
+            @RequestParam(value = FORMAT_PARAMETER, defaultValue = DEFAULT_FORMAT) String format) {
+        if ((ids == null) == (prefix == null)) {
+            throw new ResponseStatusException(BAD_REQUEST, "Either ids or a prefix must be given");
+        }
+        ArchiveFormat archiveFormat;
+        try {
+            archiveFormat = ArchiveFormat.fromExtension(format);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(BAD_REQUEST, e.getMessage());
+        }
+        List<Long> distinctIds = null;
+        if (ids != null) {
+            distinctIds = Arrays.stream(ids).distinct().boxed().collect(Collectors.toList());
+            List<Long> missing = repoService.getMissingIds(distinctIds);
+            if (!missing.isEmpty()) {
+                throw new ResponseStatusException(NOT_FOUND, "No files with ids " + missing);
+            }
+        }
+
+        List<Long> selectedIds = distinctIds;
+        StreamingResponseBody body = out -> {
+            // On failure the writer is left open, so the client gets a truncated response rather than a valid archive
+            ArchiveWriter writer = archiveFormat.newWriter(out);
+            EntryNames names = new EntryNames();
+            int entries = selectedIds != null
+                    ? writeById(writer, names, selectedIds)
+                    : writeByPrefix(writer, names, prefix);
+            writer.close();
+            LOG.info("Sent an archive of {} files", entries);
+        };
+        return ResponseEntity.ok()
+                .contentType(archiveFormat.getMediaType())
+                .header(CONTENT_DISPOSITION,
+                        "attachment; filename=\"" + ARCHIVE_NAME + "." + archiveFormat.getExtension() + "\"")
+                .body(body);
+    }
+
+    /*
+     * The body is only read as an archive with one of these content types: a form would be parsed for parameters,
+     * consuming the body before the archive could be read.
+     *
+     * curl -X POST "http://localhost:8080/api/v1/add/archive?format=tar" -H "Content-Type: application/x-tar" \
+     *      --data-binary @files.tar
+     */
+    @PostMapping(value = ADD_ARCHIVE_PATH,
+            consumes = {"application/zip", "application/x-tar", APPLICATION_OCTET_STREAM_VALUE})
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "add_archive"}, histogram = true)
+    @ApiOperation("Add the files of a zip or tar archive, sent as the request body, returning an NDJSON manifest "
+            + "with the outcome of every file")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "All files were added"),
+            @ApiResponse(code = 207, message = "Some files could not be saved, or the archive ended early"),
+            @ApiResponse(code = 400, message = "Unsupported format, or an archive which could not be read"),
+            @ApiResponse(code = 500, message = "Files could not be saved")
+    })
+    public ResponseEntity<StreamingResponseBody> addArchive(
+            @ApiParam(value = "The format of the archive, zip or tar")
+            @RequestParam(value = FORMAT_PARAMETER, defaultValue = DEFAULT_FORMAT) String format,
+            @ApiIgnore HttpServletRequest request) throws IOException {
+        ArchiveFormat archiveFormat;
+        try {
+            archiveFormat = ArchiveFormat.fromExtension(format);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(BAD_REQUEST, e.getMessage());
+        }
+        ArchiveUpload upload = repoService.save(archiveFormat, request.getInputStream());
+
+        HttpStatus status;
+        if (upload.getFailed() == 0 && upload.getError() == null) {
+            status = OK;
+        } else if (upload.getSaved() > 0) {
+            status = MULTI_STATUS;
+        } else {
+            status = upload.getError() != null ? BAD_REQUEST : INTERNAL_SERVER_ERROR;
+        }
+        StreamingResponseBody body = out -> {
+            try (ArchiveUpload manifest = upload; InputStream in = manifest.openManifest()) {
+                StreamUtils.copy(in, out);
+            }
+        };
+        return ResponseEntity.status(status).contentType(APPLICATION_NDJSON).body(body);
+    }
+
+    private int writeById(ArchiveWriter writer, EntryNames names, List<Long> ids) throws IOException {
+        int entries = 0;
+        for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+            List<Long> batch = ids.subList(from, Math.min(ids.size(), from + BATCH_SIZE));
+            for (FileData fileData : repoService.getAllById(batch)) {
+                entries += write(writer, names, fileData);
+            }
+        }
+        return entries;
+    }
+
+    private int writeByPrefix(ArchiveWriter writer, EntryNames names, String prefix) throws IOException {
+        int entries = 0;
+        String afterName = null;
+        long afterId = 0;
+        List<FileData> batch;
+        do {
+            batch = repoService.getFilePage(prefix, afterName, afterId, BATCH_SIZE);
+            for (FileData fileData : batch) {
+                entries += write(writer, names, fileData);
+            }
+            if (!batch.isEmpty()) {
+                afterName = batch.get(batch.size() - 1).getName();
+                afterId = batch.get(batch.size() - 1).getId();
+            }
+        } while (batch.size() == BATCH_SIZE);
+        return entries;
+    }
+
+    /*
+     * A file removed since its batch was loaded has lost its payload, it is left out of the archive
+     */
+    private int write(ArchiveWriter writer, EntryNames names, FileData fileData) throws IOException {
+        try {
+            writer.putEntry(names.unique(fileData), fileData.getSize(), fileData.getModifiedAt(),
+                    fileData.getEncoding() != ContentEncoding.IDENTITY, () -> repoService.openContent(fileData));
+        } catch (NoSuchFileException e) {
+            LOG.warn("File with {} id was removed while it was being archived", fileData.getId());
+            return 0;
+        }
+        transferMetrics.sent(fileData.getSize());
+        return 1;
+    }
+
+    /**
+     * Turns the names of files into names of archive entries. Path separators are replaced, so that no entry is
+     * extracted outside of the directory the archive is extracted to, and a name taken by an earlier entry gets the
+     * id of the file appended.
+     */
+    private static class EntryNames {
+
+        private final Set<String> used = new HashSet<>();
+
+        private String unique(FileData fileData) {
+            String name = fileData.getName() == null ? "" : fileData.getName().replace('/', '_').replace('\\', '_');
+            if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+                name = String.valueOf(fileData.getId());
+            }
+            while (!used.add(name)) {
+                int extension = name.lastIndexOf('.');
+                name = extension > 0
+                        ? name.substring(0, extension) + " (" + fileData.getId() + ")" + name.substring(extension)
+                        : name + " (" + fileData.getId() + ")";
+            }
+            return name;
+        }
+    }
+}
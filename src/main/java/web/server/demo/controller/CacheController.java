@@ -0,0 +1,36 @@
+package web.server.demo.controller;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import web.server.demo.cache.CacheStats;
+import web.server.demo.service.RepoService;
+
+import java.util.List;
+
+import static web.server.demo.client.Constants.BASE_API_PATH;
+import static web.server.demo.client.Constants.CACHE_STATS_PATH;
+
+@RestController
+@Api(value = "Web server API")
+@RequestMapping(BASE_API_PATH)
+public class CacheController {
+
+    @Autowired
+    private RepoService repoService;
+
+    @GetMapping(CACHE_STATS_PATH)
+    @ApiOperation("Retrieve the hits, misses, evictions and size of the file metadata and content caches")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "OK")
+    })
+    public ResponseEntity<List<CacheStats>> stats() {
+        return ResponseEntity.ok(repoService.getCacheStats());
+    }
+}
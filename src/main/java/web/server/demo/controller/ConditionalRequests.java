@@ -0,0 +1,105 @@
+package web.server.demo.controller;
+
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import web.server.demo.repository.FileData;
+import web.server.demo.storage.ContentEncoding;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.springframework.http.HttpHeaders.ACCEPT_ENCODING;
+
+/**
+ * Evaluates the validators of a file download. The entity tag of a file is the digest of its content and its
+ * modification time the last time the content was saved, so both come from the metadata and a request can be
+ * answered with <tt>304 Not Modified</tt> without touching the payload. A compressed representation is a different
+ * sequence of bytes than the original content, so its entity tag carries the coding as well.
+ */
+final class ConditionalRequests {
+
+    /*
+     * The content behind an id changes when the file is replaced, so shared and private caches may store a
+     * download but have to revalidate it on every use, which costs a 304 from the metadata.
+     */
+    static final CacheControl CACHE_CONTROL = CacheControl.noCache().cachePublic();
+
+    private static final String WEAK_PREFIX = "W/";
+    private static final String ANY = "*";
+
+    private ConditionalRequests() {
+    }
+
+    /**
+     * @param fileData the file
+     * @param encoding the coding of the representation sent
+     * @return the strong entity tag of the representation
+     */
+    static String etag(FileData fileData, ContentEncoding encoding) {
+        return encoding == ContentEncoding.IDENTITY
+                ? "\"" + fileData.getDigest() + "\""
+                : "\"" + fileData.getDigest() + "-" + encoding.getToken() + "\"";
+    }
+
+    /**
+     * @param fileData the file
+     * @return the modification time of the file in whole seconds, as sent in <tt>Last-Modified</tt>, or
+     * <tt>null</tt> if it is unknown
+     */
+    static Instant lastModified(FileData fileData) {
+        Instant modifiedAt = fileData.getModifiedAt();
+        return modifiedAt == null ? null : modifiedAt.truncatedTo(ChronoUnit.SECONDS);
+    }
+
+    /**
+     * Checks <tt>If-None-Match</tt>, or <tt>If-Modified-Since</tt> when there is no <tt>If-None-Match</tt>, as
+     * described by RFC 7232 for GET and HEAD requests.
+     *
+     * @param headers the headers of the request
+     * @param fileData the requested file
+     * @param encoding the coding of the representation which would be sent
+     * @return <tt>true</tt> if the client's copy is current and a 304 should be sent
+     */
+    static boolean isNotModified(HttpHeaders headers, FileData fileData, ContentEncoding encoding) {
+        List<String> ifNoneMatch = headers.getIfNoneMatch();
+        if (!ifNoneMatch.isEmpty()) {
+            String etag = etag(fileData, encoding);
+            return ifNoneMatch.stream().anyMatch(tag -> ANY.equals(tag) || etag.equals(stripWeakPrefix(tag)));
+        }
+        long ifModifiedSince = headers.getIfModifiedSince();
+        Instant lastModified = lastModified(fileData);
+        return ifModifiedSince >= 0 && lastModified != null && lastModified.toEpochMilli() <= ifModifiedSince;
+    }
+
+    /**
+     * Sets the validators of a representation on a response. Only files stored compressed have representations
+     * depending on <tt>Accept-Encoding</tt>.
+     *
+     * @param response the response
+     * @param fileData the file
+     * @param encoding the coding of the representation sent
+     * @return the response
+     */
+    static ResponseEntity.BodyBuilder validators(ResponseEntity.BodyBuilder response, FileData fileData,
+                                                 ContentEncoding encoding) {
+        Instant lastModified = lastModified(fileData);
+        if (lastModified != null) {
+            response.lastModified(lastModified);
+        }
+        if (fileData.getEncoding() != ContentEncoding.IDENTITY) {
+            response.varyBy(ACCEPT_ENCODING);
+        }
+        return response
+                .eTag(etag(fileData, encoding))
+                .cacheControl(CACHE_CONTROL);
+    }
+
+    /*
+     * If-None-Match uses the weak comparison, W/"x" matches "x"
+     */
+    private static String stripWeakPrefix(String tag) {
+        return tag.startsWith(WEAK_PREFIX) ? tag.substring(WEAK_PREFIX.length()) : tag;
+    }
+}
@@ -1,25 +1,42 @@
 package web.server.demo.controller;
 
+import io.micrometer.core.annotation.Timed;
 import io.swagger.annotations.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ByteArrayResource;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import springfox.documentation.annotations.ApiIgnore;
 import web.server.demo.client.DemoSpi;
+import web.server.demo.metrics.TransferMetrics;
 import web.server.demo.repository.FileData;
+import web.server.demo.service.NotDrainedException;
 import web.server.demo.service.RepoService;
+import web.server.demo.storage.ContentEncoding;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+import static org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type.SERVLET;
+import static org.springframework.http.HttpHeaders.ACCEPT_ENCODING;
 import static org.springframework.http.HttpHeaders.CONTENT_DISPOSITION;
-import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpHeaders.CONTENT_ENCODING;
+import static org.springframework.http.HttpHeaders.RETRY_AFTER;
+import static org.springframework.http.HttpStatus.*;
 import static web.server.demo.client.Constants.*;
+import static web.server.demo.metrics.MetricNames.OPERATIONS;
+import static web.server.demo.metrics.MetricNames.OPERATION_TAG;
 
 @RestController
+@ConditionalOnWebApplication(type = SERVLET)
 @Api(value="Web server API")
 @RequestMapping(BASE_API_PATH)
 public class Controller implements DemoSpi<MultipartFile> {
@@ -29,23 +46,22 @@ public class Controller implements DemoSpi<MultipartFile> {
     @Autowired
     private RepoService repoService;
 
+    @Autowired
+    private TransferMetrics transferMetrics;
+
     @PostMapping(ADD_FILE_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "add_file"}, histogram = true)
     @ApiOperation("Add a file into the repository")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "File added successfully"),
             @ApiResponse(code = 500, message = "File <file> could not be saved")
     })
-    public ResponseEntity<String> add(
+    public CompletableFuture<ResponseEntity<?>> add(
             @ApiParam(value = "The file to be saved", required = true)
             @RequestParam(FILE_PARAMETER) MultipartFile file) {
-        try {
-            repoService.save(file);
-            return ResponseEntity.ok("File added successfully");
-        } catch (IOException e) {
-            LOG.error("File {} could not be saved", file.getOriginalFilename());
-            String body = "File " + file.getOriginalFilename() + "could not be saved";
-            return new ResponseEntity<>(body, INTERNAL_SERVER_ERROR);
-        }
+        return repoService.save(file).handle((fileData, error) -> error == null
+                ? ResponseEntity.ok("File added successfully")
+                : failure(error, "File " + file.getOriginalFilename() + " could not be saved"));
     }
 
     /*
@@ -60,132 +76,195 @@ public class Controller implements DemoSpi<MultipartFile> {
      * curl -X POST "http://localhost:8080/add/files" -F "files=@/path/to/file1.png" -F "files=@/path/to/file2.png"
      */
     @PostMapping(ADD_FILES_PATH)
-    @ApiOperation("Add an array of files to the repository")
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "add_files"}, histogram = true)
+    @ApiOperation("Add an array of files to the repository, returning the outcome of every file")
     @ApiResponses(value = {
-            @ApiResponse(code = 200, message = "Files added successfully"),
+            @ApiResponse(code = 200, message = "All files were added"),
+            @ApiResponse(code = 207, message = "Some files could not be saved"),
             @ApiResponse(code = 500, message = "Files could not be saved")
     })
-    public ResponseEntity<String> add(
+    public CompletableFuture<ResponseEntity<?>> add(
             @ApiParam(value = "The files to be saved", required = true)
             @RequestParam(FILES_PARAMETER) MultipartFile[] files) {
-        try {
-            repoService.save(files);
-            return ResponseEntity.ok("Files added successfully");
-        } catch (InterruptedException e) {
-            LOG.error("Files could not be saved");
-            return new ResponseEntity<>("Files could not be saved", INTERNAL_SERVER_ERROR);
-        }
+        return repoService.save(files).handle((results, error) -> {
+            if (error != null) {
+                return failure(error, "Files could not be saved");
+            }
+            long failures = results.stream().filter(result -> !result.isSuccess()).count();
+            HttpStatus status = failures == 0 ? OK : failures < results.size() ? MULTI_STATUS : INTERNAL_SERVER_ERROR;
+            return new ResponseEntity<>(results, status);
+        });
     }
 
+    public CompletableFuture<ResponseEntity<?>> retrieve(long id) {
+        return retrieve(id, HttpHeaders.EMPTY);
+    }
+
+    /*
+     * Conditional requests are answered from the metadata alone, the payload is only opened for a 200. Payloads
+     * stored compressed are sent as they are to clients accepting their coding.
+     */
     @GetMapping(RETRIEVE_BY_ID_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "retrieve_by_id"}, histogram = true)
     @ApiOperation("Retrieve an element from the repository by its id")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 304, message = "Not modified"),
+            @ApiResponse(code = 404, message = "File not found"),
             @ApiResponse(code = 500, message = "File could not be retrieved")
     })
-    public ResponseEntity<?> retrieve(
+    public CompletableFuture<ResponseEntity<?>> retrieve(
             @ApiParam(value = "The id associated with the file to be retrieved", required = true)
-            @RequestParam(ID_PARAMETER) long id) {
-        try {
-            FileData fileData = repoService.getById(id).get();
-            return ResponseEntity
-                    .ok()
-                    .header(CONTENT_DISPOSITION, "attachment; filename=\"" + fileData.getName() + "\"")
-                    .body(new ByteArrayResource(fileData.getData()));
-        } catch (InterruptedException | ExecutionException e) {
-            LOG.error("File could not be sent. Error: {}", e.getMessage());
-            return new ResponseEntity<>("File could not be retrieved", INTERNAL_SERVER_ERROR);
-        }
+            @RequestParam(ID_PARAMETER) long id,
+            @ApiIgnore @RequestHeader HttpHeaders headers) {
+        return repoService.getById(id).handle((fileData, error) -> {
+            if (error != null) {
+                return failure(error, "File could not be retrieved");
+            }
+            ContentEncoding encoding = AcceptEncoding.negotiate(headers.getFirst(ACCEPT_ENCODING), fileData);
+            if (ConditionalRequests.isNotModified(headers, fileData, encoding)) {
+                return ConditionalRequests.validators(ResponseEntity.status(NOT_MODIFIED), fileData, encoding).build();
+            }
+            try {
+                ResponseEntity.BodyBuilder response = ConditionalRequests
+                        .validators(ResponseEntity.ok(), fileData, encoding)
+                        .header(CONTENT_DISPOSITION, "attachment; filename=\"" + fileData.getName() + "\"");
+                if (encoding == ContentEncoding.IDENTITY) {
+                    transferMetrics.sent(fileData.getSize());
+                    return response
+                            .contentLength(fileData.getSize())
+                            .body(new InputStreamResource(repoService.openContent(fileData)));
+                }
+                transferMetrics.sent(fileData.getStoredSize());
+                return response
+                        .header(CONTENT_ENCODING, encoding.getToken())
+                        .contentLength(fileData.getStoredSize())
+                        .body(new InputStreamResource(repoService.openStoredContent(fileData)));
+            } catch (IOException e) {
+                return failure(e, "File could not be retrieved");
+            }
+        });
+    }
+
+    public CompletableFuture<ResponseEntity<?>> retrieve(String prefix) {
+        return CompletableFuture.completedFuture(retrieve(prefix, null));
     }
 
+    /*
+     * Served from the in-memory name index, so it is cheap enough to be called on every keystroke of an
+     * autocomplete; the optional limit keeps the response small for short prefixes.
+     */
     @GetMapping(RETRIEVE_BY_PREFIX_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "retrieve_by_prefix"}, histogram = true)
     @ApiOperation("Retrieve a list of elements names from the repository")
     @ApiResponses(value = {
-            @ApiResponse(code = 200, message = "OK"),
-            @ApiResponse(code = 500, message = "File names could not be retrieved")
+            @ApiResponse(code = 200, message = "OK")
     })
     public ResponseEntity<String> retrieve(
             @ApiParam(value = "The prefix of the files' names to be retrieved", required = true)
-            @RequestParam(PREFIX_PARAMETER) String prefix) {
-        try {
-            return ResponseEntity.ok(repoService.getByNameStartingWith(prefix).get().toString());
-        } catch (InterruptedException | ExecutionException e) {
-            LOG.error("File names could not be sent. Error: {}", e.getMessage());
-            return new ResponseEntity<>("File names could not be retrieved", INTERNAL_SERVER_ERROR);
-        }
+            @RequestParam(PREFIX_PARAMETER) String prefix,
+            @ApiParam(value = "The maximum number of names to be retrieved")
+            @RequestParam(value = LIMIT_PARAMETER, required = false) Integer limit) {
+        int maxNames = limit == null ? Integer.MAX_VALUE : limit;
+        return ResponseEntity.ok(repoService.getByNameStartingWith(prefix, maxNames).toString());
     }
 
     @GetMapping(RETRIEVE_ALL_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "retrieve_all"}, histogram = true)
     @ApiOperation("Retrieve a list of all file names from the repository")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "OK"),
             @ApiResponse(code = 500, message = "File names could not be retrieved")
     })
-    public ResponseEntity<String> retrieve() {
-        try {
-            return ResponseEntity.ok(repoService.getAll().get().toString());
-        } catch (InterruptedException | ExecutionException e) {
-            LOG.error("File names could not be sent. Error: {}", e.getMessage());
-            return new ResponseEntity<>("File names could not be retrieved", INTERNAL_SERVER_ERROR);
-        }
+    public CompletableFuture<ResponseEntity<?>> retrieve() {
+        return repoService.getAll().handle((fileNames, error) -> error == null
+                ? ResponseEntity.ok(fileNames.toString())
+                : failure(error, "File names could not be retrieved"));
     }
 
     @PutMapping(FILE_RENAME_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "rename"}, histogram = true)
     @ApiOperation("Rename a file in the repository")
     @ApiResponses(value = {
-            @ApiResponse(code = 200, message = "File updated successfully")
+            @ApiResponse(code = 200, message = "File updated successfully"),
+            @ApiResponse(code = 404, message = "File not found"),
+            @ApiResponse(code = 500, message = "File could not be renamed"),
+            @ApiResponse(code = 503, message = "File is still being saved")
     })
-    public ResponseEntity<String> rename(
+    public CompletableFuture<ResponseEntity<?>> rename(
             @ApiParam(value = "The id associated with the file to be renamed", required = true)
             @RequestParam(ID_PARAMETER) long id,
             @ApiParam(value = "The new name of the file", required = true)
             @RequestParam(NAME_PARAMETER) String name) {
-        repoService.rename(id, name);
-        return ResponseEntity.ok("File updated successfully");
+        return repoService.rename(id, name).handle((renamed, error) -> error == null
+                ? ResponseEntity.ok("File updated successfully")
+                : failure(error, "File could not be renamed"));
     }
 
     @PostMapping(FILE_REPLACE_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "replace"}, histogram = true)
     @ApiOperation("Replace a file in the repository")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "File replaced successfully"),
-            @ApiResponse(code = 500, message = "File could not be replaced")
+            @ApiResponse(code = 500, message = "File could not be replaced"),
+            @ApiResponse(code = 503, message = "File is still being saved")
     })
-    public ResponseEntity<String> replace(
+    public CompletableFuture<ResponseEntity<?>> replace(
             @ApiParam(value = "The id associated with the file to be replaced", required = true)
             @RequestParam(ID_PARAMETER) long id,
             @ApiParam(value = "The new file associated with the id", required = true)
             @RequestParam(FILE_PARAMETER) MultipartFile file) {
-        try {
-            repoService.replace(id, file);
-            return ResponseEntity.ok("File replaced successfully");
-        } catch (IOException e) {
-            LOG.error("File {} could not be replaced . Error: {}", file.getOriginalFilename(), e.getMessage());
-            String body = "File " + file.getOriginalFilename() + " could not be replaced";
-            return new ResponseEntity<>(body, INTERNAL_SERVER_ERROR);
-        }
+        return repoService.replace(id, file).handle((replaced, error) -> error == null
+                ? ResponseEntity.ok("File replaced successfully")
+                : failure(error, "File " + file.getOriginalFilename() + " could not be replaced"));
     }
 
     @DeleteMapping(REMOVE_FILE_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "remove_file"}, histogram = true)
     @ApiOperation("Remove a file from the repository")
     @ApiResponses(value = {
-            @ApiResponse(code = 200, message = "File removed successfully")
+            @ApiResponse(code = 200, message = "File removed successfully"),
+            @ApiResponse(code = 404, message = "File not found"),
+            @ApiResponse(code = 500, message = "File could not be removed"),
+            @ApiResponse(code = 503, message = "File is still being saved")
     })
-    public ResponseEntity<String> remove(
+    public CompletableFuture<ResponseEntity<?>> remove(
             @ApiParam(value = "The id associated with the file to be removed", required = true)
             @RequestParam(ID_PARAMETER) long id) {
-        repoService.deleteById(id);
-        return ResponseEntity.ok("File removed successfully");
+        return repoService.deleteById(id).handle((removed, error) -> error == null
+                ? ResponseEntity.ok("File removed successfully")
+                : failure(error, "File could not be removed"));
     }
 
     @DeleteMapping(REMOVE_FILES_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "remove_files"}, histogram = true)
     @ApiOperation("Remove a list of files from the repository")
     @ApiResponses(value = {
-            @ApiResponse(code = 200, message = "Files removed successfully")
+            @ApiResponse(code = 200, message = "Files removed successfully"),
+            @ApiResponse(code = 500, message = "Files could not be removed"),
+            @ApiResponse(code = 503, message = "File is still being saved")
     })
-    public ResponseEntity<String> remove(
+    public CompletableFuture<ResponseEntity<?>> remove(
             @ApiParam(value = "The ids associated with the files to be removed", required = true)
             @RequestParam(IDS_PARAMETER) long[] ids) {
-        repoService.deleteAllByIds(ids);
-        return ResponseEntity.ok("Files removed successfully");
+        return repoService.deleteAllByIds(ids).handle((removed, error) -> error == null
+                ? ResponseEntity.ok("Files removed successfully")
+                : failure(error, "Files could not be removed"));
+    }
+
+    /*
+     * Turns the failure of an operation into a response, a missing file is reported as such, a file still in the
+     * write-behind journal as a temporary condition, and anything else as a server error with the given message.
+     */
+    private static ResponseEntity<?> failure(Throwable error, String message) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof NoSuchElementException) {
+            return new ResponseEntity<>("File not found", NOT_FOUND);
+        }
+        if (cause instanceof NotDrainedException) {
+            return ResponseEntity.status(SERVICE_UNAVAILABLE).header(RETRY_AFTER, "1").body(cause.getMessage());
+        }
+        LOG.error("{}. Error: {}", message, cause.getMessage());
+        return new ResponseEntity<>(message, INTERNAL_SERVER_ERROR);
     }
-}
\ No newline at end of file
+}
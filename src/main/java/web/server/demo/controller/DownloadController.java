@@ -0,0 +1,301 @@
+package web.server.demo.controller;
+
+import io.micrometer.core.annotation.Timed;
+import io.swagger.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpRange;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import web.server.demo.metrics.TransferMetrics;
+import web.server.demo.repository.FileData;
+import web.server.demo.service.RepoService;
+import web.server.demo.storage.ContentEncoding;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static javax.servlet.http.HttpServletResponse.*;
+import static org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type.SERVLET;
+import static org.springframework.http.HttpHeaders.*;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
+import static web.server.demo.client.Constants.*;
+import static web.server.demo.metrics.MetricNames.OPERATIONS;
+import static web.server.demo.metrics.MetricNames.OPERATION_TAG;
+
+/**
+ * Serves file payloads straight from the <tt>BlobStore</tt>. When the container supports it the file is handed to
+ * Tomcat's sendfile, otherwise it is copied with <tt>FileChannel.transferTo</tt>; neither path copies the payload
+ * into the heap. Byte ranges are honoured, guarded by <tt>If-Range</tt>, and a client holding the current version
+ * gets a <tt>304</tt> before any range is considered. Several ranges are sent as <tt>multipart/byteranges</tt>, each
+ * read on its own through <tt>RepoService</tt>, so memory use depends on the ranges rather than on the file.
+ * <p>
+ * A payload stored compressed is sent as it is to clients accepting its coding, in which case ranges apply to the
+ * compressed bytes, and decoded for the others. Requests for several ranges of a compressed representation get the
+ * whole representation, as a content coding would apply to the multipart body rather than to its parts.
+ */
+@RestController
+@ConditionalOnWebApplication(type = SERVLET)
+@Api(value = "Web server API")
+@RequestMapping(BASE_API_PATH)
+public class DownloadController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DownloadController.class);
+
+    /*
+     * Request attributes of Tomcat's sendfile support, see org.apache.coyote.Constants
+     */
+    private static final String SENDFILE_SUPPORTED_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+    private static final String BYTES_UNIT = "bytes";
+    private static final String MULTIPART_BYTERANGES = "multipart/byteranges";
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    @Autowired
+    private RepoService repoService;
+
+    @Autowired
+    private TransferMetrics transferMetrics;
+
+    @GetMapping(DOWNLOAD_BY_ID_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "download"}, histogram = true)
+    @ApiOperation("Download a file, or a byte range of it, from the repository by its id")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 206, message = "Partial content"),
+            @ApiResponse(code = 304, message = "Not modified"),
+            @ApiResponse(code = 404, message = "File not found"),
+            @ApiResponse(code = 416, message = "Requested range not satisfiable"),
+            @ApiResponse(code = 500, message = "File could not be retrieved")
+    })
+    public void download(
+            @ApiParam(value = "The id associated with the file to be downloaded", required = true)
+            @RequestParam(ID_PARAMETER) long id,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        // looked up on the request thread: sendfile only applies to a response which is not asynchronous
+        FileData fileData;
+        try {
+            fileData = repoService.findById(id);
+        } catch (RuntimeException e) {
+            LOG.error("File could not be sent. Error: {}", e.getMessage());
+            response.sendError(SC_INTERNAL_SERVER_ERROR, "File could not be retrieved");
+            return;
+        }
+        if (fileData == null) {
+            response.sendError(SC_NOT_FOUND, "File not found");
+            return;
+        }
+
+        ContentEncoding encoding = AcceptEncoding.negotiate(request.getHeader(ACCEPT_ENCODING), fileData);
+        long length = encoding == ContentEncoding.IDENTITY ? fileData.getSize() : fileData.getStoredSize();
+        String etag = ConditionalRequests.etag(fileData, encoding);
+        Instant lastModified = ConditionalRequests.lastModified(fileData);
+        response.setHeader(ETAG, etag);
+        if (lastModified != null) {
+            response.setDateHeader(LAST_MODIFIED, lastModified.toEpochMilli());
+        }
+        response.setHeader(CACHE_CONTROL, ConditionalRequests.CACHE_CONTROL.getHeaderValue());
+        if (fileData.getEncoding() != ContentEncoding.IDENTITY) {
+            response.setHeader(VARY, ACCEPT_ENCODING);
+        }
+        if (ConditionalRequests.isNotModified(new ServletServerHttpRequest(request).getHeaders(), fileData,
+                encoding)) {
+            response.setStatus(SC_NOT_MODIFIED);
+            return;
+        }
+        response.setHeader(ACCEPT_RANGES, BYTES_UNIT);
+        response.setHeader(CONTENT_DISPOSITION, "attachment; filename=\"" + fileData.getName() + "\"");
+        response.setContentType(APPLICATION_OCTET_STREAM_VALUE);
+        if (encoding != ContentEncoding.IDENTITY) {
+            response.setHeader(CONTENT_ENCODING, encoding.getToken());
+        }
+
+        String rangeHeader = request.getHeader(RANGE);
+        if (rangeHeader == null || !isRangeValid(request.getHeader(IF_RANGE), etag)) {
+            send(request, response, fileData, encoding, 0, length);
+            return;
+        }
+
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            ranges = null;
+        }
+        List<long[]> satisfiable = ranges == null ? null : satisfiable(ranges, length);
+        if (satisfiable == null || (satisfiable.size() > 1 && encoding != ContentEncoding.IDENTITY)) {
+            // A server may ignore a Range header it cannot serve and answer with the whole representation
+            send(request, response, fileData, encoding, 0, length);
+            return;
+        }
+        if (satisfiable.isEmpty()) {
+            response.setHeader(CONTENT_RANGE, BYTES_UNIT + " */" + length);
+            response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        response.setStatus(SC_PARTIAL_CONTENT);
+        if (satisfiable.size() > 1) {
+            sendRanges(request, response, fileData, satisfiable, length);
+            return;
+        }
+        long start = satisfiable.get(0)[0];
+        long end = satisfiable.get(0)[1];
+        response.setHeader(CONTENT_RANGE, contentRange(start, end, length));
+        send(request, response, fileData, encoding, start, end - start + 1);
+    }
+
+    /*
+     * Resolves the ranges into [start, end] pairs, leaving out those starting beyond the end of the payload. Ranges
+     * adding up to more than the payload, i.e. overlapping ones, are not worth serving piecemeal: null means the
+     * whole payload is sent instead.
+     */
+    private static List<long[]> satisfiable(List<HttpRange> ranges, long length) {
+        List<long[]> satisfiable = new ArrayList<>();
+        long total = 0;
+        for (HttpRange range : ranges) {
+            long start;
+            long end;
+            try {
+                start = range.getRangeStart(length);
+                end = range.getRangeEnd(length);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (start < length && start <= end) {
+                satisfiable.add(new long[]{start, end});
+                total += end - start + 1;
+            }
+        }
+        return total > length ? null : satisfiable;
+    }
+
+    /*
+     * If-Range only supports strong validators; an outdated or weak one means the whole file has to be sent.
+     */
+    private boolean isRangeValid(String ifRange, String etag) {
+        return ifRange == null || ifRange.equals(etag);
+    }
+
+    /*
+     * Sends part of the payload in the given coding. A payload stored in that coding is handed to sendfile or
+     * transferTo, one stored compressed for a client not accepting its coding is decoded through the heap, like one
+     * still in the write-behind journal is copied from it.
+     */
+    private void send(HttpServletRequest request, HttpServletResponse response, FileData fileData,
+                      ContentEncoding encoding, long start, long count) throws IOException {
+        response.setContentLengthLong(count);
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+        transferMetrics.sent(count);
+        if (encoding != fileData.getEncoding()) {
+            try (InputStream in = repoService.openContent(fileData, start, count)) {
+                copy(in, response.getOutputStream(), count);
+            }
+            return;
+        }
+        Path path = repoService.getContentPath(fileData);
+        if (path == null) {
+            try (InputStream in = repoService.openStoredContent(fileData, start, count)) {
+                copy(in, response.getOutputStream(), count);
+            }
+            return;
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTRIBUTE))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, path.toString());
+            request.setAttribute(SENDFILE_START_ATTRIBUTE, start);
+            request.setAttribute(SENDFILE_END_ATTRIBUTE, start + count);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long remaining = count;
+            while (remaining > 0) {
+                long transferred = channel.transferTo(position, remaining, out);
+                if (transferred <= 0) {
+                    throw new IOException("Blob " + path + " ended before position " + (start + count));
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+    }
+
+    /*
+     * Sends several ranges of the decoded payload as a multipart/byteranges body, each part read on its own through
+     * RepoService so that only the requested bytes are read. The parts are written in the order of the request.
+     */
+    private void sendRanges(HttpServletRequest request, HttpServletResponse response, FileData fileData,
+                            List<long[]> ranges, long length) throws IOException {
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        List<byte[]> partHeaders = new ArrayList<>();
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long contentLength = end.length;
+        for (long[] range : ranges) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                    + CONTENT_TYPE + ": " + APPLICATION_OCTET_STREAM_VALUE + "\r\n"
+                    + CONTENT_RANGE + ": " + contentRange(range[0], range[1], length) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + range[1] - range[0] + 1;
+        }
+        response.setContentType(MULTIPART_BYTERANGES + "; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+        transferMetrics.sent(contentLength);
+        OutputStream out = response.getOutputStream();
+        for (int i = 0; i < ranges.size(); i++) {
+            long start = ranges.get(i)[0];
+            long count = ranges.get(i)[1] - start + 1;
+            out.write(partHeaders.get(i));
+            try (InputStream in = fileData.getEncoding() == ContentEncoding.IDENTITY
+                    ? repoService.openStoredContent(fileData, start, count)
+                    : repoService.openContent(fileData, start, count)) {
+                copy(in, out, count);
+            }
+        }
+        out.write(end);
+    }
+
+    private static String contentRange(long start, long end, long length) {
+        return BYTES_UNIT + " " + start + "-" + end + "/" + length;
+    }
+
+    private static void copy(InputStream in, OutputStream out, long count) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(count, 1))];
+        long remaining = count;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Payload ended " + remaining + " bytes before the end of the range");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package web.server.demo.controller;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import io.swagger.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import web.server.demo.repository.FileMetadata;
+import web.server.demo.service.RepoService;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type.SERVLET;
+import static org.springframework.http.HttpHeaders.ACCEPT;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static web.server.demo.client.Constants.*;
+
+/**
+ * Lists file metadata page by page. Pages are addressed with an opaque cursor holding the <tt>(name, id)</tt> of the
+ * last file of the previous page, and each page is written to the response while it is being read from the
+ * repository, so neither the time to the first byte nor the memory used depend on the size of the repository.
+ */
+@RestController
+@ConditionalOnWebApplication(type = SERVLET)
+@Api(value = "Web server API")
+@RequestMapping(BASE_API_PATH)
+public class ListingController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ListingController.class);
+
+    private static final MediaType APPLICATION_NDJSON = MediaType.valueOf("application/x-ndjson");
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final String DEFAULT_LIMIT = "100";
+    private static final int MAX_LIMIT = 1000;
+    private static final int BATCH_SIZE = 250;
+    private static final char CURSOR_SEPARATOR = ':';
+
+    @Autowired
+    private RepoService repoService;
+
+    @GetMapping(LIST_PATH)
+    @ApiOperation("List the metadata of files, one page at a time, as JSON or NDJSON (Accept: application/x-ndjson)")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 400, message = "Invalid cursor or limit")
+    })
+    public ResponseEntity<StreamingResponseBody> list(
+            @ApiParam(value = "The prefix of the files' names to be listed")
+            @RequestParam(value = PREFIX_PARAMETER, defaultValue = "") String prefix,
+            @ApiParam(value = "The cursor returned with the previous page")
+            @RequestParam(value = CURSOR_PARAMETER, required = false) String cursor,
+            @ApiParam(value = "The maximum number of files in the page, at most " + MAX_LIMIT)
+            @RequestParam(value = LIMIT_PARAMETER, defaultValue = DEFAULT_LIMIT) int limit,
+            @RequestHeader(value = ACCEPT, required = false) String accept) {
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new ResponseStatusException(BAD_REQUEST, "The limit must be between 1 and " + MAX_LIMIT);
+        }
+        Position start;
+        try {
+            start = cursor == null ? Position.FIRST : Position.decode(cursor);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Invalid cursor {}", cursor);
+            throw new ResponseStatusException(BAD_REQUEST, "Invalid cursor");
+        }
+        boolean ndjson = acceptsNdjson(accept);
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+                writePage(json, ndjson, prefix, start, limit);
+            }
+        };
+        return ResponseEntity.ok().contentType(ndjson ? APPLICATION_NDJSON : APPLICATION_JSON).body(body);
+    }
+
+    private static boolean acceptsNdjson(String accept) {
+        try {
+            return accept != null && MediaType.parseMediaTypes(accept).stream()
+                    .anyMatch(mediaType -> mediaType.isCompatibleWith(APPLICATION_NDJSON) && !mediaType.isWildcardType());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /*
+     * JSON:   {"items":[{...},{...}],"next":"cursor"}
+     * NDJSON: one {...} line per file, followed by a {"next":"cursor"} line
+     */
+    private void writePage(JsonGenerator json, boolean ndjson, String prefix, Position start, int limit)
+            throws IOException {
+        if (ndjson) {
+            json.setRootValueSeparator(new SerializedString("\n"));
+        } else {
+            json.writeStartObject();
+            json.writeArrayFieldStart("items");
+        }
+
+        Position position = start;
+        int remaining = limit;
+        boolean exhausted = false;
+        while (remaining > 0 && !exhausted) {
+            int batchSize = Math.min(BATCH_SIZE, remaining);
+            List<FileMetadata> batch = repoService.getPage(prefix, position.name, position.id, batchSize);
+            for (FileMetadata metadata : batch) {
+                writeItem(json, metadata);
+            }
+            json.flush();
+            exhausted = batch.size() < batchSize;
+            remaining -= batch.size();
+            if (!batch.isEmpty()) {
+                FileMetadata last = batch.get(batch.size() - 1);
+                position = new Position(last.getName(), last.getId());
+            }
+        }
+
+        if (!ndjson) {
+            json.writeEndArray();
+        } else {
+            json.writeStartObject();
+        }
+        json.writeStringField("next", exhausted ? null : position.encode());
+        json.writeEndObject();
+        if (ndjson) {
+            json.writeRaw('\n');
+        }
+    }
+
+    private static void writeItem(JsonGenerator json, FileMetadata metadata) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("id", metadata.getId());
+        json.writeStringField("name", metadata.getName());
+        json.writeNumberField("size", metadata.getSize());
+        json.writeStringField("digest", metadata.getDigest());
+        json.writeStringField("createdAt", toString(metadata.getCreatedAt()));
+        json.writeStringField("modifiedAt", toString(metadata.getModifiedAt()));
+        json.writeEndObject();
+    }
+
+    private static String toString(Instant instant) {
+        return instant == null ? null : instant.toString();
+    }
+
+    /**
+     * The <tt>(name, id)</tt> key of the last file of a page, encoded as <tt>base64url(id:name)</tt>.
+     */
+    private static class Position {
+
+        private static final Position FIRST = new Position(null, 0);
+
+        private final String name;
+
+        private final long id;
+
+        private Position(String name, long id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        private String encode() {
+            byte[] key = (id + String.valueOf(CURSOR_SEPARATOR) + name).getBytes(UTF_8);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(key);
+        }
+
+        private static Position decode(String cursor) {
+            String key = new String(Base64.getUrlDecoder().decode(cursor), UTF_8);
+            int separator = key.indexOf(CURSOR_SEPARATOR);
+            if (separator < 0) {
+                throw new IllegalArgumentException("Missing separator");
+            }
+            return new Position(key.substring(separator + 1), Long.parseLong(key.substring(0, separator)));
+        }
+    }
+}
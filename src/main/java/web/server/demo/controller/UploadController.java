@@ -0,0 +1,152 @@
+package web.server.demo.controller;
+
+import io.swagger.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import web.server.demo.service.UploadResult;
+import web.server.demo.service.UploadSessionService;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type.SERVLET;
+import static org.springframework.http.HttpStatus.*;
+import static web.server.demo.client.Constants.*;
+
+/**
+ * Resumable uploads of large files: initiate an upload, <tt>PUT</tt> its numbered parts, possibly in parallel and
+ * again after a dropped connection, then complete it to assemble the parts into a file, or abort it.
+ *
+ * curl -X POST "http://localhost:8080/api/v1/upload/initiate?name=big.iso"
+ * curl -X PUT "http://localhost:8080/api/v1/upload/part?uploadId=<id>&partNumber=1" --data-binary @big.iso.part1
+ * curl -X POST "http://localhost:8080/api/v1/upload/complete?uploadId=<id>&partCount=1"
+ */
+@RestController
+@ConditionalOnWebApplication(type = SERVLET)
+@Api(value = "Web server API")
+@RequestMapping(BASE_API_PATH)
+public class UploadController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UploadController.class);
+
+    @Autowired
+    private UploadSessionService uploadSessionService;
+
+    @PostMapping(UPLOAD_INITIATE_PATH)
+    @ApiOperation("Start a resumable upload, returning the id its parts are uploaded with")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 500, message = "Upload could not be initiated")
+    })
+    public ResponseEntity<?> initiate(
+            @ApiParam(value = "The name of the file to be uploaded", required = true)
+            @RequestParam(NAME_PARAMETER) String name) {
+        try {
+            return ResponseEntity.ok(uploadSessionService.initiate(name));
+        } catch (IOException e) {
+            return failure(e, "Upload could not be initiated");
+        }
+    }
+
+    /*
+     * The part is the raw request body, not a multipart request, so it is written to disk as it arrives
+     */
+    @PutMapping(UPLOAD_PART_PATH)
+    @ApiOperation("Upload one part of a resumable upload, replacing any previous copy of the part")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Part uploaded successfully"),
+            @ApiResponse(code = 400, message = "Invalid part number"),
+            @ApiResponse(code = 404, message = "Upload not found"),
+            @ApiResponse(code = 409, message = "Upload is being completed"),
+            @ApiResponse(code = 500, message = "Part could not be saved")
+    })
+    public ResponseEntity<?> uploadPart(
+            @ApiParam(value = "The id of the upload", required = true)
+            @RequestParam(UPLOAD_ID_PARAMETER) String uploadId,
+            @ApiParam(value = "The number of the part, starting from 1", required = true)
+            @RequestParam(PART_NUMBER_PARAMETER) int partNumber,
+            HttpServletRequest request) {
+        try {
+            long size = uploadSessionService.uploadPart(uploadId, partNumber, request.getInputStream());
+            return ResponseEntity.ok("Part " + partNumber + " uploaded successfully, " + size + " bytes");
+        } catch (IOException | RuntimeException e) {
+            return failure(e, "Part " + partNumber + " could not be saved");
+        }
+    }
+
+    @GetMapping(UPLOAD_PARTS_PATH)
+    @ApiOperation("Retrieve the parts of a resumable upload received so far")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 404, message = "Upload not found"),
+            @ApiResponse(code = 500, message = "Upload could not be retrieved")
+    })
+    public ResponseEntity<?> getUpload(
+            @ApiParam(value = "The id of the upload", required = true)
+            @RequestParam(UPLOAD_ID_PARAMETER) String uploadId) {
+        try {
+            return ResponseEntity.ok(uploadSessionService.getUpload(uploadId));
+        } catch (IOException | RuntimeException e) {
+            return failure(e, "Upload could not be retrieved");
+        }
+    }
+
+    @PostMapping(UPLOAD_COMPLETE_PATH)
+    @ApiOperation("Assemble parts 1 to partCount of a resumable upload into a file")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "File added successfully"),
+            @ApiResponse(code = 400, message = "Parts are missing"),
+            @ApiResponse(code = 404, message = "Upload not found"),
+            @ApiResponse(code = 409, message = "Upload is being completed"),
+            @ApiResponse(code = 500, message = "File could not be saved")
+    })
+    public CompletableFuture<ResponseEntity<?>> complete(
+            @ApiParam(value = "The id of the upload", required = true)
+            @RequestParam(UPLOAD_ID_PARAMETER) String uploadId,
+            @ApiParam(value = "The number of parts of the file", required = true)
+            @RequestParam(PART_COUNT_PARAMETER) int partCount) {
+        return uploadSessionService.complete(uploadId, partCount).handle((fileData, error) -> error == null
+                ? ResponseEntity.ok(UploadResult.success(fileData.getName(), fileData.getId()))
+                : failure(error, "File could not be saved"));
+    }
+
+    @DeleteMapping(UPLOAD_ABORT_PATH)
+    @ApiOperation("Cancel a resumable upload and remove its parts")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Upload aborted"),
+            @ApiResponse(code = 404, message = "Upload not found"),
+            @ApiResponse(code = 409, message = "Upload is being completed")
+    })
+    public ResponseEntity<?> abort(
+            @ApiParam(value = "The id of the upload", required = true)
+            @RequestParam(UPLOAD_ID_PARAMETER) String uploadId) {
+        try {
+            uploadSessionService.abort(uploadId);
+            return ResponseEntity.ok("Upload aborted");
+        } catch (RuntimeException e) {
+            return failure(e, "Upload could not be aborted");
+        }
+    }
+
+    private static ResponseEntity<?> failure(Throwable error, String message) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof NoSuchElementException) {
+            return new ResponseEntity<>("Upload not found", NOT_FOUND);
+        }
+        if (cause instanceof IllegalArgumentException) {
+            return new ResponseEntity<>(cause.getMessage(), BAD_REQUEST);
+        }
+        if (cause instanceof IllegalStateException) {
+            return new ResponseEntity<>(cause.getMessage(), CONFLICT);
+        }
+        LOG.error("{}. Error: {}", message, cause.getMessage());
+        return new ResponseEntity<>(message, INTERNAL_SERVER_ERROR);
+    }
+}
@@ -0,0 +1,34 @@
+package web.server.demo.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Counts the tasks a saturated executor rejects before handing them to the actual policy. Either the policy runs
+ * them on the submitting thread, or the submitter does after catching the rejection: both count as
+ * <tt>executor.caller.runs</tt>.
+ */
+public class CountingRejectedExecutionHandler implements RejectedExecutionHandler {
+
+    private final RejectedExecutionHandler delegate;
+
+    private final Counter rejections;
+
+    public CountingRejectedExecutionHandler(RejectedExecutionHandler delegate, MeterRegistry registry,
+                                            String executorName) {
+        this.delegate = delegate;
+        this.rejections = Counter.builder(MetricNames.EXECUTOR_CALLER_RUNS)
+                .tag(MetricNames.EXECUTOR_NAME_TAG, executorName)
+                .description("Tasks run by the submitting thread because the executor was saturated")
+                .register(registry);
+    }
+
+    @Override
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+        rejections.increment();
+        delegate.rejectedExecution(task, executor);
+    }
+}
@@ -0,0 +1,39 @@
+package web.server.demo.metrics;
+
+public class MetricNames {
+    /*
+     * Timers of the API operations, tagged with the operation
+     */
+    public static final String OPERATIONS = "demo.operations";
+    public static final String OPERATION_TAG = "operation";
+
+    /*
+     * Payload bytes and sizes, tagged with the direction
+     */
+    public static final String TRANSFER_BYTES = "demo.transfer.bytes";
+    public static final String PAYLOAD_SIZE = "demo.payload.size";
+    public static final String DIRECTION_TAG = "direction";
+
+    /*
+     * Tasks run by the submitting thread because the executor was saturated, tagged like Micrometer's executor
+     * metrics
+     */
+    public static final String EXECUTOR_CALLER_RUNS = "executor.caller.runs";
+    public static final String EXECUTOR_NAME_TAG = "name";
+
+    /*
+     * Requests turned away by admission control, tagged with the limit they hit
+     */
+    public static final String ADMISSION_REJECTED = "demo.admission.rejected";
+    public static final String LIMIT_TAG = "limit";
+
+    /*
+     * Files acknowledged from the write-behind journal which were not drained into the database yet
+     */
+    public static final String JOURNAL_PENDING = "demo.journal.pending";
+
+    /*
+     * Segments of the write-behind journal which are mapped and were not reclaimed yet
+     */
+    public static final String JOURNAL_SEGMENTS = "demo.journal.segments";
+}
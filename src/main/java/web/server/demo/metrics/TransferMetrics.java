@@ -0,0 +1,75 @@
+package web.server.demo.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import static web.server.demo.metrics.MetricNames.*;
+
+/**
+ * Counts the payload bytes received and sent, and the distribution of payload sizes in both directions, exported
+ * as <tt>demo_transfer_bytes_total</tt> and <tt>demo_payload_size_bytes</tt> with a <tt>direction</tt> tag.
+ */
+@Component
+public class TransferMetrics {
+
+    private static final double MIN_EXPECTED_SIZE = 1024;
+    private static final double MAX_EXPECTED_SIZE = 16L * 1024 * 1024 * 1024;
+
+    private final Counter bytesIn;
+
+    private final Counter bytesOut;
+
+    private final DistributionSummary payloadsIn;
+
+    private final DistributionSummary payloadsOut;
+
+    @Autowired
+    public TransferMetrics(MeterRegistry registry) {
+        this.bytesIn = counter(registry, "in", "Payload bytes received and stored");
+        this.bytesOut = counter(registry, "out", "Payload bytes sent");
+        this.payloadsIn = summary(registry, "in", "Size of the payloads stored");
+        this.payloadsOut = summary(registry, "out", "Size of the payloads sent");
+    }
+
+    /**
+     * @param size the size of a payload which was stored
+     */
+    public void received(long size) {
+        bytesIn.increment(size);
+        payloadsIn.record(size);
+    }
+
+    /**
+     * @param size the number of payload bytes of a response
+     */
+    public void sent(long size) {
+        bytesOut.increment(size);
+        payloadsOut.record(size);
+    }
+
+    private static Counter counter(MeterRegistry registry, String direction, String description) {
+        return Counter.builder(TRANSFER_BYTES)
+                .baseUnit(BaseUnits.BYTES)
+                .tag(DIRECTION_TAG, direction)
+                .description(description)
+                .register(registry);
+    }
+
+    /*
+     * Percentile histogram buckets, so percentiles can be aggregated across instances by the monitoring system
+     */
+    private static DistributionSummary summary(MeterRegistry registry, String direction, String description) {
+        return DistributionSummary.builder(PAYLOAD_SIZE)
+                .baseUnit(BaseUnits.BYTES)
+                .tag(DIRECTION_TAG, direction)
+                .description(description)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(MIN_EXPECTED_SIZE)
+                .maximumExpectedValue(MAX_EXPECTED_SIZE)
+                .register(registry);
+    }
+}
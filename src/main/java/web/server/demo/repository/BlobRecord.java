@@ -0,0 +1,112 @@
+package web.server.demo.repository;
+
+import org.springframework.data.domain.Persistable;
+import web.server.demo.storage.ContentEncoding;
+
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.Transient;
+import java.util.Objects;
+
+/**
+ * Reference counted entry of a blob held by the <tt>BlobStore</tt>. Each <tt>FileData</tt> pointing to the blob
+ * holds one reference; the blob is deleted once the last reference is released.
+ */
+@Entity
+public class BlobRecord implements Persistable<String> {
+
+    @Id
+    private String digest;
+
+    private long size;
+
+    @Enumerated(EnumType.STRING)
+    private ContentEncoding encoding;
+
+    private long storedSize;
+
+    private long refCount;
+
+    /*
+     * The digest is assigned rather than generated, so without this flag saving a new record would first select it
+     * to tell an insert from an update, and inserts could not be batched.
+     */
+    @Transient
+    private boolean isNew = true;
+
+    public BlobRecord() {}
+
+    public BlobRecord(String digest, long size, ContentEncoding encoding, long storedSize, long refCount) {
+        this.digest = digest;
+        this.size = size;
+        this.encoding = encoding;
+        this.storedSize = storedSize;
+        this.refCount = refCount;
+    }
+
+    @Override
+    public String getId() {
+        return digest;
+    }
+
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        isNew = false;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public ContentEncoding getEncoding() {
+        return encoding;
+    }
+
+    public long getStoredSize() {
+        return storedSize;
+    }
+
+    public long getRefCount() {
+        return refCount;
+    }
+
+    public void setRefCount(long refCount) {
+        this.refCount = refCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(digest);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (object instanceof BlobRecord) {
+            BlobRecord other = (BlobRecord) object;
+            return Objects.equals(digest, other.digest) && size == other.size && encoding == other.encoding
+                    && storedSize == other.storedSize && refCount == other.refCount;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BlobRecord [digest=" + getDigest() + ", size=" + getSize() + ", encoding=" + getEncoding()
+                + ", storedSize=" + getStoredSize() + ", refCount=" + getRefCount() + "]";
+    }
+}
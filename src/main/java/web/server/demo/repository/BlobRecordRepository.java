@@ -0,0 +1,79 @@
+package web.server.demo.repository;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface BlobRecordRepository extends CrudRepository<BlobRecord, String> {
+
+    /**
+     * Adds references to a blob without loading it.
+     *
+     * @param digest the digest of the blob
+     * @param count the number of references to add, negative to release references
+     * @return the number of updated rows, <tt>0</tt> if the blob is unknown
+     */
+    @Transactional
+    @Modifying
+    @Query("update BlobRecord b set b.refCount = b.refCount + :count where b.digest = :digest")
+    int addReferences(@Param("digest") String digest, @Param("count") long count);
+
+    /**
+     * Adds the same number of references to several blobs with a single statement.
+     *
+     * @param digests the digests of the blobs
+     * @param count the number of references to add to each blob, negative to release references
+     * @return the number of updated rows
+     */
+    @Transactional
+    @Modifying
+    @Query("update BlobRecord b set b.refCount = b.refCount + :count where b.digest in :digests")
+    int addReferences(@Param("digests") Collection<String> digests, @Param("count") long count);
+
+    /**
+     * Finds which of several blobs are known.
+     *
+     * @param digests the digests of the blobs
+     * @return the digests of the blobs which have a record
+     */
+    @Query("select b.digest from BlobRecord b where b.digest in :digests")
+    List<String> findExistingDigests(@Param("digests") Collection<String> digests);
+
+    /**
+     * Finds which of several blobs are no longer referenced.
+     *
+     * @param digests the digests of the blobs
+     * @return the digests of the blobs without references
+     */
+    @Query("select b.digest from BlobRecord b where b.digest in :digests and b.refCount <= 0")
+    List<String> findUnreferencedDigests(@Param("digests") Collection<String> digests);
+
+    /**
+     * Removes several blobs which are no longer referenced with a single statement.
+     *
+     * @param digests the digests of the blobs
+     * @return the number of deleted rows
+     */
+    @Transactional
+    @Modifying
+    @Query("delete from BlobRecord b where b.digest in :digests and b.refCount <= 0")
+    int deleteUnreferenced(@Param("digests") Collection<String> digests);
+
+    /**
+     * Removes a blob which is no longer referenced.
+     *
+     * @param digest the digest of the blob
+     * @return the number of deleted rows, <tt>0</tt> if the blob is unknown or still referenced
+     */
+    @Transactional
+    @Modifying
+    @Query("delete from BlobRecord b where b.digest = :digest and b.refCount <= 0")
+    int deleteIfUnreferenced(@Param("digest") String digest);
+}
@@ -1,29 +1,67 @@
 package web.server.demo.repository;
 
-import io.swagger.annotations.ApiModel;
-import io.swagger.annotations.ApiModelProperty;
+import web.server.demo.storage.ContentEncoding;
+import web.server.demo.storage.StoredBlob;
 
 import javax.persistence.*;
-import java.util.Arrays;
+import java.time.Instant;
 import java.util.Objects;
 
+/**
+ * The metadata of a stored file. The payload is not part of the entity, it is a blob of the <tt>StorageEngine</tt>
+ * referenced by digest and opened through the {@link StoredBlob} handle of {@link #getPayload()}, so hashing,
+ * comparing, dirty checking or logging a <tt>FileData</tt> costs the same whatever the size of the file.
+ * <p>
+ * Files are equal by id once they were saved, and by the digest of their payload before that. The hash code of a
+ * new file therefore changes when it is saved, so new files should not be kept in hash-based collections across
+ * the save.
+ */
 @Entity
+@Table(indexes = @Index(name = "file_data_name_id", columnList = "name, id"))
 public class FileData {
 
+    public static final String ID_SEQUENCE = "file_data_id_sequence";
+    public static final int ID_ALLOCATION_SIZE = 50;
+
+    private static final String ID_GENERATOR = "file_data_id";
+
+    /*
+     * Ids are taken from a sequence in blocks, so a batch of new files needs one round trip per block rather than
+     * one per file, and Hibernate can send their inserts as JDBC batches, which identity columns would prevent.
+     */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = ID_GENERATOR)
+    @SequenceGenerator(name = ID_GENERATOR, sequenceName = ID_SEQUENCE, allocationSize = ID_ALLOCATION_SIZE)
     private long id;
 
     private String name;
 
-    @Lob
-    private byte[] data;
+    private long size;
+
+    /*
+     * The payload itself lives in the StorageEngine, the entity only references its blob by digest.
+     */
+    private String digest;
+
+    /*
+     * How the blob is stored, copied from its BlobRecord so a download can be served from the FileData alone.
+     * Files saved before blobs could be compressed have no coding and are stored as they are.
+     */
+    @Enumerated(EnumType.STRING)
+    private ContentEncoding encoding;
+
+    private long storedSize;
+
+    private Instant createdAt;
+
+    private Instant modifiedAt;
 
     public FileData() {}
 
-    public FileData(String name, byte[] data) {
+    public FileData(String name, long size, String digest) {
         this.name = name;
-        this.data = data;
+        this.size = size;
+        this.digest = digest;
     }
 
     public String getName() {
@@ -34,12 +72,59 @@ public class FileData {
         this.name = name;
     }
 
-    public byte[] getData() {
-        return data;
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    public ContentEncoding getEncoding() {
+        return encoding == null ? ContentEncoding.IDENTITY : encoding;
     }
 
-    public void setData(byte[] data) {
-        this.data = data;
+    public void setEncoding(ContentEncoding encoding) {
+        this.encoding = encoding;
+    }
+
+    public long getStoredSize() {
+        return encoding == null ? size : storedSize;
+    }
+
+    public void setStoredSize(long storedSize) {
+        this.storedSize = storedSize;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Instant createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public Instant getModifiedAt() {
+        return modifiedAt;
+    }
+
+    public void setModifiedAt(Instant modifiedAt) {
+        this.modifiedAt = modifiedAt;
+    }
+
+    /**
+     * @return a handle on the payload, to open it with
+     */
+    public StoredBlob getPayload() {
+        return new StoredBlob(digest, size, getEncoding(), getStoredSize());
     }
 
     public long getId() {
@@ -52,14 +137,20 @@ public class FileData {
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, name, data);
+        return id != 0 ? Long.hashCode(id) : Objects.hashCode(digest);
     }
 
     @Override
     public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
         if (object instanceof FileData) {
             FileData other = (FileData) object;
-            return id == other.id && name.equals(other.name) && Arrays.equals(data, other.data);
+            if (id != 0 || other.id != 0) {
+                return id == other.id;
+            }
+            return digest != null && digest.equals(other.digest);
         } else {
             return false;
         }
@@ -67,6 +158,7 @@ public class FileData {
 
     @Override
     public String toString() {
-        return "FileData [id=" + getId() + ", name=" + getName() + ", data=" + Arrays.toString(getData()) + "]";
+        return "FileData [id=" + getId() + ", name=" + getName() + ", size=" + getSize()
+                + ", digest=" + getDigest() + "]";
     }
 }
@@ -1,18 +1,109 @@
 package web.server.demo.repository;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 
 @Repository
 public interface FileDataRepository extends CrudRepository<FileData, Long> {
 
     /**
-     * Finds all files starting with a matching prefix.
+     * Finds the metadata of all files.
      *
-     * @param prefix the prefix
-     * @return a <tt>Collection</tt> of <tt>FileData</tt> who's names starts with the prefix
+     * @return a <tt>Collection</tt> of <tt>FileMetadata</tt> of every file
      */
-    Collection<FileData> findByNameStartingWith(String prefix);
+    Collection<FileMetadata> findMetadataBy();
+
+    /**
+     * Finds the metadata of a file.
+     *
+     * @param id the id of the file
+     * @return the <tt>FileMetadata</tt> of the file, if it exists
+     */
+    Optional<FileMetadata> findMetadataById(long id);
+
+    /**
+     * Finds the metadata of several files in a single query.
+     *
+     * @param ids the ids of the files
+     * @return the <tt>FileMetadata</tt> of the files which exist, in no particular order
+     */
+    Collection<FileMetadata> findMetadataByIdIn(Collection<Long> ids);
+
+    /**
+     * Deletes several files with a single statement, without loading them.
+     *
+     * @param ids the ids of the files
+     * @return the number of deleted files
+     */
+    @Transactional
+    @Modifying
+    @Query("delete from FileData f where f.id in :ids")
+    int deleteByIds(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Finds the first page of metadata of files matching a pattern, ordered by name and id.
+     *
+     * @param pattern a <tt>LIKE</tt> pattern, escaped with <tt>\</tt>
+     * @param pageable the size of the page
+     * @return the first page of <tt>FileMetadata</tt>
+     */
+    @Query("select f.id as id, f.name as name, f.size as size, f.digest as digest, "
+            + "f.createdAt as createdAt, f.modifiedAt as modifiedAt from FileData f "
+            + "where f.name like :pattern escape '\\' "
+            + "order by f.name, f.id")
+    List<FileMetadata> findMetadataPage(@Param("pattern") String pattern, Pageable pageable);
+
+    /**
+     * Finds the page of metadata of files matching a pattern which follows a given file, ordered by name and id.
+     * The keyset condition lets the database seek straight to the page instead of skipping the previous ones.
+     *
+     * @param pattern a <tt>LIKE</tt> pattern, escaped with <tt>\</tt>
+     * @param name the name of the last file of the previous page
+     * @param id the id of the last file of the previous page
+     * @param pageable the size of the page
+     * @return the next page of <tt>FileMetadata</tt>
+     */
+    @Query("select f.id as id, f.name as name, f.size as size, f.digest as digest, "
+            + "f.createdAt as createdAt, f.modifiedAt as modifiedAt from FileData f "
+            + "where f.name like :pattern escape '\\' and (f.name > :name or (f.name = :name and f.id > :id)) "
+            + "order by f.name, f.id")
+    List<FileMetadata> findMetadataPageAfter(@Param("pattern") String pattern, @Param("name") String name,
+                                             @Param("id") long id, Pageable pageable);
+
+    /**
+     * Finds the first page of files matching a pattern, ordered by name and id. Like
+     * {@link #findMetadataPage(String, Pageable)}, but for callers which need the payloads of the files.
+     *
+     * @param pattern a <tt>LIKE</tt> pattern, escaped with <tt>\</tt>
+     * @param pageable the size of the page
+     * @return the first page of <tt>FileData</tt>
+     */
+    @Query("select f from FileData f where f.name like :pattern escape '\\' order by f.name, f.id")
+    List<FileData> findPage(@Param("pattern") String pattern, Pageable pageable);
+
+    /**
+     * Finds the page of files matching a pattern which follows a given file, ordered by name and id. Like
+     * {@link #findMetadataPageAfter(String, String, long, Pageable)}, but for callers which need the payloads of the
+     * files.
+     *
+     * @param pattern a <tt>LIKE</tt> pattern, escaped with <tt>\</tt>
+     * @param name the name of the last file of the previous page
+     * @param id the id of the last file of the previous page
+     * @param pageable the size of the page
+     * @return the next page of <tt>FileData</tt>
+     */
+    @Query("select f from FileData f "
+            + "where f.name like :pattern escape '\\' and (f.name > :name or (f.name = :name and f.id > :id)) "
+            + "order by f.name, f.id")
+    List<FileData> findPageAfter(@Param("pattern") String pattern, @Param("name") String name, @Param("id") long id,
+                                 Pageable pageable);
 }
@@ -0,0 +1,25 @@
+package web.server.demo.repository;
+
+import java.time.Instant;
+
+/**
+ * Closed projection of <tt>FileData</tt>. Queries returning it only select these columns and do not create
+ * managed entities, so listing files costs the same no matter how large they are.
+ */
+public interface FileMetadata {
+
+    long getId();
+
+    String getName();
+
+    long getSize();
+
+    /**
+     * @return the SHA-256 digest of the payload, which doubles as its checksum
+     */
+    String getDigest();
+
+    Instant getCreatedAt();
+
+    Instant getModifiedAt();
+}
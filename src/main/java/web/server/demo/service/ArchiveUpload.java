@@ -0,0 +1,126 @@
+package web.server.demo.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The outcome of saving the files of an archive. The <tt>UploadResult</tt> of every file is spooled to a temporary
+ * NDJSON manifest while the archive is read, one line per file in the order of the archive, so that the results of
+ * large archives are not held in memory. Closing the upload deletes the manifest.
+ */
+public class ArchiveUpload implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveUpload.class);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final Path manifest;
+
+    private final JsonGenerator json;
+
+    private int saved;
+
+    private int failed;
+
+    private String error;
+
+    ArchiveUpload() throws IOException {
+        this.manifest = Files.createTempFile("archive-upload-", ".ndjson");
+        try {
+            this.json = JSON_FACTORY.createGenerator(Files.newOutputStream(manifest));
+            this.json.setRootValueSeparator(new SerializedString("\n"));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(manifest);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of files saved
+     */
+    public int getSaved() {
+        return saved;
+    }
+
+    /**
+     * @return the number of files which could not be saved
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return why the archive could not be read to its end, <tt>null</tt> if it was
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Opens the manifest, once the archive was read.
+     *
+     * @return an <tt>InputStream</tt> over the NDJSON manifest
+     * @throws IOException if the manifest could not be opened
+     */
+    public InputStream openManifest() throws IOException {
+        return Files.newInputStream(manifest);
+    }
+
+    @Override
+    public void close() {
+        try {
+            json.close();
+            Files.deleteIfExists(manifest);
+        } catch (IOException e) {
+            LOG.warn("Manifest {} could not be deleted. Error: {}", manifest, e.getMessage());
+        }
+    }
+
+    void append(List<UploadResult> results) throws IOException {
+        for (UploadResult result : results) {
+            json.writeStartObject();
+            json.writeStringField("name", result.getName());
+            if (result.getId() != null) {
+                json.writeNumberField("id", result.getId());
+            }
+            if (result.getError() != null) {
+                json.writeStringField("error", result.getError());
+            }
+            json.writeEndObject();
+            if (result.isSuccess()) {
+                saved++;
+            } else {
+                failed++;
+            }
+        }
+    }
+
+    void fail(String error) {
+        this.error = error;
+    }
+
+    /*
+     * A last line reports an archive which could not be read to its end
+     */
+    void finish() throws IOException {
+        if (error != null) {
+            json.writeStartObject();
+            json.writeStringField("error", error);
+            json.writeEndObject();
+        }
+        if (saved + failed > 0 || error != null) {
+            json.writeRaw('\n');
+        }
+        json.close();
+    }
+}
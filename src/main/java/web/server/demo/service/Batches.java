@@ -0,0 +1,58 @@
+package web.server.demo.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Helpers to turn operations on many rows into a few set-based statements.
+ */
+final class Batches {
+
+    /**
+     * The largest number of values bound to one <tt>IN (...)</tt> list, which some databases limit to 1000.
+     */
+    static final int MAX_IN_LIST = 1000;
+
+    private Batches() {
+    }
+
+    /**
+     * Splits items into consecutive chunks.
+     *
+     * @param items the items
+     * @param size the maximum size of a chunk
+     * @param <T> the type of the items
+     * @return the chunks, in the order of the items
+     */
+    static <T> List<List<T>> partition(Collection<T> items, int size) {
+        List<List<T>> chunks = new ArrayList<>((items.size() + size - 1) / size);
+        List<T> chunk = new ArrayList<>(Math.min(items.size(), size));
+        for (T item : items) {
+            if (chunk.size() == size) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(size);
+            }
+            chunk.add(item);
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Groups keys by the count associated with them, so that keys sharing a count can be updated by one statement.
+     *
+     * @param counts the count of every key
+     * @param <K> the type of the keys
+     * @return the keys of every count
+     */
+    static <K> Map<Long, List<K>> groupByCount(Map<K, Long> counts) {
+        Map<Long, List<K>> groups = new TreeMap<>();
+        counts.forEach((key, count) -> groups.computeIfAbsent(count, ignored -> new ArrayList<>()).add(key));
+        return groups;
+    }
+}
@@ -0,0 +1,361 @@
+package web.server.demo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import web.server.demo.repository.BlobRecord;
+import web.server.demo.repository.BlobRecordRepository;
+import web.server.demo.storage.ContentEncoding;
+import web.server.demo.storage.StagedBlob;
+import web.server.demo.storage.StorageEngine;
+import web.server.demo.storage.StoredBlob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the <tt>StorageEngine</tt> and the reference counts of its blobs in sync. Identical payloads are stored once,
+ * and a blob is only deleted when nothing references it any more.
+ */
+@Service
+public class BlobService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BlobService.class);
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final StorageEngine storageEngine;
+
+    private final BlobRecordRepository blobRecordRepository;
+
+    /*
+     * Committing or deleting a blob and updating its reference count must not interleave for the same digest,
+     * otherwise a blob could be deleted right after a new reference to it was taken. The critical sections run a
+     * database update, so they use locks that do not pin the carrier thread of a virtual thread, unlike monitors.
+     */
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+
+    @Autowired
+    public BlobService(StorageEngine storageEngine, BlobRecordRepository blobRecordRepository) {
+        this.storageEngine = storageEngine;
+        this.blobRecordRepository = blobRecordRepository;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Stores the content and takes a reference to its blob. The stream is read until its end and closed afterwards.
+     *
+     * @param content the content to be stored
+     * @return the referenced blob
+     * @throws IOException if the content could not be stored
+     */
+    public StoredBlob store(InputStream content) throws IOException {
+        StagedBlob staged = storageEngine.stage(content);
+        Lock lock = lockFor(staged.getDigest());
+        lock.lock();
+        try {
+            boolean created = false;
+            try {
+                created = storageEngine.commit(staged);
+                StoredBlob blob;
+                if (created) {
+                    blob = new StoredBlob(staged.getDigest(), staged.getSize(), staged.getEncoding(),
+                            staged.getStoredSize());
+                } else {
+                    LOG.debug("Blob {} deduplicated", staged.getDigest());
+                    blob = storageEngine.describe(staged.getDigest(), staged.getSize());
+                }
+                acquire(blob);
+                return blob;
+            } catch (IOException | RuntimeException e) {
+                if (created) {
+                    storageEngine.delete(staged.getDigest());
+                } else {
+                    storageEngine.discard(staged);
+                }
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies content into the <tt>StorageEngine</tt> without committing it, so that many blobs can be staged in
+     * parallel and committed together with {@link #commitAll(List)}. The stream is read until its end and closed
+     * afterwards.
+     *
+     * @param content the content to be staged
+     * @return the staged blob
+     * @throws IOException if the content could not be staged
+     */
+    public StagedBlob stage(InputStream content) throws IOException {
+        return storageEngine.stage(content);
+    }
+
+    /**
+     * Discards staged blobs which will not be committed, e.g. because the rest of their batch could not be staged.
+     *
+     * @param staged the staged blobs
+     */
+    public void discard(Collection<StagedBlob> staged) {
+        staged.forEach(storageEngine::discard);
+    }
+
+    /**
+     * Commits staged blobs and takes one reference per staged blob. The reference counts are updated with a few
+     * set-based statements for the whole batch instead of one or two statements per blob. If the batch fails, no
+     * blob it created is kept.
+     *
+     * @param staged the staged blobs
+     * @return the referenced blobs, in the order of <tt>staged</tt>
+     * @throws IOException if a blob could not be committed
+     */
+    public List<StoredBlob> commitAll(List<StagedBlob> staged) throws IOException {
+        List<Lock> held = lockAll(staged.stream().map(StagedBlob::getDigest).collect(Collectors.toList()));
+        List<String> created = new ArrayList<>();
+        try {
+            Map<String, StoredBlob> blobs = new HashMap<>();
+            Map<String, Long> references = new HashMap<>();
+            List<StoredBlob> stored = new ArrayList<>(staged.size());
+            for (StagedBlob blob : staged) {
+                StoredBlob committed = blobs.get(blob.getDigest());
+                if (committed != null) {
+                    storageEngine.discard(blob);
+                } else if (storageEngine.commit(blob)) {
+                    created.add(blob.getDigest());
+                    committed = new StoredBlob(blob.getDigest(), blob.getSize(), blob.getEncoding(),
+                            blob.getStoredSize());
+                } else {
+                    committed = storageEngine.describe(blob.getDigest(), blob.getSize());
+                }
+                blobs.put(blob.getDigest(), committed);
+                references.merge(blob.getDigest(), 1L, Long::sum);
+                stored.add(committed);
+            }
+            acquireAll(blobs, references);
+            LOG.debug("Committed {} blobs, {} of them new", staged.size(), created.size());
+            return stored;
+        } catch (IOException | RuntimeException e) {
+            created.forEach(storageEngine::delete);
+            staged.forEach(storageEngine::discard);
+            throw e;
+        } finally {
+            held.forEach(Lock::unlock);
+        }
+    }
+
+    /**
+     * Releases references to blobs, one per digest occurrence, and deletes the blobs which are no longer referenced,
+     * using a few set-based statements for the whole batch.
+     *
+     * @param digests the digests of the blobs, repeated once per released reference
+     * @return the digests of the deleted blobs
+     */
+    public Set<String> releaseAll(Collection<String> digests) {
+        Map<String, Long> references = digests.stream()
+                .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+        List<Lock> held = lockAll(references.keySet());
+        try {
+            Batches.groupByCount(references).forEach((count, group) -> Batches.partition(group, Batches.MAX_IN_LIST)
+                    .forEach(chunk -> blobRecordRepository.addReferences(chunk, -count)));
+            Set<String> unreferenced = new HashSet<>();
+            for (List<String> chunk : Batches.partition(references.keySet(), Batches.MAX_IN_LIST)) {
+                List<String> found = blobRecordRepository.findUnreferencedDigests(chunk);
+                if (!found.isEmpty()) {
+                    blobRecordRepository.deleteUnreferenced(found);
+                    unreferenced.addAll(found);
+                }
+            }
+            unreferenced.forEach(storageEngine::delete);
+            if (!unreferenced.isEmpty()) {
+                LOG.info("{} blobs are no longer referenced and were removed", unreferenced.size());
+            }
+            return unreferenced;
+        } finally {
+            held.forEach(Lock::unlock);
+        }
+    }
+
+    /**
+     * Releases a reference to a blob, deleting the blob once it is no longer referenced.
+     *
+     * @param digest the digest of the blob
+     * @return <tt>true</tt> if the blob was deleted
+     */
+    public boolean release(String digest) {
+        Lock lock = lockFor(digest);
+        lock.lock();
+        try {
+            blobRecordRepository.addReferences(digest, -1);
+            if (blobRecordRepository.deleteIfUnreferenced(digest) > 0) {
+                storageEngine.delete(digest);
+                LOG.info("Blob {} is no longer referenced and was removed", digest);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens the original content of a blob for reading, decoding it if it is stored compressed. The caller is
+     * responsible for closing the stream.
+     *
+     * @param digest the digest of the blob
+     * @param encoding the coding the blob is stored with
+     * @return an <tt>InputStream</tt> over the content
+     * @throws IOException if the blob could not be opened
+     */
+    public InputStream open(String digest, ContentEncoding encoding) throws IOException {
+        return encoding.decode(storageEngine.open(digest, encoding));
+    }
+
+    /**
+     * Opens the content of a blob for reading as it is stored, e.g. to send it with a matching
+     * <tt>Content-Encoding</tt>. The caller is responsible for closing the stream.
+     *
+     * @param digest the digest of the blob
+     * @param encoding the coding the blob is stored with
+     * @return an <tt>InputStream</tt> over the stored content
+     * @throws IOException if the blob could not be opened
+     */
+    public InputStream openStored(String digest, ContentEncoding encoding) throws IOException {
+        return storageEngine.open(digest, encoding);
+    }
+
+    /**
+     * Opens a byte range of a blob for reading as it is stored, without reading the bytes before it where the
+     * <tt>StorageEngine</tt> can seek. The caller is responsible for closing the stream.
+     *
+     * @param digest the digest of the blob
+     * @param encoding the coding the blob is stored with
+     * @param offset the offset of the range in the stored blob
+     * @param length the length of the range
+     * @return an <tt>InputStream</tt> over the range
+     * @throws IOException if the blob could not be opened or ends before the offset
+     */
+    public InputStream openStored(String digest, ContentEncoding encoding, long offset, long length)
+            throws IOException {
+        return storageEngine.open(digest, encoding, offset, length);
+    }
+
+    /**
+     * Resolves the file holding a blob.
+     *
+     * @param digest the digest of the blob
+     * @param encoding the coding the blob is stored with
+     * @return the <tt>Path</tt> of the blob
+     */
+    public Path path(String digest, ContentEncoding encoding) {
+        return storageEngine.path(digest, encoding);
+    }
+
+    /**
+     * Deletes the blobs the database has no <tt>BlobRecord</tt> of, e.g. the ones left behind in
+     * <tt>storage.root</tt> by an in-memory database which did not outlive it. The blobs are checked a chunk at a
+     * time, holding their locks, so a blob being stored meanwhile is kept.
+     *
+     * @return the number of blobs deleted
+     * @throws IOException if the blobs could not be listed
+     */
+    public int deleteUnrecorded() throws IOException {
+        int deleted = 0;
+        try (Stream<String> digests = storageEngine.digests()) {
+            List<String> chunk = new ArrayList<>(Batches.MAX_IN_LIST);
+            for (Iterator<String> iterator = digests.iterator(); iterator.hasNext(); ) {
+                chunk.add(iterator.next());
+                if (chunk.size() == Batches.MAX_IN_LIST || !iterator.hasNext()) {
+                    deleted += deleteUnrecorded(chunk);
+                    chunk.clear();
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private int deleteUnrecorded(List<String> digests) {
+        List<Lock> held = lockAll(digests);
+        try {
+            Set<String> recorded = new HashSet<>(blobRecordRepository.findExistingDigests(digests));
+            int deleted = 0;
+            for (String digest : digests) {
+                if (!recorded.contains(digest)) {
+                    storageEngine.delete(digest);
+                    deleted++;
+                }
+            }
+            return deleted;
+        } finally {
+            held.forEach(Lock::unlock);
+        }
+    }
+
+    private void acquire(StoredBlob blob) {
+        if (blobRecordRepository.addReferences(blob.getDigest(), 1) == 0) {
+            blobRecordRepository.save(
+                    new BlobRecord(blob.getDigest(), blob.getSize(), blob.getEncoding(), blob.getStoredSize(), 1));
+        }
+    }
+
+    /*
+     * Known blobs get their references added in one statement per distinct count, which for most batches is a
+     * single statement. New blobs are inserted last: if the insert fails, the blobs created by the batch are deleted
+     * and only references to older blobs were added, which keeps those blobs alive rather than losing them.
+     */
+    private void acquireAll(Map<String, StoredBlob> blobs, Map<String, Long> references) {
+        Set<String> existing = new HashSet<>();
+        for (List<String> chunk : Batches.partition(blobs.keySet(), Batches.MAX_IN_LIST)) {
+            existing.addAll(blobRecordRepository.findExistingDigests(chunk));
+        }
+        Map<String, Long> existingReferences = new HashMap<>(references);
+        existingReferences.keySet().retainAll(existing);
+        Batches.groupByCount(existingReferences).forEach((count, group) -> Batches.partition(group,
+                Batches.MAX_IN_LIST).forEach(chunk -> blobRecordRepository.addReferences(chunk, count)));
+
+        List<BlobRecord> records = new ArrayList<>();
+        blobs.forEach((digest, blob) -> {
+            if (!existing.contains(digest)) {
+                records.add(new BlobRecord(digest, blob.getSize(), blob.getEncoding(), blob.getStoredSize(),
+                        references.get(digest)));
+            }
+        });
+        if (!records.isEmpty()) {
+            blobRecordRepository.saveAll(records);
+        }
+    }
+
+    private Lock lockFor(String digest) {
+        return locks[stripe(digest)];
+    }
+
+    /*
+     * Single blob operations hold one stripe, batches take all their stripes in ascending order, so two batches
+     * cannot deadlock each other.
+     */
+    private List<Lock> lockAll(Collection<String> digests) {
+        SortedSet<Integer> stripes = new TreeSet<>();
+        digests.forEach(digest -> stripes.add(stripe(digest)));
+        List<Lock> held = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            locks[stripe].lock();
+            held.add(locks[stripe]);
+        }
+        return held;
+    }
+
+    private static int stripe(String digest) {
+        return (digest.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES;
+    }
+}
@@ -0,0 +1,51 @@
+package web.server.demo.service;
+
+import web.server.demo.cache.ByteBufferInputStream;
+import web.server.demo.repository.FileData;
+import web.server.demo.storage.ContentEncoding;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+/**
+ * A file acknowledged by <tt>WriteBehind</tt> which may not have reached the repository yet. Its payload is read
+ * from the journal, as it was uploaded, even after the file was drained: the blob it was drained into may have been
+ * stored with another coding than the one this <tt>FileData</tt> announces. It is never saved itself.
+ */
+class JournaledFileData extends FileData {
+
+    private final ByteBuffer content;
+
+    JournaledFileData(long id, String name, String digest, Instant createdAt, ByteBuffer content) {
+        super(name, content.remaining(), digest);
+        this.content = content;
+        setId(id);
+        setEncoding(ContentEncoding.IDENTITY);
+        setStoredSize(content.remaining());
+        setCreatedAt(createdAt);
+        setModifiedAt(createdAt);
+    }
+
+    /**
+     * Opens a byte range of the payload.
+     *
+     * @param offset the offset of the range in the payload
+     * @param length the length of the range; the stream ends early if the payload does
+     * @return an <tt>InputStream</tt> over the range
+     * @throws EOFException if the payload ends before the offset
+     */
+    InputStream open(long offset, long length) throws EOFException {
+        if (offset > content.remaining()) {
+            throw new EOFException("File " + getId() + " ends before position " + offset);
+        }
+        int start = (int) offset;
+        int count = (int) Math.min(length, content.remaining() - start);
+        return new ByteBufferInputStream(content.slice(content.position() + start, count));
+    }
+
+    ByteBuffer getContent() {
+        return content.duplicate();
+    }
+}
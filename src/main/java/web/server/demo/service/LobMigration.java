@@ -0,0 +1,190 @@
+package web.server.demo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import web.server.demo.repository.FileData;
+import web.server.demo.storage.StoredBlob;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves the payloads of files saved by versions which kept them in the database, in the <tt>data</tt> LOB column of
+ * <tt>file_data</tt>, to the <tt>StorageEngine</tt>. Enabled with <tt>storage.migration.lobs</tt>, it runs at
+ * startup, before the server accepts requests. Columns of the current <tt>FileData</tt> which are missing from the
+ * table are added first, since Hibernate cannot add non-null columns to a table which has rows.
+ * <p>
+ * Every row is migrated on its own: its LOB is streamed into a blob, and the row then references the blob and drops
+ * the LOB. An interrupted migration can be started again and carries on with the rows left. Once no LOB is left the
+ * column can be dropped with <tt>storage.migration.drop-lob-column</tt>.
+ */
+@Component
+@ConditionalOnProperty(name = "storage.migration.lobs", havingValue = "true")
+public class LobMigration {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LobMigration.class);
+
+    private static final String TABLE = "file_data";
+    private static final String LOB_COLUMN = "data";
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private static final Map<String, String> FILE_DATA_COLUMNS = new LinkedHashMap<>();
+
+    static {
+        FILE_DATA_COLUMNS.put("size", "bigint default 0 not null");
+        FILE_DATA_COLUMNS.put("digest", "varchar(255)");
+        FILE_DATA_COLUMNS.put("encoding", "varchar(255)");
+        FILE_DATA_COLUMNS.put("stored_size", "bigint default 0 not null");
+        FILE_DATA_COLUMNS.put("created_at", "timestamp");
+        FILE_DATA_COLUMNS.put("modified_at", "timestamp");
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final BlobService blobService;
+
+    private final boolean dropLobColumn;
+
+    @Autowired
+    public LobMigration(JdbcTemplate jdbcTemplate,
+                        BlobService blobService,
+                        @Value("${storage.migration.drop-lob-column}") boolean dropLobColumn) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.blobService = blobService;
+        this.dropLobColumn = dropLobColumn;
+    }
+
+    @PostConstruct
+    void run() throws IOException {
+        migrate();
+    }
+
+    /**
+     * Migrates the rows which still hold their payload in the LOB column.
+     *
+     * @return the number of rows migrated
+     * @throws IOException if a payload could not be stored
+     */
+    public int migrate() throws IOException {
+        Set<String> columns = columns();
+        if (!columns.contains(LOB_COLUMN)) {
+            LOG.info("There is no {}.{} column, nothing to migrate", TABLE, LOB_COLUMN);
+            return 0;
+        }
+        FILE_DATA_COLUMNS.forEach((column, definition) -> {
+            if (!columns.contains(column)) {
+                LOG.info("Adding the {}.{} column", TABLE, column);
+                jdbcTemplate.execute("alter table " + TABLE + " add column " + column + " " + definition);
+            }
+        });
+
+        List<Long> ids = jdbcTemplate.queryForList(
+                "select id from " + TABLE + " where " + LOB_COLUMN + " is not null and digest is null order by id",
+                Long.class);
+        LOG.info("Moving the payloads of {} files out of the database", ids.size());
+        int migrated = 0;
+        try {
+            for (long id : ids) {
+                if (migrate(id) && ++migrated % PROGRESS_INTERVAL == 0) {
+                    LOG.info("Moved {} of {} payloads", migrated, ids.size());
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        restartIdSequence();
+        LOG.info("Moved {} payloads out of the database", migrated);
+
+        if (dropLobColumn) {
+            dropLobColumn();
+        }
+        return migrated;
+    }
+
+    private boolean migrate(long id) {
+        StoredBlob blob = jdbcTemplate.query(
+                "select " + LOB_COLUMN + " from " + TABLE + " where id = ? and digest is null",
+                resultSet -> resultSet.next() ? store(resultSet) : null,
+                id);
+        if (blob == null) {
+            return false;
+        }
+        try {
+            jdbcTemplate.update("update " + TABLE + " set digest = ?, size = ?, encoding = ?, stored_size = ?, "
+                            + LOB_COLUMN + " = null where id = ?",
+                    blob.getDigest(), blob.getSize(), blob.getEncoding().name(), blob.getStoredSize(), id);
+        } catch (RuntimeException e) {
+            blobService.release(blob.getDigest());
+            throw e;
+        }
+        return true;
+    }
+
+    private StoredBlob store(ResultSet resultSet) throws SQLException {
+        InputStream content = resultSet.getBinaryStream(1);
+        if (content == null) {
+            return null;
+        }
+        try {
+            return blobService.store(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * The legacy schema took its ids from another generator, so the sequence is moved past them. Hibernate hands out
+     * the block of ids ending at the value it reads, hence the allocation size on top.
+     */
+    private void restartIdSequence() {
+        Long maxId = jdbcTemplate.queryForObject("select max(id) from " + TABLE, Long.class);
+        if (maxId != null) {
+            jdbcTemplate.execute("alter sequence " + FileData.ID_SEQUENCE + " restart with "
+                    + (maxId + FileData.ID_ALLOCATION_SIZE));
+        }
+    }
+
+    private void dropLobColumn() {
+        Integer remaining = jdbcTemplate.queryForObject(
+                "select count(*) from " + TABLE + " where " + LOB_COLUMN + " is not null", Integer.class);
+        if (remaining != null && remaining > 0) {
+            LOG.warn("Keeping the {}.{} column, {} payloads are still in it", TABLE, LOB_COLUMN, remaining);
+            return;
+        }
+        jdbcTemplate.execute("alter table " + TABLE + " drop column " + LOB_COLUMN);
+        LOG.info("Dropped the {}.{} column", TABLE, LOB_COLUMN);
+    }
+
+    private Set<String> columns() {
+        Set<String> columns = new HashSet<>();
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            DatabaseMetaData metaData = connection.getMetaData();
+            // unquoted identifiers are upper case in H2 and lower case in other databases
+            for (String table : new String[]{TABLE.toUpperCase(), TABLE}) {
+                try (ResultSet resultSet = metaData.getColumns(null, null, table, null)) {
+                    while (resultSet.next()) {
+                        columns.add(resultSet.getString("COLUMN_NAME").toLowerCase());
+                    }
+                }
+            }
+            return null;
+        });
+        return columns;
+    }
+}
@@ -0,0 +1,162 @@
+package web.server.demo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import web.server.demo.repository.FileDataRepository;
+import web.server.demo.repository.FileMetadata;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * In-memory index of file names answering prefix queries without going to the database. Entries are kept sorted by
+ * <tt>(name, id)</tt> in a skip list, so a prefix query is a seek to the first matching name followed by a scan of
+ * the matches. Reads never block and may run concurrently with updates.
+ * <p>
+ * The index is rebuilt from the repository at startup and kept up to date by <tt>RepoService</tt>. The rebuild waits
+ * until every bean is initialized, so it reads the schema as left by startup migrations such as
+ * <tt>LobMigration</tt>, and still completes before the server accepts requests.
+ */
+@Component
+public class NameIndex implements SmartInitializingSingleton {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NameIndex.class);
+
+    private static final int REBUILD_BATCH_SIZE = 10_000;
+
+    private final NavigableSet<Entry> entries = new ConcurrentSkipListSet<>();
+
+    private final FileDataRepository fileDataRepository;
+
+    @Autowired
+    public NameIndex(FileDataRepository fileDataRepository) {
+        this.fileDataRepository = fileDataRepository;
+    }
+
+    /**
+     * Adds a file to the index.
+     *
+     * @param id the id of the file
+     * @param name the name of the file
+     */
+    public void add(long id, String name) {
+        if (name != null) {
+            entries.add(new Entry(name, id));
+        }
+    }
+
+    /**
+     * Removes a file from the index.
+     *
+     * @param id the id of the file
+     * @param name the name of the file
+     */
+    public void remove(long id, String name) {
+        if (name != null) {
+            entries.remove(new Entry(name, id));
+        }
+    }
+
+    /**
+     * Updates the name of a file in the index.
+     *
+     * @param id the id of the file
+     * @param oldName the previous name of the file
+     * @param newName the new name of the file
+     */
+    public void rename(long id, String oldName, String newName) {
+        remove(id, oldName);
+        add(id, newName);
+    }
+
+    /**
+     * Finds the names starting with a prefix, in ascending order.
+     *
+     * @param prefix the prefix
+     * @param limit the maximum number of names returned
+     * @return the matching names, with duplicates if several files share a name
+     */
+    public List<String> findByPrefix(String prefix, int limit) {
+        List<String> names = new ArrayList<>(Math.min(limit, 16));
+        for (Entry entry : entries.tailSet(new Entry(prefix, Long.MIN_VALUE))) {
+            if (names.size() >= limit || !entry.name.startsWith(prefix)) {
+                break;
+            }
+            names.add(entry.name);
+        }
+        return names;
+    }
+
+    /**
+     * @return the number of files in the index
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Replaces the content of the index with the files of the repository. The repository is read page by page, so
+     * the rebuild does not need to hold all the metadata at once.
+     */
+    public void rebuild() {
+        entries.clear();
+        PageRequest page = PageRequest.of(0, REBUILD_BATCH_SIZE);
+        List<FileMetadata> batch = fileDataRepository.findMetadataPage("%", page);
+        while (!batch.isEmpty()) {
+            batch.forEach(metadata -> add(metadata.getId(), metadata.getName()));
+            FileMetadata last = batch.get(batch.size() - 1);
+            batch = batch.size() < REBUILD_BATCH_SIZE
+                    ? new ArrayList<>()
+                    : fileDataRepository.findMetadataPageAfter("%", last.getName(), last.getId(), page);
+        }
+        LOG.info("Name index rebuilt with {} files", entries.size());
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        rebuild();
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        private static final Comparator<Entry> ORDER = Comparator
+                .comparing((Entry entry) -> entry.name)
+                .thenComparingLong(entry -> entry.id);
+
+        private final String name;
+
+        private final long id;
+
+        private Entry(String name, long id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return ORDER.compare(this, other);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (object instanceof Entry) {
+                Entry other = (Entry) object;
+                return id == other.id && name.equals(other.name);
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + Long.hashCode(id);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package web.server.demo.service;
+
+/**
+ * Thrown when a file acknowledged by <tt>WriteBehind</tt> is to be changed, but was not drained into the repository
+ * within <tt>write-behind.drain.await-timeout</tt>. The change can be retried once the drain caught up.
+ */
+public class NotDrainedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public NotDrainedException(long id) {
+        super("File " + id + " is still being saved");
+    }
+}
@@ -3,21 +3,41 @@ package web.server.demo.service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.scheduling.annotation.Async;
-import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import web.server.demo.archive.ArchiveFormat;
+import web.server.demo.archive.ArchiveReader;
+import web.server.demo.cache.CacheStats;
+import web.server.demo.cache.FileCache;
+import web.server.demo.metrics.TransferMetrics;
 import web.server.demo.repository.FileData;
 import web.server.demo.repository.FileDataRepository;
+import web.server.demo.repository.FileMetadata;
+import web.server.demo.storage.StagedBlob;
+import web.server.demo.storage.StoredBlob;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import static web.server.demo.config.ExecutorConfig.UPLOAD_EXECUTOR;
+
 @Service
 public class RepoService {
 
@@ -25,91 +45,671 @@ public class RepoService {
 
     private FileDataRepository fileDataRepository;
 
+    private BlobService blobService;
+
+    private NameIndex nameIndex;
+
+    private FileCache fileCache;
+
+    private TransferMetrics transferMetrics;
+
+    private AsyncTaskExecutor uploadExecutor;
+
+    private int requestParallelism;
+
+    private WriteBehind writeBehind;
+
+    public RepoService(FileDataRepository fileDataRepository, BlobService blobService, NameIndex nameIndex,
+                       FileCache fileCache, TransferMetrics transferMetrics, AsyncTaskExecutor uploadExecutor,
+                       int requestParallelism) {
+        this(fileDataRepository, blobService, nameIndex, fileCache, transferMetrics, uploadExecutor,
+                requestParallelism, Optional.empty());
+    }
+
+    /*
+     * The WriteBehind is only there with write-behind.enabled
+     */
     @Autowired
-    public RepoService(FileDataRepository fileDataRepository) {
+    public RepoService(FileDataRepository fileDataRepository, BlobService blobService, NameIndex nameIndex,
+                       FileCache fileCache, TransferMetrics transferMetrics,
+                       @Qualifier(UPLOAD_EXECUTOR) AsyncTaskExecutor uploadExecutor,
+                       @Value("${upload.executor.request-parallelism}") int requestParallelism,
+                       Optional<WriteBehind> writeBehind) {
         this.fileDataRepository = fileDataRepository;
+        this.blobService = blobService;
+        this.nameIndex = nameIndex;
+        this.fileCache = fileCache;
+        this.transferMetrics = transferMetrics;
+        this.uploadExecutor = uploadExecutor;
+        this.requestParallelism = requestParallelism;
+        this.writeBehind = writeBehind.orElse(null);
     }
 
-    @Async
-    public Boolean save(MultipartFile file) throws IOException {
-        FileData fileData = new FileData(file.getOriginalFilename(), file.getBytes());
-        fileDataRepository.save(fileData);
-        LOG.info("File {} saved successfully", fileData.getName());
-        return true;
+    /*
+     * Uploads run on the bounded upload executor rather than as @Async methods. The controller returns the future,
+     * so the request, and with it the multipart content, stays alive until the file has been stored.
+     */
+    public CompletableFuture<FileData> save(MultipartFile file) {
+        return save(file.getOriginalFilename(), file);
+    }
+
+    /**
+     * Saves a file whose content does not come from a multipart request, e.g. the assembled parts of a resumable
+     * upload, on the upload executor. With <tt>write-behind.enabled</tt>, a small file is saved once it was journaled
+     * and reaches the database in the background: until then it can be retrieved by id and found by name, but it is
+     * not listed.
+     *
+     * @param name the name of the file
+     * @param content the source of the content, opened once on the upload executor
+     * @return a future of the saved <tt>FileData</tt>
+     */
+    public CompletableFuture<FileData> save(String name, InputStreamSource content) {
+        return onUploadExecutor(() -> persist(name, content));
     }
 
-    public Boolean save(MultipartFile[] files) throws InterruptedException {
-        ExecutorService fixedThreadPool = Executors.newFixedThreadPool(files.length);
-        List<Callable<MultipartFile>> callableList = Arrays.stream(files)
-                .map(file -> (Callable<MultipartFile>) () -> {
-                    FileData fileData = new FileData(file.getOriginalFilename(), file.getBytes());
-                    fileDataRepository.save(fileData);
-                    LOG.info("File {} saved successfully", fileData.getName());
-                    return file;
-                })
-                .collect(Collectors.toList());
-        fixedThreadPool.invokeAll(callableList);
-        return true;
+    /**
+     * Saves a batch of files on the shared upload executor. At most <tt>upload.executor.request-parallelism</tt>
+     * files of the batch are staged at the same time: each executor task takes the next file of the batch until none
+     * is left. When the executor is saturated the calling thread stages the files by itself, which slows the client
+     * down instead of queueing work without bound.
+     * <p>
+     * Once the content of every file is staged, the blobs and the <tt>FileData</tt> are written in bulk, a chunk of
+     * files at a time, so the number of round trips to the database grows with the number of chunks rather than
+     * with the number of files.
+     *
+     * @param files the files to be saved
+     * @return a future of one <tt>UploadResult</tt> per file, in the order of the files
+     */
+    public CompletableFuture<List<UploadResult>> save(MultipartFile[] files) {
+        UploadResult[] results = new UploadResult[files.length];
+        StagedBlob[] staged = new StagedBlob[files.length];
+        AtomicInteger next = new AtomicInteger();
+        Runnable lane = () -> {
+            for (int i = next.getAndIncrement(); i < files.length; i = next.getAndIncrement()) {
+                try {
+                    staged[i] = blobService.stage(files[i].getInputStream());
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("File {} could not be saved. Error: {}", files[i].getOriginalFilename(), e.getMessage());
+                    results[i] = UploadResult.failure(files[i].getOriginalFilename(), "File could not be saved");
+                }
+            }
+        };
+
+        int laneCount = Math.min(files.length, requestParallelism);
+        List<CompletableFuture<Void>> lanes = new ArrayList<>(laneCount);
+        try {
+            for (int i = 0; i < laneCount; i++) {
+                lanes.add(CompletableFuture.runAsync(lane, uploadExecutor));
+            }
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Upload executor is saturated, saving {} files with {} threads", files.length, lanes.size());
+            if (lanes.isEmpty()) {
+                lane.run();
+            }
+        }
+        return CompletableFuture.allOf(lanes.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> {
+                    persistAll(files, staged, results);
+                    return Arrays.asList(results);
+                });
+    }
+
+    /**
+     * Saves the files of an archive while it is still arriving. The archive is read on the calling thread: every
+     * file is staged, and thereby hashed, as it is reached, and the staged blobs are committed and their
+     * <tt>FileData</tt> inserted on the upload executor a chunk at a time, while the next chunk is read. At most one
+     * chunk is written at a time, so a slow database holds back the reading of the archive instead of letting
+     * staged blobs pile up.
+     * <p>
+     * A file which cannot be staged or written fails on its own. An archive which cannot be read to its end keeps
+     * the files before the error.
+     *
+     * @param format the format of the archive
+     * @param content the archive
+     * @return the outcome of every file, to be closed once the manifest was read
+     * @throws IOException if the manifest could not be written
+     */
+    public ArchiveUpload save(ArchiveFormat format, InputStream content) throws IOException {
+        ArchiveUpload upload = new ArchiveUpload();
+        try {
+            ArchiveReader reader = format.newReader(content);
+            List<String> names = new ArrayList<>();
+            List<StagedBlob> staged = new ArrayList<>();
+            CompletableFuture<Void> writing = CompletableFuture.completedFuture(null);
+            try {
+                for (ArchiveReader.Entry entry = reader.next(); entry != null; entry = reader.next()) {
+                    names.add(entry.getName());
+                    staged.add(stage(entry));
+                    if (names.size() == Batches.MAX_IN_LIST) {
+                        await(writing);
+                        writing = persistArchiveChunk(upload, names, staged);
+                        names = new ArrayList<>();
+                        staged = new ArrayList<>();
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Archive could not be read. Error: {}", e.getMessage());
+                upload.fail("Archive could not be read: " + e.getMessage());
+            }
+            await(writing);
+            await(persistArchiveChunk(upload, names, staged));
+            upload.finish();
+            LOG.info("Archive read, {} files saved and {} failed", upload.getSaved(), upload.getFailed());
+            return upload;
+        } catch (IOException | RuntimeException e) {
+            upload.close();
+            throw e;
+        }
     }
 
     @Async
-    public Future<FileData> getById(long id) {
+    public CompletableFuture<FileData> getById(long id) {
+        FileData fileData = findById(id);
+        return fileData == null ? notFound(id) : CompletableFuture.completedFuture(fileData);
+    }
+
+    /**
+     * Looks a file up on the calling thread, for callers which have to answer on it anyway, like a download handed
+     * to sendfile. Usually served from the <tt>FileCache</tt>.
+     *
+     * @param id the id of the file
+     * @return the file, or <tt>null</tt> if there is none
+     */
+    public FileData findById(long id) {
         LOG.info("Sending file with {} id", id);
-        return new AsyncResult<>(fileDataRepository.findById(id).orElseThrow(NoSuchElementException::new));
+        FileData journaled = writeBehind == null ? null : writeBehind.getPending(id);
+        if (journaled != null) {
+            return journaled;
+        }
+        return fileCache.getFileData(id, key -> fileDataRepository.findById(key).orElse(null));
     }
 
-    @Async
-    public Future<Collection<String>> getByNameStartingWith(String prefix) {
-        List<String> fileNames = new ArrayList<>();
-        fileDataRepository.findByNameStartingWith(prefix).forEach(fileData -> fileNames.add(fileData.getName()));
-        LOG.info("Sending files names starting with {}", prefix);
-        return new AsyncResult<>(fileNames);
+    /*
+     * Not @Async: the names come from the in-memory NameIndex, handing the lookup over to another thread would
+     * cost more than the lookup itself.
+     */
+    public CompletableFuture<Collection<String>> getByNameStartingWith(String prefix) {
+        return CompletableFuture.completedFuture(getByNameStartingWith(prefix, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Finds the names starting with a prefix in the <tt>NameIndex</tt>, without going to the database.
+     *
+     * @param prefix the prefix of the files' names
+     * @param limit the maximum number of names returned
+     * @return the matching names, in ascending order
+     */
+    public List<String> getByNameStartingWith(String prefix, int limit) {
+        LOG.debug("Sending at most {} files names starting with {}", limit, prefix);
+        return nameIndex.findByPrefix(prefix, limit);
     }
 
     @Async
-    public Future<Collection<String>> getAll() {
+    public CompletableFuture<Collection<String>> getAll() {
         List<String> allFileNames = new ArrayList<>();
-        fileDataRepository.findAll().forEach(fileData -> allFileNames.add(fileData.getName()));
+        fileDataRepository.findMetadataBy().forEach(metadata -> allFileNames.add(metadata.getName()));
         LOG.info("Sending all file names");
-        return new AsyncResult<>(allFileNames);
+        return CompletableFuture.completedFuture(allFileNames);
+    }
+
+    /**
+     * Reads one page of file metadata, ordered by name and id. Pages are addressed by the last file of the previous
+     * page rather than by an offset, so every page costs the same no matter how deep into the listing it is.
+     *
+     * @param prefix the prefix of the files' names
+     * @param afterName the name of the last file of the previous page, <tt>null</tt> for the first page
+     * @param afterId the id of the last file of the previous page, ignored for the first page
+     * @param limit the maximum number of files in the page
+     * @return the page of <tt>FileMetadata</tt>
+     */
+    public List<FileMetadata> getPage(String prefix, String afterName, long afterId, int limit) {
+        String pattern = escapeLikePattern(prefix) + "%";
+        PageRequest page = PageRequest.of(0, limit);
+        return afterName == null
+                ? fileDataRepository.findMetadataPage(pattern, page)
+                : fileDataRepository.findMetadataPageAfter(pattern, afterName, afterId, page);
+    }
+
+    /**
+     * Reads one page of files, ordered by name and id, like {@link #getPage(String, String, long, int)} but with
+     * whole <tt>FileData</tt> rather than metadata, so that their payloads can be opened.
+     *
+     * @param prefix the prefix of the files' names
+     * @param afterName the name of the last file of the previous page, <tt>null</tt> for the first page
+     * @param afterId the id of the last file of the previous page, ignored for the first page
+     * @param limit the maximum number of files in the page
+     * @return the page of <tt>FileData</tt>
+     */
+    public List<FileData> getFilePage(String prefix, String afterName, long afterId, int limit) {
+        String pattern = escapeLikePattern(prefix) + "%";
+        PageRequest page = PageRequest.of(0, limit);
+        return afterName == null
+                ? fileDataRepository.findPage(pattern, page)
+                : fileDataRepository.findPageAfter(pattern, afterName, afterId, page);
+    }
+
+    /**
+     * Loads the files of several ids, with one query per chunk of ids.
+     *
+     * @param ids the ids of the files
+     * @return the files which exist, in the order of the ids
+     */
+    public List<FileData> getAllById(List<Long> ids) {
+        Map<Long, FileData> files = new HashMap<>();
+        for (List<Long> chunk : Batches.partition(ids, Batches.MAX_IN_LIST)) {
+            fileDataRepository.findAllById(chunk).forEach(fileData -> files.put(fileData.getId(), fileData));
+        }
+        List<FileData> ordered = new ArrayList<>(files.size());
+        for (long id : ids) {
+            FileData fileData = files.get(id);
+            if (fileData != null) {
+                ordered.add(fileData);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Checks which of several ids have no file, reading only their metadata.
+     *
+     * @param ids the ids of the files
+     * @return the ids without a file, in the order of the ids
+     */
+    public List<Long> getMissingIds(List<Long> ids) {
+        Set<Long> existing = new HashSet<>();
+        for (List<Long> chunk : Batches.partition(ids, Batches.MAX_IN_LIST)) {
+            fileDataRepository.findMetadataByIdIn(chunk).forEach(metadata -> existing.add(metadata.getId()));
+        }
+        return ids.stream().filter(id -> !existing.contains(id)).collect(Collectors.toList());
     }
 
     @Async
-    public Boolean rename(long id, String name) {
+    public CompletableFuture<Boolean> rename(long id, String name) {
+        awaitDrained(id);
         Optional<FileData> fileDataOptional = fileDataRepository.findById(id);
         if (fileDataOptional.isPresent()) {
             FileData fileData = fileDataOptional.get();
+            String oldName = fileData.getName();
             fileData.setName(name);
             fileDataRepository.save(fileData);
+            fileCache.invalidate(id);
+            nameIndex.rename(id, oldName, name);
             LOG.info("File was renamed successfully to {}", name);
-            return true;
+            return CompletableFuture.completedFuture(true);
         } else {
             LOG.warn("File {} was not found", name);
-            throw new NoSuchElementException();
+            return notFound(id);
         }
     }
 
-    @Async
-    public Boolean replace(long id, MultipartFile file) throws IOException {
-        FileData fileData = new FileData(file.getOriginalFilename(), file.getBytes());
-        fileData.setId(id);
-        fileDataRepository.save(fileData);
-        LOG.info("File {} replaced successfully", fileData.getName());
-        return true;
+    public CompletableFuture<Boolean> replace(long id, MultipartFile file) {
+        return replace(id, file.getOriginalFilename(), file);
+    }
+
+    /**
+     * Replaces the file with the given id by one whose content does not come from a multipart request, on the
+     * upload executor.
+     *
+     * @param id the id of the file to be replaced
+     * @param name the name of the new file
+     * @param content the source of the new content, opened once on the upload executor
+     * @return a future completed once the file was replaced
+     */
+    public CompletableFuture<Boolean> replace(long id, String name, InputStreamSource content) {
+        return onUploadExecutor(() -> {
+            awaitDrained(id);
+            Optional<FileMetadata> previous = fileDataRepository.findMetadataById(id);
+            FileData fileData = store(name, content);
+            fileData.setId(id);
+            previous.ifPresent(metadata -> fileData.setCreatedAt(metadata.getCreatedAt()));
+            FileData saved = save(fileData);
+            fileCache.invalidate(id);
+            previous.ifPresent(metadata -> {
+                nameIndex.remove(id, metadata.getName());
+                release(metadata.getDigest());
+            });
+            nameIndex.add(saved.getId(), saved.getName());
+            transferMetrics.received(saved.getSize());
+            LOG.info("File {} replaced successfully", fileData.getName());
+            return true;
+        });
     }
 
     @Async
-    public Boolean deleteById(long id) {
-        fileDataRepository.deleteById(id);
+    public CompletableFuture<Boolean> deleteById(long id) {
+        awaitDrained(id);
+        Optional<FileData> fileDataOptional = fileDataRepository.findById(id);
+        if (!fileDataOptional.isPresent()) {
+            return notFound(id);
+        }
+        FileData fileData = fileDataOptional.get();
+        fileDataRepository.delete(fileData);
+        fileCache.invalidate(id);
+        nameIndex.remove(id, fileData.getName());
+        release(fileData.getDigest());
         LOG.info("File with id {} was removed", id);
-        return true;
+        return CompletableFuture.completedFuture(true);
     }
 
+    /*
+     * Files are deleted with one statement per chunk of ids and their blobs released in bulk; only the metadata
+     * needed to update the caches and the name index is read.
+     */
     @Async
-    public Boolean deleteAllByIds(long[] ids) {
-        Iterable<FileData> allById = fileDataRepository.findAllById(() -> Arrays.stream(ids).boxed().iterator());
-        fileDataRepository.deleteAll(allById);
+    public CompletableFuture<Boolean> deleteAllByIds(long[] ids) {
+        List<Long> allIds = Arrays.stream(ids).boxed().collect(Collectors.toList());
+        allIds.forEach(this::awaitDrained);
+        for (List<Long> chunk : Batches.partition(allIds, Batches.MAX_IN_LIST)) {
+            Collection<FileMetadata> files = fileDataRepository.findMetadataByIdIn(chunk);
+            fileDataRepository.deleteByIds(chunk);
+            List<String> digests = new ArrayList<>(files.size());
+            for (FileMetadata file : files) {
+                fileCache.invalidate(file.getId());
+                nameIndex.remove(file.getId(), file.getName());
+                digests.add(file.getDigest());
+            }
+            blobService.releaseAll(digests).forEach(fileCache::evictContent);
+        }
         LOG.info("Files with ids {} was removed", Arrays.toString(ids));
-        return true;
+        return CompletableFuture.completedFuture(true);
+    }
+
+    /**
+     * Opens the payload of a file for reading, from the <tt>FileCache</tt> if the payload is small enough to be
+     * cached. The caller is responsible for closing the stream.
+     *
+     * @param fileData the file whose payload is read
+     * @return an <tt>InputStream</tt> over the payload
+     * @throws IOException if the payload could not be opened
+     */
+    public InputStream openContent(FileData fileData) throws IOException {
+        if (fileData instanceof JournaledFileData) {
+            return ((JournaledFileData) fileData).open(0, fileData.getSize());
+        }
+        return fileCache.openContent(fileData.getPayload());
+    }
+
+    /**
+     * Like {@link #openContent(FileData)}, but the payload is not decoded: it comes as it is stored, with the
+     * coding of <tt>FileData.getEncoding()</tt>.
+     *
+     * @param fileData the file whose payload is read
+     * @return an <tt>InputStream</tt> over the stored payload
+     * @throws IOException if the payload could not be opened
+     */
+    public InputStream openStoredContent(FileData fileData) throws IOException {
+        if (fileData instanceof JournaledFileData) {
+            return ((JournaledFileData) fileData).open(0, fileData.getSize());
+        }
+        return fileCache.openStoredContent(fileData.getPayload());
+    }
+
+    /**
+     * Opens the byte range <tt>[offset, offset + length)</tt> of the payload of a file for reading. Only the range is
+     * read from storage, unless the payload is stored compressed and has to be decoded from its beginning. The
+     * caller is responsible for closing the stream.
+     *
+     * @param fileData the file whose payload is read
+     * @param offset the offset of the range in the payload
+     * @param length the length of the range; the stream ends early if the payload does
+     * @return an <tt>InputStream</tt> over the range
+     * @throws IOException if the payload could not be opened or ends before the offset
+     */
+    public InputStream openContent(FileData fileData, long offset, long length) throws IOException {
+        if (fileData instanceof JournaledFileData) {
+            return ((JournaledFileData) fileData).open(offset, length);
+        }
+        return fileCache.openContent(fileData.getPayload(), offset, length);
+    }
+
+    /**
+     * Like {@link #openContent(FileData, long, long)}, but the range is one of the payload as it is stored, with the
+     * coding of <tt>FileData.getEncoding()</tt>, which is always read without the bytes before it.
+     *
+     * @param fileData the file whose payload is read
+     * @param offset the offset of the range in the stored payload
+     * @param length the length of the range; the stream ends early if the payload does
+     * @return an <tt>InputStream</tt> over the range
+     * @throws IOException if the payload could not be opened or ends before the offset
+     */
+    public InputStream openStoredContent(FileData fileData, long offset, long length) throws IOException {
+        if (fileData instanceof JournaledFileData) {
+            return ((JournaledFileData) fileData).open(offset, length);
+        }
+        return fileCache.openStoredContent(fileData.getPayload(), offset, length);
+    }
+
+    /**
+     * @return the statistics of the <tt>FileCache</tt>
+     */
+    public List<CacheStats> getCacheStats() {
+        return fileCache.stats();
+    }
+
+    /**
+     * Resolves the file holding the payload of a file, so it can be served without copying it into the heap. The
+     * payload is stored with the coding of <tt>FileData.getEncoding()</tt>.
+     *
+     * @param fileData the file whose payload is served
+     * @return the <tt>Path</tt> of the payload, or <tt>null</tt> if the file is still in the write-behind journal
+     * and its payload has to be opened
+     */
+    public Path getContentPath(FileData fileData) {
+        if (fileData instanceof JournaledFileData) {
+            return null;
+        }
+        return blobService.path(fileData.getDigest(), fileData.getEncoding());
+    }
+
+    private static String escapeLikePattern(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    private void release(String digest) {
+        if (blobService.release(digest)) {
+            fileCache.evictContent(digest);
+        }
+    }
+
+    private static <T> CompletableFuture<T> notFound(long id) {
+        return CompletableFuture.failedFuture(new NoSuchElementException("No file with id " + id));
+    }
+
+    /*
+     * Like CompletableFuture.supplyAsync, but a checked exception fails the future with itself rather than a
+     * wrapper, and a saturated executor makes the calling thread do the work.
+     */
+    private <T> CompletableFuture<T> onUploadExecutor(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable completion = () -> {
+            try {
+                future.complete(task.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        };
+        try {
+            uploadExecutor.execute(completion);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Upload executor is saturated, saving on the calling thread");
+            completion.run();
+        }
+        return future;
+    }
+
+    private FileData persist(String name, InputStreamSource content) throws IOException {
+        if (writeBehind != null) {
+            return persistBehind(name, content);
+        }
+        return persistNow(name, content.getInputStream());
+    }
+
+    private FileData persistNow(String name, InputStream content) throws IOException {
+        FileData fileData = save(newFileData(name, blobService.store(content)));
+        nameIndex.add(fileData.getId(), fileData.getName());
+        transferMetrics.received(fileData.getSize());
+        LOG.info("File {} saved successfully", fileData.getName());
+        return fileData;
+    }
+
+    /*
+     * Reads one byte more than a journaled file may have: a file which fits is journaled, any other is saved right
+     * away, with the bytes already read put back in front of the rest of the stream.
+     */
+    private FileData persistBehind(String name, InputStreamSource source) throws IOException {
+        InputStream content = source.getInputStream();
+        byte[] head;
+        try {
+            head = content.readNBytes(writeBehind.getMaxFileSize() + 1);
+        } catch (IOException | RuntimeException e) {
+            content.close();
+            throw e;
+        }
+        if (head.length <= writeBehind.getMaxFileSize()) {
+            content.close();
+            FileData fileData = writeBehind.append(name, head);
+            if (fileData != null) {
+                nameIndex.add(fileData.getId(), fileData.getName());
+                transferMetrics.received(fileData.getSize());
+                LOG.info("File {} journaled successfully", fileData.getName());
+                return fileData;
+            }
+            return persistNow(name, new ByteArrayInputStream(head));
+        }
+        return persistNow(name, new SequenceInputStream(new ByteArrayInputStream(head), content));
+    }
+
+    private void awaitDrained(long id) {
+        if (writeBehind != null) {
+            writeBehind.awaitDrained(id);
+        }
+    }
+
+    /*
+     * Commits the staged blobs and inserts the FileData of a batch, one chunk at a time.
+     */
+    private void persistAll(MultipartFile[] files, StagedBlob[] staged, UploadResult[] results) {
+        List<Integer> indexes = new ArrayList<>(files.length);
+        for (int i = 0; i < files.length; i++) {
+            if (staged[i] != null) {
+                indexes.add(i);
+            }
+        }
+        for (List<Integer> chunk : Batches.partition(indexes, Batches.MAX_IN_LIST)) {
+            List<UploadResult> chunkResults = persistChunk(
+                    chunk.stream().map(i -> files[i].getOriginalFilename()).collect(Collectors.toList()),
+                    chunk.stream().map(i -> staged[i]).collect(Collectors.toList()));
+            for (int j = 0; j < chunk.size(); j++) {
+                results[chunk.get(j)] = chunkResults.get(j);
+            }
+        }
+    }
+
+    /*
+     * Commits the staged blobs and inserts the FileData of at most MAX_IN_LIST files. A chunk which cannot be
+     * written fails as a whole and releases the blobs it referenced.
+     */
+    private List<UploadResult> persistChunk(List<String> names, List<StagedBlob> staged) {
+        List<UploadResult> results = new ArrayList<>(names.size());
+        try {
+            List<StoredBlob> blobs = blobService.commitAll(staged);
+            List<FileData> fileData = new ArrayList<>(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                fileData.add(newFileData(names.get(i), blobs.get(i)));
+            }
+            for (FileData file : saveAll(fileData)) {
+                nameIndex.add(file.getId(), file.getName());
+                transferMetrics.received(file.getSize());
+                results.add(UploadResult.success(file.getName(), file.getId()));
+            }
+            LOG.info("{} files saved successfully", names.size());
+        } catch (IOException | RuntimeException e) {
+            LOG.error("{} files could not be saved. Error: {}", names.size(), e.getMessage());
+            results.clear();
+            names.forEach(name -> results.add(UploadResult.failure(name, "File could not be saved")));
+        }
+        return results;
+    }
+
+    private StagedBlob stage(ArchiveReader.Entry entry) {
+        try {
+            return blobService.stage(entry.getContent());
+        } catch (IOException | RuntimeException e) {
+            LOG.error("File {} could not be saved. Error: {}", entry.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * Persists the files of a chunk which were staged, and appends the results of the whole chunk to the manifest
+     */
+    private CompletableFuture<Void> persistArchiveChunk(ArchiveUpload upload, List<String> names,
+                                                        List<StagedBlob> staged) {
+        return onUploadExecutor(() -> {
+            List<Integer> indexes = new ArrayList<>(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                if (staged.get(i) != null) {
+                    indexes.add(i);
+                }
+            }
+            Iterator<UploadResult> persisted = persistChunk(
+                    indexes.stream().map(names::get).collect(Collectors.toList()),
+                    indexes.stream().map(staged::get).collect(Collectors.toList())).iterator();
+            List<UploadResult> results = new ArrayList<>(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                results.add(staged.get(i) != null
+                        ? persisted.next()
+                        : UploadResult.failure(names.get(i), "File could not be saved"));
+            }
+            upload.append(results);
+            return null;
+        });
+    }
+
+    private static void await(CompletableFuture<?> future) throws IOException {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * Like saveAll, for a single file: the reference the file took on its blob is released if it cannot be saved
+     */
+    private FileData save(FileData fileData) {
+        try {
+            return fileDataRepository.save(fileData);
+        } catch (RuntimeException e) {
+            release(fileData.getDigest());
+            throw e;
+        }
+    }
+
+    private Iterable<FileData> saveAll(List<FileData> fileData) {
+        try {
+            return fileDataRepository.saveAll(fileData);
+        } catch (RuntimeException e) {
+            blobService.releaseAll(fileData.stream().map(FileData::getDigest).collect(Collectors.toList()))
+                    .forEach(fileCache::evictContent);
+            throw e;
+        }
+    }
+
+    private FileData store(String name, InputStreamSource content) throws IOException {
+        return newFileData(name, blobService.store(content.getInputStream()));
+    }
+
+    private static FileData newFileData(String name, StoredBlob blob) {
+        FileData fileData = new FileData(name, blob.getSize(), blob.getDigest());
+        fileData.setEncoding(blob.getEncoding());
+        fileData.setStoredSize(blob.getStoredSize());
+        Instant now = Instant.now();
+        fileData.setCreatedAt(now);
+        fileData.setModifiedAt(now);
+        return fileData;
     }
 }
@@ -0,0 +1,42 @@
+package web.server.demo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+
+/**
+ * Deletes the blobs the database has no record of. The reference counts of the blobs live in the database, so a
+ * <tt>storage.root</tt> which outlives it, like the default one under the temporary directory does the in-memory
+ * database, would otherwise keep every blob of earlier runs forever. Enabled with <tt>storage.sweep-unrecorded</tt>,
+ * it runs at startup, before the server accepts requests.
+ */
+@Component
+@ConditionalOnProperty(name = "storage.sweep-unrecorded", havingValue = "true")
+public class UnrecordedBlobSweep {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UnrecordedBlobSweep.class);
+
+    private final BlobService blobService;
+
+    @Autowired
+    public UnrecordedBlobSweep(BlobService blobService) {
+        this.blobService = blobService;
+    }
+
+    @PostConstruct
+    void run() {
+        try {
+            int deleted = blobService.deleteUnrecorded();
+            if (deleted > 0) {
+                LOG.info("{} blobs the database has no record of were deleted", deleted);
+            }
+        } catch (IOException e) {
+            LOG.error("Blobs the database has no record of could not be deleted. Error: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package web.server.demo.service;
+
+/**
+ * The outcome of saving one file of a batch upload.
+ */
+public class UploadResult {
+
+    private final String name;
+
+    private final Long id;
+
+    private final String error;
+
+    private UploadResult(String name, Long id, String error) {
+        this.name = name;
+        this.id = id;
+        this.error = error;
+    }
+
+    /**
+     * @param name the name of the file
+     * @param id the id the file was saved with
+     * @return the result of a file that was saved
+     */
+    public static UploadResult success(String name, long id) {
+        return new UploadResult(name, id, null);
+    }
+
+    /**
+     * @param name the name of the file
+     * @param error the reason the file was not saved
+     * @return the result of a file that could not be saved
+     */
+    public static UploadResult failure(String name, String error) {
+        return new UploadResult(name, null, error);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadResult{" +
+                "name='" + name + '\'' +
+                ", id=" + id +
+                ", error='" + error + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,44 @@
+package web.server.demo.service;
+
+import java.time.Instant;
+import java.util.SortedMap;
+
+/**
+ * The state of a resumable upload: the parts received so far and when the upload expires unless it makes progress.
+ */
+public class UploadSession {
+
+    private final String uploadId;
+
+    private final String name;
+
+    private final SortedMap<Integer, Long> parts;
+
+    private final Instant expiresAt;
+
+    public UploadSession(String uploadId, String name, SortedMap<Integer, Long> parts, Instant expiresAt) {
+        this.uploadId = uploadId;
+        this.name = name;
+        this.parts = parts;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the size of every part received, by part number
+     */
+    public SortedMap<Integer, Long> getParts() {
+        return parts;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+}
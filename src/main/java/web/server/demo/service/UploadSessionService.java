@@ -0,0 +1,410 @@
+package web.server.demo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import web.server.demo.repository.FileData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Resumable uploads of large files. An upload is initiated, its parts are uploaded in any order and in parallel,
+ * each part being written to its own file on disk, and on completion the parts are read back in order, as one
+ * stream, into the <tt>BlobStore</tt>. A part which was cut off can be uploaded again; it replaces the previous copy
+ * only once it has been received in full.
+ * <p>
+ * Every upload is a directory under <tt>upload.sessions.root</tt>, so uploads survive a restart. An upload which has
+ * not received a part for <tt>upload.sessions.expiry</tt> is removed with its parts.
+ */
+@Service
+public class UploadSessionService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UploadSessionService.class);
+
+    private static final String NAME_FILE = "name";
+    private static final String PART_SUFFIX = ".part";
+    private static final String TEMP_PREFIX = "part-";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int LOCK_STRIPES = 64;
+
+    private final RepoService repoService;
+
+    private final Path root;
+
+    private final Duration expiry;
+
+    private final int maxParts;
+
+    private final int bufferSize;
+
+    /*
+     * Uploads being assembled, which neither take parts nor can be aborted until the assembly is over
+     */
+    private final Set<String> completing = ConcurrentHashMap.newKeySet();
+
+    /*
+     * Striped by upload id. Held while a part is moved into place and while an upload is marked as completing,
+     * aborted or expired, so that no part lands in an upload which is being assembled or removed. Parts are
+     * received outside of the lock, in parallel.
+     */
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+
+    @Autowired
+    public UploadSessionService(RepoService repoService,
+                                @Value("${upload.sessions.root}") String root,
+                                @Value("${upload.sessions.expiry}") Duration expiry,
+                                @Value("${upload.sessions.max-parts}") int maxParts,
+                                @Value("${storage.buffer-size}") int bufferSize) throws IOException {
+        this.repoService = repoService;
+        this.root = Files.createDirectories(Paths.get(root));
+        this.expiry = expiry;
+        this.maxParts = maxParts;
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Starts an upload.
+     *
+     * @param name the name of the file being uploaded
+     * @return the new upload, without parts
+     * @throws IOException if the upload could not be created
+     */
+    public UploadSession initiate(String name) throws IOException {
+        String uploadId = UUID.randomUUID().toString();
+        Path directory = Files.createDirectory(root.resolve(uploadId));
+        Files.write(directory.resolve(NAME_FILE), name.getBytes(StandardCharsets.UTF_8));
+        LOG.info("Upload {} of file {} initiated", uploadId, name);
+        return describe(uploadId, directory);
+    }
+
+    /**
+     * Writes one part of an upload, replacing any previous copy of the part. The content is read until its end.
+     *
+     * @param uploadId the id of the upload
+     * @param partNumber the number of the part, from 1 to <tt>upload.sessions.max-parts</tt>
+     * @param content the content of the part
+     * @return the size of the part
+     * @throws NoSuchElementException if there is no such upload
+     * @throws IllegalArgumentException if the part number is out of range
+     * @throws IllegalStateException if the upload is being completed
+     * @throws IOException if the part could not be written
+     */
+    public long uploadPart(String uploadId, int partNumber, InputStream content) throws IOException {
+        if (partNumber < 1 || partNumber > maxParts) {
+            throw new IllegalArgumentException("Part number must be between 1 and " + maxParts);
+        }
+        Path directory = directory(uploadId);
+        checkNotCompleting(uploadId);
+        Path temp;
+        try {
+            temp = Files.createTempFile(directory, TEMP_PREFIX, TEMP_SUFFIX);
+        } catch (NoSuchFileException e) {
+            throw notFound(uploadId);
+        }
+        try {
+            long size = 0;
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                byte[] buffer = new byte[bufferSize];
+                int n;
+                while ((n = content.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                    size += n;
+                }
+            }
+            Lock lock = lockFor(uploadId);
+            lock.lock();
+            try {
+                // The upload may have been aborted, expired or completed while the part was received
+                directory(uploadId);
+                checkNotCompleting(uploadId);
+                Files.move(temp, directory.resolve(partNumber + PART_SUFFIX), ATOMIC_MOVE, REPLACE_EXISTING);
+                Files.setLastModifiedTime(directory, FileTime.from(Instant.now()));
+            } finally {
+                lock.unlock();
+            }
+            LOG.debug("Part {} of upload {} received, {} bytes", partNumber, uploadId, size);
+            return size;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @param uploadId the id of the upload
+     * @return the upload with the parts received so far, for a client resuming it
+     * @throws NoSuchElementException if there is no such upload
+     * @throws IOException if the upload could not be read
+     */
+    public UploadSession getUpload(String uploadId) throws IOException {
+        return describe(uploadId, directory(uploadId));
+    }
+
+    /**
+     * Assembles parts 1 to <tt>partCount</tt> into a new file on the upload executor and removes the upload once
+     * the file is saved. The parts are streamed from disk one after the other, nothing is held in the heap but the
+     * store's copy buffer. If the file cannot be saved the upload is kept, and completing it can be retried.
+     *
+     * @param uploadId the id of the upload
+     * @param partCount the number of parts of the file
+     * @return a future of the saved <tt>FileData</tt>, failed with <tt>NoSuchElementException</tt> if there is no
+     * such upload, <tt>IllegalArgumentException</tt> if the parts received are not exactly 1 to <tt>partCount</tt>,
+     * or <tt>IllegalStateException</tt> if the upload is already being completed
+     */
+    public CompletableFuture<FileData> complete(String uploadId, int partCount) {
+        Path directory;
+        String name;
+        List<Path> parts;
+        Lock lock = lockFor(uploadId);
+        lock.lock();
+        try {
+            directory = directory(uploadId);
+            if (!completing.add(uploadId)) {
+                throw new IllegalStateException("Upload " + uploadId + " is being completed");
+            }
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            name = readName(uploadId, directory);
+            parts = orderedParts(directory, partCount);
+        } catch (IOException | RuntimeException e) {
+            completing.remove(uploadId);
+            return CompletableFuture.failedFuture(e);
+        }
+        return repoService.save(name, () -> new SequenceInputStream(open(parts)))
+                .whenComplete((fileData, error) -> {
+                    try {
+                        if (error == null) {
+                            delete(directory);
+                            LOG.info("Upload {} completed as file {} from {} parts", uploadId, fileData.getId(),
+                                    partCount);
+                        }
+                    } finally {
+                        completing.remove(uploadId);
+                    }
+                });
+    }
+
+    /**
+     * Cancels an upload and removes its parts.
+     *
+     * @param uploadId the id of the upload
+     * @throws NoSuchElementException if there is no such upload
+     * @throws IllegalStateException if the upload is being completed
+     */
+    public void abort(String uploadId) {
+        Lock lock = lockFor(uploadId);
+        lock.lock();
+        try {
+            Path directory = directory(uploadId);
+            checkNotCompleting(uploadId);
+            delete(directory);
+        } finally {
+            lock.unlock();
+        }
+        LOG.info("Upload {} aborted", uploadId);
+    }
+
+    /**
+     * Removes the uploads which have not received a part for <tt>upload.sessions.expiry</tt>.
+     */
+    @Scheduled(fixedDelayString = "${upload.sessions.cleanup-interval}")
+    public void removeExpired() {
+        Instant threshold = Instant.now().minus(expiry);
+        int removed = 0;
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path directory : directories) {
+                String uploadId = directory.getFileName().toString();
+                Lock lock = lockFor(uploadId);
+                lock.lock();
+                try {
+                    if (!completing.contains(uploadId)
+                            && Files.getLastModifiedTime(directory).toInstant().isBefore(threshold)) {
+                        delete(directory);
+                        removed++;
+                    }
+                } catch (IOException e) {
+                    LOG.warn("Upload {} could not be checked for expiry. Error: {}", uploadId, e.getMessage());
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Expired uploads could not be removed. Error: {}", e.getMessage());
+        }
+        if (removed > 0) {
+            LOG.info("{} expired uploads removed", removed);
+        }
+    }
+
+    /*
+     * Upload ids are UUIDs, anything else could point outside of the root
+     */
+    private Path directory(String uploadId) {
+        try {
+            if (!UUID.fromString(uploadId).toString().equals(uploadId)) {
+                throw notFound(uploadId);
+            }
+        } catch (IllegalArgumentException e) {
+            throw notFound(uploadId);
+        }
+        Path directory = root.resolve(uploadId);
+        if (!Files.isDirectory(directory)) {
+            throw notFound(uploadId);
+        }
+        return directory;
+    }
+
+    private UploadSession describe(String uploadId, Path directory) throws IOException {
+        SortedMap<Integer, Long> parts = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + PART_SUFFIX)) {
+            for (Path file : files) {
+                int partNumber = partNumber(file);
+                if (partNumber > 0) {
+                    parts.put(partNumber, Files.size(file));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            throw notFound(uploadId);
+        }
+        Instant expiresAt = Files.getLastModifiedTime(directory).toInstant().plus(expiry);
+        return new UploadSession(uploadId, readName(uploadId, directory), parts, expiresAt);
+    }
+
+    private List<Path> orderedParts(Path directory, int partCount) throws IOException {
+        if (partCount < 1 || partCount > maxParts) {
+            throw new IllegalArgumentException("Part count must be between 1 and " + maxParts);
+        }
+        List<Path> parts = new ArrayList<>(partCount);
+        for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+            Path part = directory.resolve(partNumber + PART_SUFFIX);
+            if (!Files.isRegularFile(part)) {
+                throw new IllegalArgumentException("Part " + partNumber + " is missing");
+            }
+            parts.add(part);
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + PART_SUFFIX)) {
+            for (Path file : files) {
+                int partNumber = partNumber(file);
+                if (partNumber > partCount) {
+                    throw new IllegalArgumentException("Part " + partNumber + " is beyond the part count");
+                }
+            }
+        }
+        return parts;
+    }
+
+    private static String readName(String uploadId, Path directory) throws IOException {
+        try {
+            return new String(Files.readAllBytes(directory.resolve(NAME_FILE)), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            throw notFound(uploadId);
+        }
+    }
+
+    /*
+     * The number of a part, or 0 for any other file named like one, e.g. copied into the directory by hand, which
+     * is left out of the upload
+     */
+    private int partNumber(Path file) {
+        String fileName = file.getFileName().toString();
+        int partNumber;
+        try {
+            partNumber = Integer.parseInt(fileName.substring(0, fileName.length() - PART_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        return partNumber >= 1 && partNumber <= maxParts && fileName.equals(partNumber + PART_SUFFIX)
+                ? partNumber
+                : 0;
+    }
+
+    /*
+     * Opens the parts one at a time, as SequenceInputStream reaches them; it closes each part once read
+     */
+    private static Enumeration<InputStream> open(List<Path> parts) {
+        Iterator<Path> iterator = parts.iterator();
+        return new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return Files.newInputStream(iterator.next());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    private void checkNotCompleting(String uploadId) {
+        if (completing.contains(uploadId)) {
+            throw new IllegalStateException("Upload " + uploadId + " is being completed");
+        }
+    }
+
+    private static void delete(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    LOG.warn("Upload file {} could not be deleted. Error: {}", file, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Upload {} could not be deleted. Error: {}", directory, e.getMessage());
+        }
+    }
+
+    private Lock lockFor(String uploadId) {
+        return locks[(uploadId.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    private static NoSuchElementException notFound(String uploadId) {
+        return new NoSuchElementException("No upload with id " + uploadId);
+    }
+}
@@ -0,0 +1,475 @@
+package web.server.demo.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import web.server.demo.cache.ByteBufferInputStream;
+import web.server.demo.cache.FileCache;
+import web.server.demo.repository.FileData;
+import web.server.demo.repository.FileDataRepository;
+import web.server.demo.repository.FileMetadata;
+import web.server.demo.storage.Journal;
+import web.server.demo.storage.StagedBlob;
+import web.server.demo.storage.StoredBlob;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import static web.server.demo.metrics.MetricNames.JOURNAL_PENDING;
+import static web.server.demo.metrics.MetricNames.JOURNAL_SEGMENTS;
+
+/**
+ * Acknowledges uploads before they reach the database, enabled with <tt>write-behind.enabled</tt>. A file of at
+ * most <tt>write-behind.max-file-size</tt> bytes is appended, name and content, to a memory-mapped <tt>Journal</tt>
+ * and gets its id right away, from the id sequence Hibernate allocates from as well. Background workers drain the
+ * journal: a batch of up to <tt>write-behind.drain.batch-size</tt> files is staged, committed to the storage engine
+ * with a few reference updates for the whole batch, and inserted with one JDBC batch in a single transaction, so a
+ * burst of uploads costs a few commits rather than one per file.
+ * <p>
+ * A file which was not drained yet is served from the journal: <tt>RepoService</tt> asks for it before going to
+ * the database. Renaming, replacing or removing it waits until it was drained, for at most
+ * <tt>write-behind.drain.await-timeout</tt>, and fails with a {@link NotDrainedException} after that. Listings come
+ * from the database and show a file once it was drained. A batch which cannot be written is retried after
+ * <tt>write-behind.drain.retry-delay</tt>, while the workers go on with the next batches.
+ * <p>
+ * With <tt>write-behind.journal.force</tt> an upload is acknowledged once its record was forced to disk, sharing
+ * the force with the uploads appended at the same time. Without it, an acknowledged upload survives a crash of the
+ * process but not one of the machine. The records left by a previous run are pending again at startup, and drained
+ * in the background like new ones, so startup does not wait for the database; a file drained before the crash, but
+ * whose record was not released yet, is not inserted again.
+ */
+@Service
+@ConditionalOnProperty(name = "write-behind.enabled", havingValue = "true")
+public class WriteBehind implements SmartInitializingSingleton {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehind.class);
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int RECORD_HEADER_SIZE = 20;
+    private static final String INSERT_FILE_DATA = "insert into file_data "
+            + "(id, name, size, digest, encoding, stored_size, created_at, modified_at) "
+            + "values (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final Journal journal;
+
+    private final BlobService blobService;
+
+    private final FileDataRepository fileDataRepository;
+
+    private final NameIndex nameIndex;
+
+    private final FileCache fileCache;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int maxFileSize;
+
+    private final int maxPending;
+
+    private final int batchSize;
+
+    private final int workers;
+
+    private final Duration retryDelay;
+
+    private final Duration awaitTimeout;
+
+    private final Duration shutdownTimeout;
+
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+    private final Lock idLock = new ReentrantLock();
+
+    private long nextId;
+
+    private long lastId = -1;
+
+    private ExecutorService drainers;
+
+    private ScheduledExecutorService retries;
+
+    private volatile boolean closing;
+
+    @Autowired
+    public WriteBehind(BlobService blobService, FileDataRepository fileDataRepository, NameIndex nameIndex,
+                       FileCache fileCache, JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                       MeterRegistry meterRegistry,
+                       @Value("${write-behind.journal.root}") String journalRoot,
+                       @Value("${write-behind.journal.segment-size}") int segmentSize,
+                       @Value("${write-behind.journal.force}") boolean force,
+                       @Value("${write-behind.max-file-size}") int maxFileSize,
+                       @Value("${write-behind.max-pending}") int maxPending,
+                       @Value("${write-behind.drain.batch-size}") int batchSize,
+                       @Value("${write-behind.drain.workers}") int workers,
+                       @Value("${write-behind.drain.retry-delay}") Duration retryDelay,
+                       @Value("${write-behind.drain.await-timeout}") Duration awaitTimeout,
+                       @Value("${write-behind.drain.shutdown-timeout}") Duration shutdownTimeout) throws IOException {
+        this.journal = new Journal(Paths.get(journalRoot), segmentSize, force);
+        this.blobService = blobService;
+        this.fileDataRepository = fileDataRepository;
+        this.nameIndex = nameIndex;
+        this.fileCache = fileCache;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxFileSize = maxFileSize;
+        this.maxPending = maxPending;
+        this.batchSize = Math.min(batchSize, Batches.MAX_IN_LIST);
+        this.workers = workers;
+        this.retryDelay = retryDelay;
+        this.awaitTimeout = awaitTimeout;
+        this.shutdownTimeout = shutdownTimeout;
+        Gauge.builder(JOURNAL_PENDING, pending, Map::size)
+                .description("Files acknowledged from the write-behind journal and not yet in the database")
+                .register(meterRegistry);
+        Gauge.builder(JOURNAL_SEGMENTS, journal, Journal::getSegmentCount)
+                .description("Segments of the write-behind journal which were not reclaimed yet")
+                .register(meterRegistry);
+    }
+
+    /*
+     * Runs once every bean was initialized, like the rebuild of the NameIndex. Reading the journal back only maps
+     * its segments; the recovered files are queued for the workers rather than drained here. Whichever of this and
+     * the rebuild runs first, a recovered file ends up in the index: it is added here, and again once it was drained.
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        List<Pending> recovered = new ArrayList<>();
+        try {
+            for (Journal.Record record : journal.recover()) {
+                Pending file = decode(record);
+                file.recovered = true;
+                recovered.add(file);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("The write-behind journal could not be recovered", e);
+        }
+        if (!recovered.isEmpty()) {
+            moveIdSequencePast(recovered.stream().mapToLong(file -> file.fileData.getId()).max().getAsLong());
+            for (Pending file : recovered) {
+                pending.put(file.fileData.getId(), file);
+                nameIndex.add(file.fileData.getId(), file.fileData.getName());
+            }
+            queue.addAll(recovered);
+            LOG.info("Replaying {} files of the write-behind journal in the background", recovered.size());
+        }
+        // a fresh sequence hands out its first block differently, it is taken before Hibernate's first insert
+        nextId();
+
+        drainers = Executors.newFixedThreadPool(workers, runnable -> daemon(runnable, "write-behind-"));
+        retries = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "write-behind-retry-"));
+        for (int i = 0; i < workers; i++) {
+            drainers.execute(this::drainQueue);
+        }
+    }
+
+    /**
+     * @return the largest file which can be journaled
+     */
+    public int getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * Journals a file, to be drained into the repository in the background.
+     *
+     * @param name the name of the file
+     * @param content the content of the file, at most <tt>getMaxFileSize()</tt> bytes
+     * @return the file, or <tt>null</tt> if it was not journaled because too many files wait to be drained, or the
+     * name makes the record too large; the file should then be saved right away
+     * @throws IOException if the journal could not be written
+     */
+    public FileData append(String name, byte[] content) throws IOException {
+        byte[] encodedName = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER_SIZE + encodedName.length + content.length;
+        if (closing || pending.size() >= maxPending || content.length > maxFileSize
+                || length > journal.getMaxRecordSize()) {
+            return null;
+        }
+        long id = nextId();
+        ByteBuffer record = ByteBuffer.allocate(length)
+                .putLong(id)
+                .putLong(Instant.now().toEpochMilli())
+                .putInt(name == null ? -1 : encodedName.length)
+                .put(encodedName)
+                .put(content);
+        Pending file = decode(journal.append(record.array(), length));
+        pending.put(id, file);
+        queue.add(file);
+        return file.fileData;
+    }
+
+    /**
+     * Finds a file which may not have been drained yet.
+     *
+     * @param id the id of the file
+     * @return the file, or <tt>null</tt> if it is not pending
+     */
+    public FileData getPending(long id) {
+        Pending file = pending.get(id);
+        return file == null ? null : file.fileData;
+    }
+
+    /**
+     * Waits until a file was drained into the repository, e.g. before it is changed there, for at most
+     * <tt>write-behind.drain.await-timeout</tt>.
+     *
+     * @param id the id of the file
+     * @throws NotDrainedException if the file was not drained in time
+     */
+    public void awaitDrained(long id) {
+        Pending file = pending.get(id);
+        if (file == null) {
+            return;
+        }
+        try {
+            file.drained.get(awaitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new NotDrainedException(id);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NotDrainedException(id);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("File " + id + " could not be drained", e.getCause());
+        }
+    }
+
+    /**
+     * Stops the drain once the files waiting were drained, or once <tt>write-behind.drain.shutdown-timeout</tt> has
+     * passed. Files which were not drained, including those waiting for a retry, stay in the journal for the next
+     * start.
+     */
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        closing = true;
+        if (retries != null) {
+            retries.shutdownNow();
+        }
+        if (drainers != null) {
+            drainers.shutdown();
+            if (!drainers.awaitTermination(shutdownTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                LOG.warn("{} files of the write-behind journal are left for the next start", pending.size());
+                drainers.shutdownNow();
+            }
+        }
+        journal.close();
+    }
+
+    private void drainQueue() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (!closing || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                drain(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /*
+     * A batch which cannot be written is retried one file at a time, so that a file which keeps failing does not
+     * hold back the others. It stays in the journal and is queued again after a delay, which the worker does not
+     * wait for.
+     */
+    private void drain(List<Pending> batch) {
+        try {
+            persist(batch);
+            return;
+        } catch (IOException | RuntimeException e) {
+            if (batch.size() > 1) {
+                LOG.warn("{} journaled files could not be saved, retrying them one by one. Error: {}",
+                        batch.size(), e.getMessage());
+                batch.forEach(file -> drain(Collections.singletonList(file)));
+                return;
+            }
+            LOG.error("Journaled file {} could not be saved, retrying in {}. Error: {}",
+                    batch.get(0).fileData.getId(), retryDelay, e.getMessage());
+        }
+        if (closing) {
+            return;
+        }
+        List<Pending> retried = new ArrayList<>(batch);
+        try {
+            retries.schedule(() -> queue.addAll(retried), retryDelay.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Shutting down, {} journaled files are left for the next start", retried.size());
+        }
+    }
+
+    private void persist(List<Pending> batch) throws IOException {
+        Set<Long> saved = new HashSet<>();
+        List<Long> ids = batch.stream().map(file -> file.fileData.getId()).collect(Collectors.toList());
+        fileDataRepository.findMetadataByIdIn(ids).stream().map(FileMetadata::getId).forEach(saved::add);
+        List<Pending> files = batch.stream()
+                .filter(file -> !saved.contains(file.fileData.getId()))
+                .collect(Collectors.toList());
+
+        if (!files.isEmpty()) {
+            List<StagedBlob> staged = new ArrayList<>(files.size());
+            try {
+                for (Pending file : files) {
+                    staged.add(blobService.stage(new ByteBufferInputStream(file.fileData.getContent())));
+                }
+            } catch (IOException | RuntimeException e) {
+                blobService.discard(staged);
+                throw e;
+            }
+            List<StoredBlob> blobs = blobService.commitAll(staged);
+            try {
+                transactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(INSERT_FILE_DATA,
+                        new BatchPreparedStatementSetter() {
+                            @Override
+                            public void setValues(PreparedStatement statement, int i) throws SQLException {
+                                FileData fileData = files.get(i).fileData;
+                                StoredBlob blob = blobs.get(i);
+                                statement.setLong(1, fileData.getId());
+                                statement.setString(2, fileData.getName());
+                                statement.setLong(3, blob.getSize());
+                                statement.setString(4, blob.getDigest());
+                                statement.setString(5, blob.getEncoding().name());
+                                statement.setLong(6, blob.getStoredSize());
+                                statement.setTimestamp(7, Timestamp.from(fileData.getCreatedAt()));
+                                statement.setTimestamp(8, Timestamp.from(fileData.getModifiedAt()));
+                            }
+
+                            @Override
+                            public int getBatchSize() {
+                                return files.size();
+                            }
+                        }));
+            } catch (RuntimeException e) {
+                blobService.releaseAll(blobs.stream().map(StoredBlob::getDigest).collect(Collectors.toList()))
+                        .forEach(fileCache::evictContent);
+                throw e;
+            }
+        }
+
+        journal.release(batch.stream().map(file -> file.record).collect(Collectors.toList()));
+        for (Pending file : batch) {
+            if (file.recovered) {
+                nameIndex.add(file.fileData.getId(), file.fileData.getName());
+            }
+            pending.remove(file.fileData.getId());
+            fileCache.invalidate(file.fileData.getId());
+            file.drained.complete(null);
+        }
+        LOG.debug("Drained {} journaled files, {} of them were saved already", batch.size(), saved.size());
+    }
+
+    private Pending decode(Journal.Record record) {
+        ByteBuffer content = record.getContent();
+        long id = content.getLong();
+        Instant createdAt = Instant.ofEpochMilli(content.getLong());
+        int nameLength = content.getInt();
+        String name = null;
+        if (nameLength >= 0) {
+            byte[] encodedName = new byte[nameLength];
+            content.get(encodedName);
+            name = new String(encodedName, StandardCharsets.UTF_8);
+        }
+        ByteBuffer payload = content.slice();
+        MessageDigest messageDigest = newMessageDigest();
+        messageDigest.update(payload.duplicate());
+        String digest = HexFormat.of().formatHex(messageDigest.digest());
+        return new Pending(new JournaledFileData(id, name, digest, createdAt, payload), record);
+    }
+
+    /*
+     * Hibernate hands out the block of ids ending at the value it reads from the sequence, so every value read
+     * here owns the ALLOCATION_SIZE ids up to it as well.
+     */
+    private long nextId() {
+        idLock.lock();
+        try {
+            if (nextId > lastId) {
+                lastId = jdbcTemplate.queryForObject("select next value for " + FileData.ID_SEQUENCE, Long.class);
+                nextId = Math.max(1, lastId - FileData.ID_ALLOCATION_SIZE + 1);
+            }
+            return nextId++;
+        } finally {
+            idLock.unlock();
+        }
+    }
+
+    /*
+     * The ids of the recovered files came from the sequence, but an in-memory database starts it again. Like
+     * LobMigration, the sequence is moved past them.
+     */
+    private void moveIdSequencePast(long maxId) {
+        long next = jdbcTemplate.queryForObject("select next value for " + FileData.ID_SEQUENCE, Long.class);
+        if (next - FileData.ID_ALLOCATION_SIZE < maxId) {
+            jdbcTemplate.execute("alter sequence " + FileData.ID_SEQUENCE + " restart with "
+                    + (maxId + FileData.ID_ALLOCATION_SIZE));
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String prefix) {
+        Thread thread = new Thread(runnable, prefix + runnable.hashCode());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * A journaled file, and whoever waits for it to be drained.
+     */
+    private static class Pending {
+
+        private final JournaledFileData fileData;
+
+        private final Journal.Record record;
+
+        private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+        // read back from the journal of a previous run
+        private boolean recovered;
+
+        private Pending(JournaledFileData fileData, Journal.Record record) {
+            this.fileData = fileData;
+            this.record = record;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package web.server.demo.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The file system <tt>StorageEngine</tt>. Every blob is named after the SHA-256 digest of its content and lives in a
+ * directory sharded by the first bytes of the digest, e.g. <tt>ab/cd/abcd...</tt>, so no directory grows beyond a
+ * few thousand entries. Content is copied in fixed-size chunks, so the memory used by a write does not depend on
+ * the size of the blob. A blob is staged in a temporary file of the same file system and renamed into place
+ * atomically; how much of this is forced to disk is up to the <tt>FsyncPolicy</tt>.
+ * <p>
+ * The <tt>CompressionPolicy</tt> decides whether a blob is stored gzip compressed, in which case its file name
+ * carries a <tt>.gz</tt> suffix. The digest is always the one of the original content, so deduplication and entity
+ * tags do not depend on how a blob is stored.
+ */
+@Component
+@ConditionalOnProperty(name = "storage.engine", havingValue = "filesystem", matchIfMissing = true)
+public class BlobStore implements StorageEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BlobStore.class);
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String INCOMING_DIRECTORY = "incoming";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Path root;
+
+    private final Path incoming;
+
+    private final int bufferSize;
+
+    private final CompressionPolicy compressionPolicy;
+
+    private final FsyncPolicy fsyncPolicy;
+
+    public BlobStore(String root, int bufferSize) throws IOException {
+        this(root, bufferSize, CompressionPolicy.DISABLED);
+    }
+
+    public BlobStore(String root, int bufferSize, CompressionPolicy compressionPolicy) throws IOException {
+        this(root, bufferSize, compressionPolicy, FsyncPolicy.NONE);
+    }
+
+    @Autowired
+    public BlobStore(@Value("${storage.root}") String root,
+                     @Value("${storage.buffer-size}") int bufferSize,
+                     CompressionPolicy compressionPolicy,
+                     @Value("${storage.fsync}") FsyncPolicy fsyncPolicy) throws IOException {
+        this.root = Files.createDirectories(Paths.get(root));
+        this.incoming = Files.createDirectories(this.root.resolve(INCOMING_DIRECTORY));
+        this.bufferSize = bufferSize;
+        this.compressionPolicy = compressionPolicy;
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /*
+     * The content is compressed if the CompressionPolicy says so.
+     */
+    @Override
+    public StagedBlob stage(InputStream content) throws IOException {
+        MessageDigest messageDigest = newMessageDigest();
+        Path temp = Files.createTempFile(incoming, null, TEMP_SUFFIX);
+        long size = 0;
+        ContentEncoding encoding;
+        try (InputStream in = content) {
+            byte[] buffer = new byte[bufferSize];
+            int read = readFully(in, buffer);
+            encoding = compressionPolicy.choose(buffer, read, read < buffer.length);
+            try (OutputStream out = open(temp, encoding)) {
+                while (read > 0) {
+                    messageDigest.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    size += read;
+                    read = in.read(buffer);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        long storedSize = Files.size(temp);
+        if (encoding != ContentEncoding.IDENTITY && !compressionPolicy.isWorthwhile(size, storedSize)) {
+            LOG.debug("Compressing {} bytes only saved {} bytes, storing them as they are", size, size - storedSize);
+            temp = decode(temp, encoding);
+            encoding = ContentEncoding.IDENTITY;
+            storedSize = size;
+        }
+        return new StagedBlob(toHex(messageDigest.digest()), size, encoding, storedSize, temp);
+    }
+
+    @Override
+    public boolean commit(StagedBlob staged) throws IOException {
+        if (locate(staged.getDigest()) != null) {
+            discard(staged);
+            return false;
+        }
+        Path target = resolve(staged.getDigest(), staged.getEncoding());
+        Path shard = target.getParent();
+        boolean newShard = !Files.isDirectory(shard);
+        if (fsyncPolicy != FsyncPolicy.NONE) {
+            force(staged.getPath());
+        }
+        Files.createDirectories(shard);
+        Files.move(staged.getPath(), target, ATOMIC_MOVE);
+        if (fsyncPolicy == FsyncPolicy.CONTENT_AND_DIRECTORY) {
+            forceDirectory(shard);
+            if (newShard) {
+                forceDirectory(shard.getParent());
+                forceDirectory(root);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public StoredBlob describe(String digest, long size) throws IOException {
+        ContentEncoding encoding = locate(digest);
+        if (encoding == null) {
+            throw new NoSuchFileException(resolve(digest, ContentEncoding.IDENTITY).toString());
+        }
+        return new StoredBlob(digest, size, encoding, Files.size(resolve(digest, encoding)));
+    }
+
+    @Override
+    public void discard(StagedBlob staged) {
+        try {
+            Files.deleteIfExists(staged.getPath());
+        } catch (IOException e) {
+            LOG.warn("Staged blob {} could not be deleted. Error: {}", staged.getPath(), e.getMessage());
+        }
+    }
+
+    @Override
+    public InputStream open(String digest, ContentEncoding encoding) throws IOException {
+        return Files.newInputStream(resolve(digest, encoding));
+    }
+
+    @Override
+    public InputStream open(String digest, ContentEncoding encoding, long offset, long length) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(resolve(digest, encoding), READ);
+        try {
+            if (offset > channel.size()) {
+                throw new EOFException("Blob " + digest + " ends before position " + offset);
+            }
+            channel.position(offset);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new RangeInputStream(Channels.newInputStream(channel), length);
+    }
+
+    @Override
+    public Path path(String digest, ContentEncoding encoding) {
+        return resolve(digest, encoding).toAbsolutePath();
+    }
+
+    /*
+     * Blobs are the files three levels down, e.g. ab/cd/abcd...; staged blobs are one level down, in incoming
+     */
+    @Override
+    public Stream<String> digests() throws IOException {
+        return Files.find(root, 3, (path, attributes) -> attributes.isRegularFile()
+                        && root.relativize(path).getNameCount() == 3)
+                .map(path -> digestOf(path.getFileName().toString()))
+                .distinct();
+    }
+
+    @Override
+    public void delete(String digest) {
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            try {
+                Files.deleteIfExists(resolve(digest, encoding));
+            } catch (IOException e) {
+                LOG.warn("Blob {} could not be deleted. Error: {}", digest, e.getMessage());
+            }
+        }
+    }
+
+    private Path resolve(String digest, ContentEncoding encoding) {
+        return root.resolve(digest.substring(0, 2)).resolve(digest.substring(2, 4))
+                .resolve(digest + encoding.getSuffix());
+    }
+
+    private static String digestOf(String fileName) {
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            String suffix = encoding.getSuffix();
+            if (!suffix.isEmpty() && fileName.endsWith(suffix)) {
+                return fileName.substring(0, fileName.length() - suffix.length());
+            }
+        }
+        return fileName;
+    }
+
+    private ContentEncoding locate(String digest) {
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            if (Files.exists(resolve(digest, encoding))) {
+                return encoding;
+            }
+        }
+        return null;
+    }
+
+    private OutputStream open(Path temp, ContentEncoding encoding) throws IOException {
+        OutputStream out = Files.newOutputStream(temp);
+        if (encoding == ContentEncoding.IDENTITY) {
+            return out;
+        }
+        try {
+            return compressionPolicy.compress(out, bufferSize);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Replaces a staged file by its decoded content, for content which turned out not to compress well.
+     */
+    private Path decode(Path staged, ContentEncoding encoding) throws IOException {
+        Path decoded = Files.createTempFile(incoming, null, TEMP_SUFFIX);
+        try (InputStream in = encoding.decode(Files.newInputStream(staged))) {
+            Files.copy(in, decoded, REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(decoded);
+            throw e;
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+        return decoded;
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /*
+     * Some platforms, e.g. Windows, cannot open a directory to flush it; there the rename has to be trusted.
+     */
+    private static void forceDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, READ);
+        } catch (IOException e) {
+            LOG.debug("Directory {} cannot be forced to disk. Error: {}", directory, e.getMessage());
+            return;
+        }
+        try (FileChannel opened = channel) {
+            opened.force(true);
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int filled = 0;
+        int read;
+        while (filled < buffer.length && (read = in.read(buffer, filled, buffer.length - filled)) != -1) {
+            filled += read;
+        }
+        return filled;
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
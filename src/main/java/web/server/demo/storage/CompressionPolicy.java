@@ -0,0 +1,162 @@
+package web.server.demo.storage;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides which blobs are worth compressing at rest. The decision is taken from the first chunk of the content,
+ * before anything is written:
+ * <ul>
+ *     <li>content smaller than <tt>storage.compression.min-size</tt> is stored as it is;</li>
+ *     <li>content starting with the signature of a compressed format (archives, images, audio, video) is stored as
+ *     it is;</li>
+ *     <li>anything else is compressed if a fast trial compression of the first chunk saves enough space.</li>
+ * </ul>
+ * The trial only looks at the beginning of the content, so the <tt>BlobStore</tt> checks the ratio again once the
+ * whole blob was written.
+ */
+@Component
+public class CompressionPolicy {
+
+    /**
+     * Stores every blob as it is.
+     */
+    public static final CompressionPolicy DISABLED = new CompressionPolicy(false, 0, Deflater.DEFAULT_COMPRESSION, 0);
+
+    private static final int TRIAL_BYTES = 16 * 1024;
+
+    /*
+     * Leading bytes of formats which are compressed already. MP4/MOV/HEIF ("ftyp") and WebP/AVI ("RIFF") are
+     * recognised separately since their signature does not start at the first byte or is shared.
+     */
+    private static final byte[][] SIGNATURES = {
+            {0x1f, (byte) 0x8b},                                // gzip
+            {0x50, 0x4b, 0x03, 0x04},                           // zip, jar, docx, xlsx, odt, apk
+            {0x37, 0x7a, (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c}, // 7z
+            {(byte) 0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00},        // xz
+            {0x42, 0x5a, 0x68},                                 // bzip2
+            {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},             // zstd
+            {0x04, 0x22, 0x4d, 0x18},                           // lz4
+            {0x52, 0x61, 0x72, 0x21, 0x1a, 0x07},               // rar
+            {(byte) 0x89, 0x50, 0x4e, 0x47},                    // png
+            {(byte) 0xff, (byte) 0xd8, (byte) 0xff},            // jpeg
+            {0x47, 0x49, 0x46, 0x38},                           // gif
+            {0x4f, 0x67, 0x67, 0x53},                           // ogg
+            {0x66, 0x4c, 0x61, 0x43},                           // flac
+            {0x49, 0x44, 0x33},                                 // mp3 with ID3 tag
+            {0x77, 0x4f, 0x46, 0x46},                           // woff
+            {0x77, 0x4f, 0x46, 0x32},                           // woff2
+            {0x1a, 0x45, (byte) 0xdf, (byte) 0xa3}              // matroska, webm
+    };
+    private static final byte[] FTYP = {0x66, 0x74, 0x79, 0x70};
+    private static final byte[] RIFF = {0x52, 0x49, 0x46, 0x46};
+
+    private final boolean enabled;
+
+    private final long minSize;
+
+    private final int level;
+
+    private final double maxRatio;
+
+    @Autowired
+    public CompressionPolicy(@Value("${storage.compression.enabled}") boolean enabled,
+                             @Value("${storage.compression.min-size}") long minSize,
+                             @Value("${storage.compression.level}") int level,
+                             @Value("${storage.compression.max-ratio}") double maxRatio) {
+        this.enabled = enabled;
+        this.minSize = minSize;
+        this.level = level;
+        this.maxRatio = maxRatio;
+    }
+
+    /**
+     * Chooses the coding of a blob from the beginning of its content.
+     *
+     * @param head the first bytes of the content
+     * @param length the number of bytes in <tt>head</tt>
+     * @param complete <tt>true</tt> if <tt>head</tt> holds the whole content
+     * @return the coding the blob should be stored with
+     */
+    public ContentEncoding choose(byte[] head, int length, boolean complete) {
+        if (!enabled || (complete && length < minSize) || isCompressedFormat(head, length)) {
+            return ContentEncoding.IDENTITY;
+        }
+        int sample = Math.min(length, TRIAL_BYTES);
+        return isWorthwhile(sample, trialCompressedSize(head, sample))
+                ? ContentEncoding.GZIP
+                : ContentEncoding.IDENTITY;
+    }
+
+    /**
+     * @param size the size of the content
+     * @param storedSize the size of the compressed content
+     * @return <tt>true</tt> if the compressed content is small enough to be kept
+     */
+    public boolean isWorthwhile(long size, long storedSize) {
+        return storedSize <= size * maxRatio;
+    }
+
+    /**
+     * Wraps a stream into one compressing what is written to it with the configured level.
+     *
+     * @param out the stream receiving the compressed content
+     * @param bufferSize the size of the output buffer
+     * @return the compressing stream
+     * @throws IOException if the header could not be written
+     */
+    public OutputStream compress(OutputStream out, int bufferSize) throws IOException {
+        return new GZIPOutputStream(out, bufferSize) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    private static boolean isCompressedFormat(byte[] head, int length) {
+        for (byte[] signature : SIGNATURES) {
+            if (startsWith(head, length, 0, signature)) {
+                return true;
+            }
+        }
+        return startsWith(head, length, 4, FTYP) || startsWith(head, length, 0, RIFF);
+    }
+
+    private static boolean startsWith(byte[] head, int length, int offset, byte[] signature) {
+        if (length < offset + signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (head[offset + i] != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Deflates the sample at the fastest level, which compresses a little worse than the configured one, so the
+     * estimate errs on the side of storing content as it is.
+     */
+    private static long trialCompressedSize(byte[] head, int sample) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(head, 0, sample);
+            deflater.finish();
+            byte[] scratch = new byte[sample + 64];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(scratch);
+            }
+            return compressed;
+        } finally {
+            deflater.end();
+        }
+    }
+}
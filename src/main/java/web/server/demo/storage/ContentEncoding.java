@@ -0,0 +1,60 @@
+package web.server.demo.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The coding a blob is stored with. The names are the HTTP content-coding tokens, so a blob stored with a coding the
+ * client accepts can be sent as it is, with a matching <tt>Content-Encoding</tt>.
+ */
+public enum ContentEncoding {
+
+    IDENTITY("identity", ""),
+
+    GZIP("gzip", ".gz");
+
+    private static final int DECODE_BUFFER_SIZE = 8192;
+
+    private final String token;
+
+    private final String suffix;
+
+    ContentEncoding(String token, String suffix) {
+        this.token = token;
+        this.suffix = suffix;
+    }
+
+    /**
+     * @return the HTTP content-coding token
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return the suffix of the name of a blob file stored with this coding
+     */
+    String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Wraps a stream over content stored with this coding into a stream over the original content.
+     *
+     * @param stored the stored content
+     * @return an <tt>InputStream</tt> over the original content
+     * @throws IOException if the stored content could not be read
+     */
+    public InputStream decode(InputStream stored) throws IOException {
+        if (this == IDENTITY) {
+            return stored;
+        }
+        try {
+            return new GZIPInputStream(stored, DECODE_BUFFER_SIZE);
+        } catch (IOException e) {
+            stored.close();
+            throw e;
+        }
+    }
+}
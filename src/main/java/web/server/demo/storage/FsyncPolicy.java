@@ -0,0 +1,25 @@
+package web.server.demo.storage;
+
+/**
+ * How far the <tt>BlobStore</tt> goes to make sure a committed blob survives a crash of the machine, set with
+ * <tt>storage.fsync</tt>. Every step costs a disk flush per new blob; deduplicated blobs cost nothing.
+ */
+public enum FsyncPolicy {
+
+    /**
+     * The operating system decides when blobs reach the disk.
+     */
+    NONE,
+
+    /**
+     * The content of a blob is forced to disk before the blob is renamed into place, so a blob is never visible
+     * with partial content.
+     */
+    CONTENT,
+
+    /**
+     * Like {@link #CONTENT}, and the directories the blob was renamed into are forced to disk afterwards, so the
+     * blob cannot disappear once the database references it.
+     */
+    CONTENT_AND_DIRECTORY
+}
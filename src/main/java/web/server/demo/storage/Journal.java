@@ -0,0 +1,462 @@
+package web.server.demo.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append-only log of records, kept in memory-mapped segment files of a fixed size. Appending a record copies it
+ * into the mapping, so a record survives a crash of the process as soon as it was appended: the page cache holds it
+ * and the operating system writes it back. Surviving a crash of the machine takes a force of the segment, which
+ * the journal batches: a writer waiting for its record to be forced either forces every record appended so far, or
+ * waits for the force already running and then for the next one, so concurrent writers share the flushes.
+ * <p>
+ * Every record starts with its length, the CRC-32 of its content and a released flag. A record is released once
+ * whatever it stands for was stored elsewhere. A segment is reclaimed once all of its records were released and it
+ * is no longer appended to, or as soon as recovery finds none to hand out: its file is deleted and the journal drops
+ * its mapping, which the garbage collector unmaps once the content of its records is no longer read. Records left by
+ * a previous run are read back with {@link #recover()}, which stops at the first record that is torn or corrupt.
+ */
+public class Journal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final int HEADER_SIZE = 12;
+    private static final int CRC_OFFSET = 4;
+    private static final int FLAGS_OFFSET = 8;
+    private static final int RELEASED = 1;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final boolean force;
+
+    /*
+     * Held while records are copied into the active segment, but not while a segment is forced. Writers blocked on
+     * it may be virtual threads, so it is not a monitor.
+     */
+    private final Lock lock = new ReentrantLock();
+
+    private final Condition forced = lock.newCondition();
+
+    // The segments which were mapped and not reclaimed yet, including the active one
+    private final Set<Segment> segments = new HashSet<>();
+
+    private final long firstNewIndex;
+
+    private Segment active;
+
+    private long nextIndex;
+
+    private boolean forcing;
+
+    /**
+     * Opens the journal of a directory, creating the directory if needed.
+     *
+     * @param directory the directory of the segment files
+     * @param segmentSize the size of a segment, which bounds the size of a record
+     * @param force whether {@link #append(byte[], int)} waits for the record to be forced to disk
+     * @throws IOException if the directory could not be created or read
+     */
+    public Journal(Path directory, int segmentSize, boolean force) throws IOException {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Journal segments must be larger than " + HEADER_SIZE + " bytes");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.force = force;
+        for (Path path : segmentPaths()) {
+            nextIndex = Math.max(nextIndex, index(path) + 1);
+        }
+        this.firstNewIndex = nextIndex;
+    }
+
+    /**
+     * Reads the records of the segments left by a previous run which were not released, in the order they were
+     * appended. New records always go to new segments, so this can be called after records were appended.
+     *
+     * @return the records, to be released once they are no longer needed
+     * @throws IOException if a segment could not be read
+     */
+    public List<Record> recover() throws IOException {
+        List<Record> records = new ArrayList<>();
+        List<Path> paths = segmentPaths();
+        paths.removeIf(path -> index(path) >= firstNewIndex);
+        paths.sort(Comparator.comparingLong(Journal::index));
+        for (Path path : paths) {
+            Segment segment = Segment.map(path, Files.size(path), false);
+            List<Record> found = scan(segment);
+            lock.lock();
+            try {
+                segments.add(segment);
+                segment.live = found.size();
+                if (segment.live == 0) {
+                    reclaim(segment);
+                }
+            } finally {
+                lock.unlock();
+            }
+            records.addAll(found);
+        }
+        LOG.info("Recovered {} journal records from {} segments", records.size(), paths.size());
+        return records;
+    }
+
+    /**
+     * @return the number of segments which are mapped and were not reclaimed yet
+     */
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the size of the largest record that can be appended
+     */
+    public int getMaxRecordSize() {
+        return segmentSize - HEADER_SIZE;
+    }
+
+    /**
+     * Appends a record, in a new segment if it does not fit into the active one. If the journal forces its
+     * records, the call returns once the record was forced to disk.
+     *
+     * @param content the content of the record
+     * @param length the number of bytes of <tt>content</tt> making up the record
+     * @return the record
+     * @throws IOException if a segment could not be created or forced
+     */
+    public Record append(byte[] content, int length) throws IOException {
+        if (length <= 0 || length > getMaxRecordSize()) {
+            throw new IllegalArgumentException("Journal records must have between 1 and " + getMaxRecordSize()
+                    + " bytes, not " + length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, length);
+        Record record;
+        lock.lock();
+        try {
+            if (active == null || active.position + HEADER_SIZE + length > segmentSize) {
+                roll();
+            }
+            Segment segment = active;
+            int offset = segment.position;
+            segment.buffer.put(offset + HEADER_SIZE, content, 0, length);
+            segment.buffer.putInt(offset + FLAGS_OFFSET, 0);
+            segment.buffer.putInt(offset + CRC_OFFSET, (int) crc.getValue());
+            // the length comes last: a record is not read back before it is complete
+            segment.buffer.putInt(offset, length);
+            segment.position = offset + HEADER_SIZE + length;
+            segment.live++;
+            record = new Record(segment, offset, length);
+            if (force) {
+                try {
+                    awaitForced(segment, segment.position);
+                } catch (IOException e) {
+                    // the caller is told the record was not stored, it must not be recovered either
+                    segment.buffer.putInt(offset + FLAGS_OFFSET, RELEASED);
+                    record.released = true;
+                    segment.live--;
+                    throw e;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return record;
+    }
+
+    /**
+     * Releases records, reclaiming the segments which no longer hold a record that was not released, unless they
+     * are still appended to. The flags of the records are forced to disk if the journal forces its records, so that
+     * they are not recovered again; a reclaimed segment is deleted even if its flags could not be forced.
+     *
+     * @param records the records
+     * @throws IOException if a flag could not be forced to disk
+     */
+    public void release(Collection<Record> records) throws IOException {
+        Map<Segment, int[]> ranges = new HashMap<>();
+        lock.lock();
+        try {
+            for (Record record : records) {
+                if (record.released) {
+                    continue;
+                }
+                record.released = true;
+                Segment segment = record.segment;
+                segment.buffer.putInt(record.offset + FLAGS_OFFSET, RELEASED);
+                int[] range = ranges.computeIfAbsent(segment, ignored -> new int[]{record.offset, record.offset});
+                range[0] = Math.min(range[0], record.offset);
+                range[1] = Math.max(range[1], record.offset);
+                segment.live--;
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (force) {
+                for (Map.Entry<Segment, int[]> range : ranges.entrySet()) {
+                    forceRange(range.getKey(), range.getValue()[0], range.getValue()[1] + HEADER_SIZE);
+                }
+            }
+        } finally {
+            lock.lock();
+            try {
+                for (Segment segment : ranges.keySet()) {
+                    if (segment.live == 0 && segment != active) {
+                        reclaim(segment);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Forces the active segment to disk and stops using it. The segments still holding records stay on disk for
+     * the next run; the journal drops them all, and the content of records handed out stays readable until they
+     * are garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (active != null) {
+                retire(active);
+                active = null;
+            }
+            segments.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Called with the lock held. The previous segment is forced whole, so a writer waiting on it is done.
+     */
+    private void roll() throws IOException {
+        if (active != null) {
+            retire(active);
+        }
+        Path path = directory.resolve(String.format("%020d%s", nextIndex++, SEGMENT_SUFFIX));
+        active = Segment.map(path, segmentSize, true);
+        segments.add(active);
+        if (force) {
+            forceDirectory(directory);
+        }
+        LOG.debug("Journal segment {} created", path);
+    }
+
+    private void retire(Segment segment) throws IOException {
+        if (force) {
+            forceRange(segment, segment.forced, segment.position);
+            segment.forced = segment.position;
+            forced.signalAll();
+        }
+        if (segment.live == 0) {
+            reclaim(segment);
+        }
+    }
+
+    /*
+     * Called with the lock held. The first writer to find no force running forces every record appended to the
+     * segment so far, without the lock, so that others keep appending; they wait for the next force.
+     */
+    private void awaitForced(Segment segment, int position) throws IOException {
+        while (segment.forced < position) {
+            if (forcing) {
+                forced.awaitUninterruptibly();
+                continue;
+            }
+            forcing = true;
+            int from = segment.forced;
+            int to = segment.position;
+            lock.unlock();
+            try {
+                forceRange(segment, from, to);
+            } finally {
+                lock.lock();
+                forcing = false;
+                forced.signalAll();
+            }
+            segment.forced = Math.max(segment.forced, to);
+        }
+    }
+
+    private static void forceRange(Segment segment, int from, int to) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        try {
+            segment.buffer.force(from, to - from);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /*
+     * A record whose length or checksum is wrong was torn by a crash while it was appended, so nothing after it
+     * was acknowledged either.
+     */
+    private List<Record> scan(Segment segment) {
+        List<Record> records = new ArrayList<>();
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length > buffer.capacity() - offset - HEADER_SIZE) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(offset + HEADER_SIZE, length));
+            if ((int) crc.getValue() != buffer.getInt(offset + CRC_OFFSET)) {
+                LOG.warn("Journal segment {} has a corrupt record at {}, ignoring the rest", segment.path, offset);
+                break;
+            }
+            if (buffer.getInt(offset + FLAGS_OFFSET) != RELEASED) {
+                records.add(new Record(segment, offset, length));
+            }
+            offset += HEADER_SIZE + length;
+        }
+        segment.position = offset;
+        segment.forced = offset;
+        return records;
+    }
+
+    /*
+     * Called with the lock held. The file is deleted right away; its disk space and the mapping are given back once
+     * the mapping was garbage collected.
+     */
+    private void reclaim(Segment segment) {
+        if (!segments.remove(segment)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(segment.path);
+            LOG.debug("Journal segment {} deleted", segment.path);
+        } catch (IOException e) {
+            LOG.warn("Journal segment {} could not be deleted. Error: {}", segment.path, e.getMessage());
+        }
+    }
+
+    private List<Path> segmentPaths() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            segments.forEach(paths::add);
+        }
+        return paths;
+    }
+
+    private static long index(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /*
+     * Some platforms, e.g. Windows, cannot open a directory to flush it; there the new segment has to be trusted.
+     */
+    private static void forceDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, READ);
+        } catch (IOException e) {
+            LOG.debug("Directory {} cannot be forced to disk. Error: {}", directory, e.getMessage());
+            return;
+        }
+        try (FileChannel opened = channel) {
+            opened.force(true);
+        }
+    }
+
+    /**
+     * A record of the journal. Its content is a read-only view of the mapped segment, which stays readable after
+     * the record was released.
+     */
+    public static class Record {
+
+        private final Segment segment;
+
+        private final int offset;
+
+        private final int length;
+
+        private boolean released;
+
+        private Record(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return the content of the record, positioned at its beginning
+         */
+        public ByteBuffer getContent() {
+            return segment.buffer.slice(offset + HEADER_SIZE, length).asReadOnlyBuffer();
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /*
+     * The mapping outlives the channel it was created from, and the file: a segment deleted while the content of
+     * its records is still read stays mapped until the garbage collector drops the buffer. Segments are compared by
+     * identity.
+     */
+    private static class Segment {
+
+        private final Path path;
+
+        private final MappedByteBuffer buffer;
+
+        private int position;
+
+        private int forced;
+
+        private int live;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        private static Segment map(Path path, long size, boolean create) throws IOException {
+            try (FileChannel channel = create
+                    ? FileChannel.open(path, CREATE_NEW, READ, WRITE)
+                    : FileChannel.open(path, READ, WRITE)) {
+                return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package web.server.demo.storage;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An <tt>InputStream</tt> over at most <tt>length</tt> bytes of another stream, for reading a byte range of a
+ * payload. Closing it closes the underlying stream.
+ */
+public class RangeInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    /**
+     * @param in a stream positioned at the beginning of the range
+     * @param length the length of the range
+     */
+    public RangeInputStream(InputStream in, long length) {
+        super(in);
+        this.remaining = length;
+    }
+
+    /**
+     * Skips a stream to the beginning of a range, which is cheap for streams over buffers or mapped files and costs
+     * a read of the skipped bytes otherwise. The stream is closed if the range could not be reached.
+     *
+     * @param in the stream, positioned at its beginning
+     * @param offset the offset of the range
+     * @param length the length of the range
+     * @return a stream over the range
+     * @throws IOException if the stream ended before the offset or could not be read
+     */
+    public static RangeInputStream of(InputStream in, long offset, long length) throws IOException {
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long step = in.skip(offset - skipped);
+                if (step <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException("Stream ended " + (offset - skipped) + " bytes before the range");
+                    }
+                    step = 1;
+                }
+                skipped += step;
+            }
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+        return new RangeInputStream(in, length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int read = in.read();
+        if (read >= 0) {
+            remaining--;
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (remaining <= 0) {
+            return -1;
+        }
+        int read = in.read(bytes, offset, (int) Math.min(length, remaining));
+        if (read > 0) {
+            remaining -= read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = in.skip(Math.min(count, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
@@ -0,0 +1,53 @@
+package web.server.demo.storage;
+
+import java.nio.file.Path;
+
+/**
+ * A blob copied into a temporary file of the <tt>BlobStore</tt>, waiting to be committed.
+ */
+public class StagedBlob {
+
+    private final String digest;
+
+    private final long size;
+
+    private final ContentEncoding encoding;
+
+    private final long storedSize;
+
+    private final Path path;
+
+    public StagedBlob(String digest, long size, ContentEncoding encoding, long storedSize, Path path) {
+        this.digest = digest;
+        this.size = size;
+        this.encoding = encoding;
+        this.storedSize = storedSize;
+        this.path = path;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public ContentEncoding getEncoding() {
+        return encoding;
+    }
+
+    public long getStoredSize() {
+        return storedSize;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return "StagedBlob [digest=" + digest + ", size=" + size + ", encoding=" + encoding
+                + ", storedSize=" + storedSize + ", path=" + path + "]";
+    }
+}
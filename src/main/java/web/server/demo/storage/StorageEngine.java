@@ -0,0 +1,105 @@
+package web.server.demo.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Where the payloads of files are kept, as content-addressed blobs; the metadata stays in the database. The engine
+ * is chosen with <tt>storage.engine</tt>.
+ * <p>
+ * Writes happen in two steps: {@link #stage(InputStream)} copies and hashes the content into a temporary file and
+ * {@link #commit(StagedBlob)} makes it a blob. An engine does not know who references a blob, so callers are
+ * responsible for serializing commits and deletes of the same digest.
+ */
+public interface StorageEngine {
+
+    /**
+     * Copies the content into a temporary file, computing its digest on the way. The stream is read until its end
+     * and closed afterwards.
+     *
+     * @param content the content of the blob
+     * @return the staged blob, to be passed to either {@link #commit(StagedBlob)} or {@link #discard(StagedBlob)}
+     * @throws IOException if the content could not be read or written
+     */
+    StagedBlob stage(InputStream content) throws IOException;
+
+    /**
+     * Turns a staged blob into a blob. If a blob with the same digest already exists the staged copy is dropped
+     * instead.
+     *
+     * @param staged the staged blob
+     * @return <tt>true</tt> if the blob was new, <tt>false</tt> if it was deduplicated
+     * @throws IOException if the blob could not be written
+     */
+    boolean commit(StagedBlob staged) throws IOException;
+
+    /**
+     * Describes a committed blob, e.g. the one a staged blob was deduplicated against, which may have been stored
+     * with another coding.
+     *
+     * @param digest the digest of the blob
+     * @param size the size of the original content
+     * @return the stored blob
+     * @throws IOException if there is no such blob or it could not be read
+     */
+    StoredBlob describe(String digest, long size) throws IOException;
+
+    /**
+     * Drops a staged blob which is not going to be committed.
+     *
+     * @param staged the staged blob
+     */
+    void discard(StagedBlob staged);
+
+    /**
+     * Opens the content of a blob for reading, as it is stored.
+     *
+     * @param digest the digest of the blob
+     * @param encoding the coding the blob is stored with
+     * @return an <tt>InputStream</tt> positioned at the beginning of the blob
+     * @throws IOException if the blob could not be opened
+     */
+    InputStream open(String digest, ContentEncoding encoding) throws IOException;
+
+    /**
+     * Opens a byte range of a blob for reading, as it is stored. Engines able to seek should override this, the
+     * default reads and drops the bytes before the range.
+     *
+     * @param digest the digest of the blob
+     * @param encoding the coding the blob is stored with
+     * @param offset the offset of the range in the stored blob
+     * @param length the length of the range; the stream ends early if the blob does
+     * @return an <tt>InputStream</tt> over the range
+     * @throws IOException if the blob could not be opened or ends before the offset
+     */
+    default InputStream open(String digest, ContentEncoding encoding, long offset, long length) throws IOException {
+        return RangeInputStream.of(open(digest, encoding), offset, length);
+    }
+
+    /**
+     * Resolves the local file holding a blob, for callers that hand the file to the OS (e.g. sendfile) instead of
+     * copying its content through the JVM.
+     *
+     * @param digest the digest of the blob
+     * @param encoding the coding the blob is stored with
+     * @return the absolute <tt>Path</tt> of the blob
+     */
+    Path path(String digest, ContentEncoding encoding);
+
+    /**
+     * Lists the committed blobs, e.g. to find the ones the database has no record of.
+     *
+     * @return the digests of the blobs, in no particular order; the stream must be closed
+     * @throws IOException if the blobs could not be listed
+     */
+    Stream<String> digests() throws IOException;
+
+    /**
+     * Deletes a blob, whatever its coding. Missing blobs are ignored.
+     *
+     * @param digest the digest of the blob
+     */
+    void delete(String digest);
+}
@@ -0,0 +1,62 @@
+package web.server.demo.storage;
+
+import java.util.Objects;
+
+/**
+ * A blob committed to the <tt>BlobStore</tt>. The digest and the size are those of the original content, the
+ * stored size is what the blob takes on disk with its coding. Blobs are equal by digest and coding.
+ */
+public class StoredBlob {
+
+    private final String digest;
+
+    private final long size;
+
+    private final ContentEncoding encoding;
+
+    private final long storedSize;
+
+    public StoredBlob(String digest, long size, ContentEncoding encoding, long storedSize) {
+        this.digest = digest;
+        this.size = size;
+        this.encoding = encoding;
+        this.storedSize = storedSize;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public ContentEncoding getEncoding() {
+        return encoding;
+    }
+
+    public long getStoredSize() {
+        return storedSize;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(digest, encoding);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (object instanceof StoredBlob) {
+            StoredBlob other = (StoredBlob) object;
+            return Objects.equals(digest, other.digest) && encoding == other.encoding;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StoredBlob [digest=" + digest + ", size=" + size + ", encoding=" + encoding
+                + ", storedSize=" + storedSize + "]";
+    }
+}
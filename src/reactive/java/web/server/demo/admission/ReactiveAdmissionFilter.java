@@ -0,0 +1,61 @@
+package web.server.demo.admission;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.net.InetSocketAddress;
+
+import static org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type.REACTIVE;
+import static org.springframework.http.HttpHeaders.RETRY_AFTER;
+import static web.server.demo.client.Constants.BASE_API_PATH;
+
+/**
+ * Applies {@link AdmissionControl} to the requests of the reactive stack, like {@link AdmissionFilter} does on the
+ * servlet one. It only guards the API, and runs right after the metrics filter so that rejected requests still show
+ * up in <tt>http.server.requests</tt>. The response of an admitted request is charged once it is written, cancelled
+ * or failed.
+ */
+@Component
+@ConditionalOnWebApplication(type = REACTIVE)
+@ConditionalOnProperty(name = "admission.enabled", havingValue = "true")
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+public class ReactiveAdmissionFilter implements WebFilter {
+
+    private final AdmissionControl admissionControl;
+
+    public ReactiveAdmissionFilter(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        String path = request.getPath().pathWithinApplication().value();
+        if (!path.startsWith(BASE_API_PATH + "/")) {
+            return chain.filter(exchange);
+        }
+        InetSocketAddress remoteAddress = request.getRemoteAddress();
+        AdmissionControl.Admission admission = admissionControl.admit(
+                request.getHeaders().getFirst(admissionControl.getClientHeader()),
+                remoteAddress == null ? null : remoteAddress.getHostString(), path,
+                request.getHeaders().getContentLength());
+        ServerHttpResponse response = exchange.getResponse();
+        if (!admission.isAdmitted()) {
+            response.setStatusCode(HttpStatus.valueOf(admission.getStatus()));
+            response.getHeaders().set(RETRY_AFTER, String.valueOf(admission.getRetryAfterSeconds()));
+            return response.setComplete();
+        }
+        return chain.filter(exchange)
+                .doFinally(signal -> admission.complete(response.getHeaders().getContentLength()));
+    }
+}
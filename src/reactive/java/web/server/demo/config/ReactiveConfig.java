@@ -0,0 +1,53 @@
+package web.server.demo.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import web.server.demo.controller.ContentStream;
+
+import static org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type.REACTIVE;
+
+/**
+ * The WebFlux stack, used when <tt>spring.main.web-application-type</tt> is <tt>reactive</tt>.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = REACTIVE)
+public class ReactiveConfig implements WebFluxConfigurer {
+
+    public static final String BLOCKING_SCHEDULER = "blockingScheduler";
+
+    @Value("${reactive.blocking.threads}")
+    private int threads;
+
+    @Value("${reactive.blocking.queue-capacity}")
+    private int queueCapacity;
+
+    /*
+     * Tomcat stays on the classpath for the servlet stack, and Boot would pick it over Netty to run WebFlux
+     */
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+
+    /*
+     * JDBC, the blob store and the caches block, and a blocked event loop stalls every connection it serves. The
+     * reactive controller runs such calls on this scheduler instead: a fixed number of threads with a bounded queue,
+     * so that a flood of requests is rejected rather than queued without limit.
+     */
+    @Bean(name = BLOCKING_SCHEDULER, destroyMethod = "dispose")
+    public Scheduler blockingScheduler() {
+        return Schedulers.newBoundedElastic(threads, queueCapacity, "blocking");
+    }
+
+    @Override
+    public void configureHttpMessageCodecs(ServerCodecConfigurer configurer) {
+        configurer.customCodecs().register(new ContentStream.Writer());
+    }
+}
@@ -0,0 +1,71 @@
+package web.server.demo.controller;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ReactiveHttpOutputMessage;
+import org.springframework.http.codec.HttpMessageWriter;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The whole of a payload, as a stream of buffers of a known length. WebFlux cuts a <tt>Resource</tt> body into the
+ * byte ranges of the request, and serializes a bare <tt>Flux</tt> of buffers returned as a <tt>ResponseEntity&lt;?&gt;
+ * </tt> as JSON, as it cannot see the type of its elements; a <tt>ContentStream</tt> is written by its
+ * <tt>Writer</tt> as it is, whatever the request asks for.
+ */
+public final class ContentStream {
+
+    private final Flux<DataBuffer> content;
+
+    private final long length;
+
+    public ContentStream(Flux<DataBuffer> content, long length) {
+        this.content = content;
+        this.length = length;
+    }
+
+    public Flux<DataBuffer> getContent() {
+        return content;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Writes <tt>ContentStream</tt> bodies, as <tt>application/octet-stream</tt> unless the response has a content
+     * type already.
+     */
+    public static class Writer implements HttpMessageWriter<ContentStream> {
+
+        @Override
+        public List<MediaType> getWritableMediaTypes() {
+            return Collections.singletonList(MediaType.ALL);
+        }
+
+        @Override
+        public boolean canWrite(ResolvableType elementType, MediaType mediaType) {
+            return ContentStream.class.isAssignableFrom(elementType.toClass());
+        }
+
+        @Override
+        public Mono<Void> write(Publisher<? extends ContentStream> inputStream, ResolvableType elementType,
+                                MediaType mediaType, ReactiveHttpOutputMessage message, Map<String, Object> hints) {
+            return Mono.from(inputStream).flatMap(stream -> {
+                HttpHeaders headers = message.getHeaders();
+                if (headers.getContentType() == null) {
+                    headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+                }
+                headers.setContentLength(stream.getLength());
+                return message.writeWith(stream.getContent());
+            });
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package web.server.demo.controller;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.BaseSubscriber;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a stream of <tt>DataBuffer</tt>s, such as the content of a part of a reactive request, as an
+ * <tt>InputStream</tt>, so that the blocking storage code can consume it. Buffers are requested as they are read:
+ * at most {@value #PREFETCH} of them wait for the reader, which keeps memory use independent of the size of the
+ * content and makes a slow reader slow the sender down. Reads block, so the stream must not be read on an event
+ * loop.
+ * <p>
+ * The stream subscribes to the content as soon as it is created. Closing it before the end of the content discards
+ * the rest rather than cancelling it: the parts of a streamed multipart request follow each other in the body, so
+ * a part which is not read to its end would hold back the ones after it.
+ * <p>
+ * The stream may be closed from another thread while it is read, e.g. once the request it belongs to timed out.
+ * Reads and closing are serialized, so a read never touches a released buffer, and a reader waiting for content is
+ * woken up rather than left waiting for a sender which is no longer read.
+ */
+class DataBufferInputStream extends InputStream {
+
+    private static final int PREFETCH = 2;
+
+    private static final Object COMPLETE = new Object();
+
+    private static final Object CLOSED = new Object();
+
+    // The buffers requested, the end of the content and the wake-up of a closing thread
+    private final BlockingQueue<Object> signals = new ArrayBlockingQueue<>(PREFETCH + 2);
+
+    private final ContentSubscriber subscriber = new ContentSubscriber();
+
+    // Guarded by this, like done
+    private DataBuffer current;
+
+    private boolean done;
+
+    private volatile boolean closed;
+
+    DataBufferInputStream(Publisher<DataBuffer> content) {
+        content.subscribe(subscriber);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    /*
+     * Waits for content without holding the lock, so that closing the stream does not wait for the sender
+     */
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (current != null && current.readableByteCount() > 0) {
+                    int read = Math.min(length, current.readableByteCount());
+                    current.read(bytes, offset, read);
+                    return read;
+                }
+                if (current != null) {
+                    DataBufferUtils.release(current);
+                    current = null;
+                    subscriber.request(1);
+                }
+                if (done) {
+                    return -1;
+                }
+            }
+            accept(take());
+        }
+    }
+
+    @Override
+    public synchronized int available() {
+        return current == null ? 0 : current.readableByteCount();
+    }
+
+    @Override
+    public void close() {
+        boolean complete;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            release(current);
+            current = null;
+            complete = done;
+        }
+        drain();
+        signals.offer(CLOSED);
+        if (!complete) {
+            subscriber.request(Long.MAX_VALUE);
+        }
+    }
+
+    private Object take() throws IOException {
+        try {
+            return signals.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for content");
+        }
+    }
+
+    /*
+     * A signal taken by a stream which was closed meanwhile is released rather than read
+     */
+    private synchronized void accept(Object signal) throws IOException {
+        if (closed) {
+            release(signal);
+            throw new IOException("Stream closed");
+        }
+        if (signal == COMPLETE) {
+            done = true;
+        } else if (signal instanceof Throwable) {
+            done = true;
+            throw new IOException("Content could not be received", (Throwable) signal);
+        } else {
+            current = (DataBuffer) signal;
+        }
+    }
+
+    private void drain() {
+        for (Object signal = signals.poll(); signal != null; signal = signals.poll()) {
+            release(signal);
+        }
+    }
+
+    private static void release(Object signal) {
+        if (signal instanceof DataBuffer) {
+            DataBufferUtils.release((DataBuffer) signal);
+        }
+    }
+
+    /*
+     * Never has more buffers outstanding than the queue holds besides the end of the content and the wake-up, so
+     * offering a signal always succeeds
+     */
+    private class ContentSubscriber extends BaseSubscriber<DataBuffer> {
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            subscription.request(PREFETCH);
+        }
+
+        @Override
+        protected void hookOnNext(DataBuffer buffer) {
+            if (closed) {
+                DataBufferUtils.release(buffer);
+                return;
+            }
+            signals.offer(buffer);
+            if (closed) {
+                drain();
+            }
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            signals.offer(COMPLETE);
+        }
+
+        @Override
+        protected void hookOnError(Throwable error) {
+            signals.offer(error);
+        }
+    }
+}
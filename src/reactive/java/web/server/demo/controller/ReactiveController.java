@@ -0,0 +1,428 @@
+package web.server.demo.controller;
+
+import io.micrometer.core.annotation.Timed;
+import io.swagger.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.codec.multipart.Part;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import springfox.documentation.annotations.ApiIgnore;
+import web.server.demo.client.DemoSpi;
+import web.server.demo.metrics.TransferMetrics;
+import web.server.demo.repository.FileData;
+import web.server.demo.service.NotDrainedException;
+import web.server.demo.service.RepoService;
+import web.server.demo.service.UploadResult;
+import web.server.demo.storage.ContentEncoding;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication.Type.REACTIVE;
+import static org.springframework.http.HttpHeaders.ACCEPT_ENCODING;
+import static org.springframework.http.HttpHeaders.CONTENT_DISPOSITION;
+import static org.springframework.http.HttpHeaders.CONTENT_ENCODING;
+import static org.springframework.http.HttpHeaders.RETRY_AFTER;
+import static org.springframework.http.HttpStatus.*;
+import static web.server.demo.client.Constants.*;
+import static web.server.demo.config.ReactiveConfig.BLOCKING_SCHEDULER;
+import static web.server.demo.metrics.MetricNames.OPERATIONS;
+import static web.server.demo.metrics.MetricNames.OPERATION_TAG;
+
+/**
+ * The <tt>DemoSpi</tt> operations on WebFlux, with the paths, parameters and responses of <tt>Controller</tt>. Only
+ * the ids of files to be replaced have to be sent as query parameters, as the multipart body is not parsed into
+ * parameters.
+ * <p>
+ * Multipart uploads are streamed: every file is handed to <tt>RepoService</tt> while its part arrives, through a
+ * <tt>DataBufferInputStream</tt>, so a file is neither buffered in memory nor written to a temporary file before
+ * it is stored. Files the client accepts in their stored coding are sent as <tt>Resource</tt>s of the blob, which
+ * Netty writes, whole or as byte ranges, straight from the file. Calls to <tt>RepoService</tt> and reads of
+ * payloads which have to be decoded block, so they run on the bounded blocking scheduler, never on an event loop.
+ * Like the futures of <tt>Controller</tt>, a call taking longer than <tt>reactive.request-timeout</tt> is answered
+ * with a <tt>503</tt>.
+ */
+@RestController
+@ConditionalOnWebApplication(type = REACTIVE)
+@Api(value = "Web server API")
+@RequestMapping(BASE_API_PATH)
+public class ReactiveController implements DemoSpi<FilePart> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReactiveController.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final RepoService repoService;
+
+    private final TransferMetrics transferMetrics;
+
+    private final Scheduler blockingScheduler;
+
+    private final Duration requestTimeout;
+
+    @Autowired
+    public ReactiveController(RepoService repoService, TransferMetrics transferMetrics,
+                              @Qualifier(BLOCKING_SCHEDULER) Scheduler blockingScheduler,
+                              @Value("${reactive.request-timeout}") Duration requestTimeout) {
+        this.repoService = repoService;
+        this.transferMetrics = transferMetrics;
+        this.blockingScheduler = blockingScheduler;
+        this.requestTimeout = requestTimeout;
+    }
+
+    public CompletableFuture<ResponseEntity<?>> add(FilePart file) {
+        return save(file).handle((fileData, error) -> error == null
+                ? ResponseEntity.ok("File added successfully")
+                : failure(error, "File " + file.filename() + " could not be saved"));
+    }
+
+    /*
+     * Only the first file is saved, the parts after it are read and discarded
+     */
+    @PostMapping(ADD_FILE_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "add_file"}, histogram = true)
+    @ApiOperation("Add a file into the repository")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "File added successfully"),
+            @ApiResponse(code = 400, message = "No file in the request"),
+            @ApiResponse(code = 500, message = "File <file> could not be saved")
+    })
+    public CompletableFuture<ResponseEntity<?>> add(@ApiIgnore @RequestBody Flux<Part> parts) {
+        return files(parts, FILE_PARAMETER)
+                .index()
+                .concatMap(file -> file.getT1() == 0
+                        ? Mono.fromFuture(add(file.getT2()))
+                        : discard(file.getT2()))
+                .singleOrEmpty()
+                .defaultIfEmpty(new ResponseEntity<>("No file in the request", BAD_REQUEST))
+                .toFuture();
+    }
+
+    public CompletableFuture<ResponseEntity<?>> add(FilePart[] files) {
+        return saveAll(Flux.fromArray(files));
+    }
+
+    /*
+     * The files are saved one after the other, in the order of the request
+     *
+     * curl -X POST "http://localhost:8080/api/v1/add/files" -F "files=@/path/to/file1.png" -F "files=@file2.png"
+     */
+    @PostMapping(ADD_FILES_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "add_files"}, histogram = true)
+    @ApiOperation("Add an array of files to the repository, returning the outcome of every file")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "All files were added"),
+            @ApiResponse(code = 207, message = "Some files could not be saved"),
+            @ApiResponse(code = 400, message = "No file in the request"),
+            @ApiResponse(code = 500, message = "Files could not be saved")
+    })
+    public CompletableFuture<ResponseEntity<?>> addAll(@ApiIgnore @RequestBody Flux<Part> parts) {
+        return saveAll(files(parts, FILES_PARAMETER));
+    }
+
+    public CompletableFuture<ResponseEntity<?>> retrieve(long id) {
+        return retrieve(id, HttpHeaders.EMPTY);
+    }
+
+    /*
+     * A payload sent in its stored coding is a file Resource, which WebFlux writes with zero-copy file regions and
+     * cuts into the requested byte ranges. A stale If-Range asks for the whole file: the payload is then sent as a
+     * ContentStream, which is never cut, read through an asynchronous file channel. A payload stored compressed, for
+     * a client not accepting its coding, is decoded on the blocking scheduler and sent whole as well, like one still
+     * in the write-behind journal.
+     */
+    @GetMapping(RETRIEVE_BY_ID_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "retrieve_by_id"}, histogram = true)
+    @ApiOperation("Retrieve an element from the repository by its id")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 206, message = "Partial content"),
+            @ApiResponse(code = 304, message = "Not modified"),
+            @ApiResponse(code = 404, message = "File not found"),
+            @ApiResponse(code = 500, message = "File could not be retrieved")
+    })
+    public CompletableFuture<ResponseEntity<?>> retrieve(
+            @ApiParam(value = "The id associated with the file to be retrieved", required = true)
+            @RequestParam(ID_PARAMETER) long id,
+            @ApiIgnore @RequestHeader HttpHeaders headers) {
+        return blocking(() -> repoService.getById(id)).handle((fileData, error) -> {
+            if (error != null) {
+                return failure(error, "File could not be retrieved");
+            }
+            ContentEncoding encoding = AcceptEncoding.negotiate(headers.getFirst(ACCEPT_ENCODING), fileData);
+            if (ConditionalRequests.isNotModified(headers, fileData, encoding)) {
+                return ConditionalRequests.validators(ResponseEntity.status(NOT_MODIFIED), fileData, encoding).build();
+            }
+            ResponseEntity.BodyBuilder response = ConditionalRequests
+                    .validators(ResponseEntity.ok(), fileData, encoding)
+                    .header(CONTENT_DISPOSITION, "attachment; filename=\"" + fileData.getName() + "\"");
+            if (encoding != ContentEncoding.IDENTITY) {
+                response.header(CONTENT_ENCODING, encoding.getToken());
+            }
+            Path path = repoService.getContentPath(fileData);
+            if (encoding != fileData.getEncoding() || path == null) {
+                transferMetrics.sent(fileData.getSize());
+                Flux<DataBuffer> content = DataBufferUtils
+                        .readInputStream(() -> repoService.openContent(fileData),
+                                DefaultDataBufferFactory.sharedInstance, BUFFER_SIZE)
+                        .subscribeOn(blockingScheduler);
+                return response.body(new ContentStream(content, fileData.getSize()));
+            }
+            long length = encoding == ContentEncoding.IDENTITY ? fileData.getSize() : fileData.getStoredSize();
+            String ifRange = headers.getFirst(HttpHeaders.IF_RANGE);
+            if (ifRange != null && !ifRange.equals(ConditionalRequests.etag(fileData, encoding))) {
+                transferMetrics.sent(length);
+                Flux<DataBuffer> content = DataBufferUtils.read(path, DefaultDataBufferFactory.sharedInstance,
+                        BUFFER_SIZE);
+                return response.body(new ContentStream(content, length));
+            }
+            Resource resource = new FileSystemResource(path);
+            transferMetrics.sent(sentLength(headers, resource, length));
+            return response.body(resource);
+        });
+    }
+
+    /*
+     * The payload bytes WebFlux writes for the Range header of a request, cut the way ResourceHttpMessageWriter cuts
+     * them: the whole resource without ranges, and nothing if they cannot be satisfied, as the request then fails.
+     */
+    private static long sentLength(HttpHeaders headers, Resource resource, long length) {
+        try {
+            List<HttpRange> ranges = headers.getRange();
+            if (ranges.isEmpty()) {
+                return length;
+            }
+            return HttpRange.toResourceRegions(ranges, resource).stream().mapToLong(ResourceRegion::getCount).sum();
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    public CompletableFuture<ResponseEntity<?>> retrieve(String prefix) {
+        return CompletableFuture.completedFuture(retrieve(prefix, null));
+    }
+
+    /*
+     * Served from the in-memory name index, so it runs on the event loop
+     */
+    @GetMapping(RETRIEVE_BY_PREFIX_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "retrieve_by_prefix"}, histogram = true)
+    @ApiOperation("Retrieve a list of elements names from the repository")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "OK")
+    })
+    public ResponseEntity<String> retrieve(
+            @ApiParam(value = "The prefix of the files' names to be retrieved", required = true)
+            @RequestParam(PREFIX_PARAMETER) String prefix,
+            @ApiParam(value = "The maximum number of names to be retrieved")
+            @RequestParam(value = LIMIT_PARAMETER, required = false) Integer limit) {
+        int maxNames = limit == null ? Integer.MAX_VALUE : limit;
+        return ResponseEntity.ok(repoService.getByNameStartingWith(prefix, maxNames).toString());
+    }
+
+    @GetMapping(RETRIEVE_ALL_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "retrieve_all"}, histogram = true)
+    @ApiOperation("Retrieve a list of all file names from the repository")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 500, message = "File names could not be retrieved")
+    })
+    public CompletableFuture<ResponseEntity<?>> retrieve() {
+        return blocking(repoService::getAll).handle((fileNames, error) -> error == null
+                ? ResponseEntity.ok(fileNames.toString())
+                : failure(error, "File names could not be retrieved"));
+    }
+
+    @PutMapping(FILE_RENAME_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "rename"}, histogram = true)
+    @ApiOperation("Rename a file in the repository")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "File updated successfully"),
+            @ApiResponse(code = 404, message = "File not found"),
+            @ApiResponse(code = 500, message = "File could not be renamed"),
+            @ApiResponse(code = 503, message = "File is still being saved")
+    })
+    public CompletableFuture<ResponseEntity<?>> rename(
+            @ApiParam(value = "The id associated with the file to be renamed", required = true)
+            @RequestParam(ID_PARAMETER) long id,
+            @ApiParam(value = "The new name of the file", required = true)
+            @RequestParam(NAME_PARAMETER) String name) {
+        return blocking(() -> repoService.rename(id, name)).handle((renamed, error) -> error == null
+                ? ResponseEntity.ok("File updated successfully")
+                : failure(error, "File could not be renamed"));
+    }
+
+    public CompletableFuture<ResponseEntity<?>> replace(long id, FilePart file) {
+        DataBufferInputStream content = new DataBufferInputStream(file.content());
+        return blocking(() -> repoService.replace(id, file.filename(), () -> content))
+                .whenComplete((replaced, error) -> content.close())
+                .handle((replaced, error) -> error == null
+                        ? ResponseEntity.ok("File replaced successfully")
+                        : failure(error, "File " + file.filename() + " could not be replaced"));
+    }
+
+    @PostMapping(FILE_REPLACE_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "replace"}, histogram = true)
+    @ApiOperation("Replace a file in the repository")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "File replaced successfully"),
+            @ApiResponse(code = 400, message = "No file in the request"),
+            @ApiResponse(code = 500, message = "File could not be replaced"),
+            @ApiResponse(code = 503, message = "File is still being saved")
+    })
+    public CompletableFuture<ResponseEntity<?>> replace(
+            @ApiParam(value = "The id associated with the file to be replaced", required = true)
+            @RequestParam(ID_PARAMETER) long id,
+            @ApiIgnore @RequestBody Flux<Part> parts) {
+        return files(parts, FILE_PARAMETER)
+                .index()
+                .concatMap(file -> file.getT1() == 0
+                        ? Mono.fromFuture(replace(id, file.getT2()))
+                        : discard(file.getT2()))
+                .singleOrEmpty()
+                .defaultIfEmpty(new ResponseEntity<>("No file in the request", BAD_REQUEST))
+                .toFuture();
+    }
+
+    @DeleteMapping(REMOVE_FILE_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "remove_file"}, histogram = true)
+    @ApiOperation("Remove a file from the repository")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "File removed successfully"),
+            @ApiResponse(code = 404, message = "File not found"),
+            @ApiResponse(code = 500, message = "File could not be removed"),
+            @ApiResponse(code = 503, message = "File is still being saved")
+    })
+    public CompletableFuture<ResponseEntity<?>> remove(
+            @ApiParam(value = "The id associated with the file to be removed", required = true)
+            @RequestParam(ID_PARAMETER) long id) {
+        return blocking(() -> repoService.deleteById(id)).handle((removed, error) -> error == null
+                ? ResponseEntity.ok("File removed successfully")
+                : failure(error, "File could not be removed"));
+    }
+
+    @DeleteMapping(REMOVE_FILES_PATH)
+    @Timed(value = OPERATIONS, extraTags = {OPERATION_TAG, "remove_files"}, histogram = true)
+    @ApiOperation("Remove a list of files from the repository")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Files removed successfully"),
+            @ApiResponse(code = 500, message = "Files could not be removed"),
+            @ApiResponse(code = 503, message = "File is still being saved")
+    })
+    public CompletableFuture<ResponseEntity<?>> remove(
+            @ApiParam(value = "The ids associated with the files to be removed", required = true)
+            @RequestParam(IDS_PARAMETER) long[] ids) {
+        return blocking(() -> repoService.deleteAllByIds(ids)).handle((removed, error) -> error == null
+                ? ResponseEntity.ok("Files removed successfully")
+                : failure(error, "Files could not be removed"));
+    }
+
+    private CompletableFuture<ResponseEntity<?>> saveAll(Flux<FilePart> files) {
+        return files
+                .concatMap(file -> Mono.fromFuture(save(file).handle((fileData, error) -> {
+                    if (error != null) {
+                        LOG.error("File {} could not be saved. Error: {}", file.filename(), error.getMessage());
+                        return UploadResult.failure(file.filename(), "File could not be saved");
+                    }
+                    return UploadResult.success(fileData.getName(), fileData.getId());
+                })))
+                .collectList()
+                .map(ReactiveController::response)
+                .toFuture();
+    }
+
+    private static ResponseEntity<?> response(List<UploadResult> results) {
+        if (results.isEmpty()) {
+            return new ResponseEntity<>("No file in the request", BAD_REQUEST);
+        }
+        long failures = results.stream().filter(result -> !result.isSuccess()).count();
+        HttpStatus status = failures == 0 ? OK : failures < results.size() ? MULTI_STATUS : INTERNAL_SERVER_ERROR;
+        return new ResponseEntity<>(results, status);
+    }
+
+    /*
+     * The content is subscribed to right away and read on the upload executor. Closing it once the file is saved,
+     * or could not be, discards whatever is left of the part. After a timeout the upload executor may still be
+     * reading it; the close then fails that read instead of releasing the buffer under it.
+     */
+    private CompletableFuture<FileData> save(FilePart file) {
+        DataBufferInputStream content = new DataBufferInputStream(file.content());
+        return blocking(() -> repoService.save(file.filename(), () -> content))
+                .whenComplete((fileData, error) -> content.close());
+    }
+
+    /*
+     * The file parts with the given name, in the order of the request. Streamed parts have to be read to their end
+     * to get to the next one, so the other parts are read and discarded.
+     */
+    private static Flux<FilePart> files(Flux<Part> parts, String name) {
+        return parts.concatMap(part -> part instanceof FilePart && name.equals(part.name())
+                ? Mono.just((FilePart) part)
+                : discard(part));
+    }
+
+    private static <T> Mono<T> discard(Part part) {
+        return part.content().doOnNext(DataBufferUtils::release).then(Mono.empty());
+    }
+
+    /*
+     * Calls RepoService on the blocking scheduler. Even the @Async methods may block the calling thread: their
+     * executor runs tasks on the caller when it is saturated.
+     */
+    private <T> CompletableFuture<T> blocking(Callable<CompletableFuture<T>> call) {
+        return Mono.fromCallable(call)
+                .subscribeOn(blockingScheduler)
+                .flatMap(Mono::fromFuture)
+                .timeout(requestTimeout)
+                .toFuture();
+    }
+
+    /*
+     * Like Controller.failure, but a full blocking scheduler and a call which timed out are reported as an
+     * overloaded server
+     */
+    private static ResponseEntity<?> failure(Throwable error, String message) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof NoSuchElementException) {
+            return new ResponseEntity<>("File not found", NOT_FOUND);
+        }
+        if (cause instanceof NotDrainedException) {
+            return ResponseEntity.status(SERVICE_UNAVAILABLE).header(RETRY_AFTER, "1").body(cause.getMessage());
+        }
+        if (cause instanceof RejectedExecutionException) {
+            LOG.warn("{}. The blocking scheduler is saturated", message);
+            return new ResponseEntity<>("Server is busy", SERVICE_UNAVAILABLE);
+        }
+        if (cause instanceof TimeoutException) {
+            LOG.warn("{}. The request timed out", message);
+            return new ResponseEntity<>("Server is busy", SERVICE_UNAVAILABLE);
+        }
+        LOG.error("{}. Error: {}", message, cause.getMessage());
+        return new ResponseEntity<>(message, INTERNAL_SERVER_ERROR);
+    }
+}
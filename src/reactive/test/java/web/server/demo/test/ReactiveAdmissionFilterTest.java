@@ -0,0 +1,98 @@
+package web.server.demo.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+import web.server.demo.admission.AdmissionControl;
+import web.server.demo.admission.ReactiveAdmissionFilter;
+import web.server.demo.metrics.MetricNames;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+import static org.springframework.http.HttpHeaders.RETRY_AFTER;
+import static web.server.demo.client.Constants.*;
+
+public class ReactiveAdmissionFilterTest {
+
+    private static final String API_KEY_HEADER = "X-API-Key";
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private ReactiveAdmissionFilter admissionFilter;
+
+    @Before
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        admissionFilter = new ReactiveAdmissionFilter(new AdmissionControl(API_KEY_HEADER, 1, 2, 1024, 1024, 1,
+                Duration.ofSeconds(3), meterRegistry));
+    }
+
+    @Test
+    public void testRejectsClientOverItsRequestRate() {
+        assertNull(filter(request(RETRIEVE_ALL_PATH, "a")).getResponse().getStatusCode());
+        assertNull(filter(request(RETRIEVE_ALL_PATH, "a")).getResponse().getStatusCode());
+
+        MockServerWebExchange rejected = filter(request(RETRIEVE_ALL_PATH, "a"));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, rejected.getResponse().getStatusCode());
+        assertEquals("1", rejected.getResponse().getHeaders().getFirst(RETRY_AFTER));
+        assertNull(filter(request(RETRIEVE_ALL_PATH, "b")).getResponse().getStatusCode());
+        assertEquals(1, meterRegistry.get(MetricNames.ADMISSION_REJECTED)
+                .tag(MetricNames.LIMIT_TAG, "requests").counter().count(), 0);
+    }
+
+    @Test
+    public void testChargesTheResponseOnceItIsWritten() {
+        WebFilterChain download = exchange -> {
+            exchange.getResponse().getHeaders().setContentLength(4096);
+            return Mono.empty();
+        };
+        admissionFilter.filter(MockServerWebExchange.from(request(RETRIEVE_BY_ID_PATH, "a")), download).block();
+
+        MockServerWebExchange rejected = filter(request(RETRIEVE_ALL_PATH, "a"));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, rejected.getResponse().getStatusCode());
+        assertEquals("3", rejected.getResponse().getHeaders().getFirst(RETRY_AFTER));
+    }
+
+    @Test
+    public void testLimitsConcurrentUploads() {
+        MockServerWebExchange[] concurrent = new MockServerWebExchange[1];
+        WebFilterChain uploading = exchange -> {
+            concurrent[0] = filter(request(UPLOAD_PART_PATH, "b"));
+            return Mono.empty();
+        };
+
+        MockServerWebExchange first = MockServerWebExchange.from(request(UPLOAD_PART_PATH, "a"));
+        admissionFilter.filter(first, uploading).block();
+
+        assertNull(first.getResponse().getStatusCode());
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, concurrent[0].getResponse().getStatusCode());
+        assertEquals("3", concurrent[0].getResponse().getHeaders().getFirst(RETRY_AFTER));
+        assertNull(filter(request(UPLOAD_PART_PATH, "b")).getResponse().getStatusCode());
+    }
+
+    @Test
+    public void testLeavesPathsOutsideTheApiAlone() {
+        for (int i = 0; i < 5; i++) {
+            MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/actuator/health")
+                    .header(API_KEY_HEADER, "a"));
+            admissionFilter.filter(exchange, e -> Mono.empty()).block();
+            assertNull(exchange.getResponse().getStatusCode());
+        }
+    }
+
+    private MockServerWebExchange filter(MockServerHttpRequest request) {
+        MockServerWebExchange exchange = MockServerWebExchange.from(request);
+        admissionFilter.filter(exchange, e -> Mono.empty()).block();
+        return exchange;
+    }
+
+    private static MockServerHttpRequest request(String path, String apiKey) {
+        return MockServerHttpRequest.post(BASE_API_PATH + path).header(API_KEY_HEADER, apiKey).build();
+    }
+}
@@ -0,0 +1,186 @@
+package web.server.demo.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.reactive.function.BodyInserters;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import web.server.demo.controller.ContentStream;
+import web.server.demo.controller.ReactiveController;
+import web.server.demo.metrics.TransferMetrics;
+import web.server.demo.repository.FileData;
+import web.server.demo.service.RepoService;
+import web.server.demo.storage.ContentEncoding;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpHeaders.*;
+import static web.server.demo.client.Constants.*;
+import static web.server.demo.data.TestData.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReactiveControllerTest {
+
+    private static final String LARGE_CONTENT = String.join("", Collections.nCopies(100_000, "0123456789"));
+
+    @Rule
+    public TemporaryFolder storageRoot = new TemporaryFolder();
+
+    @Mock
+    private RepoService repoService;
+
+    @Mock
+    private TransferMetrics transferMetrics;
+
+    private Scheduler blockingScheduler;
+
+    private WebTestClient webTestClient;
+
+    @Before
+    public void setUp() {
+        blockingScheduler = Schedulers.newBoundedElastic(4, 16, "test-blocking");
+        webTestClient = WebTestClient
+                .bindToController(new ReactiveController(repoService, transferMetrics, blockingScheduler,
+                        Duration.ofSeconds(10)))
+                .httpMessageCodecs(configurer -> configurer.customCodecs().register(new ContentStream.Writer()))
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        blockingScheduler.dispose();
+    }
+
+    @Test
+    public void testAddFilesAreStreamedInOrder() {
+        List<String> received = new ArrayList<>();
+        when(repoService.save(anyString(), any(InputStreamSource.class))).thenAnswer(invocation -> {
+            String name = invocation.getArgument(0);
+            try (InputStream in = invocation.<InputStreamSource>getArgument(1).getInputStream()) {
+                received.add(name + "=" + StreamUtils.copyToString(in, StandardCharsets.UTF_8).length());
+            }
+            if (name.startsWith("bad")) {
+                return CompletableFuture.failedFuture(new IOException("Disk full"));
+            }
+            FileData fileData = new FileData(name, FILE_CONTENT.length(), DIGEST);
+            fileData.setId(received.size());
+            return CompletableFuture.completedFuture(fileData);
+        });
+
+        MultipartBodyBuilder body = new MultipartBodyBuilder();
+        body.part(FILES_PARAMETER, resource(LARGE_CONTENT, "large.txt"));
+        body.part(NAME_PARAMETER, "ignored");
+        body.part(FILES_PARAMETER, resource(FILE_CONTENT, "bad.txt"));
+        body.part(FILES_PARAMETER, resource(FILE_CONTENT, TXT_FILE));
+
+        webTestClient.post().uri(BASE_API_PATH + ADD_FILES_PATH)
+                .body(BodyInserters.fromMultipartData(body.build()))
+                .exchange()
+                .expectStatus().isEqualTo(207)
+                .expectBody()
+                .jsonPath("$[0].id").isEqualTo(1)
+                .jsonPath("$[1].success").isEqualTo(false)
+                .jsonPath("$[1].error").isEqualTo("File could not be saved")
+                .jsonPath("$[2].name").isEqualTo(TXT_FILE);
+        assertEquals(List.of("large.txt=" + LARGE_CONTENT.length(), "bad.txt=" + FILE_CONTENT.length(),
+                TXT_FILE + "=" + FILE_CONTENT.length()), received);
+    }
+
+    @Test
+    public void testAddWithoutFile() {
+        MultipartBodyBuilder body = new MultipartBodyBuilder();
+        body.part(NAME_PARAMETER, TXT_FILE);
+
+        webTestClient.post().uri(BASE_API_PATH + ADD_FILE_PATH)
+                .body(BodyInserters.fromMultipartData(body.build()))
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    @Test
+    public void testRetrieveServesStoredFileAndRanges() throws IOException {
+        Path blob = storageRoot.newFile().toPath();
+        Files.write(blob, FILE_CONTENT.getBytes());
+        FileData fileData = new FileData(TXT_FILE, FILE_CONTENT.length(), DIGEST);
+        when(repoService.getById(ID)).thenReturn(CompletableFuture.completedFuture(fileData));
+        when(repoService.getContentPath(fileData)).thenReturn(blob);
+
+        webTestClient.get().uri(BASE_API_PATH + RETRIEVE_BY_ID_PATH + "?" + ID_PARAMETER + "=" + ID)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(ETAG, "\"" + DIGEST + "\"")
+                .expectBody(String.class).isEqualTo(FILE_CONTENT);
+        webTestClient.get().uri(BASE_API_PATH + RETRIEVE_BY_ID_PATH + "?" + ID_PARAMETER + "=" + ID)
+                .header(RANGE, "bytes=2-4")
+                .exchange()
+                .expectStatus().isEqualTo(206)
+                .expectHeader().valueEquals(CONTENT_RANGE, "bytes 2-4/" + FILE_CONTENT.length())
+                .expectBody(String.class).isEqualTo(FILE_CONTENT.substring(2, 5));
+        webTestClient.get().uri(BASE_API_PATH + RETRIEVE_BY_ID_PATH + "?" + ID_PARAMETER + "=" + ID)
+                .header(RANGE, "bytes=2-4")
+                .header(IF_RANGE, "\"outdated\"")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo(FILE_CONTENT);
+
+        // only the bytes of the range are counted as sent
+        verify(transferMetrics, times(2)).sent(FILE_CONTENT.length());
+        verify(transferMetrics).sent(3);
+    }
+
+    @Test
+    public void testRetrieveDecodesForClientsNotAcceptingTheCoding() throws IOException {
+        FileData fileData = new FileData(TXT_FILE, FILE_CONTENT.length(), DIGEST);
+        fileData.setEncoding(ContentEncoding.GZIP);
+        when(repoService.getById(ID)).thenReturn(CompletableFuture.completedFuture(fileData));
+        when(repoService.openContent(fileData)).thenReturn(new ByteArrayInputStream(FILE_CONTENT.getBytes()));
+        when(repoService.getById(ID + 1)).thenReturn(CompletableFuture.failedFuture(new NoSuchElementException()));
+
+        webTestClient.get().uri(BASE_API_PATH + RETRIEVE_BY_ID_PATH + "?" + ID_PARAMETER + "=" + ID)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(CONTENT_ENCODING)
+                .expectHeader().valueEquals(VARY, ACCEPT_ENCODING)
+                .expectBody(String.class).isEqualTo(FILE_CONTENT);
+        webTestClient.get().uri(BASE_API_PATH + RETRIEVE_BY_ID_PATH + "?" + ID_PARAMETER + "=" + (ID + 1))
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
+    private static ByteArrayResource resource(String content, String fileName) {
+        return new ByteArrayResource(content.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public String getFilename() {
+                return fileName;
+            }
+        };
+    }
+}
@@ -0,0 +1,152 @@
+package web.server.demo.test;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import web.server.demo.Application;
+import web.server.demo.service.RepoService;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static web.server.demo.client.Constants.*;
+
+/**
+ * Compares the servlet stack, Spring MVC on Tomcat, with the reactive one, WebFlux on Netty, under many concurrent
+ * slow clients: each one downloads a file of {@value #FILE_SIZE} bytes, reading it a buffer at a time with a pause
+ * between reads, so a connection stays busy long after its request was handled. Reports throughput and p99 latency
+ * of both stacks. Only runs with the <tt>load</tt> and <tt>reactive</tt> profiles. The client and the server share
+ * the JVM, so the open files limit must allow two descriptors per connection:
+ *
+ * ulimit -n 32768 && mvn test -Pload,reactive -Dtest=WebStackLoadTest -Dload.heap=2g -Dload.connections=5000
+ */
+public class WebStackLoadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WebStackLoadTest.class);
+
+    private static final int FILE_SIZE = 1024 * 1024;
+    private static final int READ_SIZE = 64 * 1024;
+
+    private static final int CONNECTIONS = Integer.getInteger("load.connections", 2_000);
+    private static final int ROUNDS = Integer.getInteger("load.rounds", 3);
+    private static final long READ_PAUSE_MILLIS = Long.getLong("load.read-pause", 20);
+
+    @Rule
+    public TemporaryFolder storageRoot = new TemporaryFolder();
+
+    @Test
+    public void testServletAgainstReactiveStack() throws Exception {
+        Result servlet = run("servlet");
+        Result reactive = run("reactive");
+        LOG.info("{} concurrent slow clients, best of {} rounds", CONNECTIONS, ROUNDS);
+        LOG.info("Servlet stack:  {}", servlet);
+        LOG.info("Reactive stack: {}", reactive);
+    }
+
+    private Result run(String stack) throws Exception {
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).run(
+                "--spring.main.web-application-type=" + stack,
+                "--server.port=0",
+                "--server.tomcat.max-connections=" + CONNECTIONS,
+                "--server.tomcat.accept-count=" + CONNECTIONS,
+                "--reactive.blocking.queue-capacity=" + CONNECTIONS,
+                // a single client measuring the server, which admission control would throttle
+                "--admission.enabled=false",
+                "--storage.root=" + storageRoot.newFolder(stack).getPath(),
+                "--spring.datasource.url=jdbc:h2:mem:" + stack,
+                "--logging.level.web.server.demo.service=WARN",
+                "--logging.level.web.server.demo.controller=WARN")) {
+            // random bytes are not worth compressing, so the blob is sent as it is stored
+            byte[] content = new byte[FILE_SIZE];
+            new Random(42).nextBytes(content);
+            long id = context.getBean(RepoService.class)
+                    .save("load.bin", () -> new ByteArrayInputStream(content)).get().getId();
+            URI uri = URI.create("http://localhost:" + context.getEnvironment().getProperty("local.server.port")
+                    + BASE_API_PATH + RETRIEVE_BY_ID_PATH + "?" + ID_PARAMETER + "=" + id);
+
+            Result best = null;
+            for (int round = 0; round < ROUNDS; round++) {
+                Result result = burst(uri);
+                LOG.info("{} stack, round {}: {}", stack, round + 1, result);
+                best = best == null || result.throughput > best.throughput ? result : best;
+            }
+            return best;
+        }
+    }
+
+    private Result burst(URI uri) throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(Duration.ofMinutes(5)).build();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] latencies = new long[CONNECTIONS];
+        List<Future<Long>> downloads = new ArrayList<>(CONNECTIONS);
+
+        long began;
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CONNECTIONS; i++) {
+                int index = i;
+                downloads.add(clients.submit(() -> {
+                    start.await();
+                    long sent = System.nanoTime();
+                    HttpResponse<InputStream> response = client.send(request,
+                            HttpResponse.BodyHandlers.ofInputStream());
+                    assertEquals(200, response.statusCode());
+                    long received = 0;
+                    byte[] buffer = new byte[READ_SIZE];
+                    try (InputStream in = response.body()) {
+                        for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                            received += read;
+                            Thread.sleep(READ_PAUSE_MILLIS);
+                        }
+                    }
+                    latencies[index] = System.nanoTime() - sent;
+                    return received;
+                }));
+            }
+            began = System.nanoTime();
+            start.countDown();
+            for (Future<Long> download : downloads) {
+                assertEquals(FILE_SIZE, download.get().longValue());
+            }
+        }
+        long elapsed = System.nanoTime() - began;
+        Arrays.sort(latencies);
+        return new Result(CONNECTIONS * 1e9 / elapsed, latencies[(int) Math.ceil(CONNECTIONS * 0.99) - 1]);
+    }
+
+    private static class Result {
+
+        private final double throughput;
+
+        private final long p99Nanos;
+
+        private Result(double throughput, long p99Nanos) {
+            this.throughput = throughput;
+            this.p99Nanos = p99Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f requests/s, p99 %d ms", throughput, TimeUnit.NANOSECONDS.toMillis(p99Nanos));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package web.server.demo.data;
+
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.InputStream;
+
+/**
+ * A <tt>MultipartFile</tt> of arbitrary size whose content is generated on the fly. It refuses to hand out its
+ * content as a byte array, so any code path buffering a whole upload fails fast.
+ */
+public class GeneratedMultipartFile implements MultipartFile {
+
+    private final String name;
+
+    private final long size;
+
+    public GeneratedMultipartFile(String name, long size) {
+        this.name = name;
+        this.size = size;
+    }
+
+    @Override
+    public String getName() {
+        return "file";
+    }
+
+    @Override
+    public String getOriginalFilename() {
+        return name;
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/octet-stream";
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        throw new UnsupportedOperationException("Content of " + name + " must be streamed");
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() {
+                return position < size ? (int) (position++ & 0x7F) : -1;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                if (position >= size) {
+                    return -1;
+                }
+                int count = (int) Math.min(length, size - position);
+                for (int i = 0; i < count; i++) {
+                    buffer[offset + i] = (byte) (position++ & 0x7F);
+                }
+                return count;
+            }
+        };
+    }
+
+    @Override
+    public void transferTo(File dest) {
+        throw new UnsupportedOperationException("Content of " + name + " must be streamed");
+    }
+}
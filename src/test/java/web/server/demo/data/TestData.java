@@ -1,13 +1,18 @@
 package web.server.demo.data;
 
+import org.springframework.data.projection.ProjectionFactory;
+import org.springframework.data.projection.SpelAwareProxyProjectionFactory;
 import org.springframework.mock.web.MockMultipartFile;
 import web.server.demo.repository.FileData;
+import web.server.demo.repository.FileMetadata;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
+import static web.server.demo.client.Constants.FILES_PARAMETER;
 import static web.server.demo.client.Constants.FILE_PARAMETER;
 
 
@@ -19,17 +24,23 @@ public class TestData {
     public static final String PREFIX = "pre";
     public static final long ID = 0;
     public static final long[] IDS = {1, 2, 3};
+    public static final String DIGEST = "dummyDigest";
+    public static final Instant MODIFIED_AT = Instant.parse("2020-01-01T10:00:00.500Z");
+    private static final ProjectionFactory PROJECTION_FACTORY = new SpelAwareProxyProjectionFactory();
 
     public static FileData dummyFileData() {
         String name = "dummyName";
-        byte[] data = name.getBytes();
-        return new FileData(name, data);
+        return new FileData(name, name.length(), DIGEST);
     }
 
     public static MockMultipartFile dummyMultipartFile() {
         return new MockMultipartFile(FILE_PARAMETER, TXT_FILE, TEXT_PLAIN, FILE_CONTENT.getBytes());
     }
 
+    public static MockMultipartFile dummyBatchMultipartFile() {
+        return new MockMultipartFile(FILES_PARAMETER, TXT_FILE, TEXT_PLAIN, FILE_CONTENT.getBytes());
+    }
+
     public static MockMultipartFile dummyBadMultipartFile() {
         return new MockMultipartFile(DUMMY_PARAMETER_NAME, TXT_FILE, TEXT_PLAIN, FILE_CONTENT.getBytes());
     }
@@ -51,22 +62,23 @@ public class TestData {
     }
 
     public static List<String> dummyFileNamesForPrefix() {
-        return Arrays.asList("preserve.pdf", "premium.pdf", "press.pdf");
+        return Arrays.asList("premium.pdf", "preserve.pdf", "press.pdf");
     }
 
-    public static Collection<FileData> dummyFileDataCollection() {
-        List<FileData> fileData = new ArrayList<>();
-        for (int i = 0; i < dummyFileNames().size(); i++) {
-            fileData.add(new FileData(dummyFileNames().get(i), dummyFileNames().get(i).getBytes()));
-        }
-        return fileData;
+    public static Collection<FileMetadata> dummyFileMetadataCollection() {
+        return dummyFileMetadata(dummyFileNames());
+    }
+
+    public static Collection<FileMetadata> dummyFileMetadataCollectionForPrefix() {
+        return dummyFileMetadata(dummyFileNamesForPrefix());
     }
 
-    public static Collection<FileData> dummyFileDataCollectionForPrefix() {
-        List<FileData> fileData = new ArrayList<>();
-        for (int i = 0; i < dummyFileNamesForPrefix().size(); i++) {
-            fileData.add(new FileData(dummyFileNamesForPrefix().get(i), dummyFileNamesForPrefix().get(i).getBytes()));
+    private static Collection<FileMetadata> dummyFileMetadata(List<String> fileNames) {
+        List<FileMetadata> fileMetadata = new ArrayList<>();
+        for (String fileName : fileNames) {
+            FileData fileData = new FileData(fileName, fileName.length(), DIGEST);
+            fileMetadata.add(PROJECTION_FACTORY.createProjection(FileMetadata.class, fileData));
         }
-        return fileData;
+        return fileMetadata;
     }
 }
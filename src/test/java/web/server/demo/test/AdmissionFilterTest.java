@@ -0,0 +1,87 @@
+package web.server.demo.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import web.server.demo.admission.AdmissionControl;
+import web.server.demo.admission.AdmissionFilter;
+import web.server.demo.metrics.MetricNames;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+import static org.springframework.http.HttpHeaders.RETRY_AFTER;
+import static web.server.demo.client.Constants.*;
+
+public class AdmissionFilterTest {
+
+    private static final String API_KEY_HEADER = "X-API-Key";
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private AdmissionFilter admissionFilter;
+
+    @Before
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        admissionFilter = new AdmissionFilter(new AdmissionControl(API_KEY_HEADER, 1, 2, 1024, 1024, 1,
+                Duration.ofSeconds(3), meterRegistry));
+    }
+
+    @Test
+    public void testRejectsClientOverItsRequestRate() throws Exception {
+        assertEquals(200, filter(request("GET", RETRIEVE_ALL_PATH, "a")).getStatus());
+        assertEquals(200, filter(request("GET", RETRIEVE_ALL_PATH, "a")).getStatus());
+
+        MockHttpServletResponse rejected = filter(request("GET", RETRIEVE_ALL_PATH, "a"));
+        assertEquals(429, rejected.getStatus());
+        assertEquals("1", rejected.getHeader(RETRY_AFTER));
+        assertEquals(200, filter(request("GET", RETRIEVE_ALL_PATH, "b")).getStatus());
+        assertEquals(1, meterRegistry.get(MetricNames.ADMISSION_REJECTED)
+                .tag(MetricNames.LIMIT_TAG, "requests").counter().count(), 0);
+    }
+
+    @Test
+    public void testRejectsClientInByteDebt() throws Exception {
+        MockHttpServletRequest upload = request("POST", ADD_FILE_PATH, "a");
+        upload.setContent(new byte[4096]);
+        assertEquals(200, filter(upload).getStatus());
+
+        MockHttpServletResponse rejected = filter(request("GET", RETRIEVE_ALL_PATH, "a"));
+        assertEquals(429, rejected.getStatus());
+        assertEquals("3", rejected.getHeader(RETRY_AFTER));
+    }
+
+    @Test
+    public void testLimitsConcurrentUploads() throws Exception {
+        MockHttpServletResponse[] concurrent = new MockHttpServletResponse[1];
+        FilterChain uploading = (request, response) ->
+                concurrent[0] = filter(request("POST", UPLOAD_PART_PATH, "b"));
+
+        MockHttpServletResponse first = new MockHttpServletResponse();
+        admissionFilter.doFilter(request("POST", UPLOAD_PART_PATH, "a"), first, uploading);
+
+        assertEquals(200, first.getStatus());
+        assertEquals(503, concurrent[0].getStatus());
+        assertEquals("3", concurrent[0].getHeader(RETRY_AFTER));
+        assertEquals(200, filter(request("POST", UPLOAD_PART_PATH, "b")).getStatus());
+    }
+
+    private MockHttpServletResponse filter(MockHttpServletRequest request) throws ServletException, IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        admissionFilter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+
+    private static MockHttpServletRequest request(String method, String path, String apiKey) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, BASE_API_PATH + path);
+        request.addHeader(API_KEY_HEADER, apiKey);
+        return request;
+    }
+}
@@ -0,0 +1,197 @@
+package web.server.demo.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.util.StreamUtils;
+import web.server.demo.archive.ArchiveFormat;
+import web.server.demo.controller.ArchiveController;
+import web.server.demo.metrics.TransferMetrics;
+import web.server.demo.repository.FileData;
+import web.server.demo.service.ArchiveUpload;
+import web.server.demo.service.RepoService;
+import web.server.demo.storage.ContentEncoding;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpHeaders.CONTENT_DISPOSITION;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static web.server.demo.client.Constants.*;
+import static web.server.demo.data.TestData.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ArchiveControllerTest {
+
+    private static final String LONG_NAME = String.join("", Collections.nCopies(30, "long")) + ".txt";
+
+    @Mock
+    private RepoService repoService;
+
+    @Mock
+    private TransferMetrics transferMetrics;
+
+    @InjectMocks
+    private ArchiveController archiveController;
+
+    private MockMvc mockMvc;
+
+    private FileData compressed;
+
+    private FileData stored;
+
+    private FileData longName;
+
+    @Before
+    public void setUp() throws IOException {
+        mockMvc = MockMvcBuilders.standaloneSetup(archiveController).build();
+        compressed = fileData(1, TXT_FILE, ContentEncoding.GZIP);
+        stored = fileData(2, TXT_FILE, ContentEncoding.IDENTITY);
+        longName = fileData(3, LONG_NAME, ContentEncoding.IDENTITY);
+    }
+
+    @Test
+    public void testDownloadZipByIds() throws Exception {
+        when(repoService.getMissingIds(Arrays.asList(1L, 2L))).thenReturn(Collections.emptyList());
+        when(repoService.getAllById(Arrays.asList(1L, 2L))).thenReturn(Arrays.asList(compressed, stored));
+
+        byte[] archive = download(get(BASE_API_PATH + DOWNLOAD_ARCHIVE_PATH).param(IDS_PARAMETER, "1", "2", "1"),
+                "files.zip");
+
+        Map<String, Integer> methods = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                assertArrayEquals(FILE_CONTENT.getBytes(), StreamUtils.copyToByteArray(zip));
+                assertEquals(MODIFIED_AT.toEpochMilli() / 1000, entry.getLastModifiedTime().toMillis() / 1000);
+                methods.put(entry.getName(), entry.getMethod());
+            }
+        }
+        Map<String, Integer> expected = new LinkedHashMap<>();
+        expected.put(TXT_FILE, ZipEntry.DEFLATED);
+        expected.put("multipartFile (2).txt", ZipEntry.STORED);
+        assertEquals(expected, methods);
+    }
+
+    @Test
+    public void testDownloadTarByPrefix() throws Exception {
+        when(repoService.getFilePage(PREFIX, null, 0, 250)).thenReturn(Arrays.asList(compressed, longName));
+
+        byte[] archive = download(get(BASE_API_PATH + DOWNLOAD_ARCHIVE_PATH)
+                .param(PREFIX_PARAMETER, PREFIX)
+                .param(FORMAT_PARAMETER, "tar"), "files.tar");
+
+        Map<String, String> entries = new LinkedHashMap<>();
+        DataInputStream tar = new DataInputStream(new ByteArrayInputStream(archive));
+        String paxPath = null;
+        byte[] header = new byte[512];
+        while (true) {
+            tar.readFully(header);
+            if (header[0] == 0) {
+                break;
+            }
+            int size = Integer.parseInt(new String(header, 124, 11, StandardCharsets.US_ASCII), 8);
+            byte[] content = new byte[size];
+            tar.readFully(content);
+            tar.skipBytes((512 - size % 512) % 512);
+            String text = new String(content, StandardCharsets.UTF_8);
+            if (header[156] == 'x') {
+                paxPath = text.substring(text.indexOf("path=") + 5, text.length() - 1);
+            } else {
+                String name = new String(header, 0, 100, StandardCharsets.US_ASCII).trim();
+                entries.put(paxPath != null ? paxPath : name, text);
+                paxPath = null;
+            }
+        }
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put(TXT_FILE, FILE_CONTENT);
+        expected.put(LONG_NAME, FILE_CONTENT);
+        assertEquals(expected, entries);
+        assertEquals(0, archive.length % 512);
+    }
+
+    @Test
+    public void testDownloadMissingFile() throws Exception {
+        when(repoService.getMissingIds(Arrays.asList(1L, 4L))).thenReturn(Collections.singletonList(4L));
+
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_ARCHIVE_PATH).param(IDS_PARAMETER, "1", "4"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testDownloadWithoutSelection() throws Exception {
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_ARCHIVE_PATH))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_ARCHIVE_PATH)
+                .param(PREFIX_PARAMETER, PREFIX)
+                .param(FORMAT_PARAMETER, "rar"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testAddArchiveWithFailedFile() throws Exception {
+        String manifest = "{\"name\":\"a.txt\",\"id\":1}\n{\"name\":\"b.txt\",\"error\":\"File could not be saved\"}\n";
+        ArchiveUpload upload = mock(ArchiveUpload.class);
+        when(upload.getSaved()).thenReturn(1);
+        when(upload.getFailed()).thenReturn(1);
+        when(upload.openManifest()).thenReturn(new ByteArrayInputStream(manifest.getBytes(StandardCharsets.UTF_8)));
+        when(repoService.save(eq(ArchiveFormat.TAR), any(InputStream.class))).thenReturn(upload);
+
+        MvcResult result = mockMvc.perform(post(BASE_API_PATH + ADD_ARCHIVE_PATH)
+                .param(FORMAT_PARAMETER, "tar")
+                .contentType("application/x-tar")
+                .content(new byte[1024]))
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isMultiStatus())
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andExpect(content().string(manifest));
+        verify(upload).close();
+    }
+
+    private byte[] download(RequestBuilder request, String fileName) throws Exception {
+        MvcResult result = mockMvc.perform(request).andReturn();
+        return mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(header().string(CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\""))
+                .andReturn().getResponse().getContentAsByteArray();
+    }
+
+    private FileData fileData(long id, String name, ContentEncoding encoding) throws IOException {
+        FileData fileData = new FileData(name, FILE_CONTENT.length(), DIGEST + id);
+        fileData.setId(id);
+        fileData.setEncoding(encoding);
+        fileData.setModifiedAt(MODIFIED_AT);
+        lenient().when(repoService.openContent(fileData))
+                .thenAnswer(invocation -> new ByteArrayInputStream(FILE_CONTENT.getBytes()));
+        return fileData;
+    }
+}
@@ -0,0 +1,109 @@
+package web.server.demo.test;
+
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+import web.server.demo.archive.ArchiveFormat;
+import web.server.demo.archive.ArchiveReader;
+import web.server.demo.archive.ArchiveWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+import static web.server.demo.data.TestData.FILE_CONTENT;
+import static web.server.demo.data.TestData.MODIFIED_AT;
+
+public class ArchiveReaderTest {
+
+    private static final String LONG_NAME = "dir/" + String.join("", Collections.nCopies(40, "long")) + ".txt";
+    private static final String UNICODE_NAME = "été.txt";
+
+    private final byte[] large = new byte[100_000];
+
+    @Test
+    public void testReadsWhatIsWritten() throws IOException {
+        Arrays.fill(large, (byte) 'x');
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("empty.txt", new byte[0]);
+        files.put(LONG_NAME, FILE_CONTENT.getBytes());
+        files.put(UNICODE_NAME, FILE_CONTENT.getBytes());
+        files.put("large.bin", large);
+
+        for (ArchiveFormat format : ArchiveFormat.values()) {
+            assertEquals(format.name(), files.keySet(), read(format, write(format, files)).keySet());
+            read(format, write(format, files)).forEach((name, content) ->
+                    assertArrayEquals(format + " " + name, files.get(name), content));
+        }
+    }
+
+    @Test
+    public void testSkipsUnreadContentAndDirectories() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("dir/"));
+            zip.putNextEntry(new ZipEntry("dir/a.txt"));
+            zip.write(large);
+            zip.putNextEntry(new ZipEntry("dir/b.txt"));
+            zip.write(FILE_CONTENT.getBytes());
+        }
+        ArchiveReader reader = ArchiveFormat.ZIP.newReader(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals("dir/a.txt", reader.next().getName());
+        ArchiveReader.Entry second = reader.next();
+        assertEquals("dir/b.txt", second.getName());
+        assertEquals(FILE_CONTENT, StreamUtils.copyToString(second.getContent(), StandardCharsets.UTF_8));
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testTruncatedTarFails() throws IOException {
+        Map<String, byte[]> files = Collections.singletonMap("large.bin", large);
+        byte[] archive = write(ArchiveFormat.TAR, files);
+        ArchiveReader reader = ArchiveFormat.TAR.newReader(
+                new ByteArrayInputStream(Arrays.copyOf(archive, archive.length / 2)));
+
+        ArchiveReader.Entry entry = reader.next();
+        try {
+            StreamUtils.drain(entry.getContent());
+            fail("A truncated entry must not look complete");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptTarHeaderFails() throws IOException {
+        byte[] archive = write(ArchiveFormat.TAR, Collections.singletonMap("a.txt", FILE_CONTENT.getBytes()));
+        archive[0] = 'b';
+
+        ArchiveFormat.TAR.newReader(new ByteArrayInputStream(archive)).next();
+    }
+
+    private static byte[] write(ArchiveFormat format, Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ArchiveWriter writer = format.newWriter(out)) {
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                writer.putEntry(file.getKey(), file.getValue().length, MODIFIED_AT, file.getValue().length > 0,
+                        () -> new ByteArrayInputStream(file.getValue()));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, byte[]> read(ArchiveFormat format, byte[] archive) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        ArchiveReader reader = format.newReader(new ByteArrayInputStream(archive));
+        for (ArchiveReader.Entry entry = reader.next(); entry != null; entry = reader.next()) {
+            files.put(entry.getName(), StreamUtils.copyToByteArray(entry.getContent()));
+        }
+        return files;
+    }
+}
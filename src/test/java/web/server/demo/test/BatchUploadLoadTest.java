@@ -0,0 +1,144 @@
+package web.server.demo.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.multipart.MultipartFile;
+import web.server.demo.cache.FileCache;
+import web.server.demo.data.GeneratedMultipartFile;
+import web.server.demo.metrics.TransferMetrics;
+import web.server.demo.repository.BlobRecordRepository;
+import web.server.demo.repository.FileData;
+import web.server.demo.repository.FileDataRepository;
+import web.server.demo.service.BlobService;
+import web.server.demo.service.NameIndex;
+import web.server.demo.service.RepoService;
+import web.server.demo.service.UploadResult;
+import web.server.demo.storage.BlobStore;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Soaks <tt>RepoService</tt> with many concurrent batch uploads and checks that the number of live threads stays
+ * bounded by the clients plus the shared upload executor, however many files are uploaded. Only runs with the
+ * <tt>load</tt> profile:
+ *
+ * mvn test -Pload -Dtest=BatchUploadLoadTest -Dload.rounds=200 -Dload.clients=16 -Dload.batch-size=500
+ */
+public class BatchUploadLoadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchUploadLoadTest.class);
+
+    private static final int ROUNDS = Integer.getInteger("load.rounds", 20);
+    private static final int CLIENTS = Integer.getInteger("load.clients", 16);
+    private static final int BATCH_SIZE = Integer.getInteger("load.batch-size", 100);
+    private static final long FILE_SIZE = Long.getLong("load.file-size", 16 * 1024);
+    private static final int POOL_SIZE = 4;
+    private static final int QUEUE_CAPACITY = 8;
+    private static final int REQUEST_PARALLELISM = 4;
+    // Monitoring, GC and JIT threads may come and go while the test runs
+    private static final int THREAD_SLACK = 8;
+
+    @Rule
+    public TemporaryFolder storageRoot = new TemporaryFolder();
+
+    @Mock
+    private FileDataRepository fileDataRepository;
+
+    @Mock
+    private BlobRecordRepository blobRecordRepository;
+
+    private ThreadPoolTaskExecutor uploadExecutor;
+
+    private RepoService repoService;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private AutoCloseable mocks;
+
+    @Before
+    public void setUp() throws IOException {
+        mocks = MockitoAnnotations.openMocks(this);
+        when(fileDataRepository.save(any(FileData.class))).then(returnsFirstArg());
+        uploadExecutor = new ThreadPoolTaskExecutor();
+        uploadExecutor.setCorePoolSize(POOL_SIZE);
+        uploadExecutor.setMaxPoolSize(POOL_SIZE);
+        uploadExecutor.setQueueCapacity(QUEUE_CAPACITY);
+        uploadExecutor.initialize();
+        BlobService blobService =
+                new BlobService(new BlobStore(storageRoot.getRoot().getPath(), 16 * 1024), blobRecordRepository);
+        repoService = new RepoService(fileDataRepository, blobService, new NameIndex(fileDataRepository),
+                new FileCache(blobService, 100, 1024 * 1024, 64 * 1024, false),
+                new TransferMetrics(new SimpleMeterRegistry()), uploadExecutor, REQUEST_PARALLELISM);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        uploadExecutor.shutdown();
+        mocks.close();
+    }
+
+    @Test
+    public void testThreadCountStaysBounded() throws Exception {
+        int threadsBefore = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        AtomicInteger saved = new AtomicInteger();
+
+        long start = System.nanoTime();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<?>> requests = new ArrayList<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int client = 0; client < CLIENTS; client++) {
+                String prefix = "r" + round + "c" + client + "f";
+                requests.add(clients.submit(() -> {
+                    MultipartFile[] files = new MultipartFile[BATCH_SIZE];
+                    for (int i = 0; i < BATCH_SIZE; i++) {
+                        files[i] = new GeneratedMultipartFile(prefix + i, FILE_SIZE);
+                    }
+                    List<UploadResult> results = repoService.save(files).get();
+                    assertEquals(BATCH_SIZE, results.size());
+                    assertTrue(results.stream().allMatch(UploadResult::isSuccess));
+                    saved.addAndGet(results.size());
+                    return null;
+                }));
+            }
+        }
+        for (Future<?> request : requests) {
+            request.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        clients.shutdown();
+        clients.awaitTermination(10, TimeUnit.SECONDS);
+
+        int peakThreads = threads.getPeakThreadCount();
+        LOG.info("Saved {} files in {} requests in {} ms. Threads: {} before, {} peak, {} after",
+                saved.get(), requests.size(), TimeUnit.NANOSECONDS.toMillis(elapsed),
+                threadsBefore, peakThreads, threads.getThreadCount());
+        assertEquals(ROUNDS * CLIENTS * BATCH_SIZE, saved.get());
+        assertTrue("Peak of " + peakThreads + " threads",
+                peakThreads <= threadsBefore + CLIENTS + POOL_SIZE + THREAD_SLACK);
+    }
+}
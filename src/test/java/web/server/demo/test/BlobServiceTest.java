@@ -0,0 +1,215 @@
+package web.server.demo.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.util.StreamUtils;
+import web.server.demo.repository.BlobRecord;
+import web.server.demo.repository.BlobRecordRepository;
+import web.server.demo.service.BlobService;
+import web.server.demo.storage.BlobStore;
+import web.server.demo.storage.CompressionPolicy;
+import web.server.demo.storage.ContentEncoding;
+import web.server.demo.storage.FsyncPolicy;
+import web.server.demo.storage.StoredBlob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+import static web.server.demo.data.TestData.FILE_CONTENT;
+
+public class BlobServiceTest {
+
+    @Rule
+    public TemporaryFolder storageRoot = new TemporaryFolder();
+
+    @Mock
+    private BlobRecordRepository blobRecordRepository;
+
+    private BlobService blobService;
+
+    private AutoCloseable mocks;
+
+    @Before
+    public void setUp() throws IOException {
+        mocks = MockitoAnnotations.openMocks(this);
+        blobService = new BlobService(new BlobStore(storageRoot.getRoot().getPath(), 4), blobRecordRepository);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mocks.close();
+    }
+
+    @Test
+    public void testStoreDeduplicatesContent() throws IOException {
+        when(blobRecordRepository.addReferences(any(String.class), eq(1L))).thenReturn(0, 1);
+
+        StoredBlob first = blobService.store(content());
+        StoredBlob second = blobService.store(content());
+
+        assertEquals(first.getDigest(), second.getDigest());
+        assertEquals(FILE_CONTENT.length(), first.getSize());
+        assertEquals(1, countBlobFiles());
+        verify(blobRecordRepository, times(1)).save(
+                new BlobRecord(first.getDigest(), first.getSize(), ContentEncoding.IDENTITY, first.getSize(), 1));
+        try (InputStream stored = blobService.open(first.getDigest(), first.getEncoding())) {
+            assertArrayEquals(FILE_CONTENT.getBytes(), StreamUtils.copyToByteArray(stored));
+        }
+    }
+
+    @Test
+    public void testOpenStoredRange() throws IOException {
+        StoredBlob blob = blobService.store(content());
+
+        try (InputStream range = blobService.openStored(blob.getDigest(), blob.getEncoding(), 5, 4)) {
+            assertArrayEquals(FILE_CONTENT.substring(5, 9).getBytes(), StreamUtils.copyToByteArray(range));
+        }
+        try {
+            blobService.openStored(blob.getDigest(), blob.getEncoding(), FILE_CONTENT.length() + 1, 1);
+            fail("A range beyond the end of the blob was opened");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReleaseKeepsReferencedBlob() throws IOException {
+        StoredBlob blob = blobService.store(content());
+        when(blobRecordRepository.deleteIfUnreferenced(blob.getDigest())).thenReturn(0);
+
+        blobService.release(blob.getDigest());
+
+        assertTrue(Files.exists(blobService.path(blob.getDigest(), blob.getEncoding())));
+    }
+
+    @Test
+    public void testReleaseDeletesUnreferencedBlob() throws IOException {
+        StoredBlob blob = blobService.store(content());
+        when(blobRecordRepository.deleteIfUnreferenced(blob.getDigest())).thenReturn(1);
+
+        blobService.release(blob.getDigest());
+
+        verify(blobRecordRepository).addReferences(blob.getDigest(), -1);
+        assertFalse(Files.exists(blobService.path(blob.getDigest(), blob.getEncoding())));
+    }
+
+    @Test
+    public void testStoreCompressesText() throws IOException {
+        byte[] text = repeatedText();
+
+        StoredBlob blob = compressingBlobService().store(new ByteArrayInputStream(text));
+
+        assertEquals(ContentEncoding.GZIP, blob.getEncoding());
+        assertEquals(text.length, blob.getSize());
+        assertTrue(blob.getStoredSize() < text.length / 2);
+        assertEquals(blob.getStoredSize(), Files.size(blobService.path(blob.getDigest(), ContentEncoding.GZIP)));
+        try (InputStream stored = blobService.open(blob.getDigest(), blob.getEncoding())) {
+            assertArrayEquals(text, StreamUtils.copyToByteArray(stored));
+        }
+        try (InputStream stored = blobService.openStored(blob.getDigest(), blob.getEncoding())) {
+            assertEquals(0x1f, stored.read());
+            assertEquals(0x8b, stored.read());
+        }
+    }
+
+    @Test
+    public void testStoreSkipsCompressedFormats() throws IOException {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(repeatedText());
+        }
+        byte[] random = new byte[16 * 1024];
+        new Random(42).nextBytes(random);
+
+        BlobService compressingBlobService = compressingBlobService();
+        StoredBlob gzipBlob = compressingBlobService.store(new ByteArrayInputStream(gzipped.toByteArray()));
+        StoredBlob randomBlob = compressingBlobService.store(new ByteArrayInputStream(random));
+
+        assertEquals(ContentEncoding.IDENTITY, gzipBlob.getEncoding());
+        assertEquals(ContentEncoding.IDENTITY, randomBlob.getEncoding());
+        assertEquals(random.length, randomBlob.getStoredSize());
+    }
+
+    @Test
+    public void testStoreDeduplicatesAgainstCompressedBlob() throws IOException {
+        StoredBlob compressed = compressingBlobService().store(new ByteArrayInputStream(repeatedText()));
+        when(blobRecordRepository.addReferences(compressed.getDigest(), 1)).thenReturn(1);
+
+        StoredBlob deduplicated = blobService.store(new ByteArrayInputStream(repeatedText()));
+
+        assertEquals(ContentEncoding.GZIP, deduplicated.getEncoding());
+        assertEquals(compressed.getStoredSize(), deduplicated.getStoredSize());
+        assertEquals(1, countBlobFiles());
+    }
+
+    @Test
+    public void testStoreForcedToDisk() throws IOException {
+        BlobStore blobStore = new BlobStore(storageRoot.getRoot().getPath(), 4, CompressionPolicy.DISABLED,
+                FsyncPolicy.CONTENT_AND_DIRECTORY);
+
+        StoredBlob blob = new BlobService(blobStore, blobRecordRepository).store(content());
+
+        try (InputStream stored = blobService.open(blob.getDigest(), blob.getEncoding())) {
+            assertArrayEquals(FILE_CONTENT.getBytes(), StreamUtils.copyToByteArray(stored));
+        }
+        assertEquals(1, countBlobFiles());
+    }
+
+    @Test
+    public void testDeleteUnrecorded() throws IOException {
+        BlobService compressing = compressingBlobService();
+        StoredBlob recorded = blobService.store(content());
+        StoredBlob unrecorded = compressing.store(new ByteArrayInputStream(String.join("",
+                Collections.nCopies(1000, FILE_CONTENT)).getBytes()));
+        when(blobRecordRepository.findExistingDigests(anyCollection()))
+                .thenReturn(Collections.singletonList(recorded.getDigest()));
+
+        assertEquals(ContentEncoding.GZIP, unrecorded.getEncoding());
+        assertEquals(1, compressing.deleteUnrecorded());
+        assertEquals(1, countBlobFiles());
+        try (InputStream stored = blobService.open(recorded.getDigest(), recorded.getEncoding())) {
+            assertArrayEquals(FILE_CONTENT.getBytes(), StreamUtils.copyToByteArray(stored));
+        }
+    }
+
+    private BlobService compressingBlobService() throws IOException {
+        CompressionPolicy policy = new CompressionPolicy(true, 1024, 6, 0.9);
+        return new BlobService(new BlobStore(storageRoot.getRoot().getPath(), 1024, policy), blobRecordRepository);
+    }
+
+    private static byte[] repeatedText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append(i).append(',').append(FILE_CONTENT).append('\n');
+        }
+        return text.toString().getBytes();
+    }
+
+    private static InputStream content() {
+        return new ByteArrayInputStream(FILE_CONTENT.getBytes());
+    }
+
+    private long countBlobFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(storageRoot.getRoot().toPath())) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+}
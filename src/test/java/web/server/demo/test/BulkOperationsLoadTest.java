@@ -0,0 +1,85 @@
+package web.server.demo.test;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.mock.web.MockMultipartFile;
+import web.server.demo.Application;
+import web.server.demo.repository.FileDataRepository;
+import web.server.demo.service.RepoService;
+import web.server.demo.service.UploadResult;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static web.server.demo.client.Constants.FILES_PARAMETER;
+
+/**
+ * Uploads a batch of many small files through <tt>RepoService</tt> against the embedded database, removes them again,
+ * and counts the JDBC statements each operation needs. Only runs with the <tt>load</tt> profile:
+ *
+ * mvn test -Pload -Dtest=BulkOperationsLoadTest -Dload.files=10000
+ */
+public class BulkOperationsLoadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkOperationsLoadTest.class);
+
+    private static final int FILES = Integer.getInteger("load.files", 10_000);
+    // Anything close to one statement per file means the bulk paths are not used
+    private static final int MAX_STATEMENTS = FILES / 10;
+
+    @Rule
+    public TemporaryFolder storageRoot = new TemporaryFolder();
+
+    @Test
+    public void testBulkUploadAndDeleteRoundTrips() throws Exception {
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).run(
+                "--server.port=0",
+                "--storage.root=" + storageRoot.getRoot().getPath(),
+                "--spring.datasource.url=jdbc:h2:mem:bulk",
+                "--spring.jpa.properties.hibernate.generate_statistics=true",
+                "--logging.level.org.hibernate.engine.internal.StatisticalLoggingSessionEventListener=WARN",
+                "--logging.level.web.server.demo.service=WARN")) {
+            RepoService repoService = context.getBean(RepoService.class);
+            FileDataRepository fileDataRepository = context.getBean(FileDataRepository.class);
+            Statistics statistics = context.getBean(EntityManagerFactory.class)
+                    .unwrap(SessionFactory.class).getStatistics();
+
+            MockMultipartFile[] files = new MockMultipartFile[FILES];
+            for (int i = 0; i < FILES; i++) {
+                files[i] = new MockMultipartFile(FILES_PARAMETER, "bulk" + i + ".txt", "text/plain",
+                        ("content of file " + i).getBytes());
+            }
+
+            statistics.clear();
+            long start = System.nanoTime();
+            List<UploadResult> results = repoService.save(files).get();
+            long uploadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long uploadStatements = statistics.getPrepareStatementCount();
+            assertTrue(results.stream().allMatch(UploadResult::isSuccess));
+            assertEquals(FILES, fileDataRepository.count());
+
+            long[] ids = results.stream().mapToLong(UploadResult::getId).toArray();
+            statistics.clear();
+            start = System.nanoTime();
+            repoService.deleteAllByIds(ids).get();
+            long deleteMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long deleteStatements = statistics.getPrepareStatementCount();
+            assertEquals(0, fileDataRepository.count());
+
+            LOG.info("Uploaded {} files in {} ms with {} statements, removed them in {} ms with {} statements",
+                    FILES, uploadMillis, uploadStatements, deleteMillis, deleteStatements);
+            assertTrue("Upload took " + uploadStatements + " statements", uploadStatements <= MAX_STATEMENTS);
+            assertTrue("Delete took " + deleteStatements + " statements", deleteStatements <= MAX_STATEMENTS);
+        }
+    }
+}
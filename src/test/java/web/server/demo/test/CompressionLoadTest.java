@@ -0,0 +1,222 @@
+package web.server.demo.test;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import web.server.demo.storage.BlobStore;
+import web.server.demo.storage.CompressionPolicy;
+import web.server.demo.storage.ContentEncoding;
+import web.server.demo.storage.StagedBlob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures what compression at rest saves and costs on a sample corpus: the bytes stored and the CPU time spent
+ * writing and reading back each kind of content, for every compression level against storing blobs as they are.
+ * The corpus is generated (logs, CSV, JSON, random bytes standing for media, gzip archives) unless a directory of
+ * real files is given. Only runs with the <tt>load</tt> profile:
+ *
+ * mvn test -Pload -Dtest=CompressionLoadTest -Dload.file-size=4194304 -Dload.corpus=/var/log
+ */
+public class CompressionLoadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompressionLoadTest.class);
+
+    private static final int FILE_SIZE = Integer.getInteger("load.file-size", 1024 * 1024);
+    private static final int FILES_PER_KIND = Integer.getInteger("load.files", 8);
+    private static final String CORPUS = System.getProperty("load.corpus");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int[] LEVELS = {Deflater.BEST_SPEED, 6, Deflater.BEST_COMPRESSION};
+
+    @Rule
+    public TemporaryFolder storageRoot = new TemporaryFolder();
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final List<Sample> corpus = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        if (CORPUS != null) {
+            try (Stream<Path> files = Files.walk(Paths.get(CORPUS))) {
+                for (Path file : files.filter(Files::isRegularFile).filter(Files::isReadable)
+                        .collect(Collectors.toList())) {
+                    corpus.add(new Sample("corpus", Files.readAllBytes(file)));
+                }
+            }
+            return;
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < FILES_PER_KIND; i++) {
+            corpus.add(new Sample("log", text(random, CompressionLoadTest::logLine)));
+            corpus.add(new Sample("csv", text(random, CompressionLoadTest::csvLine)));
+            corpus.add(new Sample("json", text(random, CompressionLoadTest::jsonLine)));
+            byte[] media = new byte[FILE_SIZE];
+            random.nextBytes(media);
+            corpus.add(new Sample("media", media));
+            corpus.add(new Sample("gzip", gzip(text(random, CompressionLoadTest::logLine))));
+        }
+    }
+
+    @Test
+    public void testCompressionSavingsAndCost() throws IOException {
+        List<String> kinds = corpus.stream().map(sample -> sample.kind).distinct().collect(Collectors.toList());
+        kinds.add(null);
+        report("none", CompressionPolicy.DISABLED, kinds);
+        for (int level : LEVELS) {
+            report("level " + level, new CompressionPolicy(true, 1024, level, 0.9), kinds);
+        }
+    }
+
+    private void report(String name, CompressionPolicy policy, List<String> kinds) throws IOException {
+        for (String kind : kinds) {
+            Result result = run(policy, kind);
+            LOG.info("{} {}: {} -> {} bytes ({}%), write {} ms CPU ({} MB/s), read {} ms CPU ({} MB/s), {}",
+                    name, kind == null ? "total" : kind, result.size, result.storedSize,
+                    100 * result.storedSize / result.size, ms(result.writeCpu), mbPerSecond(result.size, result.writeCpu),
+                    ms(result.readCpu), mbPerSecond(result.size, result.readCpu), result.encodings);
+            assertTrue(result.storedSize <= result.size);
+            if ("media".equals(kind) || "gzip".equals(kind)) {
+                assertEquals("Compressed formats are stored as they are", result.size, result.storedSize);
+            }
+        }
+    }
+
+    /*
+     * Stores the samples of a kind (all samples for null) in a fresh store and reads them back.
+     */
+    private Result run(CompressionPolicy policy, String kind) throws IOException {
+        BlobStore blobStore = new BlobStore(storageRoot.newFolder().getPath(), BUFFER_SIZE, policy);
+        Result result = new Result();
+        List<StagedBlob> blobs = new ArrayList<>();
+        long start = threads.getCurrentThreadCpuTime();
+        for (Sample sample : corpus) {
+            if (kind == null || kind.equals(sample.kind)) {
+                StagedBlob blob = blobStore.stage(new ByteArrayInputStream(sample.content));
+                blobStore.commit(blob);
+                blobs.add(blob);
+                result.size += blob.getSize();
+                result.storedSize += blob.getStoredSize();
+                result.encodings.merge(blob.getEncoding(), 1, Integer::sum);
+            }
+        }
+        result.writeCpu = threads.getCurrentThreadCpuTime() - start;
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        start = threads.getCurrentThreadCpuTime();
+        long read = 0;
+        for (StagedBlob blob : blobs) {
+            try (InputStream in = blob.getEncoding().decode(blobStore.open(blob.getDigest(), blob.getEncoding()))) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    read += n;
+                }
+            }
+        }
+        result.readCpu = threads.getCurrentThreadCpuTime() - start;
+        assertEquals(result.size, read);
+        return result;
+    }
+
+    private static byte[] text(Random random, LineGenerator generator) {
+        StringBuilder text = new StringBuilder(FILE_SIZE + 256);
+        for (int i = 0; text.length() < FILE_SIZE; i++) {
+            generator.append(text, random, i);
+        }
+        text.setLength(FILE_SIZE);
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void logLine(StringBuilder text, Random random, int line) {
+        String[] levels = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+        text.append("2020-01-01 10:").append(String.format("%02d:%02d.%03d", line / 6000 % 60, line / 100 % 60,
+                random.nextInt(1000))).append(" [http-nio-8080-exec-").append(random.nextInt(200)).append("] ")
+                .append(levels[random.nextInt(levels.length)]).append(" web.server.demo.service.RepoService - File ")
+                .append(random.nextInt(1_000_000)).append(".txt saved successfully\n");
+    }
+
+    private static void csvLine(StringBuilder text, Random random, int line) {
+        text.append(line).append(',').append("customer-").append(random.nextInt(10_000)).append(',')
+                .append(random.nextInt(100_000) / 100.0).append(',').append(random.nextBoolean() ? "EUR" : "USD")
+                .append(",2020-01-").append(1 + random.nextInt(28)).append('\n');
+    }
+
+    private static void jsonLine(StringBuilder text, Random random, int line) {
+        text.append("{\"id\":").append(line).append(",\"name\":\"file-").append(random.nextInt(100_000))
+                .append(".txt\",\"size\":").append(random.nextInt(1 << 20)).append(",\"tags\":[\"")
+                .append(random.nextBoolean() ? "hot" : "cold").append("\"],\"owner\":{\"id\":")
+                .append(random.nextInt(500)).append("}}\n");
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(content);
+        }
+        return gzipped.toByteArray();
+    }
+
+    private static long ms(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static long mbPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes * 1000 / nanos;
+    }
+
+    private interface LineGenerator {
+
+        void append(StringBuilder text, Random random, int line);
+    }
+
+    private static class Sample {
+
+        private final String kind;
+
+        private final byte[] content;
+
+        private Sample(String kind, byte[] content) {
+            this.kind = kind;
+            this.content = content;
+        }
+    }
+
+    private static class Result {
+
+        private long size;
+
+        private long storedSize;
+
+        private long writeCpu;
+
+        private long readCpu;
+
+        private final Map<ContentEncoding, Integer> encodings = new EnumMap<>(ContentEncoding.class);
+    }
+}
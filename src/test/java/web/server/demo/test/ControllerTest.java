@@ -7,24 +7,40 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.springframework.mock.web.MockMultipartFile;
-import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.multipart.MultipartFile;
 import web.server.demo.controller.Controller;
 import web.server.demo.data.TestData;
+import web.server.demo.metrics.TransferMetrics;
 import web.server.demo.repository.FileData;
 import web.server.demo.service.RepoService;
+import web.server.demo.service.UploadResult;
+import web.server.demo.storage.ContentEncoding;
 
+import java.io.ByteArrayInputStream;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.Future;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
 
 import static java.lang.String.valueOf;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpHeaders.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static web.server.demo.client.Constants.*;
 import static web.server.demo.data.TestData.*;
@@ -35,6 +51,9 @@ public class ControllerTest {
     @Mock
     private RepoService repoService;
 
+    @Mock
+    private TransferMetrics transferMetrics;
+
     @InjectMocks
     private Controller controller;
 
@@ -50,7 +69,10 @@ public class ControllerTest {
         testAddFile();
         testAddFiles();
         testRetrieveFileById();
+        testRetrieveFileByIdNotModified();
+        testRetrieveCompressedFileById();
         testRetrieveFileByPrefix();
+        testRetrieveAll();
         testRenameFile();
         testReplaceFile();
         testRemoveFile();
@@ -59,7 +81,8 @@ public class ControllerTest {
 
     public void testAddFile() throws Exception {
         MockMultipartFile goodFile = dummyMultipartFile();
-        mockMvc.perform(MockMvcRequestBuilders.multipart(BASE_API_PATH + ADD_FILE_PATH)
+        when(repoService.save(any(MultipartFile.class))).thenReturn(CompletableFuture.completedFuture(dummyFileData()));
+        performAsync(MockMvcRequestBuilders.multipart(BASE_API_PATH + ADD_FILE_PATH)
                 .file(goodFile))
                 .andExpect(status().isOk())
                 .andExpect(content().string("File added successfully"));
@@ -71,14 +94,19 @@ public class ControllerTest {
     }
 
     public void testAddFiles() throws Exception {
-        MockMultipartFile goodFile1 = dummyMultipartFile();
-        MockMultipartFile goodFile2 = dummyMultipartFile();
+        MockMultipartFile goodFile1 = dummyBatchMultipartFile();
+        MockMultipartFile goodFile2 = dummyBatchMultipartFile();
+        when(repoService.save(any(MultipartFile[].class))).thenReturn(CompletableFuture.completedFuture(Arrays.asList(
+                UploadResult.success(TXT_FILE, 1), UploadResult.failure(TXT_FILE, "File could not be saved"))));
 
-        mockMvc.perform(MockMvcRequestBuilders.multipart(BASE_API_PATH + ADD_FILES_PATH)
+        performAsync(MockMvcRequestBuilders.multipart(BASE_API_PATH + ADD_FILES_PATH)
                 .file(goodFile1)
                 .file(goodFile2))
-                .andExpect(status().isOk())
-                .andExpect(content().string("Files added successfully"));
+                .andExpect(status().isMultiStatus())
+                .andExpect(jsonPath("$[0].id").value(1))
+                .andExpect(jsonPath("$[0].success").value(true))
+                .andExpect(jsonPath("$[1].success").value(false))
+                .andExpect(jsonPath("$[1].error").value("File could not be saved"));
 
 
         MockMultipartFile badFile1 = dummyBadMultipartFile();
@@ -91,47 +119,103 @@ public class ControllerTest {
     }
 
     public void testRetrieveFileById() throws Exception {
-        FileData fileData = new FileData(TXT_FILE, FILE_CONTENT.getBytes());
-        Future<FileData> fileDataFuture = new AsyncResult<>(fileData);
-        when(repoService.getById(ID)).thenReturn(fileDataFuture);
+        FileData fileData = new FileData(TXT_FILE, FILE_CONTENT.length(), DIGEST);
+        when(repoService.getById(ID)).thenReturn(CompletableFuture.completedFuture(fileData));
+        when(repoService.openContent(fileData)).thenReturn(new ByteArrayInputStream(FILE_CONTENT.getBytes()));
+        when(repoService.getById(ID + 1)).thenReturn(CompletableFuture.failedFuture(new NoSuchElementException()));
 
-        mockMvc.perform(get(BASE_API_PATH + RETRIEVE_BY_ID_PATH)
+        performAsync(get(BASE_API_PATH + RETRIEVE_BY_ID_PATH)
                 .param(ID_PARAMETER, valueOf(ID)))
                 .andExpect(status().isOk())
                 .andExpect(content().bytes(FILE_CONTENT.getBytes()));
+        performAsync(get(BASE_API_PATH + RETRIEVE_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID + 1)))
+                .andExpect(status().isNotFound());
 
         mockMvc.perform(get(BASE_API_PATH + RETRIEVE_BY_ID_PATH)).andExpect(status().is4xxClientError());
     }
 
+    public void testRetrieveFileByIdNotModified() throws Exception {
+        FileData fileData = new FileData(TXT_FILE, FILE_CONTENT.length(), DIGEST);
+        fileData.setModifiedAt(MODIFIED_AT);
+        clearInvocations(repoService);
+        when(repoService.getById(ID)).thenReturn(CompletableFuture.completedFuture(fileData));
+
+        performAsync(get(BASE_API_PATH + RETRIEVE_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(IF_NONE_MATCH, "W/\"" + DIGEST + "\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(ETAG, "\"" + DIGEST + "\""))
+                .andExpect(content().bytes(new byte[0]));
+        performAsync(get(BASE_API_PATH + RETRIEVE_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(IF_MODIFIED_SINCE, "Wed, 01 Jan 2020 10:00:00 GMT"))
+                .andExpect(status().isNotModified());
+        performAsync(get(BASE_API_PATH + RETRIEVE_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(IF_NONE_MATCH, "\"outdated\"")
+                .header(IF_MODIFIED_SINCE, "Wed, 01 Jan 2020 10:00:00 GMT"))
+                .andExpect(status().isOk());
+        verify(repoService, times(1)).openContent(fileData);
+    }
+
+    public void testRetrieveCompressedFileById() throws Exception {
+        byte[] stored = {0x1f, (byte) 0x8b, 0x08};
+        FileData fileData = new FileData(TXT_FILE, FILE_CONTENT.length(), DIGEST);
+        fileData.setEncoding(ContentEncoding.GZIP);
+        fileData.setStoredSize(stored.length);
+        when(repoService.getById(ID)).thenReturn(CompletableFuture.completedFuture(fileData));
+        when(repoService.openStoredContent(fileData)).thenReturn(new ByteArrayInputStream(stored));
+
+        performAsync(get(BASE_API_PATH + RETRIEVE_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(ACCEPT_ENCODING, "gzip, deflate, br"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(CONTENT_ENCODING, "gzip"))
+                .andExpect(header().string(VARY, ACCEPT_ENCODING))
+                .andExpect(content().bytes(stored));
+    }
+
     public void testRetrieveFileByPrefix() throws Exception {
         List<String> fileNames = TestData.dummyFileNamesForPrefix();
-        Future<Collection<String>> fileNamesFuture = new AsyncResult<>(fileNames);
-        when(repoService.getByNameStartingWith(PREFIX)).thenReturn(fileNamesFuture);
+        when(repoService.getByNameStartingWith(PREFIX, Integer.MAX_VALUE)).thenReturn(fileNames);
+        when(repoService.getByNameStartingWith(PREFIX, 1)).thenReturn(fileNames.subList(0, 1));
 
         mockMvc.perform(get(BASE_API_PATH + RETRIEVE_BY_PREFIX_PATH)
                 .param(PREFIX_PARAMETER, PREFIX))
                 .andExpect(status().isOk())
                 .andExpect(content().string(fileNames.toString()));
+        mockMvc.perform(get(BASE_API_PATH + RETRIEVE_BY_PREFIX_PATH)
+                .param(PREFIX_PARAMETER, PREFIX)
+                .param(LIMIT_PARAMETER, "1"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(fileNames.subList(0, 1).toString()));
 
         mockMvc.perform(get(BASE_API_PATH + RETRIEVE_BY_PREFIX_PATH)).andExpect(status().is4xxClientError());
     }
 
     public void testRetrieveAll() throws Exception {
         List<String> fileNames = TestData.dummyFileNames();
-        Future<Collection<String>> fileNamesFuture = new AsyncResult<>(fileNames);
-        when(repoService.getAll()).thenReturn(fileNamesFuture);
+        when(repoService.getAll()).thenReturn(CompletableFuture.completedFuture(fileNames));
 
-        mockMvc.perform(get(BASE_API_PATH + RETRIEVE_ALL_PATH))
+        performAsync(get(BASE_API_PATH + RETRIEVE_ALL_PATH))
                 .andExpect(status().isOk())
                 .andExpect(content().string(fileNames.toString()));
     }
 
     public void testRenameFile() throws Exception {
-        mockMvc.perform(put(BASE_API_PATH + FILE_RENAME_PATH)
+        when(repoService.rename(ID, TXT_FILE)).thenReturn(CompletableFuture.completedFuture(true));
+        when(repoService.rename(ID + 1, TXT_FILE)).thenReturn(CompletableFuture.failedFuture(new NoSuchElementException()));
+
+        performAsync(put(BASE_API_PATH + FILE_RENAME_PATH)
                 .param(ID_PARAMETER, valueOf(ID))
                 .param(NAME_PARAMETER, TXT_FILE))
                 .andExpect(status().isOk())
                 .andExpect(content().string("File updated successfully"));
+        performAsync(put(BASE_API_PATH + FILE_RENAME_PATH)
+                .param(ID_PARAMETER, valueOf(ID + 1))
+                .param(NAME_PARAMETER, TXT_FILE))
+                .andExpect(status().isNotFound());
 
         mockMvc.perform(get(BASE_API_PATH + FILE_RENAME_PATH)).andExpect(status().is4xxClientError());
     }
@@ -139,8 +223,9 @@ public class ControllerTest {
     public void testReplaceFile() throws Exception {
         MockMultipartFile goodFile = dummyMultipartFile();
         MockMultipartFile badFile = dummyBadMultipartFile();
+        when(repoService.replace(eq(ID), any(MultipartFile.class))).thenReturn(CompletableFuture.completedFuture(true));
 
-        mockMvc.perform(MockMvcRequestBuilders.multipart(BASE_API_PATH + FILE_REPLACE_PATH)
+        performAsync(MockMvcRequestBuilders.multipart(BASE_API_PATH + FILE_REPLACE_PATH)
                 .file(goodFile)
                 .param(ID_PARAMETER, valueOf(ID)))
                 .andExpect(status().isOk())
@@ -159,7 +244,9 @@ public class ControllerTest {
     }
 
     public void testRemoveFile() throws Exception {
-        mockMvc.perform(delete(BASE_API_PATH + REMOVE_FILE_PATH)
+        when(repoService.deleteById(ID)).thenReturn(CompletableFuture.completedFuture(true));
+
+        performAsync(delete(BASE_API_PATH + REMOVE_FILE_PATH)
                 .param(ID_PARAMETER, valueOf(ID)))
                 .andExpect(status().isOk())
                 .andExpect(content().string("File removed successfully"));
@@ -168,7 +255,9 @@ public class ControllerTest {
     }
 
     public void testRemoveFiles() throws Exception {
-        mockMvc.perform(delete(BASE_API_PATH + REMOVE_FILES_PATH)
+        when(repoService.deleteAllByIds(any(long[].class))).thenReturn(CompletableFuture.completedFuture(true));
+
+        performAsync(delete(BASE_API_PATH + REMOVE_FILES_PATH)
                 .param(IDS_PARAMETER, valueOf(IDS[0]))
                 .param(IDS_PARAMETER, valueOf(IDS[1])))
                 .andExpect(status().isOk())
@@ -176,4 +265,11 @@ public class ControllerTest {
 
         mockMvc.perform(delete(BASE_API_PATH + REMOVE_FILES_PATH)).andExpect(status().is4xxClientError());
     }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mockMvc.perform(asyncDispatch(result));
+    }
 }
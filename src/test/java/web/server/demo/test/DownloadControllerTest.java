@@ -0,0 +1,229 @@
+package web.server.demo.test;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import web.server.demo.controller.DownloadController;
+import web.server.demo.metrics.TransferMetrics;
+import web.server.demo.repository.FileData;
+import web.server.demo.service.RepoService;
+import web.server.demo.storage.ContentEncoding;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import static java.lang.String.valueOf;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpHeaders.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static web.server.demo.client.Constants.*;
+import static web.server.demo.data.TestData.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DownloadControllerTest {
+
+    private static final String ETAG_VALUE = "\"" + DIGEST + "\"";
+
+    @Rule
+    public TemporaryFolder storageRoot = new TemporaryFolder();
+
+    @Mock
+    private RepoService repoService;
+
+    @Mock
+    private TransferMetrics transferMetrics;
+
+    @InjectMocks
+    private DownloadController downloadController;
+
+    private static final String COMPRESSED_FILE = "compressed.txt";
+
+    private MockMvc mockMvc;
+
+    private FileData fileData;
+
+    @Before
+    public void setUp() throws Exception {
+        mockMvc = MockMvcBuilders.standaloneSetup(downloadController).build();
+
+        Path content = storageRoot.newFile().toPath();
+        Files.write(content, FILE_CONTENT.getBytes());
+        fileData = new FileData(TXT_FILE, FILE_CONTENT.length(), DIGEST);
+        fileData.setModifiedAt(MODIFIED_AT);
+        when(repoService.findById(ID)).thenReturn(fileData);
+        when(repoService.getContentPath(fileData)).thenReturn(content);
+    }
+
+    @Test
+    public void testDownloadWholeFile() throws Exception {
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID)))
+                .andExpect(status().isOk())
+                .andExpect(header().string(ACCEPT_RANGES, "bytes"))
+                .andExpect(header().string(ETAG, ETAG_VALUE))
+                .andExpect(header().longValue(CONTENT_LENGTH, FILE_CONTENT.length()))
+                .andExpect(content().bytes(FILE_CONTENT.getBytes()));
+    }
+
+    @Test
+    public void testDownloadRange() throws Exception {
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(RANGE, "bytes=2-5"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(CONTENT_RANGE, "bytes 2-5/" + FILE_CONTENT.length()))
+                .andExpect(content().string(FILE_CONTENT.substring(2, 6)));
+
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(RANGE, "bytes=-4"))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().string(FILE_CONTENT.substring(FILE_CONTENT.length() - 4)));
+    }
+
+    @Test
+    public void testDownloadRangeWithIfRange() throws Exception {
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(RANGE, "bytes=2-5")
+                .header(IF_RANGE, ETAG_VALUE))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().string(FILE_CONTENT.substring(2, 6)));
+
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(RANGE, "bytes=2-5")
+                .header(IF_RANGE, "\"outdated\""))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(FILE_CONTENT.getBytes()));
+    }
+
+    @Test
+    public void testDownloadMultipleRanges() throws Exception {
+        when(repoService.openStoredContent(fileData, 0, 2))
+                .thenReturn(new ByteArrayInputStream(FILE_CONTENT.substring(0, 2).getBytes()));
+        when(repoService.openStoredContent(fileData, 4, 3))
+                .thenReturn(new ByteArrayInputStream(FILE_CONTENT.substring(4, 7).getBytes()));
+
+        MvcResult result = mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(RANGE, "bytes=0-1,4-6,100-200"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(CONTENT_TYPE, startsWith("multipart/byteranges; boundary=")))
+                .andExpect(header().doesNotExist(CONTENT_RANGE))
+                .andReturn();
+
+        String boundary = result.getResponse().getContentType().substring("multipart/byteranges; boundary=".length());
+        String body = result.getResponse().getContentAsString();
+        assertEquals("\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\n"
+                + "Content-Range: bytes 0-1/" + FILE_CONTENT.length() + "\r\n\r\n" + FILE_CONTENT.substring(0, 2)
+                + "\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\n"
+                + "Content-Range: bytes 4-6/" + FILE_CONTENT.length() + "\r\n\r\n" + FILE_CONTENT.substring(4, 7)
+                + "\r\n--" + boundary + "--\r\n", body);
+        assertEquals(body.length(), result.getResponse().getContentLengthLong());
+    }
+
+    @Test
+    public void testDownloadOverlappingRanges() throws Exception {
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(RANGE, "bytes=0-,0-"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(FILE_CONTENT.getBytes()));
+    }
+
+    @Test
+    public void testDownloadUnsatisfiableRange() throws Exception {
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(RANGE, "bytes=100-200"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string(CONTENT_RANGE, "bytes */" + FILE_CONTENT.length()));
+    }
+
+    @Test
+    public void testDownloadNotModified() throws Exception {
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(IF_NONE_MATCH, ETAG_VALUE)
+                .header(RANGE, "bytes=2-5"))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(ETAG, ETAG_VALUE))
+                .andExpect(header().string(LAST_MODIFIED, "Wed, 01 Jan 2020 10:00:00 GMT"))
+                .andExpect(content().bytes(new byte[0]));
+
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID))
+                .header(IF_MODIFIED_SINCE, "Wed, 01 Jan 2020 09:59:59 GMT"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(FILE_CONTENT.getBytes()));
+    }
+
+    @Test
+    public void testDownloadCompressedFile() throws Exception {
+        byte[] gzipped = gzip(FILE_CONTENT.getBytes());
+        Path content = storageRoot.newFile().toPath();
+        Files.write(content, gzipped);
+        FileData fileData = new FileData(COMPRESSED_FILE, FILE_CONTENT.length(), DIGEST);
+        fileData.setEncoding(ContentEncoding.GZIP);
+        fileData.setStoredSize(gzipped.length);
+        when(repoService.findById(ID + 2)).thenReturn(fileData);
+        when(repoService.getContentPath(fileData)).thenReturn(content);
+        when(repoService.openContent(fileData, 2, 4))
+                .thenReturn(new ByteArrayInputStream(FILE_CONTENT.substring(2, 6).getBytes()));
+
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID + 2))
+                .header(ACCEPT_ENCODING, "deflate, gzip;q=0.8"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(CONTENT_ENCODING, "gzip"))
+                .andExpect(header().string(ETAG, "\"" + DIGEST + "-gzip\""))
+                .andExpect(header().string(VARY, ACCEPT_ENCODING))
+                .andExpect(header().longValue(CONTENT_LENGTH, gzipped.length))
+                .andExpect(content().bytes(gzipped));
+
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID + 2))
+                .header(ACCEPT_ENCODING, "gzip;q=0")
+                .header(RANGE, "bytes=2-5"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().doesNotExist(CONTENT_ENCODING))
+                .andExpect(header().string(CONTENT_RANGE, "bytes 2-5/" + FILE_CONTENT.length()))
+                .andExpect(content().string(FILE_CONTENT.substring(2, 6)));
+    }
+
+    @Test
+    public void testDownloadMissingFile() throws Exception {
+        when(repoService.findById(ID + 1)).thenReturn(null);
+
+        mockMvc.perform(get(BASE_API_PATH + DOWNLOAD_BY_ID_PATH)
+                .param(ID_PARAMETER, valueOf(ID + 1)))
+                .andExpect(status().isNotFound());
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(content);
+        }
+        return gzipped.toByteArray();
+    }
+}
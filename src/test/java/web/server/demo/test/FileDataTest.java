@@ -0,0 +1,48 @@
+package web.server.demo.test;
+
+import org.junit.Test;
+import web.server.demo.data.TestData;
+import web.server.demo.repository.FileData;
+import web.server.demo.storage.ContentEncoding;
+import web.server.demo.storage.StoredBlob;
+
+import static org.junit.Assert.*;
+import static web.server.demo.data.TestData.DIGEST;
+
+public class FileDataTest {
+
+    @Test
+    public void testSavedFilesAreEqualById() {
+        FileData fileData = TestData.dummyFileData();
+        fileData.setId(1);
+        FileData renamed = new FileData("renamed", 3, "otherDigest");
+        renamed.setId(1);
+        FileData other = TestData.dummyFileData();
+        other.setId(2);
+
+        assertEquals(fileData, renamed);
+        assertEquals(fileData.hashCode(), renamed.hashCode());
+        assertNotEquals(fileData, other);
+        assertNotEquals(fileData, TestData.dummyFileData());
+    }
+
+    @Test
+    public void testNewFilesAreEqualByDigest() {
+        assertEquals(TestData.dummyFileData(), new FileData("copy", 9, DIGEST));
+        assertEquals(TestData.dummyFileData().hashCode(), new FileData("copy", 9, DIGEST).hashCode());
+        assertNotEquals(TestData.dummyFileData(), new FileData("dummyName", 9, "otherDigest"));
+        assertNotEquals(new FileData(), new FileData());
+    }
+
+    @Test
+    public void testPayload() {
+        FileData fileData = TestData.dummyFileData();
+        assertEquals(new StoredBlob(DIGEST, 9, ContentEncoding.IDENTITY, 9), fileData.getPayload());
+        assertEquals(fileData.getSize(), fileData.getPayload().getStoredSize());
+
+        fileData.setEncoding(ContentEncoding.GZIP);
+        fileData.setStoredSize(4);
+        assertEquals(ContentEncoding.GZIP, fileData.getPayload().getEncoding());
+        assertEquals(4, fileData.getPayload().getStoredSize());
+    }
+}
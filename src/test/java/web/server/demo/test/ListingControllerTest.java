@@ -0,0 +1,118 @@
+package web.server.demo.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import web.server.demo.controller.ListingController;
+import web.server.demo.repository.FileMetadata;
+import web.server.demo.service.RepoService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpHeaders.ACCEPT;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static web.server.demo.client.Constants.*;
+import static web.server.demo.data.TestData.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ListingControllerTest {
+
+    @Mock
+    private RepoService repoService;
+
+    @InjectMocks
+    private ListingController listingController;
+
+    private MockMvc mockMvc;
+
+    private List<FileMetadata> fileMetadata;
+
+    @Before
+    public void setUp() {
+        mockMvc = MockMvcBuilders.standaloneSetup(listingController).build();
+        fileMetadata = new ArrayList<>(dummyFileMetadataCollectionForPrefix());
+    }
+
+    @Test
+    public void testListLastPage() throws Exception {
+        when(repoService.getPage(eq(PREFIX), isNull(), anyLong(), eq(10))).thenReturn(fileMetadata);
+
+        MvcResult result = mockMvc.perform(get(BASE_API_PATH + LIST_PATH)
+                .param(PREFIX_PARAMETER, PREFIX)
+                .param(LIMIT_PARAMETER, "10"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.items[*].name").value(contains(dummyFileNamesForPrefix().toArray())))
+                .andExpect(jsonPath("$.next").value(nullValue()));
+    }
+
+    @Test
+    public void testListFollowsCursor() throws Exception {
+        FileMetadata last = fileMetadata.get(fileMetadata.size() - 1);
+        when(repoService.getPage(eq(PREFIX), isNull(), anyLong(), eq(fileMetadata.size()))).thenReturn(fileMetadata);
+        when(repoService.getPage(PREFIX, last.getName(), last.getId(), fileMetadata.size()))
+                .thenReturn(Collections.emptyList());
+
+        MvcResult first = mockMvc.perform(get(BASE_API_PATH + LIST_PATH)
+                .param(PREFIX_PARAMETER, PREFIX)
+                .param(LIMIT_PARAMETER, String.valueOf(fileMetadata.size())))
+                .andReturn();
+        String body = mockMvc.perform(asyncDispatch(first))
+                .andExpect(jsonPath("$.next").value(notNullValue()))
+                .andReturn().getResponse().getContentAsString();
+        String cursor = body.substring(body.indexOf("\"next\":\"") + 8, body.lastIndexOf('"'));
+
+        MvcResult second = mockMvc.perform(get(BASE_API_PATH + LIST_PATH)
+                .param(PREFIX_PARAMETER, PREFIX)
+                .param(CURSOR_PARAMETER, cursor)
+                .param(LIMIT_PARAMETER, String.valueOf(fileMetadata.size())))
+                .andReturn();
+        mockMvc.perform(asyncDispatch(second))
+                .andExpect(jsonPath("$.items").isEmpty())
+                .andExpect(jsonPath("$.next").value(nullValue()));
+        verify(repoService).getPage(PREFIX, last.getName(), last.getId(), fileMetadata.size());
+    }
+
+    @Test
+    public void testListAsNdjson() throws Exception {
+        when(repoService.getPage(eq(""), isNull(), anyLong(), anyInt())).thenReturn(fileMetadata);
+
+        MvcResult result = mockMvc.perform(get(BASE_API_PATH + LIST_PATH)
+                .header(ACCEPT, "application/x-ndjson"))
+                .andReturn();
+        String body = mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andReturn().getResponse().getContentAsString();
+        String[] lines = body.split("\n");
+        assertEquals(fileMetadata.size() + 1, lines.length);
+        assertEquals("{\"next\":null}", lines[lines.length - 1]);
+    }
+
+    @Test
+    public void testListRejectsInvalidArguments() throws Exception {
+        mockMvc.perform(get(BASE_API_PATH + LIST_PATH).param(LIMIT_PARAMETER, "0"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get(BASE_API_PATH + LIST_PATH).param(CURSOR_PARAMETER, "not a cursor"))
+                .andExpect(status().isBadRequest());
+    }
+}
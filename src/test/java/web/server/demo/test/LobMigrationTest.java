@@ -0,0 +1,91 @@
+package web.server.demo.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.util.StreamUtils;
+import web.server.demo.repository.BlobRecordRepository;
+import web.server.demo.repository.FileData;
+import web.server.demo.service.BlobService;
+import web.server.demo.service.LobMigration;
+import web.server.demo.storage.BlobStore;
+import web.server.demo.storage.ContentEncoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static web.server.demo.data.TestData.*;
+
+public class LobMigrationTest {
+
+    @Rule
+    public TemporaryFolder storageRoot = new TemporaryFolder();
+
+    @Mock
+    private BlobRecordRepository blobRecordRepository;
+
+    private SingleConnectionDataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private BlobService blobService;
+
+    private AutoCloseable mocks;
+
+    @Before
+    public void setUp() throws IOException {
+        mocks = MockitoAnnotations.openMocks(this);
+        dataSource = new SingleConnectionDataSource("jdbc:h2:mem:lob-migration", true);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        // the table of the versions keeping payloads as LOBs
+        jdbcTemplate.execute("create table file_data (id bigint primary key, name varchar(255), data blob)");
+        jdbcTemplate.execute("create sequence " + FileData.ID_SEQUENCE + " start with 1 increment by "
+                + FileData.ID_ALLOCATION_SIZE);
+        jdbcTemplate.update("insert into file_data (id, name, data) values (?, ?, ?)",
+                ID, TXT_FILE, FILE_CONTENT.getBytes());
+        jdbcTemplate.update("insert into file_data (id, name, data) values (?, ?, ?)",
+                ID + 1, TXT_FILE, FILE_CONTENT.getBytes());
+        blobService = new BlobService(new BlobStore(storageRoot.getRoot().getPath(), 4), blobRecordRepository);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dataSource.destroy();
+        mocks.close();
+    }
+
+    @Test
+    public void testMigrateMovesPayloadsToStorage() throws IOException {
+        int migrated = new LobMigration(jdbcTemplate, blobService, false).migrate();
+
+        assertEquals(2, migrated);
+        Map<String, Object> row = jdbcTemplate.queryForMap("select * from file_data where id = ?", ID);
+        assertNull(row.get("DATA"));
+        assertEquals((long) FILE_CONTENT.length(), row.get("SIZE"));
+        try (InputStream stored = blobService.open((String) row.get("DIGEST"), ContentEncoding.IDENTITY)) {
+            assertArrayEquals(FILE_CONTENT.getBytes(), StreamUtils.copyToByteArray(stored));
+        }
+        Long nextId = jdbcTemplate.queryForObject("select next value for " + FileData.ID_SEQUENCE, Long.class);
+        assertTrue(nextId - FileData.ID_ALLOCATION_SIZE >= ID + 1);
+    }
+
+    @Test
+    public void testMigrateCanBeRepeated() throws IOException {
+        LobMigration lobMigration = new LobMigration(jdbcTemplate, blobService, true);
+
+        assertEquals(2, lobMigration.migrate());
+        assertEquals(0, lobMigration.migrate());
+
+        assertEquals(0, (int) jdbcTemplate.queryForObject(
+                "select count(*) from information_schema.columns where table_name = 'FILE_DATA' "
+                        + "and column_name = 'DATA'", Integer.class));
+    }
+}
@@ -0,0 +1,143 @@
+package web.server.demo.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.util.StreamUtils;
+import web.server.demo.cache.FileCache;
+import web.server.demo.cache.MappedBlob;
+import web.server.demo.repository.BlobRecordRepository;
+import web.server.demo.service.BlobService;
+import web.server.demo.storage.BlobStore;
+import web.server.demo.storage.StoredBlob;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MappedBlobTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private BlobRecordRepository blobRecordRepository;
+
+    private byte[] content;
+
+    private Path path;
+
+    private AutoCloseable mocks;
+
+    @Before
+    public void setUp() throws IOException {
+        mocks = MockitoAnnotations.openMocks(this);
+        content = new byte[10_000];
+        new Random(42).nextBytes(content);
+        path = folder.newFile().toPath();
+        Files.write(path, content);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mocks.close();
+    }
+
+    @Test
+    public void testReadsAcrossRegions() throws IOException {
+        MappedBlob blob = MappedBlob.map("digest", path, 4096);
+
+        try (InputStream in = blob.open()) {
+            assertEquals(content[0] & 0xFF, in.read());
+            assertEquals(5000, in.skip(5000));
+            byte[] rest = StreamUtils.copyToByteArray(in);
+            assertEquals(content.length - 5001, rest.length);
+            assertEquals(content[content.length - 1], rest[rest.length - 1]);
+        }
+        assertFalse(blob.isReleased());
+    }
+
+    @Test
+    public void testUnmappedOnceTheLastStreamIsClosed() throws IOException {
+        MappedBlob blob = MappedBlob.map("digest", path, 4096);
+        InputStream in = blob.open();
+
+        blob.release();
+        Files.delete(path);
+
+        assertFalse(blob.isReleased());
+        assertArrayEquals(content, StreamUtils.copyToByteArray(in));
+        in.close();
+        assertTrue(blob.isReleased());
+        assertNull(blob.open());
+        try {
+            in.read();
+            fail("A closed stream was read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFileCacheServesLargeBlobsMapped() throws IOException {
+        BlobService blobService = new BlobService(new BlobStore(folder.newFolder().getPath(), 4096),
+                blobRecordRepository);
+        FileCache fileCache = new FileCache(blobService, 10, 1024, 1024, false, 1024 * 1024, 1024 * 1024, 1);
+        StoredBlob blob = blobService.store(new ByteArrayInputStream(content));
+
+        InputStream reading = fileCache.openStoredContent(blob);
+        try (InputStream in = fileCache.openStoredContent(blob)) {
+            assertArrayEquals(content, StreamUtils.copyToByteArray(in));
+        }
+        fileCache.evictContent(blob.getDigest());
+        Files.delete(blobService.path(blob.getDigest(), blob.getEncoding()));
+
+        assertArrayEquals(content, StreamUtils.copyToByteArray(reading));
+        reading.close();
+        assertEquals(1, fileCache.stats().get(2).getHits());
+    }
+
+    @Test
+    public void testFileCacheMapsBlobsOnceTheyAreHot() throws IOException {
+        BlobService blobService = new BlobService(new BlobStore(folder.newFolder().getPath(), 4096),
+                blobRecordRepository);
+        FileCache fileCache = new FileCache(blobService, 10, 1024, 1024, false, 1024 * 1024, 1024 * 1024, 2);
+        StoredBlob blob = blobService.store(new ByteArrayInputStream(content));
+
+        try (InputStream in = fileCache.openStoredContent(blob, 10, 100)) {
+            assertEquals(100, StreamUtils.copyToByteArray(in).length);
+        }
+        assertEquals(0, fileCache.stats().get(2).getEntries());
+        for (int i = 0; i < 2; i++) {
+            try (InputStream in = fileCache.openStoredContent(blob)) {
+                assertArrayEquals(content, StreamUtils.copyToByteArray(in));
+            }
+        }
+
+        assertEquals(1, fileCache.stats().get(2).getEntries());
+        assertEquals(1, fileCache.stats().get(2).getHits());
+    }
+
+    @Test
+    public void testFileCacheStreamsBlobsLargerThanAMapping() throws IOException {
+        BlobService blobService = new BlobService(new BlobStore(folder.newFolder().getPath(), 4096),
+                blobRecordRepository);
+        FileCache fileCache = new FileCache(blobService, 10, 1024, 1024, false, 1024 * 1024, 1024, 1);
+        StoredBlob blob = blobService.store(new ByteArrayInputStream(content));
+
+        try (InputStream in = fileCache.openStoredContent(blob)) {
+            assertArrayEquals(content, StreamUtils.copyToByteArray(in));
+        }
+
+        assertEquals(0, fileCache.stats().get(2).getEntries());
+    }
+}
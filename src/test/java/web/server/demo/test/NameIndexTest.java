@@ -0,0 +1,59 @@
+package web.server.demo.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import web.server.demo.repository.FileDataRepository;
+import web.server.demo.service.NameIndex;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class NameIndexTest {
+
+    @Mock
+    private FileDataRepository fileDataRepository;
+
+    private NameIndex nameIndex;
+
+    private AutoCloseable mocks;
+
+    @Before
+    public void setUp() {
+        mocks = MockitoAnnotations.openMocks(this);
+        nameIndex = new NameIndex(fileDataRepository);
+        nameIndex.add(1, "press.pdf");
+        nameIndex.add(2, "premium.pdf");
+        nameIndex.add(3, "foo");
+        nameIndex.add(4, "pre");
+        nameIndex.add(5, "premium.pdf");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mocks.close();
+    }
+
+    @Test
+    public void testFindByPrefix() {
+        assertEquals(Arrays.asList("pre", "premium.pdf", "premium.pdf", "press.pdf"), nameIndex.findByPrefix("pre", 10));
+        assertEquals(Arrays.asList("pre", "premium.pdf"), nameIndex.findByPrefix("pre", 2));
+        assertEquals(Collections.singletonList("foo"), nameIndex.findByPrefix("f", 10));
+        assertEquals(Collections.emptyList(), nameIndex.findByPrefix("prz", 10));
+        assertEquals(5, nameIndex.findByPrefix("", 10).size());
+    }
+
+    @Test
+    public void testRenameAndRemove() {
+        nameIndex.rename(2, "premium.pdf", "bar");
+        nameIndex.remove(1, "press.pdf");
+
+        assertEquals(Arrays.asList("pre", "premium.pdf"), nameIndex.findByPrefix("pre", 10));
+        assertEquals(Collections.singletonList("bar"), nameIndex.findByPrefix("b", 10));
+        assertEquals(4, nameIndex.size());
+    }
+}
@@ -1,53 +1,323 @@
 package web.server.demo.test;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
-import org.mockito.InjectMocks;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.Pageable;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.multipart.MultipartFile;
+import web.server.demo.archive.ArchiveFormat;
+import web.server.demo.archive.ArchiveWriter;
+import web.server.demo.cache.FileCache;
 import web.server.demo.data.TestData;
+import web.server.demo.metrics.MetricNames;
+import web.server.demo.metrics.TransferMetrics;
+import web.server.demo.repository.BlobRecord;
+import web.server.demo.repository.BlobRecordRepository;
+import web.server.demo.repository.FileData;
 import web.server.demo.repository.FileDataRepository;
+import web.server.demo.repository.FileMetadata;
+import web.server.demo.service.ArchiveUpload;
+import web.server.demo.service.BlobService;
+import web.server.demo.service.NameIndex;
 import web.server.demo.service.RepoService;
+import web.server.demo.service.UploadResult;
+import web.server.demo.storage.BlobStore;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static web.server.demo.client.Constants.FILES_PARAMETER;
 import static web.server.demo.data.TestData.*;
 
 
 public class RepoServiceTest {
 
+    @Rule
+    public TemporaryFolder storageRoot = new TemporaryFolder();
+
     @Mock
     private FileDataRepository fileDataRepository;
 
-    @InjectMocks
+    @Mock
+    private BlobRecordRepository blobRecordRepository;
+
+    @Captor
+    private ArgumentCaptor<List<BlobRecord>> blobRecords;
+
     private RepoService repoService;
 
+    private ThreadPoolTaskExecutor uploadExecutor;
+
+    private FileCache fileCache;
+
+    private SimpleMeterRegistry meterRegistry;
+
     private MockMultipartFile mockMultipartFile = dummyMultipartFile();
     private MockMultipartFile[] mockMultipartFiles = dummyMultipartFiles();
 
-    @Before
-    public void setUp() {
-        MockitoAnnotations.initMocks(this);
+    private AutoCloseable mocks;
 
+    @Before
+    public void setUp() throws IOException {
+        mocks = MockitoAnnotations.openMocks(this);
+        when(fileDataRepository.save(any(FileData.class))).then(returnsFirstArg());
+        when(fileDataRepository.saveAll(anyIterable())).then(returnsFirstArg());
         when(fileDataRepository.findById(ID)).thenReturn(Optional.of(TestData.dummyFileData()));
-        when(fileDataRepository.findByNameStartingWith(PREFIX)).thenReturn(TestData.dummyFileDataCollectionForPrefix());
-        when(fileDataRepository.findAll()).thenReturn(TestData.dummyFileDataCollection());
+        when(fileDataRepository.findMetadataBy()).thenReturn(TestData.dummyFileMetadataCollection());
+        when(fileDataRepository.findMetadataPage(eq("%"), any(Pageable.class)))
+                .thenReturn(new ArrayList<>(TestData.dummyFileMetadataCollectionForPrefix()));
+
+        NameIndex nameIndex = new NameIndex(fileDataRepository);
+        nameIndex.rebuild();
+        uploadExecutor = new ThreadPoolTaskExecutor();
+        uploadExecutor.setCorePoolSize(1);
+        uploadExecutor.setMaxPoolSize(1);
+        uploadExecutor.setQueueCapacity(0);
+        uploadExecutor.initialize();
+        BlobService blobService =
+                new BlobService(new BlobStore(storageRoot.getRoot().getPath(), 1024), blobRecordRepository);
+        fileCache = new FileCache(blobService, 100, 1024 * 1024, 64 * 1024, false);
+        meterRegistry = new SimpleMeterRegistry();
+        repoService = new RepoService(fileDataRepository, blobService, nameIndex, fileCache,
+                new TransferMetrics(meterRegistry), uploadExecutor, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        uploadExecutor.shutdown();
+        mocks.close();
+    }
+
+    @Test
+    public void testSaveMultipartFile() throws ExecutionException, InterruptedException {
+        assertEquals(TXT_FILE, repoService.save(mockMultipartFile).get().getName());
     }
 
     @Test
-    public void testSaveMultipartFile() throws IOException {
-        assertTrue(repoService.save(mockMultipartFile));
+    public void testSavedBytesAreCounted() throws Exception {
+        repoService.save(mockMultipartFile).get();
+        repoService.save(mockMultipartFiles).get();
+
+        DistributionSummary payloads = meterRegistry.get(MetricNames.PAYLOAD_SIZE)
+                .tag(MetricNames.DIRECTION_TAG, "in").summary();
+        assertEquals(1 + mockMultipartFiles.length, payloads.count());
+        assertEquals(FILE_CONTENT.length() * (1 + mockMultipartFiles.length),
+                meterRegistry.get(MetricNames.TRANSFER_BYTES).tag(MetricNames.DIRECTION_TAG, "in").counter().count(), 0);
     }
 
     @Test
-    public void testSaveMultipartFiles() throws InterruptedException {
-        assertTrue(repoService.save(mockMultipartFiles));
+    public void testSavedContentIsReadable() throws Exception {
+        repoService.save(mockMultipartFile).get();
+
+        ArgumentCaptor<FileData> saved = ArgumentCaptor.forClass(FileData.class);
+        verify(fileDataRepository).save(saved.capture());
+        assertEquals(FILE_CONTENT.length(), saved.getValue().getSize());
+        try (InputStream content = repoService.openContent(saved.getValue())) {
+            assertArrayEquals(FILE_CONTENT.getBytes(), StreamUtils.copyToByteArray(content));
+        }
+    }
+
+    @Test
+    public void testSavedContentRangeIsReadable() throws Exception {
+        repoService.save(mockMultipartFile).get();
+
+        ArgumentCaptor<FileData> saved = ArgumentCaptor.forClass(FileData.class);
+        verify(fileDataRepository).save(saved.capture());
+        try (InputStream range = repoService.openContent(saved.getValue(), 2, 4)) {
+            assertEquals(FILE_CONTENT.substring(2, 6), StreamUtils.copyToString(range, StandardCharsets.UTF_8));
+        }
+        try (InputStream tail = repoService.openStoredContent(saved.getValue(), 10, 100)) {
+            assertEquals(FILE_CONTENT.substring(10), StreamUtils.copyToString(tail, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testSaveMultipartFiles() throws ExecutionException, InterruptedException {
+        List<UploadResult> results = repoService.save(mockMultipartFiles).get();
+
+        assertEquals(mockMultipartFiles.length, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertTrue(results.get(i).isSuccess());
+            assertEquals(mockMultipartFiles[i].getOriginalFilename(), results.get(i).getName());
+        }
+    }
+
+    @Test
+    public void testSaveMultipartFilesInBulk() throws Exception {
+        MockMultipartFile[] files = new MockMultipartFile[1000];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new MockMultipartFile(FILES_PARAMETER, "file" + i + ".txt", "text/plain",
+                    (FILE_CONTENT + i % 10).getBytes());
+        }
+
+        List<UploadResult> results = repoService.save(files).get();
+
+        assertTrue(results.stream().allMatch(UploadResult::isSuccess));
+        verify(fileDataRepository, never()).save(any(FileData.class));
+        verify(fileDataRepository, times(1)).saveAll(anyIterable());
+        verify(blobRecordRepository, times(1)).saveAll(blobRecords.capture());
+        assertEquals(10, blobRecords.getValue().size());
+        assertEquals(100, blobRecords.getValue().get(0).getRefCount());
+        verify(blobRecordRepository, never()).addReferences(any(String.class), anyLong());
+    }
+
+    @Test
+    public void testDeleteAllByIdsInBulk() throws ExecutionException, InterruptedException {
+        List<FileMetadata> files = new ArrayList<>(TestData.dummyFileMetadataCollectionForPrefix());
+        when(fileDataRepository.findMetadataByIdIn(anyCollection())).thenReturn(files);
+
+        assertTrue(repoService.deleteAllByIds(IDS).get());
+
+        verify(fileDataRepository, times(1)).deleteByIds(Arrays.asList(1L, 2L, 3L));
+        verify(fileDataRepository, never()).findAllById(anyIterable());
+        verify(fileDataRepository, never()).delete(any(FileData.class));
+        verify(blobRecordRepository, times(1)).addReferences(Collections.singletonList(DIGEST), -3L);
+        verify(blobRecordRepository, times(1)).findUnreferencedDigests(anyCollection());
+    }
+
+    @Test
+    public void testSaveMultipartFilesReportsFailures() throws Exception {
+        MultipartFile brokenFile = mock(MultipartFile.class);
+        when(brokenFile.getOriginalFilename()).thenReturn("broken.txt");
+        when(brokenFile.getInputStream()).thenThrow(new IOException("Connection reset"));
+
+        List<UploadResult> results = repoService.save(new MultipartFile[]{mockMultipartFile, brokenFile}).get();
+
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertEquals("broken.txt", results.get(1).getName());
+    }
+
+    @Test
+    public void testFailedSaveReleasesTheBlob() throws Exception {
+        when(fileDataRepository.save(any(FileData.class))).thenThrow(new IllegalStateException("Database down"));
+        when(blobRecordRepository.deleteIfUnreferenced(anyString())).thenReturn(1);
+
+        for (CompletableFuture<?> future : Arrays.asList(repoService.save(mockMultipartFile),
+                repoService.replace(ID, mockMultipartFile))) {
+            try {
+                future.get();
+                fail("The file was saved");
+            } catch (ExecutionException e) {
+                assertEquals("Database down", e.getCause().getMessage());
+            }
+        }
+
+        verify(blobRecordRepository, times(2)).addReferences(anyString(), eq(-1L));
+        try (Stream<Path> blobs = Files.walk(storageRoot.getRoot().toPath())) {
+            assertEquals(0, blobs.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    public void testSaveArchive() throws Exception {
+        byte[] archive = tar("a.txt", "dir/b.txt");
+
+        try (ArchiveUpload upload = repoService.save(ArchiveFormat.TAR, new ByteArrayInputStream(archive))) {
+            assertEquals(2, upload.getSaved());
+            assertEquals(0, upload.getFailed());
+            assertNull(upload.getError());
+            assertEquals(Arrays.asList("{\"name\":\"a.txt\",\"id\":0}", "{\"name\":\"dir/b.txt\",\"id\":0}"),
+                    manifest(upload));
+        }
+        verify(fileDataRepository, times(1)).saveAll(anyIterable());
+    }
+
+    @Test
+    public void testSaveTruncatedArchiveKeepsEarlierFiles() throws Exception {
+        byte[] archive = tar("a.txt", "b.txt");
+        // the second header is intact, its content is cut off
+        byte[] truncated = Arrays.copyOf(archive, 3 * 512 + 4);
+
+        try (ArchiveUpload upload = repoService.save(ArchiveFormat.TAR, new ByteArrayInputStream(truncated))) {
+            assertEquals(1, upload.getSaved());
+            assertEquals(1, upload.getFailed());
+            assertNotNull(upload.getError());
+            List<String> manifest = manifest(upload);
+            assertEquals(3, manifest.size());
+            assertEquals("{\"name\":\"b.txt\",\"error\":\"File could not be saved\"}", manifest.get(1));
+        }
+    }
+
+    private static byte[] tar(String... names) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ArchiveWriter writer = ArchiveFormat.TAR.newWriter(out)) {
+            for (String name : names) {
+                writer.putEntry(name, FILE_CONTENT.length(), MODIFIED_AT, false,
+                        () -> new ByteArrayInputStream(FILE_CONTENT.getBytes()));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> manifest(ArchiveUpload upload) throws IOException {
+        try (InputStream in = upload.openManifest()) {
+            return Arrays.asList(StreamUtils.copyToString(in, StandardCharsets.UTF_8).split("\n"));
+        }
+    }
+
+    @Test
+    public void testSaveMultipartFilesWithSaturatedExecutor() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        uploadExecutor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            List<UploadResult> results = repoService.save(mockMultipartFiles).get();
+            assertTrue(results.stream().allMatch(UploadResult::isSuccess));
+        } finally {
+            release.countDown();
+        }
     }
 
     @Test
@@ -55,33 +325,75 @@ public class RepoServiceTest {
         assertEquals(repoService.getById(ID).get(), TestData.dummyFileData());
     }
 
+    @Test
+    public void testFindFileDataByIdOnCallingThread() {
+        assertEquals(TestData.dummyFileData(), repoService.findById(ID));
+        assertNull(repoService.findById(ID + 1));
+    }
+
+    @Test
+    public void testGetFileDataByIdIsCached() throws ExecutionException, InterruptedException {
+        repoService.getById(ID).get();
+        repoService.getById(ID).get();
+
+        verify(fileDataRepository, times(1)).findById(ID);
+        assertEquals(1, fileCache.stats().get(0).getHits());
+    }
+
+    @Test
+    public void testRenameInvalidatesCachedFileData() throws ExecutionException, InterruptedException {
+        repoService.getById(ID).get();
+        repoService.rename(ID, "newName").get();
+        repoService.getById(ID).get();
+
+        verify(fileDataRepository, times(3)).findById(ID);
+    }
+
     @Test
     public void testGetFileNamesByPrefix() throws ExecutionException, InterruptedException {
         assertEquals(repoService.getByNameStartingWith(PREFIX).get(), TestData.dummyFileNamesForPrefix());
     }
 
+    @Test
+    public void testGetFileNamesByPrefixWithLimit() {
+        assertEquals(repoService.getByNameStartingWith(PREFIX, 2), TestData.dummyFileNamesForPrefix().subList(0, 2));
+    }
+
     @Test
     public void testGetAllFileNames() throws ExecutionException, InterruptedException {
         assertEquals(repoService.getAll().get(), TestData.dummyFileNames());
     }
 
     @Test
-    public void testRenameFile() {
-        assertTrue(repoService.rename(ID, "newName"));
+    public void testRenameFile() throws ExecutionException, InterruptedException {
+        assertTrue(repoService.rename(ID, "newName").get());
+    }
+
+    @Test
+    public void testReplaceFile() throws ExecutionException, InterruptedException {
+        assertTrue(repoService.replace(ID, dummyMultipartFile()).get());
     }
 
     @Test
-    public void testReplaceFile() throws IOException {
-        assertTrue(repoService.replace(ID, dummyMultipartFile()));
+    public void testDeleteById() throws ExecutionException, InterruptedException {
+        assertTrue(repoService.deleteById(ID).get());
     }
 
     @Test
-    public void testDeleteById() {
-        assertTrue(repoService.deleteById(ID));
+    public void testMissingFileFailsTheFuture() throws InterruptedException {
+        for (Future<?> future : Arrays.asList(repoService.getById(ID + 1), repoService.rename(ID + 1, "newName"),
+                repoService.deleteById(ID + 1))) {
+            try {
+                future.get();
+                fail("Expected the future to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof NoSuchElementException);
+            }
+        }
     }
 
     @Test
-    public void testDeleteAllByIds() {
-        assertTrue(repoService.deleteAllByIds(IDS));
+    public void testDeleteAllByIds() throws ExecutionException, InterruptedException {
+        assertTrue(repoService.deleteAllByIds(IDS).get());
     }
 }
@@ -0,0 +1,133 @@
+package web.server.demo.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import web.server.demo.cache.FileCache;
+import web.server.demo.data.GeneratedMultipartFile;
+import web.server.demo.metrics.TransferMetrics;
+import web.server.demo.repository.BlobRecordRepository;
+import web.server.demo.repository.FileData;
+import web.server.demo.repository.FileDataRepository;
+import web.server.demo.service.BlobService;
+import web.server.demo.service.NameIndex;
+import web.server.demo.service.RepoService;
+import web.server.demo.storage.BlobStore;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Pushes several multi-GB uploads through <tt>RepoService</tt> at the same time and checks that the heap stays flat.
+ * Only runs with the <tt>load</tt> profile, which also caps the heap far below the size of a single upload:
+ *
+ * mvn test -Pload -Dload.files=4 -Dload.file-size=2147483648
+ */
+public class StreamingUploadLoadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingUploadLoadTest.class);
+
+    private static final int FILES = Integer.getInteger("load.files", 4);
+    private static final long FILE_SIZE = Long.getLong("load.file-size", 2L * 1024 * 1024 * 1024);
+    private static final long MAX_HEAP_GROWTH = 32L * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder storageRoot = new TemporaryFolder();
+
+    @Mock
+    private FileDataRepository fileDataRepository;
+
+    @Mock
+    private BlobRecordRepository blobRecordRepository;
+
+    private ThreadPoolTaskExecutor uploadExecutor;
+
+    private RepoService repoService;
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private AutoCloseable mocks;
+
+    @Before
+    public void setUp() throws IOException {
+        mocks = MockitoAnnotations.openMocks(this);
+        when(fileDataRepository.save(any(FileData.class))).then(returnsFirstArg());
+        uploadExecutor = new ThreadPoolTaskExecutor();
+        uploadExecutor.setCorePoolSize(FILES);
+        uploadExecutor.initialize();
+        BlobService blobService =
+                new BlobService(new BlobStore(storageRoot.getRoot().getPath(), 64 * 1024), blobRecordRepository);
+        repoService = new RepoService(fileDataRepository, blobService, new NameIndex(fileDataRepository),
+                new FileCache(blobService, 100, 1024 * 1024, 64 * 1024, false),
+                new TransferMetrics(new SimpleMeterRegistry()), uploadExecutor, 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        uploadExecutor.shutdown();
+        mocks.close();
+    }
+
+    @Test
+    public void testConcurrentLargeUploadsKeepHeapFlat() throws Exception {
+        long heapBefore = usedHeapAfterGc();
+        AtomicLong peakHeap = new AtomicLong();
+        ExecutorService sampler = Executors.newSingleThreadExecutor();
+        sampler.submit(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        List<Future<FileData>> uploads = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            GeneratedMultipartFile file = new GeneratedMultipartFile("large" + i + ".bin", FILE_SIZE);
+            uploads.add(repoService.save(file));
+        }
+        for (Future<FileData> upload : uploads) {
+            assertEquals(FILE_SIZE, upload.get().getSize());
+        }
+        long elapsed = System.nanoTime() - start;
+        sampler.shutdownNow();
+        sampler.awaitTermination(1, TimeUnit.SECONDS);
+
+        long heapAfter = usedHeapAfterGc();
+        LOG.info("Uploaded {} x {} bytes in {} ms. Heap after GC: {} -> {} bytes, sampled peak {} bytes, max {} bytes",
+                FILES, FILE_SIZE, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                heapBefore, heapAfter, peakHeap.get(), memory.getHeapMemoryUsage().getMax());
+        assertTrue("Heap grew by " + (heapAfter - heapBefore) + " bytes", heapAfter - heapBefore < MAX_HEAP_GROWTH);
+    }
+
+    private long usedHeapAfterGc() {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,42 @@
+package web.server.demo.test;
+
+import org.junit.Test;
+import web.server.demo.admission.TokenBucket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    private final AtomicLong now = new AtomicLong(42);
+
+    private final TokenBucket bucket = new TokenBucket(10, 5, now::get);
+
+    @Test
+    public void testAllowsBurstThenRate() {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.tryAcquire(1));
+        }
+        long wait = bucket.tryAcquire(1);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), wait);
+
+        now.addAndGet(wait);
+        assertEquals(0, bucket.tryAcquire(1));
+        assertTrue(bucket.tryAcquire(1) > 0);
+    }
+
+    @Test
+    public void testConsumeTakesTheBucketIntoDebt() {
+        bucket.consume(25);
+
+        assertEquals(TimeUnit.SECONDS.toNanos(2), bucket.tryAcquire(0));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertEquals(0, bucket.tryAcquire(0));
+        assertFalse(bucket.isFull());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(bucket.isFull());
+    }
+}
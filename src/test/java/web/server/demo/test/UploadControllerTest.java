@@ -0,0 +1,126 @@
+package web.server.demo.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import web.server.demo.controller.UploadController;
+import web.server.demo.repository.FileData;
+import web.server.demo.service.UploadSession;
+import web.server.demo.service.UploadSessionService;
+
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import static java.lang.String.valueOf;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static web.server.demo.client.Constants.*;
+import static web.server.demo.data.TestData.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UploadControllerTest {
+
+    private static final String UPLOAD_ID = "5f0c3c9e-8f5a-4b8e-9d3c-2b1f4e6a7c80";
+
+    @Mock
+    private UploadSessionService uploadSessionService;
+
+    @InjectMocks
+    private UploadController uploadController;
+
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUp() {
+        mockMvc = MockMvcBuilders.standaloneSetup(uploadController).build();
+    }
+
+    @Test
+    public void testInitiateUpload() throws Exception {
+        when(uploadSessionService.initiate(TXT_FILE))
+                .thenReturn(new UploadSession(UPLOAD_ID, TXT_FILE, new TreeMap<>(), Instant.now()));
+
+        mockMvc.perform(post(BASE_API_PATH + UPLOAD_INITIATE_PATH)
+                .param(NAME_PARAMETER, TXT_FILE))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.uploadId").value(UPLOAD_ID));
+    }
+
+    @Test
+    public void testUploadPart() throws Exception {
+        when(uploadSessionService.uploadPart(eq(UPLOAD_ID), eq(1), any(InputStream.class)))
+                .thenReturn((long) FILE_CONTENT.length());
+
+        mockMvc.perform(put(BASE_API_PATH + UPLOAD_PART_PATH)
+                .param(UPLOAD_ID_PARAMETER, UPLOAD_ID)
+                .param(PART_NUMBER_PARAMETER, "1")
+                .content(FILE_CONTENT))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void testUploadPartOfUnknownUpload() throws Exception {
+        when(uploadSessionService.uploadPart(eq(UPLOAD_ID), eq(1), any(InputStream.class)))
+                .thenThrow(new NoSuchElementException());
+
+        mockMvc.perform(put(BASE_API_PATH + UPLOAD_PART_PATH)
+                .param(UPLOAD_ID_PARAMETER, UPLOAD_ID)
+                .param(PART_NUMBER_PARAMETER, "1")
+                .content(FILE_CONTENT))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testCompleteUpload() throws Exception {
+        FileData fileData = dummyFileData();
+        fileData.setId(ID);
+        when(uploadSessionService.complete(UPLOAD_ID, 2)).thenReturn(CompletableFuture.completedFuture(fileData));
+
+        MvcResult result = mockMvc.perform(post(BASE_API_PATH + UPLOAD_COMPLETE_PATH)
+                .param(UPLOAD_ID_PARAMETER, UPLOAD_ID)
+                .param(PART_COUNT_PARAMETER, "2"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value(ID));
+    }
+
+    @Test
+    public void testCompleteUploadWithMissingParts() throws Exception {
+        when(uploadSessionService.complete(UPLOAD_ID, 2))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalArgumentException("Part 2 is missing")));
+
+        MvcResult result = mockMvc.perform(post(BASE_API_PATH + UPLOAD_COMPLETE_PATH)
+                .param(UPLOAD_ID_PARAMETER, UPLOAD_ID)
+                .param(PART_COUNT_PARAMETER, valueOf(2)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testAbortUploadBeingCompleted() throws Exception {
+        doThrow(new IllegalStateException()).when(uploadSessionService).abort(UPLOAD_ID);
+
+        mockMvc.perform(delete(BASE_API_PATH + UPLOAD_ABORT_PATH)
+                .param(UPLOAD_ID_PARAMETER, UPLOAD_ID))
+                .andExpect(status().isConflict());
+    }
+}
@@ -0,0 +1,202 @@
+package web.server.demo.test;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.util.StreamUtils;
+import web.server.demo.repository.FileData;
+import web.server.demo.service.RepoService;
+import web.server.demo.service.UploadSession;
+import web.server.demo.service.UploadSessionService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static web.server.demo.data.TestData.ID;
+import static web.server.demo.data.TestData.TXT_FILE;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UploadSessionServiceTest {
+
+    @Rule
+    public TemporaryFolder uploadsRoot = new TemporaryFolder();
+
+    @Mock
+    private RepoService repoService;
+
+    private UploadSessionService uploadSessionService;
+
+    private final ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() throws IOException {
+        uploadSessionService = new UploadSessionService(repoService, uploadsRoot.getRoot().getPath(),
+                Duration.ofHours(1), 100, 1024);
+    }
+
+    @Test
+    public void testCompleteAssemblesPartsInOrder() throws Exception {
+        saveAssembledContent();
+        String uploadId = uploadSessionService.initiate(TXT_FILE).getUploadId();
+
+        uploadSessionService.uploadPart(uploadId, 3, content("third"));
+        uploadSessionService.uploadPart(uploadId, 1, content("first "));
+        uploadSessionService.uploadPart(uploadId, 2, content("second "));
+        UploadSession upload = uploadSessionService.getUpload(uploadId);
+        FileData fileData = uploadSessionService.complete(uploadId, 3).get();
+
+        assertEquals(TXT_FILE, upload.getName());
+        assertEquals(Long.valueOf(7), upload.getParts().get(2));
+        assertEquals(ID, fileData.getId());
+        assertEquals("first second third", assembled.toString());
+        assertNoUpload(uploadId);
+    }
+
+    @Test
+    public void testUploadPartReplacesPreviousCopy() throws Exception {
+        saveAssembledContent();
+        String uploadId = uploadSessionService.initiate(TXT_FILE).getUploadId();
+
+        uploadSessionService.uploadPart(uploadId, 1, content("partial"));
+        uploadSessionService.uploadPart(uploadId, 1, content("complete part"));
+        uploadSessionService.complete(uploadId, 1).get();
+
+        assertEquals("complete part", assembled.toString());
+    }
+
+    @Test
+    public void testCompleteWithMissingPartKeepsUpload() throws Exception {
+        String uploadId = uploadSessionService.initiate(TXT_FILE).getUploadId();
+        uploadSessionService.uploadPart(uploadId, 1, content("first"));
+        uploadSessionService.uploadPart(uploadId, 3, content("third"));
+
+        try {
+            uploadSessionService.complete(uploadId, 3).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        verify(repoService, never()).save(anyString(), any(InputStreamSource.class));
+        assertEquals(2, uploadSessionService.getUpload(uploadId).getParts().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUploadPartOutOfRange() throws IOException {
+        String uploadId = uploadSessionService.initiate(TXT_FILE).getUploadId();
+        uploadSessionService.uploadPart(uploadId, 101, content("part"));
+    }
+
+    @Test
+    public void testAbortRemovesUpload() throws IOException {
+        String uploadId = uploadSessionService.initiate(TXT_FILE).getUploadId();
+        uploadSessionService.uploadPart(uploadId, 1, content("first"));
+
+        uploadSessionService.abort(uploadId);
+
+        assertNoUpload(uploadId);
+    }
+
+    @Test
+    public void testUnknownUploadIds() {
+        assertNoUpload("00000000-0000-0000-0000-000000000000");
+        assertNoUpload("../" + uploadsRoot.getRoot().getName());
+    }
+
+    @Test
+    public void testRemoveExpired() throws IOException {
+        String expired = uploadSessionService.initiate(TXT_FILE).getUploadId();
+        String active = uploadSessionService.initiate(TXT_FILE).getUploadId();
+        Path directory = uploadsRoot.getRoot().toPath().resolve(expired);
+        Files.setLastModifiedTime(directory, FileTime.from(Instant.now().minus(Duration.ofHours(2))));
+
+        uploadSessionService.removeExpired();
+
+        assertNoUpload(expired);
+        assertTrue(uploadSessionService.getUpload(active).getParts().isEmpty());
+    }
+
+    @Test
+    public void testIgnoresFilesWhichAreNotParts() throws Exception {
+        saveAssembledContent();
+        String uploadId = uploadSessionService.initiate(TXT_FILE).getUploadId();
+        uploadSessionService.uploadPart(uploadId, 1, content("first"));
+        Path directory = uploadsRoot.getRoot().toPath().resolve(uploadId);
+        for (String stray : new String[] {".part", "copy.part", "01.part", "0.part", "101.part"}) {
+            Files.write(directory.resolve(stray), "stray".getBytes());
+        }
+
+        assertEquals(Collections.singleton(1), uploadSessionService.getUpload(uploadId).getParts().keySet());
+        uploadSessionService.complete(uploadId, 1).get();
+        assertEquals("first", assembled.toString());
+    }
+
+    @Test
+    public void testPartReceivedWhileCompletingIsRejected() throws Exception {
+        when(repoService.save(anyString(), any(InputStreamSource.class))).thenReturn(new CompletableFuture<>());
+        String uploadId = uploadSessionService.initiate(TXT_FILE).getUploadId();
+        uploadSessionService.uploadPart(uploadId, 1, content("first"));
+        InputStream completedWhileReceived = new SequenceInputStream(content("second"), new InputStream() {
+            @Override
+            public int read() {
+                uploadSessionService.complete(uploadId, 1);
+                return -1;
+            }
+        });
+
+        try {
+            uploadSessionService.uploadPart(uploadId, 2, completedWhileReceived);
+            fail("The part was written into an upload being completed");
+        } catch (IllegalStateException e) {
+            assertEquals(Collections.singleton(1), uploadSessionService.getUpload(uploadId).getParts().keySet());
+        }
+    }
+
+    private void saveAssembledContent() {
+        when(repoService.save(anyString(), any(InputStreamSource.class))).then(invocation -> {
+            try (InputStream in = invocation.getArgument(1, InputStreamSource.class).getInputStream()) {
+                StreamUtils.copy(in, assembled);
+            }
+            FileData fileData = new FileData(invocation.getArgument(0), assembled.size(), null);
+            fileData.setId(ID);
+            return CompletableFuture.completedFuture(fileData);
+        });
+    }
+
+    private void assertNoUpload(String uploadId) {
+        try {
+            uploadSessionService.getUpload(uploadId);
+            fail();
+        } catch (NoSuchElementException e) {
+            // expected
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private static InputStream content(String content) {
+        return new ByteArrayInputStream(content.getBytes());
+    }
+}
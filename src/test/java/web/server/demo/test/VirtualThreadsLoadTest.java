@@ -0,0 +1,132 @@
+package web.server.demo.test;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import web.server.demo.Application;
+import web.server.demo.service.RepoService;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static web.server.demo.client.Constants.*;
+import static web.server.demo.data.TestData.dummyMultipartFile;
+
+/**
+ * Compares the platform thread pools with the virtual thread mode by firing a burst of concurrent requests at a
+ * running server, each holding its own connection, and reports throughput and p99 latency of both. Only runs with
+ * the <tt>load</tt> profile. The client and the server share the JVM, so the open files limit must allow two
+ * descriptors per connection:
+ *
+ * ulimit -n 32768 && mvn test -Pload -Dtest=VirtualThreadsLoadTest -Dload.heap=2g -Dload.connections=10000
+ */
+public class VirtualThreadsLoadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadsLoadTest.class);
+
+    private static final int CONNECTIONS = Integer.getInteger("load.connections", 10_000);
+    private static final int ROUNDS = Integer.getInteger("load.rounds", 3);
+
+    @Rule
+    public TemporaryFolder storageRoot = new TemporaryFolder();
+
+    @Test
+    public void testPlatformAgainstVirtualThreads() throws Exception {
+        Result platform = run(false);
+        Result virtual = run(true);
+        LOG.info("{} concurrent connections, best of {} rounds", CONNECTIONS, ROUNDS);
+        LOG.info("Platform threads: {}", platform);
+        LOG.info("Virtual threads:  {}", virtual);
+    }
+
+    private Result run(boolean virtualThreads) throws Exception {
+        String mode = virtualThreads ? "virtual" : "platform";
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).run(
+                "--server.port=0",
+                "--server.tomcat.max-connections=" + CONNECTIONS,
+                "--server.tomcat.accept-count=" + CONNECTIONS,
+                "--executor.virtual-threads=" + virtualThreads,
+                // a single client measuring the server, which admission control would throttle
+                "--admission.enabled=false",
+                "--storage.root=" + storageRoot.newFolder(mode).getPath(),
+                "--spring.datasource.url=jdbc:h2:mem:" + mode,
+                "--logging.level.web.server.demo.service=WARN",
+                "--logging.level.web.server.demo.controller=WARN")) {
+            long id = context.getBean(RepoService.class)
+                    .save(dummyMultipartFile()).get().getId();
+            URI uri = URI.create("http://localhost:" + context.getEnvironment().getProperty("local.server.port")
+                    + BASE_API_PATH + RETRIEVE_BY_ID_PATH + "?" + ID_PARAMETER + "=" + id);
+
+            Result best = null;
+            for (int round = 0; round < ROUNDS; round++) {
+                Result result = burst(uri);
+                LOG.info("{} threads, round {}: {}", mode, round + 1, result);
+                best = best == null || result.throughput > best.throughput ? result : best;
+            }
+            return best;
+        }
+    }
+
+    private Result burst(URI uri) throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(Duration.ofMinutes(2)).build();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] latencies = new long[CONNECTIONS];
+        List<Future<Integer>> responses = new ArrayList<>(CONNECTIONS);
+
+        long began;
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CONNECTIONS; i++) {
+                int index = i;
+                responses.add(clients.submit(() -> {
+                    start.await();
+                    long sent = System.nanoTime();
+                    HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                    latencies[index] = System.nanoTime() - sent;
+                    return response.statusCode();
+                }));
+            }
+            began = System.nanoTime();
+            start.countDown();
+            for (Future<Integer> response : responses) {
+                assertEquals(200, response.get().intValue());
+            }
+        }
+        long elapsed = System.nanoTime() - began;
+        Arrays.sort(latencies);
+        return new Result(CONNECTIONS * 1e9 / elapsed, latencies[(int) Math.ceil(CONNECTIONS * 0.99) - 1]);
+    }
+
+    private static class Result {
+
+        private final double throughput;
+
+        private final long p99Nanos;
+
+        private Result(double throughput, long p99Nanos) {
+            this.throughput = throughput;
+            this.p99Nanos = p99Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f requests/s, p99 %d ms", throughput, TimeUnit.NANOSECONDS.toMillis(p99Nanos));
+        }
+    }
+}
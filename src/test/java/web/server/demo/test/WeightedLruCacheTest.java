@@ -0,0 +1,159 @@
+package web.server.demo.test;
+
+import org.junit.Test;
+import web.server.demo.cache.CacheStats;
+import web.server.demo.cache.WeightedLruCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WeightedLruCacheTest {
+
+    private final WeightedLruCache<String, String> cache = new WeightedLruCache<>("test", 10, String::length);
+
+    @Test
+    public void testHitsAndMisses() {
+        assertEquals("abc", cache.get("a", key -> "abc"));
+        assertEquals("abc", cache.get("a", key -> "other"));
+
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(3, stats.getWeight());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedByWeight() {
+        cache.get("a", key -> "aaaa");
+        cache.get("b", key -> "bbbb");
+        cache.get("a", key -> "reloaded");
+        cache.get("c", key -> "cccc");
+
+        assertEquals(1, cache.stats().getEvictions());
+        assertEquals("aaaa", cache.get("a", key -> "reloaded"));
+        assertEquals("reloaded", cache.get("b", key -> "reloaded"));
+    }
+
+    @Test
+    public void testDoesNotCacheValuesHeavierThanTheCache() {
+        cache.get("a", key -> "more than ten");
+
+        assertEquals(0, cache.stats().getEntries());
+        assertEquals("reloaded", cache.get("a", key -> "reloaded"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        cache.get("a", key -> "old");
+        cache.invalidate("a");
+
+        assertEquals("new", cache.get("a", key -> "new"));
+        assertEquals(0, cache.stats().getHits());
+    }
+
+    @Test
+    public void testDoesNotCacheLoadRacingWithInvalidation() {
+        cache.get("a", key -> {
+            cache.invalidate(key);
+            return "stale";
+        });
+
+        assertEquals("fresh", cache.get("a", key -> "fresh"));
+    }
+
+    @Test
+    public void testRemovalListenerSeesEveryValueLeavingTheCache() {
+        List<String> removed = new ArrayList<>();
+        WeightedLruCache<String, String> listened = new WeightedLruCache<>("test", 10, String::length, removed::add);
+
+        listened.get("a", key -> "aaaa");
+        listened.get("b", key -> "bbbb");
+        listened.get("c", key -> "cccc");
+        listened.invalidate("b");
+        listened.get("d", key -> "more than ten");
+
+        assertEquals(Arrays.asList("aaaa", "bbbb", "more than ten"), removed);
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch loaded = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> cache.get("a", key -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            await(loaded);
+            return "aaaa";
+        }));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> cache.get("a", key -> {
+            loads.incrementAndGet();
+            return "other";
+        }));
+        awaitMisses(2);
+        loaded.countDown();
+
+        assertEquals("aaaa", first.get(5, TimeUnit.SECONDS));
+        assertEquals("aaaa", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+        assertEquals(2, cache.stats().getMisses());
+    }
+
+    @Test
+    public void testConcurrentMissesShareTheFailureOfTheLoad() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch loaded = new CountDownLatch(1);
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> cache.get("a", key -> {
+            loading.countDown();
+            await(loaded);
+            throw new IllegalStateException("Load failed");
+        }));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> cache.get("a", key -> "other"));
+        awaitMisses(2);
+        loaded.countDown();
+
+        for (CompletableFuture<String> future : Arrays.asList(first, second)) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("The load did not fail");
+            } catch (ExecutionException e) {
+                assertEquals("Load failed", e.getCause().getMessage());
+            }
+        }
+        assertEquals("aaaa", cache.get("a", key -> "aaaa"));
+    }
+
+    /*
+     * A miss is counted once the caller joined the load in flight, or started its own
+     */
+    private void awaitMisses(long misses) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cache.stats().getMisses() < misses && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(misses, cache.stats().getMisses());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package web.server.demo.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.projection.ProjectionFactory;
+import org.springframework.data.projection.SpelAwareProxyProjectionFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.StreamUtils;
+import web.server.demo.cache.FileCache;
+import web.server.demo.metrics.MetricNames;
+import web.server.demo.metrics.TransferMetrics;
+import web.server.demo.repository.BlobRecordRepository;
+import web.server.demo.repository.FileData;
+import web.server.demo.repository.FileDataRepository;
+import web.server.demo.repository.FileMetadata;
+import web.server.demo.service.BlobService;
+import web.server.demo.service.NameIndex;
+import web.server.demo.service.NotDrainedException;
+import web.server.demo.service.RepoService;
+import web.server.demo.service.WriteBehind;
+import web.server.demo.storage.BlobStore;
+import web.server.demo.storage.ContentEncoding;
+import web.server.demo.storage.Journal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+import static web.server.demo.data.TestData.*;
+
+public class WriteBehindTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int MAX_FILE_SIZE = 1024;
+    private static final ProjectionFactory PROJECTION_FACTORY = new SpelAwareProxyProjectionFactory();
+
+    @Rule
+    public TemporaryFolder storageRoot = new TemporaryFolder();
+
+    @Mock
+    private FileDataRepository fileDataRepository;
+
+    @Mock
+    private BlobRecordRepository blobRecordRepository;
+
+    private SingleConnectionDataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private BlobService blobService;
+
+    private FileCache fileCache;
+
+    private NameIndex nameIndex;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private Path journalRoot;
+
+    private final List<WriteBehind> opened = new ArrayList<>();
+
+    private AutoCloseable mocks;
+
+    @Before
+    public void setUp() throws IOException {
+        mocks = MockitoAnnotations.openMocks(this);
+        dataSource = new SingleConnectionDataSource("jdbc:h2:mem:write-behind", true);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("create table file_data (id bigint primary key, name varchar(255), "
+                + "size bigint not null, digest varchar(255), encoding varchar(255), stored_size bigint not null, "
+                + "created_at timestamp, modified_at timestamp)");
+        jdbcTemplate.execute("create sequence " + FileData.ID_SEQUENCE + " start with 1 increment by "
+                + FileData.ID_ALLOCATION_SIZE);
+        // the metadata of the files which were inserted
+        when(fileDataRepository.findMetadataByIdIn(anyCollection())).then(invocation -> savedIds(
+                invocation.getArgument(0)));
+        blobService = new BlobService(new BlobStore(storageRoot.newFolder("blobs").getPath(), 1024),
+                blobRecordRepository);
+        fileCache = new FileCache(blobService, 100, 1024 * 1024, 64 * 1024, false);
+        nameIndex = new NameIndex(fileDataRepository);
+        meterRegistry = new SimpleMeterRegistry();
+        journalRoot = storageRoot.getRoot().toPath().resolve("journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (WriteBehind writeBehind : opened) {
+            writeBehind.close();
+        }
+        jdbcTemplate.execute("drop all objects");
+        dataSource.destroy();
+        mocks.close();
+    }
+
+    @Test
+    public void testSaveServesFileBeforeItIsDrained() throws Exception {
+        CountDownLatch drain = new CountDownLatch(1);
+        when(fileDataRepository.findMetadataByIdIn(anyCollection())).then(invocation -> {
+            drain.await();
+            return savedIds(invocation.getArgument(0));
+        });
+        WriteBehind writeBehind = open();
+        ThreadPoolTaskExecutor uploadExecutor = new ThreadPoolTaskExecutor();
+        uploadExecutor.initialize();
+        try {
+            RepoService repoService = new RepoService(fileDataRepository, blobService, nameIndex, fileCache,
+                    new TransferMetrics(meterRegistry), uploadExecutor, 1, Optional.of(writeBehind));
+
+            FileData saved = repoService.save(TXT_FILE,
+                    () -> new ByteArrayInputStream(FILE_CONTENT.getBytes())).get();
+
+            assertTrue(saved.getId() > 0);
+            assertEquals(0, count());
+            assertEquals(1.0, meterRegistry.get(MetricNames.JOURNAL_PENDING).gauge().value(), 0);
+            assertEquals(Collections.singletonList(TXT_FILE), repoService.getByNameStartingWith(TXT_FILE, 10));
+            FileData journaled = repoService.getById(saved.getId()).get();
+            assertEquals(FILE_CONTENT.length(), journaled.getSize());
+            assertEquals(ContentEncoding.IDENTITY, journaled.getEncoding());
+            assertNull(repoService.getContentPath(journaled));
+            try (InputStream content = repoService.openContent(journaled)) {
+                assertEquals(FILE_CONTENT, StreamUtils.copyToString(content, StandardCharsets.UTF_8));
+            }
+            try (InputStream range = repoService.openStoredContent(journaled, 2, 3)) {
+                assertEquals(FILE_CONTENT.substring(2, 5), StreamUtils.copyToString(range, StandardCharsets.UTF_8));
+            }
+
+            drain.countDown();
+            writeBehind.awaitDrained(saved.getId());
+
+            assertNull(writeBehind.getPending(saved.getId()));
+            Map<String, Object> row = jdbcTemplate.queryForMap("select * from file_data where id = ?",
+                    saved.getId());
+            assertEquals(TXT_FILE, row.get("NAME"));
+            assertEquals(journaled.getDigest(), row.get("DIGEST"));
+            try (InputStream stored = blobService.open(journaled.getDigest(), ContentEncoding.IDENTITY)) {
+                assertEquals(FILE_CONTENT, StreamUtils.copyToString(stored, StandardCharsets.UTF_8));
+            }
+        } finally {
+            uploadExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAppendRefusesFilesWhichDoNotFit() throws Exception {
+        WriteBehind writeBehind = open();
+
+        assertNull(writeBehind.append(TXT_FILE, new byte[MAX_FILE_SIZE + 1]));
+        assertNotNull(writeBehind.append(TXT_FILE, new byte[MAX_FILE_SIZE]));
+    }
+
+    @Test
+    public void testDrainInsertsEveryFileWithItsOwnId() throws Exception {
+        WriteBehind writeBehind = open();
+        List<FileData> files = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            files.add(writeBehind.append("file" + i, ("content" + i).getBytes()));
+        }
+
+        files.forEach(file -> writeBehind.awaitDrained(file.getId()));
+
+        assertEquals(120, files.stream().map(FileData::getId).distinct().count());
+        assertEquals(120, count());
+        // the ids taken by the write-behind are not handed out by the sequence again
+        Long next = jdbcTemplate.queryForObject("select next value for " + FileData.ID_SEQUENCE, Long.class);
+        long maxId = files.stream().mapToLong(FileData::getId).max().getAsLong();
+        assertTrue(next - FileData.ID_ALLOCATION_SIZE >= maxId);
+    }
+
+    @Test
+    public void testRecoveryDrainsFilesLeftInTheJournal() throws Exception {
+        when(fileDataRepository.findMetadataByIdIn(anyCollection())).thenThrow(new IllegalStateException("down"));
+        WriteBehind crashed = open();
+        FileData drainedBeforeCrash = crashed.append(TXT_FILE, FILE_CONTENT.getBytes());
+        FileData notDrained = crashed.append(PREFIX + TXT_FILE, FILE_CONTENT.getBytes());
+        closeAll();
+        // the first file made it to the database, but its record was not released
+        jdbcTemplate.update("insert into file_data (id, name, size, stored_size) values (?, ?, ?, ?)",
+                drainedBeforeCrash.getId(), TXT_FILE, FILE_CONTENT.length(), FILE_CONTENT.length());
+        doAnswer(invocation -> savedIds(invocation.getArgument(0)))
+                .when(fileDataRepository).findMetadataByIdIn(anyCollection());
+
+        WriteBehind recovered = open();
+        // startup does not wait for the recovered files, they are drained in the background
+        recovered.awaitDrained(drainedBeforeCrash.getId());
+        recovered.awaitDrained(notDrained.getId());
+
+        assertNull(recovered.getPending(drainedBeforeCrash.getId()));
+        assertNull(recovered.getPending(notDrained.getId()));
+        assertEquals(2, count());
+        assertEquals(PREFIX + TXT_FILE, jdbcTemplate.queryForObject("select name from file_data where id = ?",
+                String.class, notDrained.getId()));
+        assertEquals(Collections.singletonList(PREFIX + TXT_FILE), nameIndex.findByPrefix(PREFIX, 10));
+        closeAll();
+        try (Stream<Path> segments = Files.list(journalRoot)) {
+            assertEquals(0, segments.count());
+        }
+    }
+
+    @Test
+    public void testAwaitDrainedGivesUpAfterTimeout() throws Exception {
+        CountDownLatch drain = new CountDownLatch(1);
+        when(fileDataRepository.findMetadataByIdIn(anyCollection())).then(invocation -> {
+            drain.await();
+            return savedIds(invocation.getArgument(0));
+        });
+        WriteBehind writeBehind = open(Duration.ofMillis(50));
+        FileData file = writeBehind.append(TXT_FILE, FILE_CONTENT.getBytes());
+
+        try {
+            writeBehind.awaitDrained(file.getId());
+            fail("The file was not drained");
+        } catch (NotDrainedException e) {
+            assertNotNull(writeBehind.getPending(file.getId()));
+        } finally {
+            drain.countDown();
+        }
+        writeBehind.awaitDrained(file.getId());
+        assertEquals(1, count());
+    }
+
+    @Test
+    public void testJournalReclaimsReleasedSegments() throws IOException {
+        byte[] content = new byte[100];
+        // three records per segment
+        int segmentSize = 3 * (12 + content.length);
+        List<Journal.Record> records = new ArrayList<>();
+        try (Journal journal = new Journal(journalRoot, segmentSize, false)) {
+            for (int i = 0; i < 9; i++) {
+                records.add(journal.append(content, content.length));
+            }
+            assertEquals(3, journal.getSegmentCount());
+
+            journal.release(records.subList(0, 4));
+            // the first segment was released whole, the second still holds two records
+            assertEquals(2, journal.getSegmentCount());
+            assertEquals(2, segmentFiles());
+
+            journal.release(records.subList(4, 9));
+            // the last segment is still appended to
+            assertEquals(1, journal.getSegmentCount());
+            assertEquals(1, segmentFiles());
+        }
+        assertEquals(0, segmentFiles());
+
+        try (Journal journal = new Journal(journalRoot, segmentSize, false)) {
+            for (int i = 0; i < 4; i++) {
+                journal.append(content, content.length);
+            }
+        }
+        try (Journal journal = new Journal(journalRoot, segmentSize, false)) {
+            List<Journal.Record> recovered = journal.recover();
+            assertEquals(4, recovered.size());
+            assertEquals(2, journal.getSegmentCount());
+
+            journal.release(recovered);
+            // recovered segments are never appended to again
+            assertEquals(0, journal.getSegmentCount());
+            assertEquals(0, segmentFiles());
+        }
+    }
+
+    @Test
+    public void testJournalRecoveryStopsAtCorruptRecord() throws IOException {
+        byte[] content = "record".getBytes();
+        try (Journal journal = new Journal(journalRoot, SEGMENT_SIZE, false)) {
+            for (int i = 0; i < 3; i++) {
+                journal.append(content, content.length);
+            }
+        }
+        Path segment;
+        try (Stream<Path> segments = Files.list(journalRoot)) {
+            segment = segments.findFirst().orElseThrow();
+        }
+        // the last byte of the third record, as if the process died while copying it
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'?'}), 3L * (12 + content.length) - 1);
+        }
+
+        try (Journal journal = new Journal(journalRoot, SEGMENT_SIZE, false)) {
+            List<Journal.Record> records = journal.recover();
+
+            assertEquals(2, records.size());
+            byte[] recovered = new byte[content.length];
+            records.get(1).getContent().get(recovered);
+            assertArrayEquals(content, recovered);
+        }
+    }
+
+    private WriteBehind open() throws IOException {
+        return open(Duration.ofSeconds(5));
+    }
+
+    private WriteBehind open(Duration awaitTimeout) throws IOException {
+        WriteBehind writeBehind = new WriteBehind(blobService, fileDataRepository, nameIndex, fileCache,
+                jdbcTemplate, new DataSourceTransactionManager(dataSource), meterRegistry, journalRoot.toString(),
+                SEGMENT_SIZE, true, MAX_FILE_SIZE, 1000, 50, 1, Duration.ofMillis(10), awaitTimeout,
+                Duration.ofSeconds(5));
+        opened.add(writeBehind);
+        writeBehind.afterSingletonsInstantiated();
+        return writeBehind;
+    }
+
+    private void closeAll() throws Exception {
+        for (WriteBehind writeBehind : opened) {
+            writeBehind.close();
+        }
+        opened.clear();
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> segments = Files.list(journalRoot)) {
+            return segments.count();
+        }
+    }
+
+    private int count() {
+        return jdbcTemplate.queryForObject("select count(*) from file_data", Integer.class);
+    }
+
+    private Collection<FileMetadata> savedIds(Collection<Long> ids) {
+        List<Long> saved = jdbcTemplate.queryForList("select id from file_data", Long.class);
+        return ids.stream().filter(saved::contains).map(id -> {
+            FileData fileData = new FileData(TXT_FILE, FILE_CONTENT.length(), DIGEST);
+            fileData.setId(id);
+            return PROJECTION_FACTORY.createProjection(FileMetadata.class, fileData);
+        }).collect(Collectors.toList());
+    }
+}